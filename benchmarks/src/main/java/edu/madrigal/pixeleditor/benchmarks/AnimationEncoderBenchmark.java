@@ -0,0 +1,106 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.madrigal.pixeleditor.ApngEncoder;
+import edu.madrigal.pixeleditor.Document;
+import edu.madrigal.pixeleditor.GifEncoder;
+import edu.madrigal.pixeleditor.LayerImage;
+import edu.madrigal.pixeleditor.LayerStack;
+import edu.madrigal.pixeleditor.PngEncoder;
+
+/**
+ * Exporting an animation of 24 frames, in which a square crosses an image
+ * of dots or noise, as a GIF, as an animated PNG, and as a PNG of every
+ * whole frame to compare against. Each writes to the same temporary file,
+ * and returns how big it came out.
+ *
+ * @author nihil
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class AnimationEncoderBenchmark {
+
+  private static final int FRAMES = 24;
+  private static final int SQUARE = 16;
+
+  @Param( { "300", "2000" } )
+  private int size;
+
+  @Param( { "dots", "noise" } )
+  private String shape;
+
+  private List< LayerStack > frames;
+  private File file;
+  private FileChannel out;
+
+  @Setup
+  public void setUp() throws IOException {
+    Document document = Canvases.of( shape, size );
+    int step = ( size - SQUARE ) / FRAMES;
+    for( int i = 1; i < FRAMES; i++ ) {
+      document.addFrame();
+      document.getCanvas().fillRect( i * step, size / 2, SQUARE, SQUARE,
+                                     Canvases.BLACK );
+    }
+    frames = document.getFrames();
+    file = File.createTempFile( "animation", ".tmp" );
+    out = FileChannel.open( file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE );
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    out.close();
+    file.delete();
+  }
+
+  @Benchmark
+  public long gif() throws IOException {
+    out.truncate( 0 );
+    new GifEncoder().write( frames, 12, out.position( 0 ) );
+    return out.size();
+  }
+
+  @Benchmark
+  public long apng() throws IOException {
+    out.truncate( 0 );
+    new ApngEncoder( new PngEncoder() ).write( frames, 12, out.position( 0 ) );
+    return out.size();
+  }
+
+  @Benchmark
+  public long fullFrames() throws IOException {
+    out.truncate( 0 );
+    OutputStream stream = Channels.newOutputStream( out.position( 0 ) );
+    PngEncoder encoder = new PngEncoder();
+    for( LayerStack frame : frames ) {
+      encoder.write( new LayerImage( frame ), stream );
+    }
+    return out.size();
+  }
+}
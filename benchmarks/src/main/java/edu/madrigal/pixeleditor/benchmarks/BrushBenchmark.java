@@ -0,0 +1,83 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.madrigal.pixeleditor.Brush;
+import edu.madrigal.pixeleditor.Document;
+import edu.madrigal.pixeleditor.StrokeEngine;
+
+/**
+ * Painting a stroke across the image with brushes from one cell to the
+ * widest, the way the editor does: a flush for every few positions, like a
+ * frame of mouse events, then committing the stroke and undoing it so the
+ * image stays the same.
+ *
+ * @author nihil
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class BrushBenchmark {
+
+  // how far apart the positions of the stroke are, and how many a flush
+  private static final int STEP = 3;
+  private static final int PER_FLUSH = 4;
+
+  @Param( { "300", "2000" } )
+  private int size;
+
+  @Param( { "ROUND", "DITHERED" } )
+  private Brush.Shape shape;
+
+  @Param( { "1", "16", "64" } )
+  private int brushSize;
+
+  private Document document;
+  private StrokeEngine stroke;
+
+  @Setup
+  public void setUp() {
+    document = Canvases.blank( size );
+    stroke = new StrokeEngine();
+    stroke.setBrush( new Brush( shape, brushSize ) );
+  }
+
+  @Benchmark
+  public Rectangle stroke() {
+    stroke.begin( document.getCanvas(), document.getHistory(),
+                  0x80000000, 1 );
+    Rectangle painted = new Rectangle();
+    for( int i = 0, x = 0; x < size; i++, x += STEP ) {
+      stroke.addSample( x, size / 2 + ( x & 31 ) );
+      if( i % PER_FLUSH == 0 ) {
+        Rectangle flushed = stroke.flush();
+        if( flushed != null ) {
+          painted.add( flushed );
+        }
+      }
+    }
+    Rectangle ended = stroke.end();
+    if( ended != null ) {
+      painted.add( ended );
+    }
+    document.commit();
+    document.undo();
+    return painted;
+  }
+}
@@ -0,0 +1,105 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.util.Random;
+
+import edu.madrigal.pixeleditor.Document;
+import edu.madrigal.pixeleditor.TiledCanvas;
+
+/**
+ * Images for the benchmarks to work on, drawn the same way every time.
+ *
+ * @author nihil
+ */
+final class Canvases {
+
+  static final int WHITE = 0xffffffff;
+  static final int BLACK = 0xff000000;
+
+  private Canvases() {
+  }
+
+  /**
+   * A white image of a single layer
+   *
+   * @param size the width and height of the image
+   * @return the image
+   */
+  static Document blank( int size ) {
+    return new Document( size, size );
+  }
+
+  /**
+   * A white image split by black walls into one path that winds back and
+   * forth across every other row, the slowest shape for a scanline fill
+   *
+   * @param size the width and height of the image
+   * @return the image
+   */
+  static Document serpentine( int size ) {
+    Document document = blank( size );
+    TiledCanvas canvas = document.getCanvas();
+    for( int y = 1; y < size; y += 2 ) {
+      // the gap in each wall alternates ends
+      int gap = ( y / 2 ) % 2 == 0 ? size - 1 : 0;
+      canvas.fillRect( 0, y, size, 1, BLACK );
+      canvas.fillRect( gap, y, 1, 1, WHITE );
+    }
+    return document;
+  }
+
+  /**
+   * A white image with one pixel in ten black, scattered at random
+   *
+   * @param size the width and height of the image
+   * @return the image
+   */
+  static Document dots( int size ) {
+    Document document = blank( size );
+    TiledCanvas canvas = document.getCanvas();
+    Random random = new Random( size );
+    int[] row = new int[size];
+    for( int y = 0; y < size; y++ ) {
+      for( int x = 0; x < size; x++ ) {
+        row[x] = random.nextInt( 10 ) == 0 ? BLACK : WHITE;
+      }
+      canvas.setRegion( 0, y, size, 1, row, 0, size );
+    }
+    return document;
+  }
+
+  /**
+   * An image of random opaque colors, so no tile is a single color
+   *
+   * @param size the width and height of the image
+   * @return the image
+   */
+  static Document noise( int size ) {
+    Document document = blank( size );
+    TiledCanvas canvas = document.getCanvas();
+    Random random = new Random( size );
+    int[] row = new int[size];
+    for( int y = 0; y < size; y++ ) {
+      for( int x = 0; x < size; x++ ) {
+        row[x] = random.nextInt() | BLACK;
+      }
+      canvas.setRegion( 0, y, size, 1, row, 0, size );
+    }
+    return document;
+  }
+
+  /**
+   * An image of the given shape
+   *
+   * @param shape "blank", "serpentine", "dots" or "noise"
+   * @param size the width and height of the image
+   * @return the image
+   */
+  static Document of( String shape, int size ) {
+    switch( shape ) {
+      case "serpentine": return serpentine( size );
+      case "dots":       return dots( size );
+      case "noise":      return noise( size );
+      default:           return blank( size );
+    }
+  }
+}
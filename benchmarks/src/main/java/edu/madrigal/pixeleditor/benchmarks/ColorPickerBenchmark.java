@@ -0,0 +1,75 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.madrigal.pixeleditor.ColorChoice;
+import edu.madrigal.pixeleditor.ColorPickerPanel;
+
+/**
+ * Painting the color picker into an offscreen image, both when its
+ * gradient is cached and when every paint is at a new brightness, like
+ * while the brightness is being dragged.
+ *
+ * @author nihil
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class ColorPickerBenchmark {
+
+  @Param( { "300", "2000", "8000" } )
+  private int size;
+
+  private ColorChoice color;
+  private ColorPickerPanel picker;
+  private BufferedImage target;
+  private Graphics2D graphics;
+  private int brightness;
+
+  @Setup
+  public void setUp() {
+    color = new ColorChoice( 0xffa00000 );
+    picker = new ColorPickerPanel( color );
+    picker.setSize( size, size );
+    target = new BufferedImage( size, size, BufferedImage.TYPE_INT_RGB );
+    graphics = target.createGraphics();
+  }
+
+  @TearDown
+  public void tearDown() {
+    graphics.dispose();
+  }
+
+  @Benchmark
+  public BufferedImage paintCached() {
+    picker.paintComponent( graphics );
+    return target;
+  }
+
+  @Benchmark
+  public BufferedImage paintNewBrightness() {
+    // more brightness levels than the picker caches
+    brightness = ( brightness + 1 ) % 101;
+    color.setHSB( color.getHue(), color.getSaturation(), brightness / 100f );
+    picker.paintComponent( graphics );
+    return target;
+  }
+}
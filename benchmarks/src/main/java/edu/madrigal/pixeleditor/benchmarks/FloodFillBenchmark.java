@@ -0,0 +1,72 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.madrigal.pixeleditor.Document;
+
+/**
+ * A click of the fill tool: filling a region, then committing it to the
+ * history as the mouse is released.
+ *
+ * Each fill paints the region the other of two colors, so every fill
+ * changes the same pixels.
+ *
+ * @author nihil
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class FloodFillBenchmark {
+
+  private static final int GRAY = 0xffeeeeee;
+
+  @Param( { "300", "2000", "8000" } )
+  private int size;
+
+  @Param( { "blank", "serpentine", "dots" } )
+  private String shape;
+
+  private Document document;
+  private int x;
+  private int y;
+  private boolean gray;
+
+  @Setup
+  public void setUp() {
+    document = Canvases.of( shape, size );
+
+    // start from the first white pixel, in case the corner is a dot
+    for( int i = 0; i < size * size; i++ ) {
+      if( document.getCanvas().getRGB( i % size, i / size )
+          == Canvases.WHITE ) {
+        x = i % size;
+        y = i / size;
+        break;
+      }
+    }
+  }
+
+  @Benchmark
+  public Rectangle fill() {
+    gray = !gray;
+    Rectangle filled = document.fill( x, y, gray ? GRAY : Canvases.WHITE );
+    document.commit();
+    return filled;
+  }
+}
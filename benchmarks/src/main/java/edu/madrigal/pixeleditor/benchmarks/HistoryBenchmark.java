@@ -0,0 +1,90 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.madrigal.pixeleditor.Document;
+import edu.madrigal.pixeleditor.History;
+import edu.madrigal.pixeleditor.TiledCanvas;
+
+/**
+ * Recording an edit in the history, and stepping back and forth through
+ * it, with a history already holding some edits.
+ *
+ * Each edit is a brush-sized square painted somewhere new, so it touches
+ * one to four tiles, like a short stroke does.
+ *
+ * @author nihil
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class HistoryBenchmark {
+
+  // the side of the square each edit paints
+  private static final int BRUSH = 48;
+
+  @Param( { "300", "2000", "8000" } )
+  private int size;
+
+  @Param( { "1", "64", "1024" } )
+  private int depth;
+
+  private Document document;
+  private int edits;
+
+  @Setup
+  public void setUp() {
+    document = Canvases.blank( size );
+    document.setHistoryBudget( Long.MAX_VALUE );
+    for( int i = 0; i < depth; i++ ) {
+      paint();
+    }
+  }
+
+  /*
+   * paints a square somewhere new and commits it
+   */
+  private boolean paint() {
+    int steps = ( size - BRUSH ) / BRUSH + 1;
+    int cell = edits++;
+    int x = ( cell % steps ) * BRUSH;
+    int y = ( cell / steps % steps ) * BRUSH;
+    int color = 0xff000000 | ( cell * 0x9e3779b1 >>> 8 );
+
+    TiledCanvas canvas = document.getCanvas();
+    History history = document.getHistory();
+    history.touch( x, y, BRUSH, BRUSH );
+    canvas.fillRect( x, y, BRUSH, BRUSH, color );
+    return document.commit();
+  }
+
+  @Benchmark
+  public boolean pushToHistory() {
+    // undo the edit this makes, so the history stays at the same depth
+    boolean committed = paint();
+    document.undo();
+    return committed;
+  }
+
+  @Benchmark
+  public Rectangle undoRedo() {
+    document.undo();
+    return document.redo();
+  }
+}
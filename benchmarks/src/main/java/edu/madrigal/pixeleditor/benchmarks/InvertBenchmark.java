@@ -0,0 +1,57 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.madrigal.pixeleditor.Document;
+import edu.madrigal.pixeleditor.PixelFilter;
+
+/**
+ * Inverting the colors of the whole layer as a single edit, history
+ * included.
+ *
+ * A blank image keeps every tile a single color, and noise has no tile
+ * that is, so the two bound how much pixel work an invert does.
+ *
+ * @author nihil
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class InvertBenchmark {
+
+  @Param( { "300", "2000", "8000" } )
+  private int size;
+
+  @Param( { "blank", "noise" } )
+  private String shape;
+
+  private Document document;
+  private PixelFilter invert;
+
+  @Setup
+  public void setUp() {
+    document = Canvases.of( shape, size );
+    invert = PixelFilter.invert();
+  }
+
+  @Benchmark
+  public Rectangle invertColors() {
+    return document.applyFilter( invert );
+  }
+}
@@ -0,0 +1,100 @@
+package edu.madrigal.pixeleditor.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.madrigal.pixeleditor.LayerImage;
+import edu.madrigal.pixeleditor.PngEncoder;
+import edu.madrigal.pixeleditor.Quantizer;
+
+/**
+ * Writing an image as PNG, with the editor's encoder at its fastest and
+ * smallest settings and with ImageIO, on an image of two colors and one
+ * of random colors. The bytes written are counted and thrown away.
+ *
+ * @author nihil
+ */
+@State( Scope.Thread )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class PngEncoderBenchmark {
+
+  @Param( { "300", "2000" } )
+  private int size;
+
+  @Param( { "dots", "noise" } )
+  private String shape;
+
+  private LayerImage image;
+  private PngEncoder fastest;
+  private PngEncoder smallest;
+
+  @Setup
+  public void setUp() {
+    image = new LayerImage( Canvases.of( shape, size ).getLayers() );
+    fastest = new PngEncoder();
+    fastest.setLevel( 1 );
+    fastest.setFilter( PngEncoder.Filter.NONE );
+    smallest = new PngEncoder();
+    smallest.setLevel( 9 );
+    smallest.setFilter( PngEncoder.Filter.MINIMUM_SUM );
+    smallest.setQuantizer( Quantizer.medianCut() );
+  }
+
+  @Benchmark
+  public long fastest() throws IOException {
+    Counter out = new Counter();
+    fastest.write( image, out );
+    return out.count;
+  }
+
+  @Benchmark
+  public long smallest() throws IOException {
+    Counter out = new Counter();
+    smallest.write( image, out );
+    return out.count;
+  }
+
+  @Benchmark
+  public long imageIO() throws IOException {
+    Counter out = new Counter();
+    ImageIO.write( image, "PNG", out );
+    return out.count;
+  }
+
+  /*
+   * a stream that only counts what is written to it
+   */
+  private static class Counter extends OutputStream {
+
+    long count;
+
+    @Override
+    public void write( int b ) {
+      count++;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the frames of an animation to a file, one at a time.
+ *
+ * Each frame is flattened only when it is written, and only the frame
+ * before it, the frame itself and the frame after it are kept, so an
+ * animation of any length is written in the same memory. A frame the same
+ * as the one before it is not written again; the one before is just shown
+ * for longer. The formats write only the part of each frame that changed
+ * since the one before.
+ *
+ * @author nihil
+ */
+public abstract class AnimationEncoder {
+
+  /**
+   * Writes an animation to a file, from its start.
+   *
+   * @param frames the frames, which must not change until they're written
+   * @param framesPerSecond how fast the animation plays
+   * @param out the file
+   * @throws IOException if the file can't be written
+   */
+  public void write( List< LayerStack > frames, int framesPerSecond,
+                     FileChannel out ) throws IOException {
+    LayerStack first = frames.get( 0 );
+    int width = first.getWidth();
+    int height = first.getHeight();
+    start( width, height, framesPerSecond, out );
+
+    int[] before = null;
+    int[] pixels = new int[width * height];
+    int[] after = new int[width * height];
+    int[] spare = null;
+    first.flatten( 0, 0, width, height, pixels, 0, width );
+    int shown = 0;
+    for( int i = 1; i < frames.size(); i++ ) {
+      frames.get( i ).flatten( 0, 0, width, height, after, 0, width );
+      if( Arrays.equals( pixels, after ) ) {
+        continue;
+      }
+      frame( before, pixels, shown, i, after );
+      progress( i * 100 / frames.size() );
+
+      // the frame after becomes the one being written, and the one
+      // written becomes the one before
+      spare = before == null ? new int[width * height] : before;
+      before = pixels;
+      pixels = after;
+      after = spare;
+      shown = i;
+    }
+    frame( before, pixels, shown, frames.size(), null );
+    finish();
+    progress( 100 );
+  }
+
+  /**
+   * Called as each frame is written, from the thread writing.
+   *
+   * @param percent how much of the animation is written, from 0 to 100
+   */
+  protected void progress( int percent ) {
+  }
+
+  /**
+   * Starts the file.
+   *
+   * @param width the width of the animation
+   * @param height the height of the animation
+   * @param framesPerSecond how fast the animation plays
+   * @param out the file, at its start
+   * @throws IOException if the file can't be written
+   */
+  protected abstract void start( int width, int height, int framesPerSecond,
+                                 FileChannel out ) throws IOException;
+
+  /**
+   * Writes a frame, which is shown from the start of one frame of the
+   * animation to the start of another, since repeated frames are only
+   * written once.
+   *
+   * @param before the frame before, or null if this is the first
+   * @param pixels the ARGB pixels of the frame
+   * @param from the index of the frame it is first shown at
+   * @param to the index of the frame it is shown until
+   * @param after the frame after, or null if this is the last
+   * @throws IOException if the file can't be written
+   */
+  protected abstract void frame( int[] before, int[] pixels, int from,
+                                 int to, int[] after ) throws IOException;
+
+  /**
+   * Ends the file, after the last frame.
+   *
+   * @throws IOException if the file can't be written
+   */
+  protected abstract void finish() throws IOException;
+
+  /**
+   * The smallest rectangle holding every pixel that differs between two
+   * frames
+   *
+   * @param a the ARGB pixels of one frame
+   * @param b the ARGB pixels of the other
+   * @param width the width of the frames
+   * @param height the height of the frames
+   * @return the rectangle, or null if the frames are the same
+   */
+  protected static Rectangle difference( int[] a, int[] b, int width,
+                                         int height ) {
+    int top = 0;
+    while( top < height && rowsMatch( a, b, top * width, width ) ) {
+      top++;
+    }
+    if( top == height ) {
+      return null;
+    }
+    int bottom = height - 1;
+    while( rowsMatch( a, b, bottom * width, width ) ) {
+      bottom--;
+    }
+    int left = width;
+    int right = -1;
+    for( int y = top; y <= bottom; y++ ) {
+      int row = y * width;
+      for( int x = 0; x < left; x++ ) {
+        if( a[row + x] != b[row + x] ) {
+          left = x;
+          break;
+        }
+      }
+      for( int x = width - 1; x > right; x-- ) {
+        if( a[row + x] != b[row + x] ) {
+          right = x;
+          break;
+        }
+      }
+    }
+    return new Rectangle( left, top, right - left + 1, bottom - top + 1 );
+  }
+
+  private static boolean rowsMatch( int[] a, int[] b, int from,
+                                    int width ) {
+    for( int i = from; i < from + width; i++ ) {
+      if( a[i] != b[i] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
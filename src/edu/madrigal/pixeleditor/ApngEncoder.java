@@ -0,0 +1,221 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an animation as an animated PNG, in full color.
+ *
+ * Every frame after the first only holds the rectangle that changed since
+ * the frame before. When nothing in the rectangle turns more transparent,
+ * the frame is drawn over the one before with its unchanged pixels left
+ * transparent, which deflates far better than the pixels themselves;
+ * otherwise the rectangle replaces what was there. Frames are never
+ * disposed of, so each one builds on the last.
+ *
+ * The number of frames is only known once they are all written, so it is
+ * filled in at the end, which is why this writes to a file.
+ *
+ * @author nihil
+ */
+public class ApngEncoder extends AnimationEncoder {
+
+  // how a frame is disposed of, and how it is drawn
+  private static final int DISPOSE_NONE = 0;
+  private static final int BLEND_SOURCE = 0;
+  private static final int BLEND_OVER = 1;
+
+  // where the acTL chunk with the frame count starts: after the signature
+  // and the IHDR chunk
+  private static final int CONTROL_AT = 8 + 25;
+
+  private final int level;
+  private final PngEncoder.Filter filter;
+
+  private FileChannel file;
+  private OutputStream out;
+  private Deflater deflater;
+  private int width;
+  private int height;
+  private int framesPerSecond;
+
+  // how many frames were written, and the sequence number of the next
+  // fcTL or fdAT chunk
+  private int frames;
+  private int sequence;
+
+  /**
+   * Constructor for an encoder with the same deflate level and row filter
+   * as a PNG encoder
+   *
+   * @param settings the PNG encoder to take the settings of
+   */
+  public ApngEncoder( PngEncoder settings ) {
+    level = settings.getLevel();
+    filter = settings.getFilter() == PngEncoder.Filter.AUTOMATIC
+        ? PngEncoder.Filter.MINIMUM_SUM : settings.getFilter();
+  }
+
+  @Override
+  protected void start( int width, int height, int framesPerSecond,
+                        FileChannel out ) throws IOException {
+    this.width = width;
+    this.height = height;
+    this.framesPerSecond = framesPerSecond;
+    file = out;
+    this.out = new BufferedOutputStream( Channels.newOutputStream( out ),
+                                         PngEncoder.CHUNK_SIZE );
+    deflater = new Deflater( level );
+    frames = 0;
+    sequence = 0;
+
+    this.out.write( new byte[]{ (byte) 0x89, 'P', 'N', 'G', '\r', '\n',
+                                0x1a, '\n' } );
+    byte[] header = new byte[13];
+    PngEncoder.putInt( header, 0, width );
+    PngEncoder.putInt( header, 4, height );
+    header[8] = 8;
+    header[9] = 6;
+    PngEncoder.chunk( this.out, "IHDR", header, header.length );
+
+    // the frame count is filled in at the end, and 0 plays forever
+    PngEncoder.chunk( this.out, "acTL", new byte[8], 8 );
+  }
+
+  @Override
+  protected void frame( int[] before, int[] pixels, int from, int to,
+                        int[] after ) throws IOException {
+    Rectangle area = before == null
+        ? new Rectangle( width, height )
+        : difference( before, pixels, width, height );
+    boolean over = before != null && opaqueChanges( before, pixels, area );
+
+    byte[] control = new byte[26];
+    PngEncoder.putInt( control, 0, sequence++ );
+    PngEncoder.putInt( control, 4, area.width );
+    PngEncoder.putInt( control, 8, area.height );
+    PngEncoder.putInt( control, 12, area.x );
+    PngEncoder.putInt( control, 16, area.y );
+    putDelay( control, to - from );
+    control[24] = DISPOSE_NONE;
+    control[25] = (byte) ( over ? BLEND_OVER : BLEND_SOURCE );
+    PngEncoder.chunk( out, "fcTL", control, control.length );
+
+    // the first frame is the image itself, and the rest are frame data
+    PngEncoder.IdatStream data = before == null
+        ? new PngEncoder.IdatStream( out )
+        : new PngEncoder.IdatStream( out ) {
+            private final byte[] numbered =
+                new byte[PngEncoder.CHUNK_SIZE + 4];
+
+            @Override
+            void chunk( byte[] bytes, int length ) throws IOException {
+              PngEncoder.putInt( numbered, 0, sequence++ );
+              System.arraycopy( bytes, 0, numbered, 4, length );
+              PngEncoder.chunk( out, "fdAT", numbered, length + 4 );
+            }
+          };
+    deflater.reset();
+    DeflaterOutputStream deflated =
+        new DeflaterOutputStream( data, deflater, PngEncoder.CHUNK_SIZE );
+    writeRows( before, pixels, area, over, deflated );
+    deflated.finish();
+    data.flush();
+    frames++;
+  }
+
+  @Override
+  protected void finish() throws IOException {
+    try {
+      PngEncoder.chunk( out, "IEND", new byte[0], 0 );
+      out.flush();
+
+      byte[] control = new byte[8];
+      PngEncoder.putInt( control, 0, frames );
+      ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+      PngEncoder.chunk( chunk, "acTL", control, control.length );
+      ByteBuffer buffer = ByteBuffer.wrap( chunk.toByteArray() );
+      long at = CONTROL_AT;
+      while( buffer.hasRemaining() ) {
+        at += file.write( buffer, at );
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /*
+   * whether every pixel that changed in an area is opaque now, so the
+   * frame can be drawn over the one before
+   */
+  private boolean opaqueChanges( int[] before, int[] pixels,
+                                 Rectangle area ) {
+    for( int y = area.y; y < area.y + area.height; y++ ) {
+      for( int i = y * width + area.x; i < y * width + area.x + area.width;
+           i++ ) {
+        if( pixels[i] != before[i] && pixels[i] >>> 24 != 0xff ) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /*
+   * the delay of a frame shown for some frames of the animation, as a
+   * fraction of a second that fits in two shorts
+   */
+  private void putDelay( byte[] control, int shown ) {
+    int numerator = shown;
+    int denominator = framesPerSecond;
+    if( numerator > 0xffff ) {
+      numerator = (int) Math.min( 0xffffL, shown * 1000L / framesPerSecond );
+      denominator = 1000;
+    }
+    control[20] = (byte) ( numerator >> 8 );
+    control[21] = (byte) numerator;
+    control[22] = (byte) ( denominator >> 8 );
+    control[23] = (byte) denominator;
+  }
+
+  /*
+   * filters and deflates the rows of an area, with the pixels that didn't
+   * change left transparent when drawing over
+   */
+  private void writeRows( int[] before, int[] pixels, Rectangle area,
+                          boolean over, OutputStream deflated )
+      throws IOException {
+    int stride = area.width * 4;
+    int[] line = new int[area.width];
+    byte[] row = new byte[stride];
+    byte[] previous = new byte[stride];
+    byte[][] filtered = new byte[PngEncoder.Filter.values().length]
+                                [stride + 1];
+    for( int y = area.y; y < area.y + area.height; y++ ) {
+      int from = y * width + area.x;
+      System.arraycopy( pixels, from, line, 0, area.width );
+      if( over ) {
+        for( int x = 0; x < area.width; x++ ) {
+          if( line[x] == before[from + x] ) {
+            line[x] = 0;
+          }
+        }
+      }
+      PngEncoder.packArgb( line, 0, area.width, row );
+      byte[] filteredRow =
+          PngEncoder.filter( filter, row, previous, 4, filtered );
+      deflated.write( filteredRow, 0, stride + 1 );
+      byte[] swap = previous;
+      previous = row;
+      row = swap;
+    }
+  }
+}
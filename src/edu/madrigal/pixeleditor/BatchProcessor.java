@@ -0,0 +1,567 @@
+package edu.madrigal.pixeleditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a chain of operations to many images from the command line,
+ * without opening a window.
+ *
+ * Images go through three stages, each with its own threads: reading,
+ * processing, and writing. The stages are joined by small bounded queues,
+ * so a slow stage holds the others back instead of letting decoded images
+ * pile up in memory, and the number of threads follows the number of cores.
+ *
+ * @author nihil
+ */
+public class BatchProcessor {
+
+  private static final String USAGE =
+      "Usage: BatchProcessor --out DIR [operations] FILE|DIR...\n"
+      + "\n"
+      + "Operations, applied in order to every PNG given:\n"
+      + "  --invert                 invert the colors\n"
+      + "  --fill X,Y,COLOR         flood fill from a pixel\n"
+      + "  --recolor FROM,TO        replace one exact color with another\n"
+      + "  --resize WIDTHxHEIGHT    stretch to a new size\n"
+      + "  --palette COLOR,...      move every color to the nearest of a"
+      + " palette\n"
+      + "\n"
+      + "PNG output, indexed when an image has 256 colors or fewer:\n"
+      + "  --level N                deflate level, 0 to 9 (default 6)\n"
+      + "  --filter NAME            row filter: automatic, none, sub, up,"
+      + " average,\n"
+      + "                           paeth or minimum-sum\n"
+      + "  --quantize               reduce images of more colors to 256\n"
+      + "\n"
+      + "Colors are hex RRGGBB or AARRGGBB. Results are written to DIR"
+      + " under\nthe same names.";
+
+  // how many images may wait between two stages, per core
+  private static final int QUEUE_PER_CORE = 2;
+
+  private final List< Operation > operations;
+  private final File output;
+  private final PngEncoder encoder;
+
+  // the files left to read, and how many failed
+  private final ConcurrentLinkedQueue< File > inputs;
+  private final AtomicInteger failures;
+
+  /**
+   * Constructor for a batch
+   *
+   * @param operations the operations to apply, in order
+   * @param inputs the image files to process
+   * @param output the directory the results are written to
+   * @param encoder the settings the results are written with
+   */
+  public BatchProcessor( List< Operation > operations, List< File > inputs,
+                         File output, PngEncoder encoder ) {
+    this.operations = new ArrayList< Operation >( operations );
+    this.inputs = new ConcurrentLinkedQueue< File >( inputs );
+    this.output = output;
+    this.encoder = new PngEncoder( encoder );
+    failures = new AtomicInteger();
+  }
+
+  /**
+   * Runs the batch from the command line
+   *
+   * @param args the output directory, operations and inputs
+   */
+  public static void main( String[] args ) {
+    System.setProperty( "java.awt.headless", "true" );
+
+    List< Operation > operations = new ArrayList< Operation >();
+    List< File > inputs = new ArrayList< File >();
+    File output = null;
+    PngEncoder encoder = new PngEncoder();
+    try {
+      for( int i = 0; i < args.length; i++ ) {
+        String arg = args[i];
+        if( !arg.startsWith( "--" ) ) {
+          addInputs( new File( arg ), inputs );
+        } else if( arg.equals( "--out" ) ) {
+          output = new File( value( args, ++i ) );
+        } else if( arg.equals( "--invert" ) ) {
+          operations.add( Operation.filter( PixelFilter.invert() ) );
+        } else if( arg.equals( "--fill" ) ) {
+          operations.add( Operation.fill( value( args, ++i ) ) );
+        } else if( arg.equals( "--recolor" ) ) {
+          operations.add( Operation.recolor( value( args, ++i ) ) );
+        } else if( arg.equals( "--resize" ) ) {
+          operations.add( Operation.resize( value( args, ++i ) ) );
+        } else if( arg.equals( "--palette" ) ) {
+          operations.add( Operation.palette( value( args, ++i ) ) );
+        } else if( arg.equals( "--level" ) ) {
+          encoder.setLevel( Operation.parseInt( value( args, ++i ) ) );
+        } else if( arg.equals( "--filter" ) ) {
+          encoder.setFilter( PngEncoder.Filter.named( value( args, ++i ) ) );
+        } else if( arg.equals( "--quantize" ) ) {
+          encoder.setQuantizer( Quantizer.medianCut() );
+        } else {
+          throw new IllegalArgumentException( "Unknown option " + arg );
+        }
+      }
+      if( output == null || inputs.isEmpty() ) {
+        throw new IllegalArgumentException( "Nothing to do." );
+      }
+    } catch( IllegalArgumentException e ) {
+      System.err.println( e.getMessage() );
+      System.err.println( USAGE );
+      System.exit( 2 );
+      return;
+    }
+
+    if( !output.isDirectory() && !output.mkdirs() ) {
+      System.err.println( "Unable to create " + output );
+      System.exit( 1 );
+    }
+    BatchProcessor batch =
+        new BatchProcessor( operations, inputs, output, encoder );
+    System.exit( batch.run() == 0 ? 0 : 1 );
+  }
+
+  /*
+   * the value following an option
+   */
+  private static String value( String[] args, int i ) {
+    if( i >= args.length ) {
+      throw new IllegalArgumentException( args[i - 1] + " needs a value." );
+    }
+    return args[i];
+  }
+
+  /*
+   * adds a file, or the PNGs in a directory
+   */
+  private static void addInputs( File file, List< File > inputs ) {
+    if( !file.isDirectory() ) {
+      inputs.add( file );
+      return;
+    }
+    File[] files = file.listFiles();
+    if( files != null ) {
+      for( File f : files ) {
+        if( f.isFile() && f.getName().toLowerCase().endsWith( ".png" ) ) {
+          inputs.add( f );
+        }
+      }
+    }
+  }
+
+  /**
+   * Processes every image, waiting until they are all written. Images that
+   * fail are reported and skipped, as are images with the same name as one
+   * before them, which would be written over it.
+   *
+   * @return how many images failed
+   */
+  public int run() {
+    skipClashes();
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    /*
+     * decoding and encoding PNGs cost far more than the operations, and
+     * encoding the most, so they get most of the threads
+     */
+    int readers = Math.max( 1, cores / 4 );
+    int writers = Math.max( 1, cores / 2 );
+    int processors = Math.max( 1, cores - readers - writers );
+
+    BlockingQueue< Job > read =
+        new ArrayBlockingQueue< Job >( QUEUE_PER_CORE * cores );
+    BlockingQueue< Job > processed =
+        new ArrayBlockingQueue< Job >( QUEUE_PER_CORE * cores );
+
+    List< Thread > threads = new ArrayList< Thread >();
+    Stage reading = new Stage( null, readers, processors, null, read ) {
+      @Override
+      Job process( Job job ) {
+        File file = inputs.poll();
+        if( file == null ) {
+          return Job.END;
+        }
+        Job next = new Job( file );
+        try {
+          next.document = Document.readImage( file );
+        } catch( IOException | RuntimeException e ) {
+          fail( next, e );
+          return null;
+        }
+        next.document.setRecordingHistory( false );
+        return next;
+      }
+    };
+    Stage processing = new Stage( reading, processors, writers, read,
+                                  processed ) {
+      @Override
+      Job process( Job job ) {
+        for( Operation operation : operations ) {
+          operation.apply( job.document );
+        }
+        return job;
+      }
+    };
+    Stage writing = new Stage( processing, writers, 0, processed, null ) {
+      @Override
+      Job process( Job job ) throws IOException {
+        job.document.writeImage( new File( output, job.file.getName() ),
+                                 encoder );
+        return null;
+      }
+    };
+    reading.start( "Reader", threads );
+    processing.start( "Processor", threads );
+    writing.start( "Writer", threads );
+
+    for( Thread thread : threads ) {
+      try {
+        thread.join();
+      } catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        return failures.get();
+      }
+    }
+
+    // whatever was left when a stage died and the ones before it stopped
+    skipRest( read );
+    skipRest( processed );
+    for( File file = inputs.poll(); file != null; file = inputs.poll() ) {
+      skip( new Job( file ) );
+    }
+    return failures.get();
+  }
+
+  /*
+   * reports every image still waiting in a queue as not processed
+   */
+  private void skipRest( BlockingQueue< Job > queue ) {
+    for( Job job = queue.poll(); job != null; job = queue.poll() ) {
+      if( job != Job.END ) {
+        skip( job );
+      }
+    }
+  }
+
+  /*
+   * reports and leaves out every input named like an earlier one, ignoring
+   * case, since the results are all written to one directory under the
+   * same names
+   */
+  private void skipClashes() {
+    Map< String, File > names = new HashMap< String, File >();
+    for( Iterator< File > i = inputs.iterator(); i.hasNext(); ) {
+      File file = i.next();
+      File first = names.get( file.getName().toLowerCase( Locale.ROOT ) );
+      if( first == null ) {
+        names.put( file.getName().toLowerCase( Locale.ROOT ), file );
+        continue;
+      }
+      i.remove();
+      failures.incrementAndGet();
+      System.err.println( file.getPath() + ": would overwrite the result of "
+                          + first.getPath() + ", which has the same name." );
+    }
+  }
+
+  /*
+   * an image on its way through the stages
+   */
+  private static class Job {
+
+    // passed along once a stage has nothing more to give
+    static final Job END = new Job( null );
+
+    final File file;
+    Document document;
+
+    Job( File file ) {
+      this.file = file;
+    }
+  }
+
+  /*
+   * some threads taking jobs from one queue and putting them on the next.
+   * The first stage makes up its own jobs until it returns END, and the
+   * last thread of a stage to finish ends every thread of the next one.
+   * If every thread of a stage dies, nothing takes from its queue anymore,
+   * so the stages before it are stopped instead of left waiting to put
+   */
+  private abstract class Stage {
+
+    private final Stage previous;
+    private final int threads;
+    private final int following;
+    private final BlockingQueue< Job > in;
+    private final BlockingQueue< Job > out;
+    private final AtomicInteger running;
+    private final List< Thread > started;
+
+    // whether a thread died of an error, and whether the stage was stopped
+    private volatile boolean died;
+    private volatile boolean stopped;
+
+    Stage( Stage previous, int threads, int following,
+           BlockingQueue< Job > in, BlockingQueue< Job > out ) {
+      this.previous = previous;
+      this.threads = threads;
+      this.following = following;
+      this.in = in;
+      this.out = out;
+      running = new AtomicInteger( threads );
+      started = new ArrayList< Thread >();
+    }
+
+    /*
+     * does this stage's work on a job, returning what is passed on, if
+     * anything
+     */
+    abstract Job process( Job job ) throws IOException;
+
+    void start( String name, List< Thread > all ) {
+      for( int i = 0; i < threads; i++ ) {
+        Thread thread = new Thread( new Runnable() {
+          public void run() {
+            work();
+          }
+        }, name + " " + ( i + 1 ) );
+        all.add( thread );
+        started.add( thread );
+        thread.start();
+      }
+    }
+
+    private void work() {
+      Job next = null;
+      try {
+        while( !stopped ) {
+          Job job = in == null ? null : in.take();
+          if( job == Job.END ) {
+            break;
+          }
+          try {
+            next = process( job );
+          } catch( IOException | RuntimeException e ) {
+            fail( job, e );
+            continue;
+          }
+          if( next == Job.END ) {
+            break;
+          }
+          if( out != null && next != null ) {
+            out.put( next );
+          }
+          next = null;
+        }
+      } catch( InterruptedException e ) {
+        if( next != null ) {
+          skip( next );
+        }
+        Thread.currentThread().interrupt();
+      } catch( Error e ) {
+        // the thread is lost, so at least the batch doesn't look successful
+        failures.incrementAndGet();
+        died = true;
+        throw e;
+      } finally {
+        // even a thread that died has to let the next stage finish
+        if( running.decrementAndGet() == 0 ) {
+          if( died && previous != null ) {
+            previous.stop();
+          }
+          if( out != null && !stopped ) {
+            endNext();
+          }
+        }
+      }
+    }
+
+    /*
+     * stops this stage and every one before it, waking any thread waiting
+     * on a queue
+     */
+    private void stop() {
+      stopped = true;
+      for( Thread thread : started ) {
+        thread.interrupt();
+      }
+      if( previous != null ) {
+        previous.stop();
+      }
+    }
+
+    private void endNext() {
+      try {
+        for( int i = 0; i < following; i++ ) {
+          out.put( Job.END );
+        }
+      } catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /*
+   * reports an image left out because the batch stopped
+   */
+  private void skip( Job job ) {
+    failures.incrementAndGet();
+    System.err.println( job.file.getPath()
+                        + ": not processed, the batch stopped early." );
+  }
+
+  /*
+   * reports an image that couldn't be processed
+   */
+  private void fail( Job job, Exception e ) {
+    failures.incrementAndGet();
+    System.err.println( job.file.getPath() + ": " + e.getMessage() );
+  }
+
+  /**
+   * A step applied to each image of a batch
+   */
+  public abstract static class Operation {
+
+    /**
+     * Applies the step to an image.
+     *
+     * @param document the image to change
+     */
+    public abstract void apply( Document document );
+
+    /**
+     * A step that applies a filter to every layer being edited
+     *
+     * @param filter the filter to apply
+     * @return the operation
+     */
+    public static Operation filter( final PixelFilter filter ) {
+      return new Operation() {
+        @Override
+        public void apply( Document document ) {
+          document.applyFilter( filter );
+        }
+      };
+    }
+
+    /**
+     * A step that flood fills from a pixel, given as "X,Y,COLOR"
+     *
+     * @param spec the point and color
+     * @return the operation
+     */
+    public static Operation fill( String spec ) {
+      String[] parts = split( spec, 3 );
+      final int x = parseInt( parts[0] );
+      final int y = parseInt( parts[1] );
+      final int color = parseColor( parts[2] );
+      return new Operation() {
+        @Override
+        public void apply( Document document ) {
+          document.fill( x, y, color );
+          document.commit();
+        }
+      };
+    }
+
+    /**
+     * A step that replaces a color, given as "FROM,TO"
+     *
+     * @param spec the two colors
+     * @return the operation
+     */
+    public static Operation recolor( String spec ) {
+      String[] parts = split( spec, 2 );
+      return filter( PixelFilter.recolor( parseColor( parts[0] ),
+                                          parseColor( parts[1] ) ) );
+    }
+
+    /**
+     * A step that stretches the image, given as "WIDTHxHEIGHT"
+     *
+     * @param spec the new size
+     * @return the operation
+     */
+    public static Operation resize( String spec ) {
+      String[] parts = spec.toLowerCase().split( "x" );
+      if( parts.length != 2 ) {
+        throw new IllegalArgumentException( "Bad size " + spec );
+      }
+      final int width = parseInt( parts[0] );
+      final int height = parseInt( parts[1] );
+      if( width < 1 || height < 1 ) {
+        throw new IllegalArgumentException( "Bad size " + spec );
+      }
+      return new Operation() {
+        @Override
+        public void apply( Document document ) {
+          document.resize( width, height );
+        }
+      };
+    }
+
+    /**
+     * A step that maps every color to a palette, given as "COLOR,..."
+     *
+     * @param spec the colors of the palette
+     * @return the operation
+     */
+    public static Operation palette( String spec ) {
+      String[] parts = spec.split( "," );
+      int[] colors = new int[parts.length];
+      for( int i = 0; i < parts.length; i++ ) {
+        colors[i] = parseColor( parts[i] );
+      }
+      return filter( PixelFilter.paletteMap( colors ) );
+    }
+
+    private static String[] split( String spec, int count ) {
+      String[] parts = spec.split( "," );
+      if( parts.length != count ) {
+        throw new IllegalArgumentException( "Expected " + count
+                                            + " values in " + spec );
+      }
+      return parts;
+    }
+
+    static int parseInt( String s ) {
+      try {
+        return Integer.parseInt( s.trim() );
+      } catch( NumberFormatException e ) {
+        throw new IllegalArgumentException( "Bad number " + s );
+      }
+    }
+
+    /*
+     * a hex color, opaque unless it gives its alpha too
+     */
+    private static int parseColor( String s ) {
+      String hex = s.trim();
+      if( hex.startsWith( "#" ) ) {
+        hex = hex.substring( 1 );
+      }
+      try {
+        if( hex.length() == 6 ) {
+          return 0xff000000 | Integer.parseInt( hex, 16 );
+        } else if( hex.length() == 8 ) {
+          return (int) Long.parseLong( hex, 16 );
+        }
+      } catch( NumberFormatException e ) {
+      }
+      throw new IllegalArgumentException( "Bad color " + s );
+    }
+  }
+}
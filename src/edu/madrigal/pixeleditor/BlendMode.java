@@ -0,0 +1,157 @@
+package edu.madrigal.pixeleditor;
+
+/**
+ * The ways a layer can be blended over the layers under it.
+ *
+ * Every mode works on premultiplied ARGB pixels with integer arithmetic, and
+ * treats transparent parts of either side the same way the normal mode does,
+ * so a layer only changes what it covers.
+ *
+ * @author nihil
+ */
+public enum BlendMode {
+
+  NORMAL( "Normal" ) {
+    @Override
+    void composite( int[] src, int srcOffset,
+                    int[] dst, int dstOffset, int length ) {
+      for( int i = 0; i < length; i++ ) {
+        int s = src[srcOffset + i];
+        int sa = s >>> 24;
+        if( sa == 0xff ) {
+          dst[dstOffset + i] = s;
+        } else if( sa != 0 ) {
+          int d = dst[dstOffset + i];
+          dst[dstOffset + i] = s + PixelMath.scale( d, 0xff - sa );
+        }
+      }
+    }
+  },
+
+  MULTIPLY( "Multiply" ) {
+    @Override
+    void composite( int[] src, int srcOffset,
+                    int[] dst, int dstOffset, int length ) {
+      for( int i = 0; i < length; i++ ) {
+        int s = src[srcOffset + i];
+        if( s != 0 ) {
+          int d = dst[dstOffset + i];
+          dst[dstOffset + i] = d == 0 ? s : multiply( s, d );
+        }
+      }
+    }
+  },
+
+  SCREEN( "Screen" ) {
+    @Override
+    void composite( int[] src, int srcOffset,
+                    int[] dst, int dstOffset, int length ) {
+      for( int i = 0; i < length; i++ ) {
+        int s = src[srcOffset + i];
+        if( s != 0 ) {
+          int d = dst[dstOffset + i];
+          dst[dstOffset + i] = d == 0 ? s : screen( s, d );
+        }
+      }
+    }
+  },
+
+  ADD( "Add" ) {
+    @Override
+    void composite( int[] src, int srcOffset,
+                    int[] dst, int dstOffset, int length ) {
+      for( int i = 0; i < length; i++ ) {
+        int s = src[srcOffset + i];
+        if( s != 0 ) {
+          int d = dst[dstOffset + i];
+          dst[dstOffset + i] = d == 0 ? s : add( s, d );
+        }
+      }
+    }
+  };
+
+  private final String label;
+
+  private BlendMode( String label ) {
+    this.label = label;
+  }
+
+  /**
+   * Blends a run of premultiplied pixels over another, in place.
+   *
+   * @param src the pixels being blended
+   * @param srcOffset where the run starts in src
+   * @param dst the pixels underneath, which receive the result
+   * @param dstOffset where the run starts in dst
+   * @param length how many pixels to blend
+   */
+  abstract void composite( int[] src, int srcOffset,
+                           int[] dst, int dstOffset, int length );
+
+  @Override
+  public String toString() {
+    return label;
+  }
+
+  /*
+   * the alpha of a blended pixel, the same for every mode
+   */
+  private static int alpha( int sa, int da ) {
+    return sa + da - PixelMath.mul255( sa, da );
+  }
+
+  /*
+   * each channel is what shows of either side past the other, plus the two
+   * multiplied where they overlap
+   */
+  private static int multiply( int s, int d ) {
+    int sa = s >>> 24;
+    int da = d >>> 24;
+    int a = alpha( sa, da );
+    int color = a << 24;
+    for( int shift = 16; shift >= 0; shift -= 8 ) {
+      int cs = ( s >> shift ) & 0xff;
+      int cd = ( d >> shift ) & 0xff;
+      int c = PixelMath.mul255( cs, 0xff - da )
+              + PixelMath.mul255( cd, 0xff - sa )
+              + PixelMath.mul255( cs, cd );
+      color |= Math.min( c, a ) << shift;
+    }
+    return color;
+  }
+
+  /*
+   * with premultiplied colors, screen works out the same for every channel,
+   * alpha included
+   */
+  private static int screen( int s, int d ) {
+    int color = 0;
+    for( int shift = 24; shift >= 0; shift -= 8 ) {
+      int cs = ( s >>> shift ) & 0xff;
+      int cd = ( d >>> shift ) & 0xff;
+      color |= ( cs + cd - PixelMath.mul255( cs, cd ) ) << shift;
+    }
+    return color;
+  }
+
+  /*
+   * the two sides summed where they overlap, clipped to full brightness
+   */
+  private static int add( int s, int d ) {
+    int sa = s >>> 24;
+    int da = d >>> 24;
+    int a = alpha( sa, da );
+    int both = PixelMath.mul255( sa, da );
+    int color = a << 24;
+    for( int shift = 16; shift >= 0; shift -= 8 ) {
+      int cs = ( s >> shift ) & 0xff;
+      int cd = ( d >> shift ) & 0xff;
+      int sum = Math.min( PixelMath.mul255( cs, da )
+                          + PixelMath.mul255( cd, sa ), both );
+      int c = PixelMath.mul255( cs, 0xff - da )
+              + PixelMath.mul255( cd, 0xff - sa ) + sum;
+      color |= Math.min( c, a ) << shift;
+    }
+    return color;
+  }
+}
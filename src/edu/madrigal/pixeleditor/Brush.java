@@ -0,0 +1,143 @@
+package edu.madrigal.pixeleditor;
+
+/**
+ * The shape a stroke paints at each of its cells, from one grid cell to
+ * MAX_SIZE cells wide.
+ *
+ * The shape is worked out once, as a stamp of one row of bits for each row
+ * of cells, so a stroke only has to shift a row into place to know which
+ * cells it covers. A dithered brush is round, but only covers every other
+ * cell in a checkerboard lined up with the grid rather than the stamp, so
+ * stamps next to each other don't fill in each other's gaps. It has a
+ * stamp for each way the checkerboard can fall.
+ *
+ * @author nihil
+ */
+public class Brush {
+
+  /**
+   * The widest a brush can be, in cells, which is as many bits as a row of
+   * the stamp holds
+   */
+  public static final int MAX_SIZE = Long.SIZE;
+
+  /**
+   * The shapes of brush
+   */
+  public enum Shape {
+
+    ROUND( "Round" ),
+    SQUARE( "Square" ),
+    DITHERED( "Dithered" );
+
+    private final String name;
+
+    Shape( String name ) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final Shape shape;
+  private final int size;
+
+  /*
+   * the stamp, a row of bits for each row of cells with the first cell in
+   * the lowest bit, for a stamp whose corner is on a cell where the
+   * checkerboard is painted, and one where it isn't
+   */
+  private final long[][] stamps;
+
+  /**
+   * Constructor for a brush
+   *
+   * @param shape the shape of the brush
+   * @param size how many cells wide it is, from 1 to MAX_SIZE
+   */
+  public Brush( Shape shape, int size ) {
+    if( size < 1 || size > MAX_SIZE ) {
+      throw new IllegalArgumentException( "A brush is 1 to " + MAX_SIZE
+                                          + " cells wide." );
+    }
+    this.shape = shape;
+    this.size = size;
+    long[] rows = new long[size];
+    for( int y = 0; y < size; y++ ) {
+      rows[y] = shape == Shape.SQUARE ? -1L >>> ( MAX_SIZE - size )
+                                      : roundRow( y );
+    }
+    if( shape == Shape.DITHERED ) {
+      stamps = new long[][] { checkered( rows, 0 ), checkered( rows, 1 ) };
+    } else {
+      stamps = new long[][] { rows, rows };
+    }
+  }
+
+  public Shape getShape() {
+    return shape;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * How far the corner of a stamp is up and to the left of the cell it is
+   * centered on
+   *
+   * @return the offset, in cells
+   */
+  public int getOffset() {
+    return size / 2;
+  }
+
+  /**
+   * A row of the stamp, for a stamp with its corner on a cell
+   *
+   * @param left the x-coord of the cell at the corner
+   * @param top the y-coord of the cell at the corner
+   * @param row the row of the stamp, from 0 to one less than the size
+   * @return the cells of the row it covers, the first in the lowest bit
+   */
+  public long getRow( int left, int top, int row ) {
+    return stamps[( left + top ) & 1][row];
+  }
+
+  @Override
+  public String toString() {
+    return shape + " " + size;
+  }
+
+  /*
+   * the cells of a row of a round stamp whose centers are inside the circle
+   * touching its edges, worked out in half cells so it stays in integers
+   */
+  private long roundRow( int y ) {
+    int dy = 2 * y + 1 - size;
+    long row = 0;
+    for( int x = 0; x < size; x++ ) {
+      int dx = 2 * x + 1 - size;
+      if( dx * dx + dy * dy <= size * size ) {
+        row |= 1L << x;
+      }
+    }
+    return row;
+  }
+
+  /*
+   * a stamp with only the cells of a checkerboard left, for a corner whose
+   * cell has some parity
+   */
+  private static long[] checkered( long[] rows, int parity ) {
+    long[] checkered = new long[rows.length];
+    for( int y = 0; y < rows.length; y++ ) {
+      long even = 0x5555555555555555L;
+      checkered[y] = rows[y] & ( ( ( parity + y ) & 1 ) == 0 ? even : ~even );
+    }
+    return checkered;
+  }
+}
@@ -0,0 +1,265 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The color being painted with, as both RGB and HSB, shared by everything
+ * that shows or edits it.
+ *
+ * Each change tells the listeners once, with which parts of the color
+ * changed, so a view only updates what it shows of them and nothing is
+ * told about a change that didn't change anything. The HSB is kept as it
+ * was set rather than worked out from the RGB, so the hue of a gray or
+ * black isn't lost while it's being edited.
+ *
+ * @author nihil
+ */
+public class ColorChoice {
+
+  /**
+   * The red, green or blue changed
+   */
+  public static final int RGB = 1;
+
+  /**
+   * The alpha changed
+   */
+  public static final int ALPHA = 1 << 1;
+
+  /**
+   * The hue changed
+   */
+  public static final int HUE = 1 << 2;
+
+  /**
+   * The saturation changed
+   */
+  public static final int SATURATION = 1 << 3;
+
+  /**
+   * The brightness changed
+   */
+  public static final int BRIGHTNESS = 1 << 4;
+
+  /**
+   * Every part of the color
+   */
+  public static final int ALL = RGB | ALPHA | HUE | SATURATION | BRIGHTNESS;
+
+  /**
+   * Told when the color changes
+   */
+  public interface Listener {
+
+    /**
+     * Called once for each change, on the thread that made it
+     *
+     * @param changes the parts of the color that changed, like RGB | HUE
+     */
+    void colorChanged( int changes );
+  }
+
+  private final List< Listener > listeners = new ArrayList< Listener >();
+
+  // the color, not premultiplied, and its hue, saturation and brightness
+  // from 0 to 1
+  private int argb;
+  private float hue;
+  private float saturation;
+  private float brightness;
+
+  // scratch space for converting RGB to HSB
+  private final float[] hsb = new float[3];
+
+  /**
+   * Constructor for a color choice
+   *
+   * @param argb the ARGB color to start with
+   */
+  public ColorChoice( int argb ) {
+    this.argb = argb;
+    Color.RGBtoHSB( ( argb >> 16 ) & 0xff, ( argb >> 8 ) & 0xff, argb & 0xff,
+                    hsb );
+    hue = hsb[0];
+    saturation = hsb[1];
+    brightness = hsb[2];
+  }
+
+  /**
+   * Adds a listener to be told of changes
+   *
+   * @param listener the listener
+   */
+  public void addListener( Listener listener ) {
+    listeners.add( listener );
+  }
+
+  /**
+   * Stops telling a listener of changes
+   *
+   * @param listener the listener
+   */
+  public void removeListener( Listener listener ) {
+    listeners.remove( listener );
+  }
+
+  /**
+   * The color
+   *
+   * @return the ARGB color, not premultiplied
+   */
+  public int getRGB() {
+    return argb;
+  }
+
+  /**
+   * The color as a new Color
+   *
+   * @return the color, with its alpha
+   */
+  public Color getColor() {
+    return new Color( argb, true );
+  }
+
+  /**
+   * The red of the color
+   *
+   * @return the red, from 0 to 255
+   */
+  public int getRed() {
+    return ( argb >> 16 ) & 0xff;
+  }
+
+  /**
+   * The green of the color
+   *
+   * @return the green, from 0 to 255
+   */
+  public int getGreen() {
+    return ( argb >> 8 ) & 0xff;
+  }
+
+  /**
+   * The blue of the color
+   *
+   * @return the blue, from 0 to 255
+   */
+  public int getBlue() {
+    return argb & 0xff;
+  }
+
+  /**
+   * The alpha of the color
+   *
+   * @return the alpha, from 0 to 255
+   */
+  public int getAlpha() {
+    return argb >>> 24;
+  }
+
+  /**
+   * The hue of the color
+   *
+   * @return the hue, from 0 to 1
+   */
+  public float getHue() {
+    return hue;
+  }
+
+  /**
+   * The saturation of the color
+   *
+   * @return the saturation, from 0 to 1
+   */
+  public float getSaturation() {
+    return saturation;
+  }
+
+  /**
+   * The brightness of the color
+   *
+   * @return the brightness, from 0 to 1
+   */
+  public float getBrightness() {
+    return brightness;
+  }
+
+  /**
+   * Sets the color, and its HSB to match. A gray keeps the hue it had, and
+   * black the saturation too.
+   *
+   * @param argb the ARGB color, not premultiplied
+   */
+  public void setRGB( int argb ) {
+    int changes = 0;
+    if( ( ( argb ^ this.argb ) & 0xffffff ) != 0 ) {
+      changes |= RGB;
+      Color.RGBtoHSB( ( argb >> 16 ) & 0xff, ( argb >> 8 ) & 0xff,
+                      argb & 0xff, hsb );
+      float h = hsb[1] == 0 || hsb[2] == 0 ? hue : hsb[0];
+      float s = hsb[2] == 0 ? saturation : hsb[1];
+      changes |= setHSBOnly( h, s, hsb[2] );
+    }
+    if( argb >>> 24 != this.argb >>> 24 ) {
+      changes |= ALPHA;
+    }
+    this.argb = argb;
+    fire( changes );
+  }
+
+  /**
+   * Sets the hue, saturation and brightness, and the RGB to match, keeping
+   * the alpha. Each is clamped to between 0 and 1.
+   *
+   * @param h the hue
+   * @param s the saturation
+   * @param b the brightness
+   */
+  public void setHSB( float h, float s, float b ) {
+    int changes = setHSBOnly( clamp( h ), clamp( s ), clamp( b ) );
+    if( changes == 0 ) {
+      return;
+    }
+    int rgb = Color.HSBtoRGB( hue, saturation, brightness ) & 0xffffff;
+    if( rgb != ( argb & 0xffffff ) ) {
+      changes |= RGB;
+      argb = ( argb & 0xff000000 ) | rgb;
+    }
+    fire( changes );
+  }
+
+  /*
+   * sets the HSB without touching the RGB, telling which parts changed
+   */
+  private int setHSBOnly( float h, float s, float b ) {
+    int changes = 0;
+    if( h != hue ) {
+      hue = h;
+      changes |= HUE;
+    }
+    if( s != saturation ) {
+      saturation = s;
+      changes |= SATURATION;
+    }
+    if( b != brightness ) {
+      brightness = b;
+      changes |= BRIGHTNESS;
+    }
+    return changes;
+  }
+
+  private void fire( int changes ) {
+    if( changes == 0 ) {
+      return;
+    }
+    for( int i = 0; i < listeners.size(); i++ ) {
+      listeners.get( i ).colorChanged( changes );
+    }
+  }
+
+  private static float clamp( float value ) {
+    return value < 0.0f ? 0.0f : value > 1.0f ? 1.0f : value;
+  }
+}
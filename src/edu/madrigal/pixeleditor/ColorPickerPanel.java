@@ -4,6 +4,10 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.swing.JPanel;
 
@@ -13,178 +17,61 @@ import javax.swing.JPanel;
 public class ColorPickerPanel extends JPanel {
 
   private static final long serialVersionUID = -3485421816975836165L;
-  // HSB coordinate identifiers
-  private static final int H_COORD = 0;
-  private static final int S_COORD = 1;
-  private static final int B_COORD = 2;
-
-  // default color values
-  private static final int DEFAULT_H = 180;
-  private static final int DEFAULT_S = 50;
-  private static final int DEFAULT_B = 80;
-
-  // number of hsb coords
-  private static final int NUM_HSB_COORDS = 3;
   
   //drawing constants
   private static final int CROSSHAIR_SIZE = 16;
   private static final int CROSSHAIR_OFFSET = CROSSHAIR_SIZE / 2;
   private static final int MAX_WIDTH = 360;
   private static final int MAX_HEIGHT = 100;
+  
+  // how many brightness levels to keep a drawn gradient for
+  private static final int MAX_CACHED_GRADIENTS = 8;
+  
+  // the color shown and picked, which repaints the panel when its hue,
+  // saturation or brightness change
+  private final ColorChoice color;
+  
   /*
-   * Saves the HSB color, and the X and Y coords of the cross hairs, which is
-   * very important because the cross hair will jump around unsmoothly if we
-   * don't look at them separately.
+   * The X and Y coords of the cross hairs, which is very important because
+   * the cross hair will jump around unsmoothly if we don't look at them
+   * separately.
    */
-  private float[] hsbCoordinates;
   private int xCoord, yCoord;
-
-  /**
-   * Constructor for the Color Picker
-   */
-  public ColorPickerPanel() {
-    setPreferredSize( new Dimension( MAX_WIDTH, MAX_HEIGHT ) );
-    hsbCoordinates = new float[NUM_HSB_COORDS];
-    setColor( DEFAULT_H, DEFAULT_S, DEFAULT_B );
-  }
   
-  /**
-   * The currently selected color
-   * 
-   * @return The color picked on the panel
-   */
-  public Color getColor() {
-    return Color.getHSBColor( getHue(), getSaturation(), getBrightness() );
-  }
-
-  /**
-   * The current hue of the selected color
-   * 
-   * @return The current Hue value
-   */
-  public float getHue() {
-    return hsbCoordinates[H_COORD];
-  }
-
-  /**
-   * Set the hue of the color picker
-   * 
-   * @param h the Hue of the color picker, from 0.0 to 1.0. If the argument
-   *          falls outside these bounds, they are taken as 0 or 1 respectively.
-   */
-  public void setHue( float h ) {
-
-    if( h < 0.0f ) {
-      h = 0.0f;
-    }
-
-    else if( h > 1.0f ) {
-      h = 1.0f;
-    }
-
-    hsbCoordinates[H_COORD] = h;
-    xCoord = (int) ( h * getWidth() );
-    repaint();
-  }
-
-  /**
-   * The current saturation of the selected color
-   * 
-   * @return The current Saturation value
-   */
-  public float getSaturation() {
-    return hsbCoordinates[S_COORD];
-  }
-
-  /**
-   * Set the saturation of the color picker
-   * 
-   * @param s the Saturation of the color picker, from 0.0 to 1.0. If the
-   *          argument falls outside these bounds, they are taken as 0 or 1
-   *          respectively.
-   */
-  public void setSaturation( float s ) {
-
-    if( s < 0.0f ) {
-      s = 0.0f;
-    }
-
-    else if( s > 1.0f ) {
-      s = 1.0f;
-    }
-
-    hsbCoordinates[S_COORD] = s;
-    yCoord = (int) ( s * getHeight() );
-    repaint();
-  }
-
-  /**
-   * The current hue of the selected color
-   * 
-   * @return The current Hue value
-   */
-  public float getBrightness() {
-    return hsbCoordinates[B_COORD];
-  }
-
-  /**
-   * Set the hue of the color picker
-   * 
-   * @param h the Hue of the color picker, from 0.0 to 1.0. If the argument
-   *          falls outside these bounds, they are taken as 0 or 1 respectively.
-   */
-  public void setBrightness( float b ) {
-
-    if( b < 0.0f ) {
-      b = 0.0f;
-    }
-
-    else if( b > 1.0f ) {
-      b = 1.0f;
-    }
-
-    hsbCoordinates[B_COORD] = b;
-    repaint();
-  }
-
-  /**
-   * Sets the color of the color picker
-   * 
-   * @param color The color to reflect on the color picker
-   */
-  public void setColor( Color color ) {
-    Color.RGBtoHSB( color.getRed(),
-                    color.getGreen(),
-                    color.getBlue(),
-                    hsbCoordinates );
-
-    xCoord = (int) ( hsbCoordinates[H_COORD] * getWidth() );
-    yCoord = (int) ( hsbCoordinates[S_COORD] * getHeight() );
-    repaint();
-  }
-
-  /**
-   * Sets the color of the color picker, given the HSB model provided by Java
-   * 
-   * @param h the Hue to reflect on the color picker, from 0.0 to 1.0
-   * @param s the Saturation to reflect on the color picker, from 0.0 to 1.0
-   * @param b the Brightness to reflect on the color picker, from 0.0 to 1.0
+  /*
+   * The hue/saturation gradient only changes with the brightness and the size
+   * of the panel, so the last few are kept around, most recently used last.
    */
-  public void setColor( float h, float s, float b ) {
-    setHue(h);
-    setSaturation(s);
-    setBrightness(b);
-  }
+  private Map< Float, BufferedImage > gradients;
+  private int gradientWidth, gradientHeight;
 
   /**
-   * Sets the color of the color picker, given the RGB model provided by Java.
+   * Constructor for the Color Picker
    * 
-   * @param r the Red value to reflect on the color picker, from 0 to 255
-   * @param g the Green value to reflect on the color picker, from 0 to 255
-   * @param b the Blue value to reflect on the color picker, from 0 to 255
+   * @param color the color to show, and to set when a color is picked
    */
-  public void setColor( int r, int g, int b ) {
-    setColor( new Color( r, g, b ) );
+  public ColorPickerPanel( ColorChoice color ) {
+    setPreferredSize( new Dimension( MAX_WIDTH, MAX_HEIGHT ) );
+    this.color = color;
+    gradients = new LinkedHashMap< Float, BufferedImage >( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 4420727315926071474L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry< Float, BufferedImage > eldest ) {
+        return size() > MAX_CACHED_GRADIENTS;
+      }
+    };
+    
+    // the RGB and alpha aren't shown, so only HSB changes need a repaint
+    color.addListener( new ColorChoice.Listener() {
+      public void colorChanged( int changes ) {
+        if( ( changes & ( ColorChoice.HUE | ColorChoice.SATURATION
+                          | ColorChoice.BRIGHTNESS ) ) != 0 ) {
+          repaint();
+        }
+      }
+    } );
   }
 
   /**
@@ -213,9 +100,9 @@ public class ColorPickerPanel extends JPanel {
     }
 
     // set the H and S values to the particular values represented by X and Y
-    hsbCoordinates[H_COORD] = (float) xCoord / getWidth();
-    hsbCoordinates[S_COORD] = (float) yCoord / getHeight();
-    repaint();
+    color.setHSB( (float) xCoord / getWidth(),
+                  (float) yCoord / getHeight(),
+                  color.getBrightness() );
   }
 
   /**
@@ -228,37 +115,25 @@ public class ColorPickerPanel extends JPanel {
     // always call the superclass's method before your code
     super.paintComponent( g );
 
-    // make floats to save the h, s, and b values as we scan the pane
-    float h, s, b = hsbCoordinates[B_COORD];
+    float h = color.getHue();
+    float s = color.getSaturation();
+    float b = color.getBrightness();
 
     int width = getWidth();
     int height = getHeight();
 
-    xCoord = (int)( width * hsbCoordinates[H_COORD] );
-    yCoord = (int)( height * hsbCoordinates[S_COORD] );
+    xCoord = (int)( width * h );
+    yCoord = (int)( height * s );
     
-    // for every x column...
-    for( int x = 0; x <= width; x++ ) {
-
-      // get the particular hue for that column
-      h = (float) x / width;
-
-      // and for every y row...
-      for( int y = height; y >= 0; y-- ) {
-
-        // get that particular saturation for that row
-        s = (float) y / height;
-
-        // for each coordinate, set the pixel to the HSB value used
-        g.setColor( Color.getHSBColor( h, s, b ) );
-        g.drawLine( x, y, x, y );
-      }
+    // the gradient is drawn once per brightness, then just copied
+    if( width > 0 && height > 0 ) {
+      g.drawImage( getGradient( width, height, b ), 0, 0, null );
     }
 
     //The way I draw the crosshair is...
     
     //...take a contrasting brightness and saturation for the crosshair...
-    g.setColor( Color.getHSBColor( hsbCoordinates[H_COORD],
+    g.setColor( Color.getHSBColor( h,
                                    b,
                                    1.0f - b ) );
 
@@ -269,19 +144,52 @@ public class ColorPickerPanel extends JPanel {
     g.drawLine( xCoord, yCoord - CROSSHAIR_OFFSET, xCoord, 0 );
     
     //...blow up the color that the user selected...
-    g.setColor( Color.getHSBColor( hsbCoordinates[H_COORD],
-                                   hsbCoordinates[S_COORD],
-                                   hsbCoordinates[B_COORD] ) );
+    g.setColor( new Color( color.getRGB() ) );
     
     g.fillRect( xCoord - CROSSHAIR_OFFSET, yCoord - CROSSHAIR_OFFSET,
                 CROSSHAIR_SIZE, CROSSHAIR_SIZE );
     
     //... and draw a box around!
-    g.setColor( Color.getHSBColor( hsbCoordinates[H_COORD],
+    g.setColor( Color.getHSBColor( h,
                                    b,
                                    1.0f - b ) );
     g.drawRect( xCoord - CROSSHAIR_OFFSET, yCoord - CROSSHAIR_OFFSET,
                 CROSSHAIR_SIZE, CROSSHAIR_SIZE );
     
   }
+  
+  /*
+   * the hue/saturation gradient for the given brightness, drawn into the
+   * pixels of an image if it isn't cached already
+   */
+  private BufferedImage getGradient( int width, int height, float b ) {
+    
+    // a new size means none of the cached gradients fit anymore
+    if( width != gradientWidth || height != gradientHeight ) {
+      gradients.clear();
+      gradientWidth = width;
+      gradientHeight = height;
+    }
+    
+    BufferedImage gradient = gradients.get( b );
+    if( gradient != null ) {
+      return gradient;
+    }
+    
+    gradient = new BufferedImage( width, height, BufferedImage.TYPE_INT_RGB );
+    int[] pixels = ( (DataBufferInt) gradient.getRaster().getDataBuffer() )
+                   .getData();
+    
+    // each row has its own saturation, and each column its own hue
+    for( int y = 0; y < height; y++ ) {
+      float saturation = (float) y / height;
+      int row = y * width;
+      for( int x = 0; x < width; x++ ) {
+        pixels[row + x] = Color.HSBtoRGB( (float) x / width, saturation, b );
+      }
+    }
+    
+    gradients.put( b, gradient );
+    return gradient;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.AWTException;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Picks up the color under a point of the screen for the eyedropper, and
+ * makes it the color being painted with.
+ *
+ * Over the editor, the color is read straight from the image, transparency
+ * and all, rather than from what is drawn of it. Anywhere else it is read
+ * from the screen, with one robot kept for every sample. Samples are taken
+ * at most once a frame: one asked for sooner waits for the next frame, and
+ * only the latest of those is taken. A sample can be the average of a
+ * square of pixels, read in one go.
+ *
+ * @author nihil
+ */
+public class ColorSampler {
+
+  /**
+   * The widest square of pixels that can be averaged
+   */
+  public static final int MAX_SIZE = 15;
+
+  // the shortest time between samples, about a frame of the display
+  private static final int FRAME_MILLIS = 1000 / 60;
+
+  private final EditorPanel editor;
+  private final ColorChoice color;
+  private final Timer timer;
+
+  // made the first time the screen is sampled
+  private Robot robot;
+
+  // how wide a square is averaged
+  private int size = 1;
+
+  // where the latest sample was asked for, and when the last one was taken
+  private final Point pending = new Point();
+  private long sampledAt;
+
+  // set while the color is being set to a sample
+  private boolean sampling;
+
+  // the pixels of a square read from the image
+  private int[] pixels = new int[0];
+
+  /**
+   * Constructor for a sampler
+   *
+   * @param editor the editor, whose image is read when it is under a point
+   * @param color the color to set to each sample
+   */
+  public ColorSampler( EditorPanel editor, ColorChoice color ) {
+    this.editor = editor;
+    this.color = color;
+    timer = new Timer( FRAME_MILLIS, new ActionListener() {
+      public void actionPerformed( ActionEvent e ) {
+        flush();
+      }
+    } );
+    timer.setRepeats( false );
+  }
+
+  /**
+   * How wide a square of pixels each sample averages
+   *
+   * @return the width, 1 for a single pixel
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Sets how wide a square of pixels each sample averages.
+   *
+   * @param size the width, from 1 to MAX_SIZE
+   */
+  public void setSize( int size ) {
+    this.size = Math.max( 1, Math.min( size, MAX_SIZE ) );
+  }
+
+  /**
+   * Asks for the color under a point of the screen. It is sampled right
+   * away if nothing was this frame, or else at the start of the next,
+   * unless another point is asked for first.
+   *
+   * @param screenX the x of the point on the screen
+   * @param screenY the y of the point on the screen
+   * @throws AWTException if the screen can't be read
+   */
+  public void request( int screenX, int screenY ) throws AWTException {
+    if( robot == null ) {
+      robot = new Robot();
+    }
+    pending.setLocation( screenX, screenY );
+    long waited = ( System.nanoTime() - sampledAt ) / 1000000L;
+    if( waited >= FRAME_MILLIS ) {
+      flush();
+    } else if( !timer.isRunning() ) {
+      timer.setInitialDelay( (int) ( FRAME_MILLIS - waited ) );
+      timer.start();
+    }
+  }
+
+  /**
+   * Samples the point asked for last right away, if it is still waiting,
+   * like when the eyedropper is let go.
+   */
+  public void flush() {
+    timer.stop();
+    if( robot == null ) {
+      return;
+    }
+    sampledAt = System.nanoTime();
+    int sampled = sample( pending.x, pending.y );
+    sampling = true;
+    try {
+      color.setRGB( sampled );
+    } finally {
+      sampling = false;
+    }
+  }
+
+  /**
+   * Whether the color is being set to a sample, for listeners to the color
+   * to tell a sample from an edit
+   *
+   * @return if a sample is being set
+   */
+  public boolean isSampling() {
+    return sampling;
+  }
+
+  /*
+   * the average color of the square around a point of the screen, read
+   * from the image if the editor is showing it there
+   */
+  private int sample( int screenX, int screenY ) {
+    int half = size / 2;
+    if( editor.isShowing() && !editor.isPlaying() ) {
+      Point point = new Point( screenX, screenY );
+      SwingUtilities.convertPointFromScreen( point, editor );
+      if( editor.getVisibleRect().contains( point ) ) {
+        int zoom = editor.getZoom();
+        return sampleImage( Math.floorDiv( point.x, zoom ) - half,
+                            Math.floorDiv( point.y, zoom ) - half );
+      }
+    }
+
+    BufferedImage capture = robot.createScreenCapture(
+        new Rectangle( screenX - half, screenY - half, size, size ) );
+    int[] rgb = capture.getRGB( 0, 0, size, size, null, 0, size );
+    return average( rgb, rgb.length );
+  }
+
+  /*
+   * the average color of a square of the image, or of as much of it as is
+   * inside the image
+   */
+  private int sampleImage( int x, int y ) {
+    LayerStack layers = editor.getLayers();
+    Rectangle area = new Rectangle( x, y, size, size ).intersection(
+        new Rectangle( layers.getWidth(), layers.getHeight() ) );
+    if( area.isEmpty() ) {
+      return color.getRGB();
+    }
+    int count = area.width * area.height;
+    if( pixels.length < count ) {
+      pixels = new int[MAX_SIZE * MAX_SIZE];
+    }
+    layers.flatten( area.x, area.y, area.width, area.height, pixels, 0,
+                    area.width );
+    return average( pixels, count );
+  }
+
+  /*
+   * the average of some ARGB colors, with each color counted by how opaque
+   * it is, so transparent pixels don't darken the rest
+   */
+  private static int average( int[] argb, int count ) {
+    long alpha = 0;
+    long red = 0;
+    long green = 0;
+    long blue = 0;
+    for( int i = 0; i < count; i++ ) {
+      int color = argb[i];
+      int a = color >>> 24;
+      alpha += a;
+      red += ( ( color >> 16 ) & 0xff ) * a;
+      green += ( ( color >> 8 ) & 0xff ) * a;
+      blue += ( color & 0xff ) * a;
+    }
+    if( alpha == 0 ) {
+      return 0;
+    }
+    return (int) ( ( alpha + count / 2 ) / count ) << 24
+           | (int) ( ( red + alpha / 2 ) / alpha ) << 16
+           | (int) ( ( green + alpha / 2 ) / alpha ) << 8
+           | (int) ( ( blue + alpha / 2 ) / alpha );
+  }
+}
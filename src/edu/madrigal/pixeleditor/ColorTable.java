@@ -0,0 +1,292 @@
+package edu.madrigal.pixeleditor;
+
+import java.util.Arrays;
+
+/**
+ * The palette of an indexed canvas: up to 256 colors that its pixels index
+ * into, shared by every layer and frame of the image.
+ *
+ * Unlike a Palette, the table can change. Painting a color it doesn't have
+ * adds it while there is room, and after that picks the closest one. Setting
+ * an entry to another color changes every pixel that uses it at once, since
+ * the pixels only hold the index. The first entry is always transparent,
+ * so new layers and cleared pixels have an index however full the table is.
+ *
+ * The frames and layers of an image share its table, so a recolor shows in
+ * all of them. Snapshots, which are read on other threads, get a copy of
+ * it instead, so a recolor during a save doesn't mix colors.
+ *
+ * @author nihil
+ */
+public class ColorTable {
+
+  /**
+   * The most colors a table may have
+   */
+  public static final int MAX_COLORS = 256;
+
+  // size of the direct-mapped cache of colors not in the table
+  private static final int CACHE_SIZE = 4096;
+
+  // marks an empty slot in the lookups
+  private static final long EMPTY = -1L;
+
+  // the colors, and how many there are
+  private final int[] colors;
+  private int size;
+
+  // grows whenever an entry changes color
+  private long version;
+
+  // the table's own colors, and the colors mapped to their nearest, each
+  // slot holding a color in the high half and its index in the low
+  private final long[] exact;
+  private final long[] nearest;
+
+  /**
+   * Constructor for a table of just the transparent entry
+   */
+  public ColorTable() {
+    colors = new int[MAX_COLORS];
+    size = 1;
+    exact = new long[MAX_COLORS * 4];
+    nearest = new long[CACHE_SIZE];
+    rebuild();
+  }
+
+  /**
+   * Constructor for a table of the colors of a palette, after the
+   * transparent entry. A transparent color in the palette is left out,
+   * since the table has one already.
+   *
+   * @param palette the colors, at most MAX_COLORS - 1 of them besides
+   *          transparent
+   */
+  public ColorTable( Palette palette ) {
+    this();
+    for( int i = 0; i < palette.size(); i++ ) {
+      int color = Palette.normalize( palette.getColor( i ) );
+      if( color != 0 ) {
+        add( color );
+      }
+    }
+  }
+
+  /**
+   * Constructor for a table of some colors, in order, like one saved
+   * before. The first must be transparent.
+   *
+   * @param argb between 1 and MAX_COLORS colors, not premultiplied
+   */
+  public ColorTable( int[] argb ) {
+    if( argb.length < 1 || argb.length > MAX_COLORS || argb[0] != 0 ) {
+      throw new IllegalArgumentException( "A color table has 1 to "
+                                          + MAX_COLORS + " colors, the"
+                                          + " first transparent." );
+    }
+    colors = Arrays.copyOf( argb, MAX_COLORS );
+    size = argb.length;
+    exact = new long[MAX_COLORS * 4];
+    nearest = new long[CACHE_SIZE];
+    rebuild();
+  }
+
+  /**
+   * How many colors the table has
+   *
+   * @return the number of colors, at least 1
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The colors of the table, in order
+   *
+   * @return a copy of the ARGB colors
+   */
+  public int[] getColors() {
+    return Arrays.copyOf( colors, size );
+  }
+
+  /**
+   * A color of the table
+   *
+   * @param index the index of the color
+   * @return the ARGB color, not premultiplied
+   */
+  public int getColor( int index ) {
+    return colors[index];
+  }
+
+  /**
+   * Counts the changes to the colors of the table. Adding a color doesn't
+   * count, since no pixel uses it yet.
+   *
+   * @return the version of the table
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Sets an entry to another color, which changes every pixel using it, or
+   * adds an entry after the last, even if the table has its color already.
+   *
+   * @param index the index of the entry, which can't be the first, or
+   *          size() to add one
+   * @param argb the ARGB color, not premultiplied
+   */
+  public void setColor( int index, int argb ) {
+    if( index < 1 || index > size || index == MAX_COLORS ) {
+      throw new IllegalArgumentException( "No color " + index + "." );
+    }
+    if( index == size ) {
+      size++;
+    }
+    colors[index] = Palette.normalize( argb );
+    version++;
+    rebuild();
+  }
+
+  /**
+   * The index of the color closest to a color, which is the color itself
+   * if the table has it
+   *
+   * @param argb the ARGB color, not premultiplied
+   * @return the index of the closest color
+   */
+  public int indexOf( int argb ) {
+    int color = Palette.normalize( argb );
+    int index = find( color );
+    if( index >= 0 ) {
+      return index;
+    }
+    int slot = slot( color, CACHE_SIZE );
+    long found = nearest[slot];
+    if( found != EMPTY && (int) ( found >>> 32 ) == color ) {
+      return (int) found;
+    }
+    index = closest( color );
+    nearest[slot] = entry( color, index );
+    return index;
+  }
+
+  /**
+   * The index a pixel of a color should hold: the color's own, a new entry
+   * for it if there is still room, or else the closest color's.
+   *
+   * @param argb the ARGB color, not premultiplied
+   * @return the index of the color
+   */
+  public int indexFor( int argb ) {
+    int color = Palette.normalize( argb );
+    int index = find( color );
+    if( index >= 0 ) {
+      return index;
+    }
+    return size < MAX_COLORS ? append( color ) : indexOf( color );
+  }
+
+  /**
+   * Adds a color if the table doesn't have it yet, as long as there is room
+   *
+   * @param argb the ARGB color, not premultiplied
+   * @return whether the table has the color now
+   */
+  public boolean add( int argb ) {
+    int color = Palette.normalize( argb );
+    if( find( color ) >= 0 ) {
+      return true;
+    }
+    if( size == MAX_COLORS ) {
+      return false;
+    }
+    append( color );
+    return true;
+  }
+
+  /*
+   * the index of a color in the table, or -1 if it isn't in it
+   */
+  private int find( int color ) {
+    int slot = slot( color, exact.length );
+    long found;
+    while( ( found = exact[slot] ) != EMPTY ) {
+      if( (int) ( found >>> 32 ) == color ) {
+        return (int) found;
+      }
+      slot = ( slot + 1 ) & ( exact.length - 1 );
+    }
+    return -1;
+  }
+
+  /*
+   * appends a color the table doesn't have yet. Colors mapped to their
+   * nearest may be closer to it, so those are forgotten
+   */
+  private int append( int color ) {
+    int index = size++;
+    colors[index] = color;
+    insert( color, index );
+    Arrays.fill( nearest, EMPTY );
+    return index;
+  }
+
+  /*
+   * fills the lookups again from the colors. An entry with the same color
+   * as one before it is only found through the first
+   */
+  private void rebuild() {
+    Arrays.fill( exact, EMPTY );
+    Arrays.fill( nearest, EMPTY );
+    for( int i = 0; i < size; i++ ) {
+      if( find( colors[i] ) < 0 ) {
+        insert( colors[i], i );
+      }
+    }
+  }
+
+  private void insert( int color, int index ) {
+    int slot = slot( color, exact.length );
+    while( exact[slot] != EMPTY ) {
+      slot = ( slot + 1 ) & ( exact.length - 1 );
+    }
+    exact[slot] = entry( color, index );
+  }
+
+  /*
+   * searches the whole table for the closest color, by squared distance
+   * with alpha counted like the other channels
+   */
+  private int closest( int color ) {
+    int a = color >>> 24;
+    int r = ( color >> 16 ) & 0xff;
+    int g = ( color >> 8 ) & 0xff;
+    int b = color & 0xff;
+    int best = 0;
+    int bestDistance = Integer.MAX_VALUE;
+    for( int i = 0; i < size; i++ ) {
+      int c = colors[i];
+      int da = ( c >>> 24 ) - a;
+      int dr = ( ( c >> 16 ) & 0xff ) - r;
+      int dg = ( ( c >> 8 ) & 0xff ) - g;
+      int db = ( c & 0xff ) - b;
+      int distance = da * da + dr * dr + dg * dg + db * db;
+      if( distance < bestDistance ) {
+        bestDistance = distance;
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  private static int slot( int color, int size ) {
+    int h = color * 0x9e3779b9;
+    return ( h ^ ( h >>> 16 ) ) & ( size - 1 );
+  }
+
+  private static long entry( int color, int index ) {
+    return ( (long) color << 32 ) | index;
+  }
+}
@@ -0,0 +1,1071 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * An image being edited: its frames and their layers, the history of its
+ * edits, and whether it has been saved since. Nothing here needs a screen,
+ * so images can be edited the same way from the editor or from the command
+ * line.
+ *
+ * Edits return the region of the image they changed, for whoever shows the
+ * image to paint again. Edits made straight on the canvas, like strokes,
+ * must touch the history first and commit it once they're done.
+ *
+ * An image has at least one frame, and every edit is made on the frame being
+ * shown. A new frame starts as a copy of the one it follows, and the tiles of
+ * every frame are kept in a tile store, so tiles repeated across frames are
+ * only held once.
+ *
+ * An image can also be indexed, with every layer of every frame holding
+ * indices into one color table instead of colors. Setting a color of the
+ * table then changes every pixel using it at once.
+ *
+ * While some pixels are selected, fills, filters, clearing, pasting and
+ * strokes only change those. Selecting isn't an edit, so it isn't undone.
+ *
+ * @author nihil
+ */
+public class Document {
+
+  //how much memory the undo history may use by default, 64 MB
+  public static final long DEFAULT_HISTORY_BUDGET = 64L << 20;
+
+  //how fast frames are played back by default, and at most
+  public static final int DEFAULT_FRAMES_PER_SECOND = 12;
+  public static final int MAX_FRAMES_PER_SECOND = 60;
+
+  //the frames, and the one being edited, whose layers are below
+  private final List< LayerStack > frames;
+  private int frame;
+  private int framesPerSecond;
+  private final TileStore tileStore;
+
+  private LayerStack layers;
+  private TiledCanvas canvas;
+  private History history;
+  private final FloodFill floodFill;
+  private final MagicWand magicWand;
+  private int gridSize;
+  private boolean saved;
+
+  //counts the edits made, so a save knows if the image changed since
+  private long modifications;
+
+  //the project file last saved to or opened, if any
+  private ProjectFile projectFile;
+
+  //the journal every edit is written to, if any
+  private Journal journal;
+
+  //the pixels edits are kept to, or null for the whole image
+  private SelectionMask selection;
+
+  /**
+   * Constructor for a blank image with a single white layer
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   */
+  public Document( int width, int height ) {
+    this( new LayerStack( width, height, Color.WHITE.getRGB() ) );
+  }
+
+  /**
+   * Constructor for an image with a single layer of existing pixels
+   *
+   * @param background the pixels of the only layer
+   */
+  public Document( TiledCanvas background ) {
+    this( singleLayer( background ) );
+  }
+
+  /**
+   * Constructor for an image made of existing layers, with no history
+   *
+   * @param layers the layers of the image
+   */
+  public Document( LayerStack layers ) {
+    this( Collections.singletonList( layers ), 0 );
+  }
+
+  /**
+   * Constructor for an animation made of existing frames, with no history
+   *
+   * @param frames the frames of the image, each with its own layers, which
+   *          must all be the same size
+   * @param frame the index of the frame to edit
+   */
+  public Document( List< LayerStack > frames, int frame ) {
+    this.frames = new ArrayList< LayerStack >( frames );
+    this.frame = frame;
+    layers = this.frames.get( frame );
+    canvas = layers.getActiveLayer().getCanvas();
+    history = new History( canvas, DEFAULT_HISTORY_BUDGET );
+    floodFill = new FloodFill();
+    magicWand = new MagicWand();
+    gridSize = 1;
+    framesPerSecond = DEFAULT_FRAMES_PER_SECOND;
+    tileStore = new TileStore();
+    saved = true;
+    if( frames.size() > 1 ) {
+      for( LayerStack stack : this.frames ) {
+        storeTiles( stack );
+      }
+    }
+  }
+
+  /**
+   * Reads an image file into a single layer, keeping its transparency
+   *
+   * @param f the image file
+   * @return the image
+   * @throws IOException if the file can't be read or isn't an image
+   */
+  public static Document readImage( File f ) throws IOException {
+    BufferedImage image = ImageIO.read( f );
+    if( image == null ) {
+      throw new IOException( f.getName() + " is not a supported image." );
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    TiledCanvas canvas = new TiledCanvas( width, height, 0 );
+    int[] row = new int[width];
+    for( int y = 0; y < height; y++ ) {
+      image.getRGB( 0, y, width, 1, row, 0, width );
+      canvas.setRegion( 0, y, width, 1, row, 0, width );
+    }
+    for( int tile = 0; tile < canvas.getTileCount(); tile++ ) {
+      canvas.compact( tile );
+    }
+    return new Document( canvas );
+  }
+
+  /**
+   * Opens a project file, with its layers, grid size and history
+   *
+   * @param f the project file
+   * @return the image
+   * @throws IOException if the file can't be read or isn't a project
+   */
+  public static Document openProject( File f ) throws IOException {
+    ProjectFile project = ProjectFile.open( f );
+    Document document = new Document( project.getFrames(),
+                                      project.getFrameIndex() );
+    project.restoreHistory( document.history );
+    document.gridSize = project.getGridSize();
+    document.setFramesPerSecond( project.getFramesPerSecond() );
+    document.projectFile = project;
+    return document;
+  }
+
+  /*
+   * a stack of just one layer, the background
+   */
+  private static LayerStack singleLayer( TiledCanvas canvas ) {
+    List< Layer > background = new ArrayList< Layer >();
+    background.add( new Layer( "Background", canvas ) );
+    return new LayerStack( background, 0 );
+  }
+
+  /**
+   * The width of the image
+   *
+   * @return the width of the image, in pixels
+   */
+  public int getWidth() {
+    return layers.getWidth();
+  }
+
+  /**
+   * The height of the image
+   *
+   * @return the height of the image, in pixels
+   */
+  public int getHeight() {
+    return layers.getHeight();
+  }
+
+  /**
+   * The layers of the frame being edited, which should only be changed
+   * through the document so it can keep track of the layer being edited
+   *
+   * @return the layer stack
+   */
+  public LayerStack getLayers() {
+    return layers;
+  }
+
+  /**
+   * How many frames the image has
+   *
+   * @return the number of frames, at least 1
+   */
+  public int getFrameCount() {
+    return frames.size();
+  }
+
+  /**
+   * Which frame is being edited
+   *
+   * @return the index of the frame, from the first
+   */
+  public int getFrameIndex() {
+    return frame;
+  }
+
+  /**
+   * The layers of a frame, which should only be read
+   *
+   * @param index the index of the frame
+   * @return the layer stack of the frame
+   */
+  public LayerStack getFrame( int index ) {
+    return frames.get( index );
+  }
+
+  /**
+   * Every frame, in order, which should only be read
+   *
+   * @return the layer stacks of the frames
+   */
+  public List< LayerStack > getFrames() {
+    return Collections.unmodifiableList( frames );
+  }
+
+  /**
+   * How fast the frames are played back
+   *
+   * @return the frames per second
+   */
+  public int getFramesPerSecond() {
+    return framesPerSecond;
+  }
+
+  /**
+   * Sets how fast the frames are played back.
+   *
+   * @param fps the frames per second, from 1 to MAX_FRAMES_PER_SECOND
+   */
+  public void setFramesPerSecond( int fps ) {
+    int clamped = Math.max( 1, Math.min( fps, MAX_FRAMES_PER_SECOND ) );
+    if( clamped != framesPerSecond ) {
+      framesPerSecond = clamped;
+      markModified();
+    }
+  }
+
+  /**
+   * Chooses the frame to edit. Since edits are only made on the frame
+   * being edited, the tiles of the one left behind are stored now, sharing
+   * any that repeat from other frames.
+   *
+   * @param index the index of the frame
+   */
+  public void selectFrame( int index ) {
+    if( index == frame ) {
+      return;
+    }
+    storeTiles( layers );
+    frame = index;
+    layers = frames.get( index );
+    layersChanged();
+  }
+
+  /**
+   * Adds a copy of the frame being edited after it, and edits the copy
+   * instead. The copy shares every tile with the frame until either is
+   * painted on.
+   */
+  public void addFrame() {
+    storeTiles( layers );
+    frames.add( frame + 1, layers.duplicate() );
+    selectFrame( frame + 1 );
+    markModified();
+  }
+
+  /**
+   * Removes the frame being edited, unless it is the only one. Since the
+   * history may have edits on it, the history is forgotten.
+   *
+   * @return if the frame was removed
+   */
+  public boolean removeFrame() {
+    if( frames.size() < 2 ) {
+      return false;
+    }
+    frames.remove( frame );
+    frame = Math.min( frame, frames.size() - 1 );
+    layers = frames.get( frame );
+    history.clear();
+    layersChanged();
+    markModified();
+    return true;
+  }
+
+  /**
+   * Moves the frame being edited earlier or later in the animation.
+   *
+   * @param steps how many places to move it, later if positive
+   * @return if the frame moved
+   */
+  public boolean moveFrame( int steps ) {
+    int to = Math.max( 0, Math.min( frame + steps, frames.size() - 1 ) );
+    if( to == frame ) {
+      return false;
+    }
+    frames.add( to, frames.remove( frame ) );
+    frame = to;
+    markModified();
+    return true;
+  }
+
+  /*
+   * shares the tiles of every layer of a frame through the tile store
+   */
+  private void storeTiles( LayerStack stack ) {
+    for( int i = 0; i < stack.getLayerCount(); i++ ) {
+      tileStore.store( stack.getLayer( i ).getCanvas() );
+    }
+  }
+
+  /**
+   * The canvas of the layer being edited
+   *
+   * @return the active canvas
+   */
+  public TiledCanvas getCanvas() {
+    return canvas;
+  }
+
+  /**
+   * The colors the pixels of an indexed image index into
+   *
+   * @return the color table, or null if the image isn't indexed
+   */
+  public ColorTable getColorTable() {
+    return canvas.getColorTable();
+  }
+
+  /**
+   * The history of the edits to the image
+   *
+   * @return the history
+   */
+  public History getHistory() {
+    return history;
+  }
+
+  /**
+   * The size of the cells that fills and strokes paint
+   *
+   * @return the grid size, in pixels
+   */
+  public int getGridSize() {
+    return gridSize;
+  }
+
+  /**
+   * Sets the size of the cells that fills and strokes paint
+   *
+   * @param gridSize the grid size, in pixels
+   */
+  public void setGridSize( int gridSize ) {
+    this.gridSize = Math.max( 1, gridSize );
+  }
+
+  /**
+   * The color a cleared canvas is filled with: opaque white for the bottom
+   * layer, and transparent for the others
+   *
+   * @return the ARGB clear color of the active layer
+   */
+  public int getClearColor() {
+    return layers.getActiveIndex() == 0 ? Color.WHITE.getRGB() : 0;
+  }
+
+  /**
+   * Chooses the layer to edit.
+   *
+   * @param index the index of the layer, from the bottom
+   */
+  public void selectLayer( int index ) {
+    layers.setActive( index );
+    layersChanged();
+  }
+
+  /**
+   * Adds a transparent layer over the one being edited, and edits it
+   * instead.
+   */
+  public void addLayer() {
+    layers.addLayer( "Layer " + ( layers.getLayerCount() + 1 ) );
+    layersChanged();
+  }
+
+  /**
+   * Removes the layer being edited, unless it is the only one. Since the
+   * history may have edits on it, the history is forgotten.
+   *
+   * @return if the layer was removed
+   */
+  public boolean removeLayer() {
+    if( !layers.removeLayer( layers.getActiveIndex() ) ) {
+      return false;
+    }
+    history.clear();
+    markModified();
+    layersChanged();
+    return true;
+  }
+
+  /**
+   * Moves the layer being edited up or down the stack.
+   *
+   * @param steps how many places to move it, up if positive
+   * @return if the layer moved
+   */
+  public boolean moveLayer( int steps ) {
+    int from = layers.getActiveIndex();
+    int to = Math.max( 0, Math.min( from + steps,
+                                    layers.getLayerCount() - 1 ) );
+    if( to == from ) {
+      return false;
+    }
+    layers.moveLayer( from, to );
+    markModified();
+    layersChanged();
+    return true;
+  }
+
+  /**
+   * Changes the settings of a layer.
+   *
+   * @param index the index of the layer, from the bottom
+   * @param name the name of the layer
+   * @param visible whether the layer is drawn
+   * @param opacity the opacity of the layer, from 0 to 255
+   * @param mode how the layer is blended over the ones under it
+   */
+  public void setLayerOptions( int index, String name, boolean visible,
+                               int opacity, BlendMode mode ) {
+    layers.setName( index, name );
+    layers.setVisible( index, visible );
+    layers.setOpacity( index, opacity );
+    layers.setBlendMode( index, mode );
+    markModified();
+  }
+
+  /*
+   * edits whichever layer is now active
+   */
+  private void layersChanged() {
+    canvas = layers.getActiveLayer().getCanvas();
+    history.setCanvas( canvas );
+  }
+
+  /**
+   * Fills the contiguous grid cells under a point of the active layer. The
+   * fill is part of the edit in progress, until it is committed.
+   *
+   * @param x the x-coord from which to start filling
+   * @param y the y-coord from which to start filling
+   * @param color the ARGB color to fill with
+   * @return the region that changed, or null if nothing did
+   */
+  public Rectangle fill( int x, int y, int color ) {
+    return floodFill.fill( canvas, x, y, gridSize, color, history,
+                           selection );
+  }
+
+  /**
+   * Clears the active layer, or the selected part of it, to its clear
+   * color, as a single edit.
+   *
+   * @return the region that changed
+   */
+  public Rectangle clear() {
+    Rectangle area = getEditArea();
+    if( selection == null ) {
+      history.touch( 0, 0, getWidth(), getHeight() );
+      canvas.fillRect( 0, 0, getWidth(), getHeight(), getClearColor() );
+    } else {
+      selection.fillRect( canvas, history, area.x, area.y, area.width,
+                          area.height, getClearColor() );
+    }
+    commit();
+    return area;
+  }
+
+  /**
+   * Applies a filter to the active layer, or the selected part of it, as a
+   * single edit.
+   *
+   * @param filter the filter to apply
+   * @return the region that changed
+   */
+  public Rectangle applyFilter( PixelFilter filter ) {
+    Rectangle area = getEditArea();
+    history.touch( area.x, area.y, area.width, area.height );
+    FilterEngine.apply( filter, canvas, selection );
+    commit();
+    return area;
+  }
+
+  /**
+   * The pixels edits are kept to
+   *
+   * @return the selection, or null if the whole image is
+   */
+  public SelectionMask getSelection() {
+    return selection;
+  }
+
+  /**
+   * Keeps edits to some pixels of the image, or lets them change all of it
+   * again. A selection of nothing is the same as none.
+   *
+   * @param mask the pixels to select, the size of the image, or null to
+   *          select the whole image
+   */
+  public void setSelection( SelectionMask mask ) {
+    if( mask != null && ( mask.getWidth() != getWidth()
+                          || mask.getHeight() != getHeight() ) ) {
+      throw new IllegalArgumentException( "The selection is "
+                                          + mask.getWidth() + "x"
+                                          + mask.getHeight()
+                                          + " but the image is "
+                                          + getWidth() + "x" + getHeight()
+                                          + "." );
+    }
+    selection = mask == null || mask.isEmpty() ? null : mask;
+  }
+
+  /**
+   * Selects the pixels of the active layer close in color to one, either
+   * those joined to it or all of them.
+   *
+   * @param x the x-coord of the pixel
+   * @param y the y-coord of the pixel
+   * @param tolerance how far each channel may be from the pixel's, from 0
+   *          to 255
+   * @param contiguous whether only the pixels joined to it are selected
+   * @return the selection, or null if the pixel isn't in the image
+   */
+  public SelectionMask selectByColor( int x, int y, int tolerance,
+                                      boolean contiguous ) {
+    SelectionMask mask = magicWand.select( canvas, x, y, tolerance,
+                                           contiguous );
+    if( mask != null ) {
+      setSelection( mask );
+    }
+    return mask;
+  }
+
+  /**
+   * Copies the selected pixels of the active layer, or all of them if none
+   * are selected.
+   *
+   * @return an ARGB canvas the size of the rectangle around the selection,
+   *         transparent where nothing is selected
+   */
+  public TiledCanvas copy() {
+    if( selection == null ) {
+      return canvas.converted( null );
+    }
+    Rectangle area = selection.getBounds();
+    TiledCanvas clip = new TiledCanvas( area.width, area.height, 0 );
+    int[] row = new int[area.width];
+    for( int y = area.y; y < area.y + area.height; y++ ) {
+      for( int i = 0; i < selection.getRunCount( y ); i++ ) {
+        int start = selection.getRunStart( y, i );
+        int length = selection.getRunEnd( y, i ) - start;
+        canvas.getRegion( start, y, length, 1, row, 0, length );
+        clip.setRegion( start - area.x, y - area.y, length, 1, row, 0,
+                        length );
+      }
+    }
+    return clip;
+  }
+
+  /**
+   * Paints pixels that were copied over the active layer, blending them with
+   * it, as a single edit. Only the selected pixels change, if some are.
+   *
+   * @param clip the pixels to paste
+   * @param x the x-coord to put the left edge of the pixels at
+   * @param y the y-coord to put the top edge of the pixels at
+   * @return the region that changed, or null if nothing did
+   */
+  public Rectangle paste( TiledCanvas clip, int x, int y ) {
+    Rectangle area = new Rectangle( x, y, clip.getWidth(), clip.getHeight() )
+        .intersection( getEditArea() );
+    if( area.isEmpty() ) {
+      return null;
+    }
+    int[] row = new int[area.width];
+    for( int py = area.y; py < area.y + area.height; py++ ) {
+      if( selection == null ) {
+        pasteRun( clip, x, y, area.x, area.x + area.width, py, row );
+        continue;
+      }
+      int runs = selection.getRunCount( py );
+      for( int i = selection.firstRunAfter( py, area.x ); i < runs; i++ ) {
+        int start = Math.max( selection.getRunStart( py, i ), area.x );
+        int end = Math.min( selection.getRunEnd( py, i ),
+                            area.x + area.width );
+        if( start >= end ) {
+          break;
+        }
+        pasteRun( clip, x, y, start, end, py, row );
+      }
+    }
+    commit();
+    return area;
+  }
+
+  /*
+   * paints a run of a row of pasted pixels
+   */
+  private void pasteRun( TiledCanvas clip, int x, int y, int start, int end,
+                         int py, int[] row ) {
+    int length = end - start;
+    history.touch( start, py, length, 1 );
+    clip.getRegion( start - x, py - y, length, 1, row, 0, length );
+    canvas.paintRow( start, py, row, 0, length );
+  }
+
+  /*
+   * the rectangle around the selection, or the whole image
+   */
+  private Rectangle getEditArea() {
+    return selection == null ? new Rectangle( getWidth(), getHeight() )
+                             : selection.getBounds();
+  }
+
+  /**
+   * Replaces the active layer with the pixels of another canvas, as a single
+   * edit. Where the canvas is smaller, the layer is cleared.
+   *
+   * @param pixels the pixels to place, from the top-left corner
+   * @return the region that changed
+   */
+  public Rectangle replaceCanvas( TiledCanvas pixels ) {
+    int width = getWidth();
+    int height = getHeight();
+    history.touch( 0, 0, width, height );
+    if( pixels.getWidth() == width && pixels.getHeight() == height
+        && pixels.getColorTable() == canvas.getColorTable() ) {
+      //the tiles line up, so they are simply handed over
+      for( int tile = 0; tile < pixels.getTileCount(); tile++ ) {
+        canvas.setTile( tile, pixels.getTileData( tile ),
+                        pixels.getUniformColor( tile ) );
+      }
+    } else {
+      int w = Math.min( pixels.getWidth(), width );
+      int[] row = new int[w];
+      canvas.fillRect( 0, 0, width, height, getClearColor() );
+      for( int y = 0; y < Math.min( pixels.getHeight(), height ); y++ ) {
+        pixels.getRegion( 0, y, w, 1, row, 0, w );
+        canvas.paintRow( 0, y, row, 0, w );
+      }
+    }
+    commit();
+    return new Rectangle( width, height );
+  }
+
+  /**
+   * Stretches every layer of every frame to a new size. Since the history
+   * holds tiles of the old size, it is forgotten.
+   *
+   * @param width the new width of the image
+   * @param height the new height of the image
+   */
+  public void resize( int width, int height ) {
+    for( int f = 0; f < frames.size(); f++ ) {
+      LayerStack stack = frames.get( f );
+      List< Layer > resized = new ArrayList< Layer >();
+      for( int i = 0; i < stack.getLayerCount(); i++ ) {
+        Layer old = stack.getLayer( i );
+        resized.add( copyLayer( old,
+                                old.getCanvas().resized( width, height ) ) );
+      }
+      frames.set( f, new LayerStack( resized, stack.getActiveIndex() ) );
+    }
+    layers = frames.get( frame );
+    canvas = layers.getActiveLayer().getCanvas();
+    resetHistory();
+    selection = null;
+    markModified();
+  }
+
+  /**
+   * Makes every layer of every frame indexed, sharing one color table of at
+   * most some number of colors. If the image has no more colors than that,
+   * they are all kept. Otherwise they are chosen by median cut from the
+   * frame being edited, and every pixel takes the closest. Since the history
+   * holds tiles of the old kind, it is forgotten.
+   *
+   * @param most the most colors, counting transparent, from 2 to
+   *          ColorTable.MAX_COLORS
+   */
+  public void convertToIndexed( int most ) {
+    ColorTable table = countColors( most );
+    if( table == null ) {
+      table = new ColorTable( Quantizer.medianCut().palette(
+          new LayerImage( layers ), most - 1 ) );
+    }
+    convert( table );
+  }
+
+  /**
+   * Makes every layer of every frame hold ARGB colors again. Since the
+   * history holds tiles of the old kind, it is forgotten.
+   */
+  public void convertToRGB() {
+    if( getColorTable() != null ) {
+      convert( null );
+    }
+  }
+
+  /**
+   * Sets a color of the color table of an indexed image, which changes every
+   * pixel using it in every layer and frame, as an edit of its own. Setting
+   * the same color again right after is part of the same edit.
+   *
+   * @param index the index of the color, from 1, since the first is always
+   *          transparent
+   * @param argb the new ARGB color
+   * @return the region that changed, or null if nothing did
+   */
+  public Rectangle setPaletteColor( int index, int argb ) {
+    ColorTable table = getColorTable();
+    if( table == null || index < 1 || index >= table.size()
+        || !history.recolor( index, argb ) ) {
+      return null;
+    }
+    colorsChanged();
+    markModified();
+    return new Rectangle( getWidth(), getHeight() );
+  }
+
+  /*
+   * the colors of every layer of every frame, in a new table, or null if
+   * there are more than some number of them
+   */
+  private ColorTable countColors( int most ) {
+    ColorTable table = new ColorTable();
+    int[] pixels = new int[TiledCanvas.TILE_AREA];
+    for( LayerStack stack : frames ) {
+      for( int i = 0; i < stack.getLayerCount(); i++ ) {
+        TiledCanvas layer = stack.getLayer( i ).getCanvas();
+        for( int tile = 0; tile < layer.getTileCount(); tile++ ) {
+          layer.getTileRGB( tile, pixels );
+          int count = layer.isUniform( tile ) ? 1 : TiledCanvas.TILE_AREA;
+          for( int p = 0; p < count; p++ ) {
+            if( ( p == 0 || pixels[p] != pixels[p - 1] )
+                && ( !table.add( pixels[p] ) || table.size() > most ) ) {
+              return null;
+            }
+          }
+        }
+      }
+    }
+    return table;
+  }
+
+  /*
+   * replaces every layer of every frame with a copy indexed by a table, or
+   * holding ARGB if there is none, sharing the tiles repeated across frames
+   * again
+   */
+  private void convert( ColorTable table ) {
+    for( int f = 0; f < frames.size(); f++ ) {
+      LayerStack stack = frames.get( f );
+      List< Layer > converted = new ArrayList< Layer >();
+      for( int i = 0; i < stack.getLayerCount(); i++ ) {
+        Layer old = stack.getLayer( i );
+        converted.add( copyLayer( old, old.getCanvas().converted( table ) ) );
+      }
+      frames.set( f, new LayerStack( converted, stack.getActiveIndex() ) );
+      if( frames.size() > 1 ) {
+        storeTiles( frames.get( f ) );
+      }
+    }
+    layers = frames.get( frame );
+    canvas = layers.getActiveLayer().getCanvas();
+    resetHistory();
+    markModified();
+  }
+
+  /*
+   * starts a new history of the canvas being edited, with the settings of
+   * the last one
+   */
+  private void resetHistory() {
+    History fresh = new History( canvas, history.getBudget() );
+    fresh.setRecording( history.isRecording() );
+    history = fresh;
+  }
+
+  /*
+   * a layer with the settings of another and new pixels
+   */
+  private static Layer copyLayer( Layer old, TiledCanvas canvas ) {
+    Layer layer = new Layer( old.getName(), canvas );
+    layer.setVisible( old.isVisible() );
+    layer.setOpacity( old.getOpacity() );
+    layer.setBlendMode( old.getBlendMode() );
+    return layer;
+  }
+
+  /*
+   * a color of the table changed, so every frame is flattened again
+   */
+  private void colorsChanged() {
+    for( LayerStack stack : frames ) {
+      stack.invalidate();
+    }
+  }
+
+  /**
+   * Ends the edit in progress, recording the tiles it touched in the
+   * history.
+   *
+   * @return if the edit changed anything
+   */
+  public boolean commit() {
+    if( history.commit() ) {
+      markModified();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Undoes the last edit, going to its frame first if it was made on
+   * another one.
+   *
+   * @return the region that was restored, or null if there was nothing to
+   *         undo
+   */
+  public Rectangle undo() {
+    long colors = colorVersion();
+    showFrameOf( history.getUndoCanvas() );
+    return restored( history.undo(), colors );
+  }
+
+  /**
+   * Redoes the edit after the last one, going to its frame first if it was
+   * made on another one.
+   *
+   * @return the region that was restored, or null if there was nothing to
+   *         redo
+   */
+  public Rectangle redo() {
+    long colors = colorVersion();
+    showFrameOf( history.getRedoCanvas() );
+    return restored( history.redo(), colors );
+  }
+
+  /*
+   * edits the frame a canvas belongs to
+   */
+  private void showFrameOf( TiledCanvas changed ) {
+    if( changed == null || layers.contains( changed ) ) {
+      return;
+    }
+    for( int f = 0; f < frames.size(); f++ ) {
+      if( frames.get( f ).contains( changed ) ) {
+        selectFrame( f );
+        return;
+      }
+    }
+  }
+
+  /*
+   * catches the layers up with an undo or redo, which may have been on any
+   * layer, or may have changed a color of the table from the version given
+   */
+  private Rectangle restored( Rectangle restored, long colors ) {
+    if( restored != null ) {
+      if( colorVersion() != colors ) {
+        colorsChanged();
+      } else {
+        layers.refresh( restored );
+      }
+      markModified();
+    }
+    return restored;
+  }
+
+  /*
+   * counts the changes to the colors of the table, if there is one
+   */
+  private long colorVersion() {
+    ColorTable table = getColorTable();
+    return table == null ? 0 : table.getVersion();
+  }
+
+  /**
+   * How much memory the undo history may use
+   *
+   * @return the most bytes the history may use
+   */
+  public long getHistoryBudget() {
+    return history.getBudget();
+  }
+
+  /**
+   * Sets how much memory the undo history may use. The oldest edits are
+   * forgotten first once it runs out.
+   *
+   * @param bytes the most bytes the history may use
+   */
+  public void setHistoryBudget( long bytes ) {
+    history.setBudget( bytes );
+  }
+
+  /**
+   * Sets whether edits are kept to be undone. An image that is never
+   * undone, like one in a batch, is edited without copying every tile
+   * touched.
+   *
+   * @param recording if edits are kept in the undo history
+   */
+  public void setRecordingHistory( boolean recording ) {
+    history.setRecording( recording );
+  }
+
+  /**
+   * If the image has been saved since the last edit.
+   *
+   * @return whether the image has been saved
+   */
+  public boolean isSaved() {
+    return saved;
+  }
+
+  /**
+   * Counts the edits made so far, so a save made from a snapshot can tell
+   * if the image changed since.
+   *
+   * @return the number of edits
+   */
+  public long getModifications() {
+    return modifications;
+  }
+
+  /**
+   * Records that the image changed since it was last saved, and writes the
+   * change to the journal.
+   */
+  public void markModified() {
+    saved = false;
+    modifications++;
+    if( journal != null ) {
+      journal.record( this );
+    }
+  }
+
+  /**
+   * Writes every edit from now on to a journal, so the image can be
+   * recovered after a crash. The whole image is checkpointed first.
+   *
+   * @param journal the journal, or null to stop writing to one
+   */
+  public void setJournal( Journal journal ) {
+    this.journal = journal;
+    if( journal != null ) {
+      journal.checkpoint( this );
+    }
+  }
+
+  /**
+   * Records that the image was saved to a flattened image, if it hasn't
+   * changed since the given count of edits and a flattened image holds all
+   * of it.
+   *
+   * @param version the count of edits when the saved snapshot was taken
+   */
+  public void markSaved( long version ) {
+    if( version == modifications && isFlat() ) {
+      saved = true;
+    }
+  }
+
+  /*
+   * whether a flattened image of the frame being edited holds everything,
+   * so writing one counts as saving the image. With more frames or layers
+   * only the project holds it all.
+   */
+  private boolean isFlat() {
+    if( frames.size() != 1 || layers.getLayerCount() != 1 ) {
+      return false;
+    }
+    Layer layer = layers.getLayer( 0 );
+    return layer.isVisible() && layer.getOpacity() == 255;
+  }
+
+  /**
+   * Writes the frame being edited, flattened, to a file. It only counts as
+   * saving the image if that is all there is of it.
+   *
+   * @param f the file in which to save the image
+   * @param format the informal name of the format, like "PNG"
+   * @throws IOException any IOException thrown by the write process
+   */
+  public void writeImage( File f, String format ) throws IOException {
+    if( !ImageIO.write( new LayerImage( layers ), format, f ) ) {
+      throw new IOException( "No writer for " + format + " images." );
+    }
+    saved = saved || isFlat();
+  }
+
+  /**
+   * Writes the frame being edited, flattened, to a PNG file, indexed if it
+   * has few enough colors. It only counts as saving the image if that is
+   * all there is of it.
+   *
+   * @param f the file in which to save the image
+   * @param encoder the settings to write the PNG with
+   * @throws IOException any IOException thrown by the write process
+   */
+  public void writeImage( File f, PngEncoder encoder ) throws IOException {
+    encoder.write( new LayerImage( layers ), f );
+    saved = saved || isFlat();
+  }
+
+  /**
+   * The project file the image was last saved to or opened from
+   *
+   * @return the project file, or null if there is none
+   */
+  public File getProjectFile() {
+    return projectFile == null ? null : projectFile.getFile();
+  }
+
+  /**
+   * Saves the layers, grid size and history to a project file. Saving to
+   * the same file again only writes what changed since.
+   *
+   * @param f the file in which to save the project
+   * @throws IOException any IOException thrown by the write process
+   */
+  public void saveProject( File f ) throws IOException {
+    if( projectFile == null || !projectFile.getFile().equals( f ) ) {
+      projectFile = new ProjectFile( f );
+    }
+    projectFile.save( frames, frame, history, gridSize, framesPerSecond );
+    saved = true;
+  }
+}
@@ -1,23 +1,43 @@
 package edu.madrigal.pixeleditor;
 
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Image;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  * Defines a canvas on which to draw.
@@ -25,52 +45,554 @@ import javax.swing.JPanel;
  * @author nihil
  */
 public class EditorPanel extends JPanel
-                         implements MouseListener, MouseMotionListener {
+                         implements MouseListener, MouseMotionListener,
+                                    MouseWheelListener {
   private static final long serialVersionUID = -6619252965009376403L;
+  //the property fired whenever the layers change
+  public static final String LAYERS_PROPERTY = "layers";
+  //the property fired whenever the grid size changes
+  public static final String GRID_SIZE_PROPERTY = "gridSize";
+  //the property fired whenever the frames change, or another is shown
+  public static final String FRAMES_PROPERTY = "frames";
+  //the property fired when playback starts or stops
+  public static final String PLAYING_PROPERTY = "playing";
   //Color for grid
   private static final Color GRID_COLOR = new Color( 50, 50, 150, 30 );
-  private static final int SIZE = 300;
+  //the size of a new canvas
+  private static final int DEFAULT_SIZE = 300;
+  //the grid size of the first canvas
+  private static final int DEFAULT_GRID_SIZE = 5;
+  //how often the positions of a stroke are painted, about 60 times a second
+  private static final int FRAME_MILLIS = 16;
+  //how opaque the frames around the one being edited are drawn
+  private static final float ONION_SKIN_OPACITY = 0.3f;
+  
+  private static final int DEFAULT_WAND_TOLERANCE = 32;
+  
+  // the white dashes drawn over the black outline of the selection
+  private static final BasicStroke SELECTION_DASHES = new BasicStroke(
+      1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10,
+      new float[]{ 4, 4 }, 0 );
+  //how many screen pixels wide each image pixel can be drawn
+  private static final int[] ZOOM_LEVELS = { 1, 2, 3, 4, 6, 8, 12, 16, 24,
+                                             32 };
   
 	/*
 	 * the buffered image we want, the color of the brush, the showGrid and
 	 * modeFill, grid size, and image size
 	 */
-  private static final int INVERT_XOR = 0x00ffffff;
   private static final String CONFIRM_DIAG = "This will overwrite the image.\n"
                                            + "Are you sure?";
   private static final String RESIZE_DIAG = "This image is too large for the"
                                           + " canvas.\n Do you want it"
-                                          + " stretched or fitted?";
+                                          + " stretched or fitted, or the"
+                                          + " canvas resized?";
   private static final String OPTION_STRETCH = "Stretched";
   private static final String OPTION_FIT = "Fit";
+  private static final String OPTION_RESIZE = "Resize Canvas";
   private static final String OPTION_CANCEL = "Cancel";
   private static final String[] OPTIONS = new String[] { OPTION_FIT,
                                                          OPTION_STRETCH,
+                                                         OPTION_RESIZE,
                                                          OPTION_CANCEL };
-	private BufferedImage image;
+	private Document document;
+	private BufferedImage renderBuffer;
 	private Color currentColor;
 	private boolean showGrid;
 	private boolean fill;
-	private int gridSize = 5;
-	private LinkedList< BufferedImage > history;
-	private int historyPtr;
-	private boolean saved;
+	private int zoom = 1;
+	private StrokeEngine stroke;
+	private Timer strokeTimer;
+	private GridOverlay gridOverlay;
 	private boolean editInProgress;
 	
+	//writes images in the background, one at a time, and how many are left
+	private final ExecutorService saveExecutor;
+	private int savesInProgress;
+	
+	//the settings images are saved as PNG with
+	private final PngEncoder pngEncoder;
+	
+	//the journal edits are written to for crash recovery, if any
+	private Journal journal;
+	
+	//the region changed since the last repaint, or null if nothing has
+	private Rectangle damage;
+	
+	//flattened frames, for playback and onion skins
+	private final FrameCache frameCache;
+	private boolean onionSkin;
+	
+	//steps through the frames while playing, and the frame being shown
+	private Timer playTimer;
+	private int playFrame;
+	
+	//where a pan began on screen, and where the view was at the time
+	private Point panStart;
+	private Point panOrigin;
+	
+	//the shape dragged out instead of a stroke, or null to draw freehand
+	private ShapeTool shapeTool;
+	
+	/*
+	 * the shape being dragged, if any: the cell it started at, its color, its
+	 * runs of cells, and the region they cover
+	 */
+	private Point shapeStart;
+	private int shapeColor;
+	private final RunList shapeRuns = new RunList();
+	private Rectangle shapeBounds;
+	
+	/*
+	 * the shape drawn into an image the size of its region, which is only
+	 * kept while it is dragged, and whether it has to be drawn again
+	 */
+	private BufferedImage shapeImage;
+	private boolean shapeChanged;
+	
+	//how pixels are selected instead of drawing, or null to draw
+	private SelectionTool selectionTool;
+	private int wandTolerance = DEFAULT_WAND_TOLERANCE;
+	private boolean wandContiguous = true;
+	
+	/*
+	 * the selection being dragged, if any: the pixel it started at, whether
+	 * the mouse has moved since, and the outline of a lasso
+	 */
+	private Point selectStart;
+	private boolean selectDragged;
+	private Polygon lasso;
+	
+	//the pixels last copied, and where they were copied from
+	private TiledCanvas clipboard;
+	private Point clipOrigin;
+	
 	/**
 	 * Constructor for the editor pane
 	 */
 	public EditorPanel() {
-	  history = new LinkedList< BufferedImage >();
-	  historyPtr = -1;
 	  addMouseListener( this );
 	  addMouseMotionListener( this );
+	  addMouseWheelListener( this );
 	  setBackground( Color.WHITE );
-    setPreferredSize( new Dimension( SIZE, SIZE ) );
-	  image = new BufferedImage( SIZE, SIZE, BufferedImage.TYPE_INT_ARGB );
+	  stroke = new StrokeEngine();
+	  
+	  //paints whatever the stroke gathered during the last frame
+	  strokeTimer = new Timer( FRAME_MILLIS, new ActionListener() {
+	    public void actionPerformed( ActionEvent e ) {
+	      flushStroke();
+	    }
+	  } );
+	  strokeTimer.setRepeats( false );
+	  gridOverlay = new GridOverlay( GRID_COLOR );
+	  frameCache = new FrameCache();
+	  
+	  //shows the next frame, looping back to the first
+	  playTimer = new Timer( 1000 / Document.DEFAULT_FRAMES_PER_SECOND,
+	                         new ActionListener() {
+	    public void actionPerformed( ActionEvent e ) {
+	      playFrame = ( playFrame + 1 ) % document.getFrameCount();
+	      repaint();
+	    }
+	  } );
+	  pngEncoder = new PngEncoder();
+	  saveExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+	    public Thread newThread( Runnable r ) {
+	      Thread thread = new Thread( r, "Image Saver" );
+	      thread.setDaemon( true );
+	      return thread;
+	    }
+	  } );
 		showGrid = true;
-		saved = true;
-		clearCanvas();
+		newCanvas( DEFAULT_SIZE, DEFAULT_SIZE );
+	}
+	
+	/**
+	 * Replaces the image with a blank one of the given size, with a single
+	 * white layer. The history is forgotten, since it belongs to the old image.
+	 * 
+	 * @param width the width of the new image
+	 * @param height the height of the new image
+	 */
+	public void newCanvas( int width, int height ) {
+	  Document blank = new Document( width, height );
+	  blank.setGridSize( document == null ? DEFAULT_GRID_SIZE
+	                                      : document.getGridSize() );
+	  setDocument( blank );
+	}
+	
+	/**
+	 * The width of the image
+	 * 
+	 * @return the width of the image, in pixels
+	 */
+	public int getImageWidth() {
+	  return document.getWidth();
+	}
+	
+	/**
+	 * The height of the image
+	 * 
+	 * @return the height of the image, in pixels
+	 */
+	public int getImageHeight() {
+	  return document.getHeight();
+	}
+	
+	/*
+	 * edits another image, keeping the history budget of the last one
+	 */
+	private void setDocument( Document newDocument ) {
+	  int oldGridSize = 0;
+	  stop();
+	  frameCache.clear();
+	  if( document != null ) {
+	    newDocument.setHistoryBudget( document.getHistoryBudget() );
+	    oldGridSize = document.getGridSize();
+	    document.setJournal( null );
+	  }
+	  document = newDocument;
+	  document.setJournal( journal );
+	  gridOverlay.setCellSize( document.getGridSize() * zoom );
+	  updateSize();
+	  repaint();
+	  firePropertyChange( LAYERS_PROPERTY, null, document.getLayers() );
+	  firePropertyChange( FRAMES_PROPERTY, null, document.getFrameIndex() );
+	  firePropertyChange( GRID_SIZE_PROPERTY, oldGridSize,
+	                      document.getGridSize() );
+	}
+	
+	/**
+	 * Edits an image that was read elsewhere, like one recovered from the
+	 * journal.
+	 * 
+	 * @param image the image to edit
+	 */
+	public void openDocument( Document image ) {
+	  setDocument( image );
+	}
+	
+	/**
+	 * Writes every edit from now on to a journal, starting with a checkpoint
+	 * of the image as it is.
+	 * 
+	 * @param journal the journal, or null to stop writing to one
+	 */
+	public void setJournal( Journal journal ) {
+	  this.journal = journal;
+	  document.setJournal( journal );
+	}
+	
+	/**
+	 * The image being edited, which should only be changed through the
+	 * editor so it knows to paint it again
+	 * 
+	 * @return the document
+	 */
+	public Document getDocument() {
+	  return document;
+	}
+	
+	/**
+	 * The layers of the image, which should only be changed through the
+	 * editor so it knows to paint them again
+	 * 
+	 * @return the layer stack
+	 */
+	public LayerStack getLayers() {
+	  return document.getLayers();
+	}
+	
+	/**
+	 * Chooses the layer to draw on.
+	 * 
+	 * @param index the index of the layer, from the bottom
+	 */
+	public void selectLayer( int index ) {
+	  document.selectLayer( index );
+	  layersChanged( false );
+	}
+	
+	/**
+	 * Adds a transparent layer over the one being drawn on, and draws on it
+	 * instead.
+	 */
+	public void addLayer() {
+	  document.addLayer();
+	  layersChanged( false );
+	}
+	
+	/**
+	 * Removes the layer being drawn on, unless it is the only one. Since the
+	 * history may have edits on it, the history is forgotten.
+	 */
+	public void removeLayer() {
+	  if( document.removeLayer() ) {
+	    layersChanged( true );
+	  }
+	}
+	
+	/**
+	 * Moves the layer being drawn on up or down the stack.
+	 * 
+	 * @param steps how many places to move it, up if positive
+	 */
+	public void moveLayer( int steps ) {
+	  if( document.moveLayer( steps ) ) {
+	    layersChanged( true );
+	  }
+	}
+	
+	/**
+	 * Changes the settings of a layer.
+	 * 
+	 * @param index the index of the layer, from the bottom
+	 * @param name the name of the layer
+	 * @param visible whether the layer is drawn
+	 * @param opacity the opacity of the layer, from 0 to 255
+	 * @param mode how the layer is blended over the ones under it
+	 */
+	public void setLayerOptions( int index, String name, boolean visible,
+	                             int opacity, BlendMode mode ) {
+	  document.setLayerOptions( index, name, visible, opacity, mode );
+	  layersChanged( true );
+	}
+	
+	/**
+	 * Chooses the frame to draw on.
+	 * 
+	 * @param index the index of the frame, from the first
+	 */
+	public void selectFrame( int index ) {
+	  stop();
+	  document.selectFrame( index );
+	  framesChanged();
+	}
+	
+	/**
+	 * Adds a copy of the frame being drawn on after it, and draws on the
+	 * copy instead.
+	 */
+	public void addFrame() {
+	  stop();
+	  document.addFrame();
+	  framesChanged();
+	}
+	
+	/**
+	 * Removes the frame being drawn on, unless it is the only one. Since the
+	 * history may have edits on it, the history is forgotten.
+	 */
+	public void removeFrame() {
+	  stop();
+	  if( document.removeFrame() ) {
+	    frameCache.clear();
+	    framesChanged();
+	  }
+	}
+	
+	/**
+	 * Moves the frame being drawn on earlier or later in the animation.
+	 * 
+	 * @param steps how many places to move it, later if positive
+	 */
+	public void moveFrame( int steps ) {
+	  stop();
+	  if( document.moveFrame( steps ) ) {
+	    framesChanged();
+	  }
+	}
+	
+	/**
+	 * Sets how fast the frames are played back.
+	 * 
+	 * @param fps the frames per second
+	 */
+	public void setFramesPerSecond( int fps ) {
+	  document.setFramesPerSecond( fps );
+	  playTimer.setDelay( 1000 / document.getFramesPerSecond() );
+	}
+	
+	/**
+	 * Sets whether the frames before and after the one being drawn on are
+	 * shown faintly over it
+	 * 
+	 * @param selected whether onion skins are shown
+	 */
+	public void showOnionSkin( boolean selected ) {
+	  onionSkin = selected;
+	  repaint();
+	}
+	
+	/**
+	 * Plays the frames back in a loop, from the one being drawn on. Every
+	 * frame is flattened first, so they are shown at the full frame rate.
+	 */
+	public void play() {
+	  if( isPlaying() || document.getFrameCount() < 2 ) {
+	    return;
+	  }
+	  if( editInProgress ) {
+	    endEdit();
+	  }
+	  frameCache.prepare( document.getFrames() );
+	  playFrame = document.getFrameIndex();
+	  playTimer.setDelay( 1000 / document.getFramesPerSecond() );
+	  playTimer.start();
+	  firePropertyChange( PLAYING_PROPERTY, false, true );
+	}
+	
+	/**
+	 * Stops playing the frames back, showing the one being drawn on again.
+	 */
+	public void stop() {
+	  if( isPlaying() ) {
+	    playTimer.stop();
+	    frameCache.unpin();
+	    repaint();
+	    firePropertyChange( PLAYING_PROPERTY, true, false );
+	  }
+	}
+	
+	/**
+	 * If the frames are being played back
+	 * 
+	 * @return whether playback is running
+	 */
+	public boolean isPlaying() {
+	  return playTimer.isRunning();
+	}
+	
+	/*
+	 * lets everyone know another frame is shown, which has its own layers
+	 */
+	private void framesChanged() {
+	  damageAll();
+	  firePropertyChange( LAYERS_PROPERTY, null, document.getLayers() );
+	  firePropertyChange( FRAMES_PROPERTY, null, document.getFrameIndex() );
+	}
+	
+	/*
+	 * lets everyone know the layers changed
+	 */
+	private void layersChanged( boolean repaint ) {
+	  if( repaint ) {
+	    damageAll();
+	  }
+	  firePropertyChange( LAYERS_PROPERTY, null, document.getLayers() );
+	}
+	
+	/*
+	 * sizes the panel to the image as drawn at the current zoom
+	 */
+	private void updateSize() {
+	  Dimension size = new Dimension( document.getWidth() * zoom,
+	                                  document.getHeight() * zoom );
+	  setPreferredSize( size );
+	  setSize( size );
+	  revalidate();
+	}
+	
+	/**
+	 * How many screen pixels wide each image pixel is drawn
+	 * 
+	 * @return the zoom factor
+	 */
+	public int getZoom() {
+	  return zoom;
+	}
+	
+	/**
+	 * Draws the image one zoom level closer, keeping the middle of the view
+	 * where it is.
+	 */
+	public void zoomIn() {
+	  setZoom( nextZoom( 1 ), getViewCenter() );
+	}
+	
+	/**
+	 * Draws the image one zoom level further, keeping the middle of the view
+	 * where it is.
+	 */
+	public void zoomOut() {
+	  setZoom( nextZoom( -1 ), getViewCenter() );
+	}
+	
+	/**
+	 * Draws the image at its actual size, one screen pixel per image pixel.
+	 */
+	public void resetZoom() {
+	  setZoom( 1, getViewCenter() );
+	}
+	
+	/*
+	 * the zoom level the given number of steps away from the current one
+	 */
+	private int nextZoom( int steps ) {
+	  int level = 0;
+	  while( level < ZOOM_LEVELS.length - 1 && ZOOM_LEVELS[level] < zoom ) {
+	    level++;
+	  }
+	  level = Math.max( 0, Math.min( level + steps, ZOOM_LEVELS.length - 1 ) );
+	  return ZOOM_LEVELS[level];
+	}
+	
+	/*
+	 * changes the zoom, scrolling so the image pixel under the anchor stays
+	 * under it
+	 */
+	private void setZoom( int newZoom, Point anchor ) {
+	  if( newZoom == zoom ) {
+	    return;
+	  }
+	  JViewport viewport = getViewport();
+	  Point view = viewport == null ? new Point()
+	                                : viewport.getViewPosition();
+	  
+	  //the image pixel under the anchor, and the anchor's place in the view
+	  double ix = anchor.x / (double) zoom;
+	  double iy = anchor.y / (double) zoom;
+	  int offsetX = anchor.x - view.x;
+	  int offsetY = anchor.y - view.y;
+	  
+	  zoom = newZoom;
+	  gridOverlay.setCellSize( document.getGridSize() * zoom );
+	  updateSize();
+	  if( viewport != null ) {
+	    scrollTo( (int) ( ix * zoom ) - offsetX, (int) ( iy * zoom ) - offsetY );
+	  }
+	  repaint();
+	}
+	
+	/*
+	 * the point in the middle of what's visible, in panel coords
+	 */
+	private Point getViewCenter() {
+	  Rectangle visible = getVisibleRect();
+	  return new Point( visible.x + visible.width / 2,
+	                    visible.y + visible.height / 2 );
+	}
+	
+	/*
+	 * the viewport we're scrolled in, if any
+	 */
+	private JViewport getViewport() {
+	  if( getParent() instanceof JViewport ) {
+	    return (JViewport) getParent();
+	  }
+	  return null;
+	}
+	
+	/*
+	 * moves the view so its top-left corner is at the given point, as far as
+	 * the panel goes
+	 */
+	private void scrollTo( int x, int y ) {
+	  JViewport viewport = getViewport();
+	  Dimension extent = viewport.getExtentSize();
+	  x = Math.max( 0, Math.min( x, getWidth() - extent.width ) );
+	  y = Math.max( 0, Math.min( y, getHeight() - extent.height ) );
+	  viewport.setViewPosition( new Point( x, y ) );
 	}
 	
 	/**
@@ -79,7 +601,16 @@ public class EditorPanel extends JPanel
 	 * @return whether the image has been saved
 	 */
 	public boolean isSaved() {
-	  return saved;
+	  return document.isSaved();
+	}
+	
+	/**
+	 * If an image is still being written in the background.
+	 * 
+	 * @return whether a save is in progress
+	 */
+	public boolean isSaving() {
+	  return savesInProgress > 0;
 	}
 	
 	/**
@@ -88,15 +619,9 @@ public class EditorPanel extends JPanel
 	 * @return if the undo was successful
 	 */
 	public boolean undo() {
-	  if( historyPtr > 0 ) {
-	    historyPtr--;
-	    Graphics g = image.getGraphics();
-	    g.drawImage( history.get( historyPtr ), 0, 0, null );
-      repaint();
-      saved = false;
-	    return true;
-	  }
-	  return false;
+	  int frame = document.getFrameIndex();
+	  Rectangle restored = document.undo();
+	  return restored( restored, frame );
 	}
 	
 	/**
@@ -105,30 +630,66 @@ public class EditorPanel extends JPanel
 	 * @return if the redo was successful
 	 */
 	public boolean redo() {
-	  if( historyPtr < history.size() - 1 ) {
-      historyPtr++;
-      Graphics g = image.getGraphics();
-      g.drawImage( history.get( historyPtr ), 0, 0, null );
-      repaint();
-      saved = false;
-      return true;
-    }
-    return false;
-	}
-	
-	private void pushToHistory() {
-	  BufferedImage frame = new BufferedImage( SIZE,
-	                                           SIZE,
-	                                           BufferedImage.TYPE_INT_ARGB );
-	  Graphics g = frame.getGraphics();
-	  g.drawImage( image, 0, 0, null );
-	  g.dispose();
-    while( history.size() > historyPtr + 1) {
-      history.remove( history.size() - 1 );
-    }
-    historyPtr++;
-    history.add( historyPtr, frame );
-	  saved = false;
+	  int frame = document.getFrameIndex();
+	  Rectangle restored = document.redo();
+	  return restored( restored, frame );
+	}
+	
+	/*
+	 * paints an undo or redo, which may have gone to another frame
+	 */
+	private boolean restored( Rectangle restored, int frame ) {
+	  if( document.getFrameIndex() != frame ) {
+	    stop();
+	    framesChanged();
+	  }
+	  if( restored != null ) {
+	    damage( restored );
+	    return true;
+	  }
+	  return false;
+	}
+	
+	/**
+	 * Sets how much memory the undo history may use. The oldest edits are
+	 * forgotten first once it runs out.
+	 * 
+	 * @param bytes the most bytes the history may use
+	 */
+	public void setHistoryBudget( long bytes ) {
+	  document.setHistoryBudget( bytes );
+	}
+	
+	/*
+	 * marks a region of the image as changed. Regions changed before the next
+	 * repaint are merged, and only their union is painted again.
+	 */
+	private void damage( int x, int y, int w, int h ) {
+	  if( damage == null ) {
+	    damage = new Rectangle( x, y, w, h );
+	    
+	    //wait until the events already queued have had their say
+	    SwingUtilities.invokeLater( new Runnable() {
+	      public void run() {
+	        repaint( damage.x * zoom, damage.y * zoom,
+	                 damage.width * zoom, damage.height * zoom );
+	        damage = null;
+	      }
+	    } );
+	  } else {
+	    damage.add( new Rectangle( x, y, w, h ) );
+	  }
+	}
+	
+	private void damage( Rectangle r ) {
+	  damage( r.x, r.y, r.width, r.height );
+	}
+	
+	/*
+	 * marks the whole image as changed
+	 */
+	private void damageAll() {
+	  damage( 0, 0, document.getWidth(), document.getHeight() );
 	}
 	
 	/**
@@ -147,106 +708,149 @@ public class EditorPanel extends JPanel
 	 */
 	protected void drawOnCanvas( MouseEvent e ) {
 		
-		//make a graphics object for the buffered image
-		Graphics tg = image.createGraphics();
-		
-		//set its color to the current color
-		tg.setColor(currentColor);
-		
-		/*
-		 * since we're coloring pixels larger than the actual pixels,
-		 * we have to calculate the top-left most corner of each region
-		 * (a fix for the several jpanels)
-		 */
-		
-		//lets first call xi and yi the actual coordinates
-		int xi = e.getX();
-		int yi = e.getY();
-		
-		/*
-		 * perform (coordinate mod gridSize), which is the distance from the
-		 * leftmost edge (dx) and topmost edge (dy)
-		 */
-		int dx = xi % gridSize;
-		int dy = yi % gridSize;
-		
-		/*
-		 * now we take the differences, and we get the coordinate of the
-		 * top-left most corner!
-		 */
-		int xf = xi - dx;
-		int yf = yi - dy;
+		//lets first call xi and yi the coordinates in the image
+		int xi = Math.floorDiv( e.getX(), zoom );
+		int yi = Math.floorDiv( e.getY(), zoom );
 
-		//if we're in fill mode, do a fill, otherwise draw a pixel
-		if( fill )
-			flood( xi, yi, tg );
-		else
-			drawDot( xf, yf, tg );
-		
-		//always repaint the image afterwards
-		tg.dispose();
-		repaint();
+		//if we're in fill mode, do a fill, otherwise add to the stroke
+		if( fill ) {
+			flood( xi, yi );
+		}
+		else {
+		  
+		  /*
+		   * since we're coloring pixels larger than the actual pixels,
+		   * the stroke works with the grid cells the mouse is in
+		   */
+		  int gridSize = document.getGridSize();
+		  int cx = Math.floorDiv( xi, gridSize );
+		  int cy = Math.floorDiv( yi, gridSize );
+		  if( shapeStart != null ) {
+		    dragShape( cx, cy );
+		    return;
+		  }
+		  stroke.addSample( cx, cy );
+		  
+		  //the samples are painted together, once per frame
+		  if( !strokeTimer.isRunning() ) {
+		    strokeTimer.start();
+		  }
+		}
 	}
 	
-	/**
-   * A quick method for single-pixel editing
-   * 
-   * @param x the x-coord of the pixel
-   * @param y the y-coord of the pixel
-   * @param tg the graphics on which to draw
-   */
-  private void drawDot( int x, int y, Graphics tg ) {
-    tg.fillRect( x, y, gridSize, gridSize );
-  }
+	/*
+	 * traces the shape being dragged out to another cell. Only its runs
+	 * change here; the image of it is drawn when it is next painted
+	 */
+	private void dragShape( int cx, int cy ) {
+	  shapeRuns.clear();
+	  shapeTool.trace( shapeStart.x, shapeStart.y, cx, cy, shapeRuns );
+	  Rectangle old = shapeBounds;
+	  int cell = document.getGridSize();
+	  Rectangle cells = shapeRuns.getBounds();
+	  shapeBounds = new Rectangle( cells.x * cell, cells.y * cell,
+	                               cells.width * cell, cells.height * cell )
+	      .intersection( new Rectangle( document.getWidth(),
+	                                    document.getHeight() ) );
+	  if( shapeBounds.isEmpty() ) {
+	    shapeBounds = null;
+	  }
+	  shapeChanged = true;
+	  if( old != null ) {
+	    damage( old );
+	  }
+	  if( shapeBounds != null ) {
+	    damage( shapeBounds );
+	  }
+	}
+	
+	/*
+	 * paints the shape that was being dragged onto the canvas, run by run,
+	 * keeping to the selection
+	 */
+	private void commitShape() {
+	  int cell = document.getGridSize();
+	  TiledCanvas canvas = document.getCanvas();
+	  History history = document.getHistory();
+	  SelectionMask mask = document.getSelection();
+	  for( int i = 0; i < shapeRuns.size(); i++ ) {
+	    int x = shapeRuns.getStart( i ) * cell;
+	    int y = shapeRuns.getY( i ) * cell;
+	    int w = ( shapeRuns.getEnd( i ) - shapeRuns.getStart( i ) ) * cell;
+	    if( mask == null ) {
+	      history.touch( x, y, w, cell );
+	      canvas.paintRect( x, y, w, cell, shapeColor );
+	    } else {
+	      mask.paintRect( canvas, history, x, y, w, cell, shapeColor );
+	    }
+	  }
+	  if( shapeBounds != null ) {
+	    damage( shapeBounds );
+	  }
+	  shapeStart = null;
+	  shapeBounds = null;
+	  shapeImage = null;
+	  shapeRuns.clear();
+	}
+	
+	/*
+	 * paints the positions the stroke has gathered so far
+	 */
+	private void flushStroke() {
+	  if( stroke.isActive() ) {
+	    Rectangle painted = stroke.flush();
+	    if( painted != null ) {
+	      damage( painted );
+	    }
+	  }
+	}
+	
+	/*
+	 * finishes whatever edit is in progress, and records it in the history
+	 */
+	private void endEdit() {
+	  editInProgress = false;
+	  strokeTimer.stop();
+	  if( stroke.isActive() ) {
+	    Rectangle painted = stroke.end();
+	    if( painted != null ) {
+	      damage( painted );
+	    }
+	  }
+	  if( shapeStart != null ) {
+	    commitShape();
+	  }
+	  document.commit();
+	}
 
 	/**
-	 * Fill the contiguous space with a color
+	 * Fill the contiguous grid cells with the current color
 	 * 
 	 * @param x The x-coord from which to start filling
 	 * @param y The y-coord from which to start filling
-	 * @param tg The graphics object on which to draw
 	 */
-	private void flood( int x, int y, Graphics tg ) {
-	  
-		//save the color in the grid box we're gonna overwrite
-		int target = image.getRGB( x, y );
-		int replacement = tg.getColor().getRGB();
-		
-		Stack< Point > points = new Stack<>();
-    points.push( new Point( x, y ) );
-    
-    while( !points.isEmpty() ) {
-      
-      Point currentPoint = points.pop();
-      int xi = currentPoint.x;
-      int yi = currentPoint.y;
-      
-      if( xi < 0 || yi < 0 || xi >= SIZE || yi >= SIZE ) {
-        continue;
-      }
-      
-      int current = image.getRGB( xi, yi );
-      
-      if( current == target && current != replacement ) {
-        tg.fillRect( xi, yi, 1, 1 );
-        points.push( new Point( xi + 1, yi ) );
-        points.push( new Point( xi - 1, yi ) );
-        points.push( new Point( xi, yi + 1 ) );
-        points.push( new Point( xi, yi - 1 ) );
-      }
-    }
+	private void flood( int x, int y ) {
+	  Rectangle filled = document.fill( x, y, currentColor.getRGB() );
+	  if( filled != null ) {
+	    damage( filled );
+	  }
 	}
 	
   /**
-	 * Clears the canvas to all opaque white.
+	 * Clears the layer being drawn on, to opaque white if it is the bottom
+	 * layer, or to transparent otherwise.
 	 */
 	public void clearCanvas() {
-		Graphics g = image.getGraphics();
-		g.setColor( Color.WHITE );
-		g.fillRect( 0, 0, SIZE, SIZE );
-		g.dispose();
-		pushToHistory();
-		repaint();
+	  damage( document.clear() );
+	}
+	
+	/**
+	 * The settings images are saved as PNG with, which may be changed
+	 * 
+	 * @return the PNG encoder
+	 */
+	public PngEncoder getPngEncoder() {
+	  return pngEncoder;
 	}
 	
 	/**
@@ -256,30 +860,147 @@ public class EditorPanel extends JPanel
 	 * @throws Any IOException thrown by the write process
 	 */
 	public void saveImage( File f ) throws IOException {
-		ImageIO.write( image, "PNG", f );
-		saved = true;
+	  document.writeImage( f, pngEncoder );
+	}
+	
+	/**
+	 * Starts saving the image to the given file in PNG format, without
+	 * waiting for it to be written. The image is saved as it is now, even if
+	 * it is edited while the save goes on, and it only counts as saved once
+	 * the file is safely on disk and nothing was edited since, and only if
+	 * the image is a single frame of a single layer, which the file holds all
+	 * of.
+	 * 
+	 * @param f The file in which to save the image
+	 * @return the running save, which reports its progress and any error
+	 */
+	public ImageSaver saveImageInBackground( File f ) {
+	  final Document saving = document;
+	  final long version = saving.getModifications();
+	  LayerImage image = new LayerImage( saving.getLayers().snapshot() );
+	  ImageSaver saver = new ImageSaver( image, f, pngEncoder ) {
+	    @Override
+	    protected void done() {
+	      savesInProgress--;
+	      if( !isCancelled() ) {
+	        try {
+	          get();
+	          saving.markSaved( version );
+	        } catch( InterruptedException | ExecutionException e ) {
+	        }
+	      }
+	    }
+	  };
+	  savesInProgress++;
+	  saveExecutor.execute( saver );
+	  return saver;
+	}
+	
+	/**
+	 * Starts exporting every frame to the given file as an animation, a GIF
+	 * if its name ends in .gif and an animated PNG otherwise, without waiting
+	 * for it to be written. The frames are exported as they are now, and
+	 * flattened one at a time as they are written.
+	 * 
+	 * @param f The file in which to save the animation
+	 * @return the running export, which reports its progress and any error
+	 */
+	public ImageSaver exportAnimationInBackground( File f ) {
+	  final List< LayerStack > frames = new ArrayList< LayerStack >();
+	  for( LayerStack frame : document.getFrames() ) {
+	    frames.add( frame.snapshot() );
+	  }
+	  final int framesPerSecond = document.getFramesPerSecond();
+	  final boolean gif = f.getName().toLowerCase().endsWith( ".gif" );
+	  final PngEncoder settings = new PngEncoder( pngEncoder );
+	  ImageSaver saver = new ImageSaver( f ) {
+	    @Override
+	    protected void write( FileOutputStream out ) throws IOException {
+	      AnimationEncoder encoder = gif
+	          ? new GifEncoder() {
+	              @Override
+	              protected void progress( int percent ) {
+	                setProgress( percent );
+	              }
+	            }
+	          : new ApngEncoder( settings ) {
+	              @Override
+	              protected void progress( int percent ) {
+	                setProgress( percent );
+	              }
+	            };
+	      encoder.write( frames, framesPerSecond, out.getChannel() );
+	    }
+
+	    @Override
+	    protected void done() {
+	      savesInProgress--;
+	    }
+	  };
+	  savesInProgress++;
+	  saveExecutor.execute( saver );
+	  return saver;
+	}
+	
+	/**
+	 * The project file the image was last saved to or opened from
+	 * 
+	 * @return the project file, or null if there is none
+	 */
+	public File getProjectFile() {
+	  return document.getProjectFile();
+	}
+	
+	/**
+	 * Saves the layers, grid size and history to a project file. Saving to
+	 * the same file again only writes what changed since.
+	 * 
+	 * @param f The file in which to save the project
+	 * @throws IOException Any IOException thrown by the write process
+	 */
+	public void saveProject( File f ) throws IOException {
+	  document.saveProject( f );
+	}
+	
+	/**
+	 * Opens a project file, replacing the layers, grid size and history.
+	 * 
+	 * @param f The file from which to open the project
+	 * @throws IOException Any IOException thrown by the read process
+	 */
+	public void loadProject( File f ) throws IOException {
+	  setDocument( Document.openProject( f ) );
 	}
 	
 	/**
-	 * Loads an image from the given file in PNG format
+	 * Loads an image from the given file in PNG format. Only the size of the
+	 * image is read right away, to ask how it should fit; the pixels are read
+	 * in the background and replace the canvas once they are all read.
 	 * 
 	 * @param f The file from which to load the image
 	 * @param parentComponent needed to display warning message
+	 * @return the running load, which reports its progress and any error, or
+	 *         null if the user cancelled
 	 * 
-	 * @throws any IOException thrown by the read process
+	 * @throws any IOException thrown while reading the size of the image
 	 */
-	public void loadImage( File f, Component parentComponent )
+	public ImageLoader loadImage( File f, Component parentComponent )
 	    throws IOException {
 	  
-	  Image loaded = ImageIO.read( f );
+	  Dimension size = ImageLoader.readSize( f );
 	  Object option;
 	  int confirmation;
 	  double scale;
 	  
-	  int srcWidth = loaded.getWidth( null );
-	  int srcHeight = loaded.getHeight( null );
+	  int width = document.getWidth();
+	  int height = document.getHeight();
+	  int srcWidth = size.width;
+	  int srcHeight = size.height;
+	  int imageWidth = srcWidth;
+	  int imageHeight = srcHeight;
+	  boolean resize = false;
 	  
-	  if( srcWidth > SIZE || srcHeight > SIZE ) {
+	  if( srcWidth > width || srcHeight > height ) {
 	    
 	    option = JOptionPane.showOptionDialog( parentComponent,
 	                                           RESIZE_DIAG,
@@ -292,29 +1013,28 @@ public class EditorPanel extends JPanel
 	    
 	    //if we are fitting the image
 	    if( option == OPTION_FIT ) {
-	      
-	      if( srcWidth > srcHeight ) {
-	        scale = SIZE / srcWidth;
-	      }
-	      else {
-	        scale = SIZE / srcHeight;
-	      }
-	      
-	      loaded = loaded.getScaledInstance( (int)( scale * srcWidth ),
-                                           (int)( scale * srcHeight ),
-                                           Image.SCALE_REPLICATE );
+	      scale = Math.min( (double) width / srcWidth,
+	                        (double) height / srcHeight );
+	      imageWidth = Math.max( 1, (int)( scale * srcWidth ) );
+	      imageHeight = Math.max( 1, (int)( scale * srcHeight ) );
 	    }
 	    
 	    //if we're squishing the image
 	    else if( option == OPTION_STRETCH ) {
-	      loaded = loaded.getScaledInstance( SIZE,
-	                                         SIZE,
-	                                         Image.SCALE_REPLICATE );
+	      imageWidth = width;
+	      imageHeight = height;
+	    }
+	    
+	    //if we're making the canvas fit the image instead
+	    else if( option == OPTION_RESIZE ) {
+	      resize = true;
+	      width = srcWidth;
+	      height = srcHeight;
 	    }
 	    
 	    //all else, like exit or cancel
 	    else {
-	      return;
+	      return null;
 	    }
 	  }
 	  
@@ -323,14 +1043,41 @@ public class EditorPanel extends JPanel
 	                                          "Confirm",
 	                                          JOptionPane.YES_NO_OPTION );
 	  
-	  if( confirmation == JOptionPane.YES_OPTION ) {
-	    Graphics g = image.getGraphics();
-	    g.setColor( Color.WHITE );
-	    g.drawRect( 0, 0, SIZE, SIZE );
-	    g.drawImage( loaded, 0, 0, null );
-	    g.dispose();
-	    pushToHistory();
-	    repaint();
+	  if( confirmation != JOptionPane.YES_OPTION ) {
+	    return null;
+	  }
+	  
+	  final boolean replace = resize;
+	  int background = resize ? Color.WHITE.getRGB()
+	                          : document.getClearColor();
+	  ImageLoader loader = new ImageLoader( f, width, height, imageWidth,
+	                                        imageHeight, background ) {
+	    @Override
+	    protected void done() {
+	      if( isCancelled() ) {
+	        return;
+	      }
+	      try {
+	        imageLoaded( get(), replace );
+	      } catch( InterruptedException | ExecutionException e ) {
+	      }
+	    }
+	  };
+	  loader.execute();
+	  return loader;
+	}
+	
+	/*
+	 * puts a loaded image on the canvas, or makes it the whole image
+	 */
+	private void imageLoaded( TiledCanvas loaded, boolean replace ) {
+	  if( replace ) {
+	    Document image = new Document( loaded );
+	    image.setGridSize( document.getGridSize() );
+	    image.markModified();
+	    setDocument( image );
+	  } else {
+	    damage( document.replaceCanvas( loaded ) );
 	  }
 	}
 
@@ -345,26 +1092,278 @@ public class EditorPanel extends JPanel
 		//always call the superclass's method
 		super.paintComponent(g);
 		
-		//draw the buffered image
-		g.drawImage( image, 0, 0, this );
+		//find the part of the panel that needs painting
+		Rectangle area = g.getClipBounds();
+		if( area == null ) {
+		  area = new Rectangle( getWidth(), getHeight() );
+		}
+		area = area.intersection( new Rectangle( document.getWidth() * zoom,
+		                                         document.getHeight() * zoom ) );
 		
-		//this is my grid color, RGBA(50, 50, 150, 30)
-		g.setColor( GRID_COLOR );
+		/*
+		 * only the image pixels under that part are copied out, and then
+		 * blown up to the zoom as they're drawn, so painting costs the same
+		 * however large the image is
+		 */
+		if( !area.isEmpty() ) {
+		  int x0 = area.x / zoom;
+		  int y0 = area.y / zoom;
+		  int x1 = ( area.x + area.width + zoom - 1 ) / zoom;
+		  int y1 = ( area.y + area.height + zoom - 1 ) / zoom;
+		  int w = x1 - x0;
+		  int h = y1 - y0;
+		  
+		  if( isPlaying() ) {
+		    drawFrame( g, playFrame, x0, y0, x1, y1 );
+		  } else {
+		    BufferedImage buffer = getRenderBuffer( w, h );
+		    document.getLayers().composite( x0, y0, w, h,
+		                                    getPixels( buffer ),
+		                                    0, buffer.getWidth() );
+		    g.drawImage( buffer,
+		                 x0 * zoom, y0 * zoom,
+		                 x1 * zoom, y1 * zoom,
+		                 0, 0,
+		                 w, h,
+		                 null );
+		    if( onionSkin ) {
+		      paintOnionSkins( g, x0, y0, x1, y1 );
+		    }
+		    if( shapeBounds != null ) {
+		      paintShape( g );
+		    }
+		  }
+		}
 		
 		/*
-		 * if we want to show the grid, it's faster to draw
-		 * all the vertical lines and then all the horizontal lines,
-		 * and only if the grid size is greater than 1
+		 * if we want to show the grid, it's faster to copy the part over
+		 * the area being painted from a grid that's already drawn, and only
+		 * if the grid size is greater than 1
 		 */
-		if( showGrid && gridSize > 1 ) {
-		  for( int x = 0; x < SIZE; x += gridSize ) {
-				g.drawLine( x, 0, x, SIZE );
-			}
-			
-			for( int y = 0; y < SIZE; y += gridSize ) {
-				g.drawLine( 0, y, SIZE, y );
-			}
+		if( showGrid ) {
+		  gridOverlay.paint( g, area, getVisibleRect() );
 		}
+		
+		//the selection is outlined over everything else
+		if( !area.isEmpty() && !isPlaying() ) {
+		  SelectionMask mask = document.getSelection();
+		  if( mask != null ) {
+		    paintSelection( g, mask, area.y / zoom,
+		                    ( area.y + area.height + zoom - 1 ) / zoom );
+		  }
+		  if( lasso != null ) {
+		    paintLasso( g );
+		  }
+		}
+	}
+	
+	/*
+	 * outlines the selected pixels in the rows being painted, as black and
+	 * white dashes so the outline shows over any color. A run has a side at
+	 * each end, and a row has an edge along the top wherever either it or the
+	 * row above is selected but not both, so only the runs of those rows are
+	 * looked at
+	 */
+	private void paintSelection( Graphics g, SelectionMask mask,
+	                             int y0, int y1 ) {
+	  Rectangle b = mask.getBounds();
+	  int top = Math.max( y0, b.y );
+	  int bottom = Math.min( y1, b.y + b.height );
+	  Path2D.Float outline = new Path2D.Float();
+	  int[] edges = new int[16];
+	  for( int y = top; y <= bottom; y++ ) {
+	    int count = 0;
+	    for( int row = y - 1; row <= y; row++ ) {
+	      if( row < 0 || row >= mask.getHeight() ) {
+	        continue;
+	      }
+	      int runs = mask.getRunCount( row );
+	      if( count + 2 * runs > edges.length ) {
+	        edges = Arrays.copyOf( edges, 2 * ( count + 2 * runs ) );
+	      }
+	      for( int i = 0; i < runs; i++ ) {
+	        int start = mask.getRunStart( row, i );
+	        int end = mask.getRunEnd( row, i );
+	        edges[count++] = start;
+	        edges[count++] = end;
+	        if( row == y && y < bottom ) {
+	          addLine( outline, start, y, start, y + 1 );
+	          addLine( outline, end, y, end, y + 1 );
+	        }
+	      }
+	    }
+	    
+	    //the edge is on between every other pair of ends, in order
+	    Arrays.sort( edges, 0, count );
+	    for( int i = 0; i < count; i += 2 ) {
+	      if( edges[i] < edges[i + 1] ) {
+	        addLine( outline, edges[i], y, edges[i + 1], y );
+	      }
+	    }
+	  }
+	  
+	  Graphics2D g2 = (Graphics2D) g.create();
+	  g2.setColor( Color.BLACK );
+	  g2.draw( outline );
+	  g2.setColor( Color.WHITE );
+	  g2.setStroke( SELECTION_DASHES );
+	  g2.draw( outline );
+	  g2.dispose();
+	}
+	
+	/*
+	 * adds a line between two pixel corners, at the zoom
+	 */
+	private void addLine( Path2D.Float path, int x0, int y0, int x1, int y1 ) {
+	  path.moveTo( x0 * zoom, y0 * zoom );
+	  path.lineTo( x1 * zoom, y1 * zoom );
+	}
+	
+	/*
+	 * draws the outline of the lasso being dragged, which isn't closed yet
+	 */
+	private void paintLasso( Graphics g ) {
+	  int[] xs = new int[lasso.npoints];
+	  int[] ys = new int[lasso.npoints];
+	  for( int i = 0; i < lasso.npoints; i++ ) {
+	    xs[i] = lasso.xpoints[i] * zoom;
+	    ys[i] = lasso.ypoints[i] * zoom;
+	  }
+	  Graphics2D g2 = (Graphics2D) g.create();
+	  g2.setColor( Color.BLACK );
+	  g2.drawPolyline( xs, ys, lasso.npoints );
+	  g2.setColor( Color.WHITE );
+	  g2.setStroke( SELECTION_DASHES );
+	  g2.drawPolyline( xs, ys, lasso.npoints );
+	  g2.dispose();
+	}
+	
+	/*
+	 * draws the shape being dragged over the image. It isn't on the canvas
+	 * until it is let go, so it is shown over every layer, and only its own
+	 * region is drawn, however large the image is
+	 */
+	private void paintShape( Graphics g ) {
+	  Rectangle b = shapeBounds;
+	  if( shapeChanged ) {
+	    drawShape();
+	    shapeChanged = false;
+	  }
+	  g.drawImage( shapeImage,
+	               b.x * zoom, b.y * zoom,
+	               ( b.x + b.width ) * zoom, ( b.y + b.height ) * zoom,
+	               0, 0,
+	               b.width, b.height,
+	               null );
+	}
+	
+	/*
+	 * draws the runs of the shape into its image, clipped to its region and
+	 * to the selection, as it will be when it is let go
+	 */
+	private void drawShape() {
+	  Rectangle b = shapeBounds;
+	  if( shapeImage == null
+	      || shapeImage.getWidth() < b.width
+	      || shapeImage.getHeight() < b.height ) {
+	    int w = shapeImage == null ? b.width
+	                               : Math.max( b.width, shapeImage.getWidth() );
+	    int h = shapeImage == null ? b.height
+	                               : Math.max( b.height,
+	                                           shapeImage.getHeight() );
+	    shapeImage = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+	  }
+	  int[] pixels = getPixels( shapeImage );
+	  int stride = shapeImage.getWidth();
+	  for( int y = 0; y < b.height; y++ ) {
+	    Arrays.fill( pixels, y * stride, y * stride + b.width, 0 );
+	  }
+	  
+	  SelectionMask mask = document.getSelection();
+	  int cell = document.getGridSize();
+	  for( int i = 0; i < shapeRuns.size(); i++ ) {
+	    int x0 = Math.max( shapeRuns.getStart( i ) * cell, b.x ) - b.x;
+	    int x1 = Math.min( shapeRuns.getEnd( i ) * cell, b.x + b.width ) - b.x;
+	    int y0 = Math.max( shapeRuns.getY( i ) * cell, b.y ) - b.y;
+	    int y1 = Math.min( ( shapeRuns.getY( i ) + 1 ) * cell,
+	                       b.y + b.height ) - b.y;
+	    for( int y = y0; x0 < x1 && y < y1; y++ ) {
+	      if( mask == null ) {
+	        Arrays.fill( pixels, y * stride + x0, y * stride + x1,
+	                     shapeColor );
+	        continue;
+	      }
+	      int row = b.y + y;
+	      int runs = mask.getRunCount( row );
+	      for( int r = mask.firstRunAfter( row, b.x + x0 ); r < runs; r++ ) {
+	        int start = Math.max( mask.getRunStart( row, r ) - b.x, x0 );
+	        int end = Math.min( mask.getRunEnd( row, r ) - b.x, x1 );
+	        if( start >= x1 ) {
+	          break;
+	        }
+	        Arrays.fill( pixels, y * stride + start, y * stride + end,
+	                     shapeColor );
+	      }
+	    }
+	  }
+	}
+	
+	/*
+	 * draws the frames on either side of the one being edited faintly over
+	 * it, from their flattened images
+	 */
+	private void paintOnionSkins( Graphics g, int x0, int y0,
+	                              int x1, int y1 ) {
+	  Graphics2D faint = (Graphics2D) g.create();
+	  faint.setComposite( AlphaComposite.getInstance(
+	      AlphaComposite.SRC_OVER, ONION_SKIN_OPACITY ) );
+	  int frame = document.getFrameIndex();
+	  if( frame > 0 ) {
+	    drawFrame( faint, frame - 1, x0, y0, x1, y1 );
+	  }
+	  if( frame < document.getFrameCount() - 1 ) {
+	    drawFrame( faint, frame + 1, x0, y0, x1, y1 );
+	  }
+	  faint.dispose();
+	}
+	
+	/*
+	 * draws a region of a frame from its flattened image
+	 */
+	private void drawFrame( Graphics g, int frame, int x0, int y0,
+	                        int x1, int y1 ) {
+	  g.drawImage( frameCache.get( document.getFrame( frame ) ),
+	               x0 * zoom, y0 * zoom,
+	               x1 * zoom, y1 * zoom,
+	               x0, y0,
+	               x1, y1,
+	               null );
+	}
+	
+	/*
+	 * a scratch image at least as large as the given size, which the visible
+	 * part of the layers is blended into before it is drawn
+	 */
+	private BufferedImage getRenderBuffer( int width, int height ) {
+	  if( renderBuffer == null
+	      || renderBuffer.getWidth() < width
+	      || renderBuffer.getHeight() < height ) {
+	    int w = renderBuffer == null ? width
+	                                 : Math.max( width, renderBuffer.getWidth() );
+	    int h = renderBuffer == null ? height
+	                                 : Math.max( height,
+	                                             renderBuffer.getHeight() );
+	    renderBuffer = new BufferedImage( w, h,
+	                                      BufferedImage.TYPE_INT_ARGB_PRE );
+	  }
+	  return renderBuffer;
+	}
+	
+	/*
+	 * the ARGB pixels backing an image, row by row
+	 */
+	private static int[] getPixels( BufferedImage image ) {
+	  return ( (DataBufferInt) image.getRaster().getDataBuffer() ).getData();
 	}
 
 	/**
@@ -374,6 +1373,11 @@ public class EditorPanel extends JPanel
    */
 	public void showGrid( boolean selected ) {
 		showGrid = selected;
+		
+		//no need to hold on to a grid we don't show
+		if( !showGrid ) {
+		  gridOverlay.invalidate();
+		}
 		repaint();
 	}
 	
@@ -385,21 +1389,291 @@ public class EditorPanel extends JPanel
 	public void setFill( boolean selected ) {
 		fill = selected;
 	}
+	
+	/**
+	 * Sets whether strokes leave out the corners of L shapes, to keep
+	 * diagonal lines one cell thick
+	 * 
+	 * @param selected Whether the pixel-perfect option is on or off
+	 */
+	public void setPixelPerfect( boolean selected ) {
+	  stroke.setPixelPerfect( selected );
+	}
+
+	/**
+	 * The brush strokes paint with
+	 * 
+	 * @return the brush
+	 */
+	public Brush getBrush() {
+	  return stroke.getBrush();
+	}
+	
+	/**
+	 * Sets the brush strokes paint with, from the next stroke on
+	 * 
+	 * @param brush The brush to paint with
+	 */
+	public void setBrush( Brush brush ) {
+	  stroke.setBrush( brush );
+	}
+
+	/**
+	 * Sets the shape dragged out from where the mouse is pressed to where it
+	 * is let go, instead of drawing freehand. Fill mode comes first.
+	 * 
+	 * @param tool The shape to drag out, or null to draw freehand
+	 */
+	public void setShapeTool( ShapeTool tool ) {
+	  shapeTool = tool;
+	}
+
+	/**
+	 * Sets how pixels are selected with the mouse, instead of drawing. Both
+	 * fill mode and shapes wait until drawing is picked again.
+	 * 
+	 * @param tool The way to select, or null to draw
+	 */
+	public void setSelectionTool( SelectionTool tool ) {
+	  selectionTool = tool;
+	}
+	
+	/**
+	 * How far in color pixels picked by the magic wand may be from the one
+	 * clicked
+	 * 
+	 * @return the largest difference in any channel, from 0 to 255
+	 */
+	public int getWandTolerance() {
+	  return wandTolerance;
+	}
+	
+	/**
+	 * Sets how far in color pixels picked by the magic wand may be from the
+	 * one clicked
+	 * 
+	 * @param tolerance The largest difference in any channel, from 0 to 255
+	 */
+	public void setWandTolerance( int tolerance ) {
+	  wandTolerance = tolerance;
+	}
+	
+	/**
+	 * Sets whether the magic wand only picks pixels joined to the one
+	 * clicked, or every close one in the layer
+	 * 
+	 * @param selected Whether the contiguous option is on or off
+	 */
+	public void setWandContiguous( boolean selected ) {
+	  wandContiguous = selected;
+	}
+	
+	/**
+	 * Selects the whole image
+	 */
+	public void selectAll() {
+	  setSelection( SelectionMask.rectangle(
+	      document.getWidth(), document.getHeight(),
+	      new Rectangle( document.getWidth(), document.getHeight() ) ) );
+	}
+	
+	/**
+	 * Selects nothing, so edits change the whole image again
+	 */
+	public void deselect() {
+	  setSelection( null );
+	}
+	
+	/**
+	 * Selects every pixel that isn't selected, and none that are. With no
+	 * selection, that is nothing, so it stays that way.
+	 */
+	public void invertSelection() {
+	  SelectionMask mask = document.getSelection();
+	  if( mask != null ) {
+	    setSelection( mask.inverted() );
+	  }
+	}
+	
+	/**
+	 * Copies the selected pixels of the layer being drawn on, or all of them
+	 * if none are selected
+	 */
+	public void copy() {
+	  SelectionMask mask = document.getSelection();
+	  clipboard = document.copy();
+	  clipOrigin = mask == null ? new Point()
+	                            : mask.getBounds().getLocation();
+	}
+	
+	/**
+	 * Pastes the pixels last copied over the layer being drawn on, as a
+	 * single edit. They go at the corner of the selection, keeping to it, or
+	 * where they were copied from if nothing is selected.
+	 */
+	public void paste() {
+	  if( clipboard == null ) {
+	    return;
+	  }
+	  if( editInProgress ) {
+	    endEdit();
+	  }
+	  SelectionMask mask = document.getSelection();
+	  Point at = mask == null ? clipOrigin : mask.getBounds().getLocation();
+	  Rectangle pasted = document.paste( clipboard, at.x, at.y );
+	  if( pasted != null ) {
+	    damage( pasted );
+	  }
+	}
+	
+	/*
+	 * selects some other pixels, painting the outline again where either
+	 * selection was
+	 */
+	private void setSelection( SelectionMask mask ) {
+	  damageSelection();
+	  document.setSelection( mask );
+	  damageSelection();
+	}
+	
+	/*
+	 * marks the rectangle around the selection as changed, with room for
+	 * the outline along its right and bottom edges
+	 */
+	private void damageSelection() {
+	  SelectionMask mask = document.getSelection();
+	  if( mask != null ) {
+	    Rectangle b = mask.getBounds();
+	    damage( b.x - 1, b.y - 1, b.width + 2, b.height + 2 );
+	  }
+	}
+	
+	/*
+	 * starts selecting from the pixel the mouse was pressed on. The magic
+	 * wand selects right away, the others as the mouse is dragged
+	 */
+	private void startSelection( MouseEvent e ) {
+	  int xi = Math.floorDiv( e.getX(), zoom );
+	  int yi = Math.floorDiv( e.getY(), zoom );
+	  if( selectionTool == SelectionTool.MAGIC_WAND ) {
+	    damageSelection();
+	    if( document.selectByColor( xi, yi, wandTolerance,
+	                                wandContiguous ) == null ) {
+	      document.setSelection( null );
+	    }
+	    damageSelection();
+	    return;
+	  }
+	  selectStart = new Point( xi, yi );
+	  selectDragged = false;
+	  if( selectionTool == SelectionTool.LASSO ) {
+	    lasso = new Polygon();
+	    lasso.addPoint( xi, yi );
+	  }
+	}
+	
+	/*
+	 * grows the selection being dragged to the pixel the mouse is on
+	 */
+	private void dragSelection( MouseEvent e ) {
+	  int xi = Math.floorDiv( e.getX(), zoom );
+	  int yi = Math.floorDiv( e.getY(), zoom );
+	  selectDragged = true;
+	  if( lasso != null ) {
+	    int last = lasso.npoints - 1;
+	    int px = lasso.xpoints[last];
+	    int py = lasso.ypoints[last];
+	    if( px != xi || py != yi ) {
+	      lasso.addPoint( xi, yi );
+	      damage( Math.min( px, xi ) - 1, Math.min( py, yi ) - 1,
+	              Math.abs( xi - px ) + 2, Math.abs( yi - py ) + 2 );
+	    }
+	    return;
+	  }
+	  
+	  //a rectangle takes every grid cell it touches
+	  int cell = document.getGridSize();
+	  int left = Math.floorDiv( Math.min( selectStart.x, xi ), cell ) * cell;
+	  int top = Math.floorDiv( Math.min( selectStart.y, yi ), cell ) * cell;
+	  int right = ( Math.floorDiv( Math.max( selectStart.x, xi ), cell ) + 1 )
+	              * cell;
+	  int bottom = ( Math.floorDiv( Math.max( selectStart.y, yi ), cell ) + 1 )
+	               * cell;
+	  setSelection( SelectionMask.rectangle(
+	      document.getWidth(), document.getHeight(),
+	      new Rectangle( left, top, right - left, bottom - top ) ) );
+	}
+	
+	/*
+	 * finishes the selection being dragged. A click without a drag selects
+	 * nothing
+	 */
+	private void endSelection() {
+	  if( lasso != null ) {
+	    Rectangle b = lasso.getBounds();
+	    damage( b.x - 1, b.y - 1, b.width + 2, b.height + 2 );
+	    setSelection( lasso.npoints < 3 ? null : SelectionMask.polygon(
+	        document.getWidth(), document.getHeight(), lasso ) );
+	    lasso = null;
+	  } else if( !selectDragged ) {
+	    setSelection( null );
+	  }
+	  selectStart = null;
+	}
 
 	/**
 	 * Inverts the image
 	 */
 	public void invertColors() {
-	  Graphics g = image.getGraphics();
-	  for( int x = 0; x < SIZE; x++ ) {
-	    for( int y = 0; y < SIZE; y++ ) {
-	      g.setColor( new Color( image.getRGB( x, y ) ^ INVERT_XOR ) );
-	      g.fillRect( x, y, 1, 1 );
-	    }
+	  applyFilter( PixelFilter.invert() );
+	}
+	
+	/**
+	 * Applies a filter to the whole image, as a single edit
+	 * 
+	 * @param filter The filter to apply
+	 */
+	public void applyFilter( PixelFilter filter ) {
+	  damage( document.applyFilter( filter ) );
+	}
+
+	/**
+	 * Makes the image indexed, with a color table of at most some number of
+	 * colors. Since the history holds tiles of the old kind, it is forgotten.
+	 * 
+	 * @param colors the most colors, counting transparent
+	 */
+	public void convertToIndexed( int colors ) {
+	  document.convertToIndexed( colors );
+	  frameCache.clear();
+	  layersChanged( true );
+	}
+	
+	/**
+	 * Makes the image hold ARGB colors again. Since the history holds tiles
+	 * of the old kind, it is forgotten.
+	 */
+	public void convertToRGB() {
+	  document.convertToRGB();
+	  frameCache.clear();
+	  layersChanged( true );
+	}
+	
+	/**
+	 * Sets a color of the color table of an indexed image, which changes
+	 * every pixel using it at once
+	 * 
+	 * @param index the index of the color, from 1
+	 * @param argb the new ARGB color
+	 */
+	public void setPaletteColor( int index, int argb ) {
+	  if( editInProgress ) {
+	    endEdit();
+	  }
+	  Rectangle changed = document.setPaletteColor( index, argb );
+	  if( changed != null ) {
+	    damage( changed );
 	  }
-	  g.dispose();
-	  pushToHistory();
-		repaint();
 	}
 
 	/**
@@ -408,13 +1682,22 @@ public class EditorPanel extends JPanel
 	 * @param intValue The grid size to use
 	 */
 	public void changeGridSize( int intValue ) {
-		gridSize = intValue;
+		int old = document.getGridSize();
+		document.setGridSize( intValue );
+		gridOverlay.setCellSize( document.getGridSize() * zoom );
 		repaint();
+		firePropertyChange( GRID_SIZE_PROPERTY, old, document.getGridSize() );
 	}
 
   @Override
   public void mouseDragged( MouseEvent e ) {
-    if( editInProgress ) {
+    if( panStart != null ) {
+      Point screen = e.getLocationOnScreen();
+      scrollTo( panOrigin.x - ( screen.x - panStart.x ),
+                panOrigin.y - ( screen.y - panStart.y ) );
+    } else if( selectStart != null ) {
+      dragSelection( e );
+    } else if( editInProgress ) {
       drawOnCanvas( e );
     }
   }
@@ -429,15 +1712,54 @@ public class EditorPanel extends JPanel
 
   @Override
   public void mousePressed( MouseEvent e ) {
+    
+    //the middle button drags the view around instead of drawing
+    if( SwingUtilities.isMiddleMouseButton( e ) ) {
+      if( !editInProgress && getViewport() != null ) {
+        panStart = e.getLocationOnScreen();
+        panOrigin = getViewport().getViewPosition();
+      }
+      return;
+    }
+    if( editInProgress || panStart != null || selectStart != null ) {
+      return;
+    }
+    
+    //selecting comes before any kind of drawing
+    if( selectionTool != null ) {
+      stop();
+      startSelection( e );
+      return;
+    }
+    
+    //drawing goes back to the frame being edited
+    stop();
     editInProgress = true;
+    if( !fill && shapeTool != null ) {
+      int gridSize = document.getGridSize();
+      shapeStart = new Point(
+          Math.floorDiv( Math.floorDiv( e.getX(), zoom ), gridSize ),
+          Math.floorDiv( Math.floorDiv( e.getY(), zoom ), gridSize ) );
+      shapeColor = currentColor.getRGB();
+    } else if( !fill ) {
+      stroke.begin( document.getCanvas(), document.getHistory(),
+                    currentColor.getRGB(), document.getGridSize(),
+                    document.getSelection() );
+    }
     drawOnCanvas( e );
+    
+    //show the first cell right away
+    flushStroke();
   }
 
   @Override
   public void mouseReleased( MouseEvent e ) {
-    if( editInProgress ) {
-      editInProgress = false;
-      pushToHistory();
+    if( SwingUtilities.isMiddleMouseButton( e ) ) {
+      panStart = null;
+    } else if( selectStart != null ) {
+      endSelection();
+    } else if( editInProgress ) {
+      endEdit();
     }
   }
 
@@ -447,9 +1769,30 @@ public class EditorPanel extends JPanel
 
   @Override
   public void mouseExited( MouseEvent e ) {
-    if( editInProgress ) {
-      editInProgress = false;
-      pushToHistory();
+    
+    //a shape can be dragged past the edge, and is clipped to the image
+    if( editInProgress && shapeStart == null ) {
+      endEdit();
+    }
+  }
+
+  @Override
+  public void mouseWheelMoved( MouseWheelEvent e ) {
+    
+    //holding the menu shortcut key zooms around the mouse
+    if( ( e.getModifiers()
+          & Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() ) != 0 ) {
+      int steps = e.getWheelRotation() < 0 ? 1 : -1;
+      setZoom( nextZoom( steps ), e.getPoint() );
+      return;
+    }
+    
+    //otherwise, the scroll pane scrolls as it would without us listening
+    Component scrollPane =
+        SwingUtilities.getAncestorOfClass( JScrollPane.class, this );
+    if( scrollPane != null ) {
+      scrollPane.dispatchEvent(
+          SwingUtilities.convertMouseEvent( this, e, scrollPane ) );
     }
   }
 }
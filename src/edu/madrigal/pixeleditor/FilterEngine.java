@@ -0,0 +1,289 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs pixel filters over a raster or a canvas, splitting it into bands of
+ * rows, or of tiles, that are filtered in parallel on the common fork-join
+ * pool.
+ *
+ * @author nihil
+ */
+public final class FilterEngine {
+
+  // bands smaller than this are not worth splitting any further
+  private static final int MIN_BAND_PIXELS = 1 << 15;
+
+  private FilterEngine() {
+  }
+
+  /**
+   * Applies a filter to every pixel of a raster, in place.
+   *
+   * @param filter the filter to apply
+   * @param pixels the ARGB raster, row by row
+   * @param width the width of the raster
+   * @param height the height of the raster
+   */
+  public static void apply( PixelFilter filter, int[] pixels,
+                            int width, int height ) {
+    if( (long) width * height <= MIN_BAND_PIXELS ) {
+      filter.apply( pixels, 0, width * height );
+    } else {
+      ForkJoinPool.commonPool()
+                  .invoke( new Band( filter, pixels, width, 0, height ) );
+    }
+  }
+
+  /**
+   * Applies a filter to every pixel of a canvas, in place. Tiles of a single
+   * color are filtered as that one color.
+   *
+   * Filters only look at one pixel at a time, so on an indexed canvas only
+   * the colors of its table are filtered, and the pixels are just moved to
+   * the entries closest to the filtered colors. The table itself stays as it
+   * is, since other layers use it too and the history keeps no record of
+   * it.
+   *
+   * @param filter the filter to apply
+   * @param canvas the canvas to filter
+   */
+  public static void apply( PixelFilter filter, TiledCanvas canvas ) {
+    apply( filter, canvas, null );
+  }
+
+  /**
+   * Applies a filter to the pixels of a canvas inside a selection, in place.
+   * Only the tiles the selection reaches are looked at, and in those only
+   * its runs are filtered, unless it covers the whole tile.
+   *
+   * Tiles of a single color are filtered right away, and the others are made
+   * writable before any are filtered, so every change to the canvas itself
+   * is made on the calling thread, and the pool's threads only touch pixels.
+   *
+   * @param filter the filter to apply
+   * @param canvas the canvas to filter
+   * @param mask the pixels to filter, or null for all of them
+   */
+  public static void apply( PixelFilter filter, TiledCanvas canvas,
+                            SelectionMask mask ) {
+    int[] remap = null;
+    ColorTable table = canvas.getColorTable();
+    if( table != null ) {
+      remap = table.getColors();
+      filter.apply( remap, 0, remap.length );
+      for( int i = 0; i < remap.length; i++ ) {
+        remap[i] = table.indexOf( remap[i] );
+      }
+    }
+    Rectangle area = mask == null
+        ? new Rectangle( canvas.getWidth(), canvas.getHeight() )
+        : mask.getBounds();
+    if( area.isEmpty() ) {
+      return;
+    }
+    int left = area.x >> TiledCanvas.TILE_SHIFT;
+    int right = ( area.x + area.width - 1 ) >> TiledCanvas.TILE_SHIFT;
+    int top = area.y >> TiledCanvas.TILE_SHIFT;
+    int bottom = ( area.y + area.height - 1 ) >> TiledCanvas.TILE_SHIFT;
+    int most = ( right + 1 - left ) * ( bottom + 1 - top );
+
+    // the tiles whose pixels are filtered, and whether only some are
+    int[] tiles = new int[most];
+    int[][] pixels = new int[most][];
+    boolean[] partial = new boolean[most];
+    int count = 0;
+    int[] color = new int[1];
+    for( int ty = top; ty <= bottom; ty++ ) {
+      for( int tx = left; tx <= right; tx++ ) {
+        int tile = ty * canvas.getTilesX() + tx;
+        boolean some = mask != null
+            && !mask.covers( canvas.tileLeft( tile ), canvas.tileTop( tile ),
+                             canvas.tileWidth( tile ),
+                             canvas.tileHeight( tile ) );
+        if( some && !crosses( mask, canvas, tile ) ) {
+          continue;
+        }
+        if( !some && canvas.isUniform( tile ) ) {
+          color[0] = canvas.getUniformColor( tile );
+          if( remap != null ) {
+            color[0] = remap[color[0]];
+          } else {
+            filter.apply( color, 0, 1 );
+          }
+          canvas.setUniformColor( tile, color[0] );
+          continue;
+        }
+        tiles[count] = tile;
+        pixels[count] = canvas.getWritableTile( tile );
+        partial[count] = some;
+        count++;
+      }
+    }
+    if( count > 0 ) {
+      ForkJoinPool.commonPool().invoke(
+          new TileBand( filter, remap, canvas, mask, tiles, pixels, partial,
+                        0, count ) );
+    }
+  }
+
+  /*
+   * whether any run of a selection crosses a tile
+   */
+  private static boolean crosses( SelectionMask mask, TiledCanvas canvas,
+                                  int tile ) {
+    int x0 = canvas.tileLeft( tile );
+    int x1 = x0 + canvas.tileWidth( tile );
+    int y0 = canvas.tileTop( tile );
+    for( int y = y0; y < y0 + canvas.tileHeight( tile ); y++ ) {
+      int run = mask.firstRunAfter( y, x0 );
+      if( run < mask.getRunCount( y ) && mask.getRunStart( y, run ) < x1 ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * a band of rows, which splits itself in half until it is small enough
+   */
+  private static class Band extends RecursiveAction {
+    private static final long serialVersionUID = 4113905524871935602L;
+
+    private final PixelFilter filter;
+    private final int[] pixels;
+    private final int width;
+    private final int top;
+    private final int bottom;
+
+    Band( PixelFilter filter, int[] pixels, int width, int top, int bottom ) {
+      this.filter = filter;
+      this.pixels = pixels;
+      this.width = width;
+      this.top = top;
+      this.bottom = bottom;
+    }
+
+    @Override
+    protected void compute() {
+      int rows = bottom - top;
+      if( rows < 2 || (long) rows * width <= MIN_BAND_PIXELS ) {
+        filter.apply( pixels, top * width, bottom * width );
+      } else {
+        int middle = top + rows / 2;
+        invokeAll( new Band( filter, pixels, width, top, middle ),
+                   new Band( filter, pixels, width, middle, bottom ) );
+      }
+    }
+  }
+
+  /*
+   * some of the tiles being filtered, in order, which splits itself in half
+   * until it is small enough. It splits by tiles rather than rows, so even a
+   * strip one tile high is shared between threads
+   */
+  private static class TileBand extends RecursiveAction {
+    private static final long serialVersionUID = -2297420283000614519L;
+
+    private final PixelFilter filter;
+    private final int[] remap;
+    private final TiledCanvas canvas;
+    private final SelectionMask mask;
+    private final int[] tiles;
+    private final int[][] pixels;
+    private final boolean[] partial;
+    private final int from;
+    private final int to;
+
+    TileBand( PixelFilter filter, int[] remap, TiledCanvas canvas,
+              SelectionMask mask, int[] tiles, int[][] pixels,
+              boolean[] partial, int from, int to ) {
+      this.filter = filter;
+      this.remap = remap;
+      this.canvas = canvas;
+      this.mask = mask;
+      this.tiles = tiles;
+      this.pixels = pixels;
+      this.partial = partial;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      int count = to - from;
+      if( count < 2
+          || (long) count * TiledCanvas.TILE_AREA <= MIN_BAND_PIXELS ) {
+        for( int i = from; i < to; i++ ) {
+          computeTile( i );
+        }
+      } else {
+        int middle = from + count / 2;
+        invokeAll( new TileBand( filter, remap, canvas, mask, tiles, pixels,
+                                 partial, from, middle ),
+                   new TileBand( filter, remap, canvas, mask, tiles, pixels,
+                                 partial, middle, to ) );
+      }
+    }
+
+    /*
+     * filters the pixels of a tile, or the part of them inside the selection
+     */
+    private void computeTile( int i ) {
+      int[] data = pixels[i];
+      if( partial[i] ) {
+        filterSelected( tiles[i], data );
+      } else if( remap != null ) {
+        remapTile( data );
+      } else {
+        filter.apply( data, 0, data.length );
+      }
+    }
+
+    /*
+     * filters the runs of the selection that cross a tile
+     */
+    private void filterSelected( int tile, int[] data ) {
+      int x0 = canvas.tileLeft( tile );
+      int y0 = canvas.tileTop( tile );
+      int x1 = x0 + canvas.tileWidth( tile );
+      for( int y = y0; y < y0 + canvas.tileHeight( tile ); y++ ) {
+        int runs = mask.getRunCount( y );
+        for( int i = mask.firstRunAfter( y, x0 ); i < runs; i++ ) {
+          int start = Math.max( mask.getRunStart( y, i ), x0 );
+          int end = Math.min( mask.getRunEnd( y, i ), x1 );
+          if( start >= x1 ) {
+            break;
+          }
+          int from = ( ( y - y0 ) << TiledCanvas.TILE_SHIFT ) + start - x0;
+          int to = from + end - start;
+          if( remap == null ) {
+            filter.apply( data, from, to );
+            continue;
+          }
+          for( int p = from; p < to; p++ ) {
+            int shift = ( p & 3 ) << 3;
+            int index = ( data[p >> 2] >>> shift ) & 0xff;
+            data[p >> 2] = ( data[p >> 2] & ~( 0xff << shift ) )
+                           | remap[index] << shift;
+          }
+        }
+      }
+    }
+
+    /*
+     * moves each pixel of an indexed tile to the entry its color filters to
+     */
+    private void remapTile( int[] data ) {
+      for( int i = 0; i < data.length; i++ ) {
+        int packed = data[i];
+        data[i] = remap[packed & 0xff]
+                  | remap[( packed >>> 8 ) & 0xff] << 8
+                  | remap[( packed >>> 16 ) & 0xff] << 16
+                  | remap[packed >>> 24] << 24;
+      }
+    }
+  }
+}
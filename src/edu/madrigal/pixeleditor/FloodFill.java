@@ -0,0 +1,297 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * A scanline flood fill that works on a tiled canvas.
+ *
+ * The canvas is treated as a grid of square cells, and a cell belongs to the
+ * filled region if its top-left pixel matches the color that was clicked.
+ * Whole runs of cells are filled at once, and the cells left to visit are kept
+ * on a stack of ints that is reused between fills, so filling allocates
+ * nothing once the stack has grown.
+ *
+ * A tile of the canvas that is all the clicked color is filled in one step,
+ * without visiting its cells one run at a time, so filling a blank area of a
+ * huge canvas stays fast and leaves its tiles as single colors.
+ *
+ * A fill can be kept to a selection. Then only cells whose top-left pixel
+ * is selected belong to the region, and only the selected pixels of those
+ * are painted, so the fill never looks outside the selection.
+ *
+ * @author nihil
+ */
+public class FloodFill {
+
+  // pairs of cell coords that still need to be visited
+  private int[] stack;
+  private int size;
+
+  /*
+   * the fill in progress
+   */
+  private TiledCanvas canvas;
+  private int cell;
+  private int columns;
+  private int rows;
+  private int target;
+  private SelectionMask mask;
+
+  /**
+   * Constructor for the flood fill
+   */
+  public FloodFill() {
+    stack = new int[256];
+  }
+
+  /**
+   * Fills the contiguous cells matching the one under the given point.
+   *
+   * @param canvas the canvas to fill
+   * @param x the x-coord from which to start filling
+   * @param y the y-coord from which to start filling
+   * @param cell the size of the cells to fill
+   * @param color the ARGB color to paint over the region
+   * @param history the history to touch before each run is changed, or null
+   * @return the region that was changed, or null if nothing was
+   */
+  public Rectangle fill( TiledCanvas canvas, int x, int y,
+                         int cell, int color, History history ) {
+    return fill( canvas, x, y, cell, color, history, null );
+  }
+
+  /**
+   * Fills the contiguous cells matching the one under the given point,
+   * inside a selection.
+   *
+   * @param canvas the canvas to fill
+   * @param x the x-coord from which to start filling
+   * @param y the y-coord from which to start filling
+   * @param cell the size of the cells to fill
+   * @param color the ARGB color to paint over the region
+   * @param history the history to touch before each run is changed, or null
+   * @param mask the pixels the fill is kept to, or null for all of them
+   * @return the region that was changed, or null if nothing was
+   */
+  public Rectangle fill( TiledCanvas canvas, int x, int y, int cell,
+                         int color, History history, SelectionMask mask ) {
+
+    int width = canvas.getWidth();
+    int height = canvas.getHeight();
+
+    if( x < 0 || y < 0 || x >= width || y >= height ) {
+      return null;
+    }
+
+    this.canvas = canvas;
+    this.cell = cell;
+    this.mask = mask;
+    columns = ( width + cell - 1 ) / cell;
+    rows = ( height + cell - 1 ) / cell;
+
+    int cx = x / cell;
+    int cy = y / cell;
+    target = canvas.getRGB( cx * cell, cy * cell );
+    if( mask != null && !mask.contains( cx * cell, cy * cell ) ) {
+      this.canvas = null;
+      this.mask = null;
+      return null;
+    }
+
+    // every cell in the region starts with the same color, so they all end
+    // with the same color too, or an indexed canvas's closest to it
+    int replacement = canvas.closestColor(
+        PixelMath.srcOver( color, target ) );
+    if( replacement == target ) {
+      this.canvas = null;
+      this.mask = null;
+      return null;
+    }
+
+    int minX = cx, maxX = cx, minY = cy, maxY = cy;
+
+    size = 0;
+    push( cx, cy );
+
+    while( size > 0 ) {
+      cy = stack[--size];
+      cx = stack[--size];
+
+      if( !matches( cx, cy ) ) {
+        continue;
+      }
+
+      if( inUniformTile( cx, cy ) ) {
+        Rectangle block = fillBlock( cx, cy, replacement, history );
+        minX = Math.min( minX, block.x );
+        maxX = Math.max( maxX, block.x + block.width - 1 );
+        minY = Math.min( minY, block.y );
+        maxY = Math.max( maxY, block.y + block.height - 1 );
+        continue;
+      }
+
+      // widen the run as far as it goes in both directions, stopping at
+      // uniform tiles, which are left to be filled as a block
+      int left = cx;
+      while( left > 0 && matches( left - 1, cy ) ) {
+        if( inUniformTile( left - 1, cy ) ) {
+          push( left - 1, cy );
+          break;
+        }
+        left--;
+      }
+      int right = cx;
+      while( right < columns - 1 && matches( right + 1, cy ) ) {
+        if( inUniformTile( right + 1, cy ) ) {
+          push( right + 1, cy );
+          break;
+        }
+        right++;
+      }
+
+      fillRun( left, right, cy, replacement, history );
+
+      minX = Math.min( minX, left );
+      maxX = Math.max( maxX, right );
+      minY = Math.min( minY, cy );
+      maxY = Math.max( maxY, cy );
+
+      // then look for runs just above and below it
+      scan( left, right, cy - 1 );
+      scan( left, right, cy + 1 );
+    }
+
+    this.canvas = null;
+    this.mask = null;
+
+    int px = minX * cell;
+    int py = minY * cell;
+    return new Rectangle( px, py,
+                          Math.min( ( maxX + 1 ) * cell, width ) - px,
+                          Math.min( ( maxY + 1 ) * cell, height ) - py );
+  }
+
+  private boolean matches( int cx, int cy ) {
+    return canvas.getRGB( cx * cell, cy * cell ) == target
+           && ( mask == null || mask.contains( cx * cell, cy * cell ) );
+  }
+
+  /*
+   * whether the top-left pixel of a matching cell is in a uniform tile, which
+   * means the tile is all the target color. Inside a selection, the tile
+   * must be all selected too
+   */
+  private boolean inUniformTile( int cx, int cy ) {
+    int tile = canvas.tileAt( cx * cell, cy * cell );
+    return canvas.isUniform( tile )
+           && ( mask == null
+                || mask.covers( canvas.tileLeft( tile ), canvas.tileTop( tile ),
+                                canvas.tileWidth( tile ),
+                                canvas.tileHeight( tile ) ) );
+  }
+
+  /*
+   * fills every cell whose top-left pixel is in the same uniform tile as the
+   * given cell, and pushes the matching cells around them. Returns the block
+   * of cells that was filled.
+   */
+  private Rectangle fillBlock( int cx, int cy, int color, History history ) {
+    int tile = canvas.tileAt( cx * cell, cy * cell );
+    int left = canvas.tileLeft( tile );
+    int top = canvas.tileTop( tile );
+
+    // the first and last cells starting inside the tile
+    int cx0 = ( left + cell - 1 ) / cell;
+    int cy0 = ( top + cell - 1 ) / cell;
+    int cx1 = Math.min( ( left + TiledCanvas.TILE_SIZE - 1 ) / cell,
+                        columns - 1 );
+    int cy1 = Math.min( ( top + TiledCanvas.TILE_SIZE - 1 ) / cell,
+                        rows - 1 );
+
+    int x0 = cx0 * cell;
+    int y0 = cy0 * cell;
+    int w = ( cx1 + 1 - cx0 ) * cell;
+    int h = ( cy1 + 1 - cy0 ) * cell;
+
+    paint( x0, y0, w, h, color, history );
+
+    scan( cx0, cx1, cy0 - 1 );
+    scan( cx0, cx1, cy1 + 1 );
+    scanColumn( cx0 - 1, cy0, cy1 );
+    scanColumn( cx1 + 1, cy0, cy1 );
+
+    return new Rectangle( cx0, cy0, cx1 + 1 - cx0, cy1 + 1 - cy0 );
+  }
+
+  /*
+   * pushes the first cell of every matching run in the given row
+   */
+  private void scan( int left, int right, int cy ) {
+    if( cy < 0 || cy >= rows ) {
+      return;
+    }
+    boolean inRun = false;
+    for( int cx = left; cx <= right; cx++ ) {
+      if( matches( cx, cy ) ) {
+        if( !inRun ) {
+          push( cx, cy );
+          inRun = true;
+        }
+      } else {
+        inRun = false;
+      }
+    }
+  }
+
+  /*
+   * pushes the first cell of every matching run in the given column
+   */
+  private void scanColumn( int cx, int top, int bottom ) {
+    if( cx < 0 || cx >= columns ) {
+      return;
+    }
+    boolean inRun = false;
+    for( int cy = top; cy <= bottom; cy++ ) {
+      if( matches( cx, cy ) ) {
+        if( !inRun ) {
+          push( cx, cy );
+          inRun = true;
+        }
+      } else {
+        inRun = false;
+      }
+    }
+  }
+
+  private void fillRun( int left, int right, int cy, int color,
+                        History history ) {
+    int x0 = left * cell;
+    int y0 = cy * cell;
+    int w = ( right + 1 - left ) * cell;
+    paint( x0, y0, w, cell, color, history );
+  }
+
+  /*
+   * fills a rectangle, or just the part of it inside the selection
+   */
+  private void paint( int x, int y, int w, int h, int color,
+                      History history ) {
+    if( mask != null ) {
+      mask.fillRect( canvas, history, x, y, w, h, color );
+      return;
+    }
+    if( history != null ) {
+      history.touch( x, y, w, h );
+    }
+    canvas.fillRect( x, y, w, h, color );
+  }
+
+  private void push( int cx, int cy ) {
+    if( size + 2 > stack.length ) {
+      stack = Arrays.copyOf( stack, stack.length * 2 );
+    }
+    stack[size++] = cx;
+    stack[size++] = cy;
+  }
+}
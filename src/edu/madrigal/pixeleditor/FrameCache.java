@@ -0,0 +1,216 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flattened images of the frames of an animation, for playing it back and
+ * for showing the frames around the one being edited.
+ *
+ * A frame is only flattened again once one of its layers changed since, so
+ * playing an animation back after the first pass just draws images that
+ * are ready, and onion skins cost nothing while the frame being edited is
+ * painted on. The least recently used frames are dropped once the cache
+ * goes over its memory budget.
+ *
+ * Playing back more frames than fit would drop each frame just before it is
+ * needed again, so for playback the frames that fit are pinned instead, and
+ * the rest are flattened each time into one spare image. Dropped images are
+ * kept as that spare too, so a miss doesn't allocate a new image every
+ * time.
+ *
+ * @author nihil
+ */
+public class FrameCache {
+
+  // the most memory the flattened frames may use, 256 MB
+  private static final long DEFAULT_BUDGET = 256L << 20;
+
+  // the frames, least recently used first, and the bytes they take
+  private final LinkedHashMap< LayerStack, CachedFrame > frames;
+  private final long budget;
+  private long used;
+
+  // the frames playback pinned, which aren't dropped to make room
+  private final IdentityHashMap< LayerStack, Boolean > pinned;
+
+  // an image no frame holds, to flatten into rather than allocating one
+  private BufferedImage spare;
+
+  /**
+   * Constructor for an empty cache
+   */
+  public FrameCache() {
+    frames = new LinkedHashMap< LayerStack, CachedFrame >( 16, 0.75f, true );
+    budget = DEFAULT_BUDGET;
+    pinned = new IdentityHashMap< LayerStack, Boolean >();
+  }
+
+  /**
+   * A frame flattened into premultiplied ARGB, flattening it again first if
+   * any of its layers changed since
+   *
+   * @param frame the layers of the frame
+   * @return the image of the frame, which must not be changed, and which
+   *         is only good until the next call if the frame didn't fit
+   */
+  public BufferedImage get( LayerStack frame ) {
+    CachedFrame cached = frames.get( frame );
+    if( cached == null ) {
+      long size = 4L * frame.getWidth() * frame.getHeight();
+      makeRoom( size );
+      if( used + size > budget && !frames.isEmpty() ) {
+
+        // it doesn't fit, so it's flattened without being kept
+        BufferedImage image = takeSpare( frame );
+        flatten( frame, image );
+        spare = image;
+        return image;
+      }
+      cached = new CachedFrame( takeSpare( frame ) );
+      frames.put( frame, cached );
+      used += size;
+    }
+
+    long structure = frame.getStructureVersion();
+    long pixels = pixelVersion( frame );
+    if( cached.structure != structure || cached.pixels != pixels ) {
+      flatten( frame, cached.image );
+      cached.structure = structure;
+      cached.pixels = pixels;
+    }
+    return cached.image;
+  }
+
+  /**
+   * Flattens every frame that isn't up to date, ahead of playing them
+   * back. If they don't all fit, the ones that do are pinned until playback
+   * stops, and frames not in the animation are dropped.
+   *
+   * @param all the frames of the animation
+   */
+  public void prepare( List< LayerStack > all ) {
+    unpin();
+    IdentityHashMap< LayerStack, Boolean > wanted =
+        new IdentityHashMap< LayerStack, Boolean >();
+    long total = 0;
+    for( LayerStack frame : all ) {
+      wanted.put( frame, Boolean.TRUE );
+      total += 4L * frame.getWidth() * frame.getHeight();
+    }
+    Iterator< Map.Entry< LayerStack, CachedFrame > > entries =
+        frames.entrySet().iterator();
+    while( entries.hasNext() ) {
+      Map.Entry< LayerStack, CachedFrame > entry = entries.next();
+      if( !wanted.containsKey( entry.getKey() ) ) {
+        drop( entry.getValue() );
+        entries.remove();
+      }
+    }
+
+    for( LayerStack frame : all ) {
+      if( total > budget && !frames.containsKey( frame )
+          && used + 4L * frame.getWidth() * frame.getHeight() > budget ) {
+        continue;
+      }
+      get( frame );
+      if( total > budget ) {
+        pinned.put( frame, Boolean.TRUE );
+      }
+    }
+  }
+
+  /**
+   * Lets the frames pinned for playback be dropped again.
+   */
+  public void unpin() {
+    pinned.clear();
+  }
+
+  /**
+   * Forgets every frame.
+   */
+  public void clear() {
+    frames.clear();
+    pinned.clear();
+    used = 0;
+    spare = null;
+  }
+
+  private static void flatten( LayerStack frame, BufferedImage image ) {
+    int[] data = ( (DataBufferInt) image.getRaster()
+                                        .getDataBuffer() ).getData();
+    frame.composite( 0, 0, frame.getWidth(), frame.getHeight(),
+                     data, 0, frame.getWidth() );
+  }
+
+  /*
+   * the spare image if it is the size of a frame, or a new one
+   */
+  private BufferedImage takeSpare( LayerStack frame ) {
+    BufferedImage image = spare;
+    spare = null;
+    if( image == null || image.getWidth() != frame.getWidth()
+        || image.getHeight() != frame.getHeight() ) {
+      image = new BufferedImage( frame.getWidth(), frame.getHeight(),
+                                 BufferedImage.TYPE_INT_ARGB_PRE );
+    }
+    return image;
+  }
+
+  /*
+   * the versions of a frame's layers added up, which grows whenever any of
+   * their pixels change
+   */
+  private static long pixelVersion( LayerStack frame ) {
+    long version = 0;
+    for( int i = 0; i < frame.getLayerCount(); i++ ) {
+      version += frame.getLayer( i ).getCanvas().getVersion();
+    }
+    return version;
+  }
+
+  private static long bytes( BufferedImage image ) {
+    return 4L * image.getWidth() * image.getHeight();
+  }
+
+  /*
+   * drops the least recently used frames that aren't pinned until another
+   * of some size fits, keeping the last image dropped as the spare
+   */
+  private void makeRoom( long size ) {
+    Iterator< Map.Entry< LayerStack, CachedFrame > > oldest =
+        frames.entrySet().iterator();
+    while( used + size > budget && oldest.hasNext() ) {
+      Map.Entry< LayerStack, CachedFrame > entry = oldest.next();
+      if( !pinned.containsKey( entry.getKey() ) ) {
+        drop( entry.getValue() );
+        oldest.remove();
+      }
+    }
+  }
+
+  private void drop( CachedFrame cached ) {
+    used -= bytes( cached.image );
+    spare = cached.image;
+  }
+
+  /*
+   * a flattened frame, and the versions of its layers when it was flattened
+   */
+  private static class CachedFrame {
+
+    final BufferedImage image;
+    long structure = -1;
+    long pixels = -1;
+
+    CachedFrame( BufferedImage image ) {
+      this.image = image;
+    }
+  }
+}
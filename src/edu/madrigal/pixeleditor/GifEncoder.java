@@ -0,0 +1,380 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes an animation as a looping GIF.
+ *
+ * Each frame only holds the rectangle that differs from what is showing,
+ * with its unchanged pixels left transparent, and its own palette of the
+ * colors in it, reduced to 256 by the quantizer if there are more. A GIF
+ * can't make a pixel transparent again by drawing over it, so when the
+ * next frame uncovers pixels, they are cleared by disposing of the frame
+ * before it. A frame much bigger than what it has to clear is kept, and
+ * followed by an empty block over just those pixels that is disposed of,
+ * so the next frame doesn't have to draw it all again.
+ *
+ * GIF pixels are either opaque or transparent, so pixels less than half
+ * opaque become transparent and the rest opaque. Delays are in hundredths
+ * of a second, rounded so they add up to the right length overall.
+ *
+ * @author nihil
+ */
+public class GifEncoder extends AnimationEncoder {
+
+  // how a frame is disposed of before the next is drawn
+  private static final int DISPOSE_KEEP = 1;
+  private static final int DISPOSE_BACKGROUND = 2;
+
+  // the shortest delay browsers show as it is, in hundredths of a second
+  private static final int SHORTEST_DELAY = 2;
+
+  // the most codes an LZW table may have
+  private static final int MAX_CODES = 1 << 12;
+
+  private final Quantizer quantizer;
+
+  private OutputStream out;
+  private int width;
+  private int height;
+  private int framesPerSecond;
+
+  // what is showing once the last frame written is disposed of
+  private int[] display;
+
+  /**
+   * Constructor for an encoder that reduces frames of many colors with
+   * median cut
+   */
+  public GifEncoder() {
+    this( Quantizer.medianCut() );
+  }
+
+  /**
+   * Constructor for an encoder that reduces frames of many colors with a
+   * quantizer
+   *
+   * @param quantizer the quantizer
+   */
+  public GifEncoder( Quantizer quantizer ) {
+    this.quantizer = quantizer;
+  }
+
+  @Override
+  protected void start( int width, int height, int framesPerSecond,
+                        FileChannel out ) throws IOException {
+    this.width = width;
+    this.height = height;
+    this.framesPerSecond = framesPerSecond;
+    this.out = new BufferedOutputStream( Channels.newOutputStream( out ),
+                                         1 << 16 );
+    display = new int[width * height];
+
+    this.out.write( "GIF89a".getBytes( StandardCharsets.US_ASCII ) );
+    writeShort( width );
+    writeShort( height );
+    // no global palette, background 0, square pixels
+    this.out.write( new byte[]{ 0, 0, 0 } );
+
+    // loops forever
+    this.out.write( new byte[]{ 0x21, (byte) 0xff, 11 } );
+    this.out.write( "NETSCAPE2.0".getBytes( StandardCharsets.US_ASCII ) );
+    this.out.write( new byte[]{ 3, 1, 0, 0, 0 } );
+  }
+
+  @Override
+  protected void frame( int[] before, int[] pixels, int from, int to,
+                        int[] after ) throws IOException {
+    Rectangle area = changes( pixels, null );
+    Rectangle clear = after == null ? null : changes( pixels, after );
+    int delay = delay( from, to );
+    if( clear == null ) {
+      // nothing changes, but the frame still has to last its time
+      block( pixels, area == null ? new Rectangle( 1, 1 ) : area,
+             DISPOSE_KEEP, delay );
+    } else if( area == null || delay < 2 * SHORTEST_DELAY
+               || size( area.union( clear ) ) <= 2 * size( clear ) ) {
+      block( pixels, area == null ? clear : area.union( clear ),
+             DISPOSE_BACKGROUND, delay );
+    } else {
+      // disposing of a big frame means drawing all of it again next, so it
+      // is kept, and the pixels to clear are disposed of on their own just
+      // after, in a block with nothing to draw
+      block( pixels, area, DISPOSE_KEEP, SHORTEST_DELAY );
+      block( pixels, clear, DISPOSE_BACKGROUND, delay - SHORTEST_DELAY );
+    }
+  }
+
+  @Override
+  protected void finish() throws IOException {
+    out.write( 0x3b );
+    out.flush();
+  }
+
+  /*
+   * writes the pixels of an area of a frame as one image block, shown for
+   * a delay and then disposed of
+   */
+  private void block( int[] pixels, Rectangle area, int disposal,
+                      int delay ) throws IOException {
+    // the area, with what already shows left transparent
+    int[] changed = new int[area.width * area.height];
+    for( int y = 0; y < area.height; y++ ) {
+      for( int x = 0; x < area.width; x++ ) {
+        int i = ( area.y + y ) * width + area.x + x;
+        int color = gif( pixels[i] );
+        changed[y * area.width + x] = color == display[i] ? 0 : color;
+      }
+    }
+    Palette palette = Palette.count( changed, 0, changed.length,
+                                     Palette.MAX_COLORS );
+    if( palette == null ) {
+      palette = quantizer.palette( image( changed, area ),
+                                   Palette.MAX_COLORS );
+    }
+    boolean transparent = palette.getTranslucentCount() > 0;
+
+    byte[] indices = new byte[changed.length];
+    for( int y = 0; y < area.height; y++ ) {
+      for( int x = 0; x < area.width; x++ ) {
+        int j = y * area.width + x;
+        int index = palette.indexOf( changed[j] );
+        indices[j] = (byte) index;
+        if( changed[j] != 0 ) {
+          display[( area.y + y ) * width + area.x + x] =
+              palette.getColor( index );
+        }
+      }
+    }
+
+    // graphic control: disposal, transparency and delay
+    int flags = disposal << 2 | ( transparent ? 1 : 0 );
+    out.write( new byte[]{ 0x21, (byte) 0xf9, 4, (byte) flags } );
+    writeShort( delay );
+    out.write( new byte[]{ 0, 0 } );
+
+    // image descriptor and local palette
+    int bits = 1;
+    while( 1 << bits < palette.size() ) {
+      bits++;
+    }
+    out.write( 0x2c );
+    writeShort( area.x );
+    writeShort( area.y );
+    writeShort( area.width );
+    writeShort( area.height );
+    out.write( 0x80 | ( bits - 1 ) );
+    byte[] table = new byte[3 << bits];
+    for( int i = 0; i < palette.size(); i++ ) {
+      int color = palette.getColor( i );
+      table[i * 3] = (byte) ( color >> 16 );
+      table[i * 3 + 1] = (byte) ( color >> 8 );
+      table[i * 3 + 2] = (byte) color;
+    }
+    out.write( table );
+    compress( indices, Math.max( 2, bits ) );
+
+    if( disposal == DISPOSE_BACKGROUND ) {
+      for( int y = area.y; y < area.y + area.height; y++ ) {
+        Arrays.fill( display, y * width + area.x,
+                     y * width + area.x + area.width, 0 );
+      }
+    }
+  }
+
+  /*
+   * a pixel as a GIF can show it, fully opaque or fully transparent
+   */
+  private static int gif( int argb ) {
+    return argb >>> 24 < 0x80 ? 0 : argb | 0xff000000;
+  }
+
+  /*
+   * the bounds of the pixels of a frame that differ from what shows, or,
+   * given the frame after, of those it uncovers
+   */
+  private Rectangle changes( int[] pixels, int[] after ) {
+    int left = width;
+    int top = height;
+    int right = -1;
+    int bottom = -1;
+    for( int y = 0; y < height; y++ ) {
+      for( int x = 0, i = y * width; x < width; x++, i++ ) {
+        boolean changed = after == null
+            ? gif( pixels[i] ) != display[i]
+            : gif( after[i] ) == 0 && gif( pixels[i] ) != 0;
+        if( changed ) {
+          left = Math.min( left, x );
+          right = Math.max( right, x );
+          top = Math.min( top, y );
+          bottom = y;
+        }
+      }
+    }
+    if( right < 0 ) {
+      return null;
+    }
+    return new Rectangle( left, top, right - left + 1, bottom - top + 1 );
+  }
+
+  /*
+   * how long a frame shows for, in hundredths of a second, from when it
+   * starts to when the next one does, both rounded
+   */
+  private int delay( int from, int to ) {
+    long start = ( from * 200L / framesPerSecond + 1 ) / 2;
+    long end = ( to * 200L / framesPerSecond + 1 ) / 2;
+    return (int) Math.min( 0xffff, end - start );
+  }
+
+  /*
+   * the pixels of an area as an image, for the quantizer
+   */
+  private static BufferedImage image( int[] pixels, Rectangle area ) {
+    BufferedImage image = new BufferedImage( area.width, area.height,
+                                             BufferedImage.TYPE_INT_ARGB );
+    image.setRGB( 0, 0, area.width, area.height, pixels, 0, area.width );
+    return image;
+  }
+
+  private static long size( Rectangle area ) {
+    return (long) area.width * area.height;
+  }
+
+  private void writeShort( int value ) throws IOException {
+    out.write( value );
+    out.write( value >> 8 );
+  }
+
+  /*
+   * writes palette indices as GIF's LZW, in blocks of up to 255 bytes.
+   * The table starts over once it is full
+   */
+  private void compress( byte[] indices, int minimum ) throws IOException {
+    out.write( minimum );
+    Codes codes = new Codes( out, minimum );
+
+    int clear = 1 << minimum;
+    int[] keys = new int[MAX_CODES * 2];
+    int[] values = new int[MAX_CODES * 2];
+    Arrays.fill( keys, -1 );
+    int next = clear + 2;
+
+    codes.write( clear );
+    int prefix = indices[0] & 0xff;
+    for( int i = 1; i < indices.length; i++ ) {
+      int suffix = indices[i] & 0xff;
+      int key = prefix << 8 | suffix;
+      int slot = ( key * 0x9e3779b1 >>> 19 ) & ( keys.length - 1 );
+      while( keys[slot] != -1 && keys[slot] != key ) {
+        slot = ( slot + 1 ) & ( keys.length - 1 );
+      }
+      if( keys[slot] == key ) {
+        prefix = values[slot];
+        continue;
+      }
+      codes.write( prefix );
+      if( next < MAX_CODES ) {
+        keys[slot] = key;
+        values[slot] = next++;
+        codes.grew( next );
+      } else {
+        codes.clear();
+        Arrays.fill( keys, -1 );
+        next = clear + 2;
+      }
+      prefix = suffix;
+    }
+    codes.write( prefix );
+    codes.write( clear + 1 );
+    codes.finish();
+  }
+
+  /*
+   * packs codes of a growing width into bytes, low bits first, and the
+   * bytes into blocks
+   */
+  private static class Codes {
+
+    private final OutputStream out;
+    private final int minimum;
+    private final byte[] block = new byte[255];
+    private int count;
+    private int bits;
+    private int pending;
+    private int size;
+
+    // when the width grows, which is only after the code that follows
+    private boolean clearing;
+    private int limit;
+
+    Codes( OutputStream out, int minimum ) {
+      this.out = out;
+      this.minimum = minimum;
+      size = minimum + 1;
+      limit = 1 << size;
+    }
+
+    void write( int code ) throws IOException {
+      pending |= code << bits;
+      bits += size;
+      while( bits >= 8 ) {
+        put( pending & 0xff );
+        pending >>>= 8;
+        bits -= 8;
+      }
+      if( clearing ) {
+        size = minimum + 1;
+        limit = 1 << size;
+        clearing = false;
+      }
+    }
+
+    /*
+     * notes that the table has grown to some number of codes, so wider
+     * codes are needed once it no longer fits
+     */
+    void grew( int codes ) {
+      if( codes > limit && size < 12 ) {
+        size++;
+        limit = 1 << size;
+      }
+    }
+
+    /*
+     * writes the clear code, after which the table starts over
+     */
+    void clear() throws IOException {
+      clearing = true;
+      write( 1 << minimum );
+    }
+
+    void finish() throws IOException {
+      if( bits > 0 ) {
+        put( pending & 0xff );
+      }
+      if( count > 0 ) {
+        out.write( count );
+        out.write( block, 0, count );
+      }
+      out.write( 0 );
+    }
+
+    private void put( int b ) throws IOException {
+      block[count++] = (byte) b;
+      if( count == block.length ) {
+        out.write( count );
+        out.write( block );
+        count = 0;
+      }
+    }
+  }
+}
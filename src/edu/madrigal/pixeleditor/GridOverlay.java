@@ -0,0 +1,111 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * A grid drawn once into an image the size of the viewport, which is then
+ * copied over the canvas in a single blit each time it is painted.
+ *
+ * The image is drawn for a given cell size on screen, and only drawn again
+ * when that size changes or the viewport grows past it. Since the grid repeats
+ * every cell, scrolling only changes which part of the image is copied.
+ *
+ * @author nihil
+ */
+public class GridOverlay {
+
+  private final Color color;
+
+  // the cached grid, and the cell size it was drawn for
+  private BufferedImage image;
+  private int cellSize;
+
+  /**
+   * Constructor for the grid overlay
+   *
+   * @param color the color of the grid lines
+   */
+  public GridOverlay( Color color ) {
+    this.color = color;
+  }
+
+  /**
+   * Sets the distance between grid lines on screen, throwing away the cached
+   * grid if it changed.
+   *
+   * @param size the size of each cell, in screen pixels
+   */
+  public void setCellSize( int size ) {
+    if( size != cellSize ) {
+      cellSize = size;
+      image = null;
+    }
+  }
+
+  /**
+   * Throws away the cached grid, until it is needed again.
+   */
+  public void invalidate() {
+    image = null;
+  }
+
+  /**
+   * Paints the grid over an area, with lines every cell from the origin.
+   *
+   * @param g the graphics object on which to paint
+   * @param area the area to cover, in the same coordinates as the grid
+   * @param viewport the size of the visible area, which the cached grid is
+   *          made large enough to cover
+   */
+  public void paint( Graphics g, Rectangle area, Rectangle viewport ) {
+    if( cellSize <= 1 || area.isEmpty() ) {
+      return;
+    }
+
+    // the cache starts on a grid line, so it can be shifted by whole cells
+    int left = area.x - area.x % cellSize;
+    int top = area.y - area.y % cellSize;
+    int right = area.x + area.width;
+    int bottom = area.y + area.height;
+
+    BufferedImage grid = getImage( Math.max( viewport.width, right - left ),
+                                   Math.max( viewport.height, bottom - top ) );
+
+    g.drawImage( grid,
+                 area.x, area.y, right, bottom,
+                 area.x - left, area.y - top, right - left, bottom - top,
+                 null );
+  }
+
+  /*
+   * the cached grid, drawn again if it is missing or too small for the area.
+   * It is made one cell larger than asked, so it still covers the area once
+   * shifted back to the last grid line.
+   */
+  private BufferedImage getImage( int width, int height ) {
+    if( image != null
+        && image.getWidth() >= width + cellSize
+        && image.getHeight() >= height + cellSize ) {
+      return image;
+    }
+
+    int w = width + cellSize;
+    int h = height + cellSize;
+    image = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+
+    Graphics g = image.getGraphics();
+    g.setColor( color );
+    for( int x = 0; x < w; x += cellSize ) {
+      g.drawLine( x, 0, x, h );
+    }
+    for( int y = 0; y < h; y += cellSize ) {
+      g.drawLine( 0, y, w, y );
+    }
+    g.dispose();
+
+    return image;
+  }
+}
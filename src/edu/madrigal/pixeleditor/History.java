@@ -0,0 +1,527 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the undo history of a canvas as a list of tile differences.
+ *
+ * Before a region of the canvas is changed it must be touched, which saves a
+ * copy of every tile under it that has not been saved yet for the current
+ * edit. Committing the edit keeps only the tiles that really changed, so each
+ * entry costs as much memory as the area it modified, and a tile of a single
+ * color costs almost nothing. Once the entries go over the byte budget, the
+ * oldest ones are forgotten.
+ *
+ * Edits can be made on several canvases of the same size, like the layers of
+ * an image, one at a time. Each entry remembers the canvas it was made on.
+ *
+ * Changing a color of an indexed canvas's table is an entry of its own,
+ * which only holds the color before and after. Changing the same color again
+ * right after is merged into it, so dragging through many colors is undone
+ * in one step.
+ *
+ * Recording can be turned off for images that are never undone, like in a
+ * batch, so edits don't copy the tiles they touch for nothing.
+ *
+ * @author nihil
+ */
+public class History {
+
+  // a rough cost for the bookkeeping of each saved tile
+  private static final int TILE_OVERHEAD = 64;
+
+  // the canvas the next edits are made on
+  private TiledCanvas canvas;
+
+  /*
+   * the list of edits, how many of them are currently applied, and the
+   * memory they are allowed to take
+   */
+  private final ArrayList< Entry > entries;
+  private int position;
+  private long budget;
+  private long used;
+
+  /*
+   * the edit in progress: which tiles have been saved, and their contents
+   * before the edit began
+   */
+  private final boolean[] captured;
+  private int[] pendingTiles;
+  private int[][] pendingData;
+  private int[] pendingFill;
+  private int pendingCount;
+
+  // whether edits are recorded, and if a region was touched while not
+  private boolean recording;
+  private boolean touched;
+
+  /**
+   * Constructor for the history of a canvas
+   *
+   * @param canvas the canvas to keep track of
+   * @param budget the most bytes the history may use
+   */
+  public History( TiledCanvas canvas, long budget ) {
+    this.canvas = canvas;
+    entries = new ArrayList< Entry >();
+    this.budget = budget;
+    captured = new boolean[canvas.getTileCount()];
+    pendingTiles = new int[16];
+    pendingData = new int[16][];
+    pendingFill = new int[16];
+    recording = true;
+  }
+
+  /**
+   * Sets the canvas the next edits are made on, which must be the same size
+   * as the first one. Must not be called during an edit.
+   *
+   * @param canvas the canvas to keep track of
+   */
+  public void setCanvas( TiledCanvas canvas ) {
+    this.canvas = canvas;
+  }
+
+  /**
+   * The most bytes the history may use
+   *
+   * @return the byte budget
+   */
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * Sets the most bytes the history may use, forgetting the oldest edits if
+   * they no longer fit.
+   *
+   * @param budget the byte budget
+   */
+  public void setBudget( long budget ) {
+    this.budget = budget;
+    evict();
+  }
+
+  /**
+   * Whether edits are recorded, so they can be undone
+   *
+   * @return if edits are recorded
+   */
+  public boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * Sets whether edits are recorded. Without recording, touching a region
+   * saves nothing and committing keeps nothing, and every edit that touched
+   * a region counts as changing something. Turning it off forgets every
+   * edit. Must not be called during an edit.
+   *
+   * @param recording if edits are recorded
+   */
+  public void setRecording( boolean recording ) {
+    this.recording = recording;
+    if( !recording ) {
+      clear();
+    }
+  }
+
+  /**
+   * How many bytes the history is using right now
+   *
+   * @return the bytes used by every entry
+   */
+  public long getUsed() {
+    return used;
+  }
+
+  /**
+   * Whether there is an edit to undo
+   *
+   * @return if undo would do something
+   */
+  public boolean canUndo() {
+    return position > 0;
+  }
+
+  /**
+   * Whether there is an edit to redo
+   *
+   * @return if redo would do something
+   */
+  public boolean canRedo() {
+    return position < entries.size();
+  }
+
+  /**
+   * Saves the tiles under the given region, if they have not been saved yet
+   * for the current edit. Must be called before the region is changed.
+   *
+   * @param x the x-coord of the region
+   * @param y the y-coord of the region
+   * @param w the width of the region
+   * @param h the height of the region
+   */
+  public void touch( int x, int y, int w, int h ) {
+
+    // clip the region to the canvas
+    int x0 = Math.max( x, 0 );
+    int y0 = Math.max( y, 0 );
+    int x1 = Math.min( x + w, canvas.getWidth() );
+    int y1 = Math.min( y + h, canvas.getHeight() );
+
+    if( x0 >= x1 || y0 >= y1 ) {
+      return;
+    }
+    if( !recording ) {
+      touched = true;
+      return;
+    }
+
+    int tx1 = ( x1 - 1 ) >> TiledCanvas.TILE_SHIFT;
+    int ty1 = ( y1 - 1 ) >> TiledCanvas.TILE_SHIFT;
+
+    for( int ty = y0 >> TiledCanvas.TILE_SHIFT; ty <= ty1; ty++ ) {
+      for( int tx = x0 >> TiledCanvas.TILE_SHIFT; tx <= tx1; tx++ ) {
+        int tile = ty * canvas.getTilesX() + tx;
+        if( !captured[tile] ) {
+          captured[tile] = true;
+          addPending( tile );
+        }
+      }
+    }
+  }
+
+  /**
+   * Ends the current edit, and records the tiles it changed as a new entry.
+   * Any edits that were undone are forgotten.
+   *
+   * @return if the edit changed anything
+   */
+  public boolean commit() {
+    if( !recording ) {
+      boolean changed = touched;
+      touched = false;
+      return changed;
+    }
+
+    Entry entry = new Entry( canvas, pendingCount );
+
+    // keep only the tiles that really changed
+    for( int i = 0; i < pendingCount; i++ ) {
+      int tile = pendingTiles[i];
+      captured[tile] = false;
+
+      // a tile painted over with one color goes back to being uniform
+      canvas.compact( tile );
+      int[] current = canvas.getTileData( tile );
+      int color = canvas.getUniformColor( tile );
+
+      boolean changed = current == null
+          ? pendingData[i] != null || pendingFill[i] != color
+          : !Arrays.equals( pendingData[i], current );
+
+      if( changed ) {
+        entry.add( tile, pendingData[i], pendingFill[i],
+                   current == null ? null : current.clone(), color );
+      }
+      pendingData[i] = null;
+    }
+    pendingCount = 0;
+
+    if( entry.count == 0 ) {
+      return false;
+    }
+
+    // anything past the current position can't be redone anymore
+    while( entries.size() > position ) {
+      used -= entries.remove( entries.size() - 1 ).bytes;
+    }
+
+    entries.add( entry );
+    position++;
+    used += entry.bytes;
+    evict();
+    return true;
+  }
+
+  /**
+   * Sets a color of the color table of the canvas being edited, as an edit
+   * of its own. Must not be called during an edit.
+   *
+   * @param index the index of the color, which can't be the first
+   * @param argb the new ARGB color
+   * @return if the color changed
+   */
+  public boolean recolor( int index, int argb ) {
+    ColorTable table = canvas.getColorTable();
+    int before = table.getColor( index );
+    table.setColor( index, argb );
+    int after = table.getColor( index );
+    if( after == before ) {
+      return false;
+    }
+    if( !recording ) {
+      return true;
+    }
+
+    // the last edit made recolored the same entry, so it now goes from
+    // that one's color before. A new entry replaces it, since saved entries
+    // must never change
+    if( position > 0 && position == entries.size() ) {
+      Entry last = entries.get( position - 1 );
+      if( last.table == table && last.colorIndex == index ) {
+        entries.set( position - 1, Entry.recolor( last.canvas, table, index,
+                                                  last.beforeColor, after ) );
+        return true;
+      }
+    }
+
+    while( entries.size() > position ) {
+      used -= entries.remove( entries.size() - 1 ).bytes;
+    }
+    Entry entry = Entry.recolor( canvas, table, index, before, after );
+    entries.add( entry );
+    position++;
+    used += entry.bytes;
+    evict();
+    return true;
+  }
+
+  /**
+   * The canvas the next undo would change
+   *
+   * @return the canvas of the last edit, or null if there is nothing to
+   *         undo
+   */
+  public TiledCanvas getUndoCanvas() {
+    return canUndo() ? entries.get( position - 1 ).canvas : null;
+  }
+
+  /**
+   * The canvas the next redo would change
+   *
+   * @return the canvas of the last undone edit, or null if there is nothing
+   *         to redo
+   */
+  public TiledCanvas getRedoCanvas() {
+    return canRedo() ? entries.get( position ).canvas : null;
+  }
+
+  /**
+   * Restores the tiles changed by the last edit.
+   *
+   * @return the region that was restored, or null if there was nothing to
+   *         undo
+   */
+  public Rectangle undo() {
+    if( !canUndo() ) {
+      return null;
+    }
+    position--;
+    Entry entry = entries.get( position );
+    if( entry.table != null ) {
+      return restoreColor( entry, entry.beforeColor );
+    }
+    return restore( entry, entry.beforeData, entry.beforeFill );
+  }
+
+  /**
+   * Reapplies the tiles changed by the last undone edit.
+   *
+   * @return the region that was restored, or null if there was nothing to
+   *         redo
+   */
+  public Rectangle redo() {
+    if( !canRedo() ) {
+      return null;
+    }
+    Entry entry = entries.get( position );
+    position++;
+    if( entry.table != null ) {
+      return restoreColor( entry, entry.afterColor );
+    }
+    return restore( entry, entry.afterData, entry.afterFill );
+  }
+
+  /**
+   * The entries, oldest first, which must not be changed
+   *
+   * @return every entry in the history
+   */
+  List< Entry > getEntries() {
+    return Collections.unmodifiableList( entries );
+  }
+
+  /**
+   * How many of the entries are currently applied
+   *
+   * @return the number of edits that can be undone
+   */
+  int getPosition() {
+    return position;
+  }
+
+  /**
+   * Replaces every entry, like when a saved project is opened.
+   *
+   * @param saved the entries, oldest first
+   * @param applied how many of them are currently applied
+   */
+  void setEntries( List< Entry > saved, int applied ) {
+    clear();
+    for( Entry entry : saved ) {
+      entries.add( entry );
+      used += entry.bytes;
+    }
+    position = applied;
+    evict();
+  }
+
+  /**
+   * Forgets every entry and the edit in progress.
+   */
+  public void clear() {
+    for( int i = 0; i < pendingCount; i++ ) {
+      captured[pendingTiles[i]] = false;
+      pendingData[i] = null;
+    }
+    pendingCount = 0;
+    touched = false;
+    entries.clear();
+    position = 0;
+    used = 0;
+  }
+
+  /*
+   * forgets the oldest entries until the history fits in its budget, always
+   * keeping the newest one so the last edit can be undone
+   */
+  private void evict() {
+    int evicted = 0;
+    while( used > budget && entries.size() - evicted > 1
+           && evicted < position ) {
+      used -= entries.get( evicted ).bytes;
+      evicted++;
+    }
+    if( evicted > 0 ) {
+      entries.subList( 0, evicted ).clear();
+      position -= evicted;
+    }
+  }
+
+  /*
+   * saves the contents of a tile as they are before the edit
+   */
+  private void addPending( int tile ) {
+    if( pendingCount == pendingTiles.length ) {
+      pendingTiles = Arrays.copyOf( pendingTiles, pendingCount * 2 );
+      pendingData = Arrays.copyOf( pendingData, pendingCount * 2 );
+      pendingFill = Arrays.copyOf( pendingFill, pendingCount * 2 );
+    }
+    int[] pixels = canvas.getTileData( tile );
+    pendingTiles[pendingCount] = tile;
+    pendingData[pendingCount] = pixels == null ? null : pixels.clone();
+    pendingFill[pendingCount] = canvas.getUniformColor( tile );
+    pendingCount++;
+  }
+
+  /*
+   * copies one side of an entry back into the canvas, and returns the region
+   * it covers
+   */
+  private Rectangle restore( Entry entry, int[][] data, int[] fill ) {
+    TiledCanvas canvas = entry.canvas;
+    Rectangle bounds = null;
+    for( int i = 0; i < entry.count; i++ ) {
+      int tile = entry.tiles[i];
+      canvas.setTile( tile,
+                      data[i] == null ? null : data[i].clone(),
+                      fill[i] );
+
+      Rectangle area = new Rectangle( canvas.tileLeft( tile ),
+                                      canvas.tileTop( tile ),
+                                      canvas.tileWidth( tile ),
+                                      canvas.tileHeight( tile ) );
+      if( bounds == null ) {
+        bounds = area;
+      } else {
+        bounds.add( area );
+      }
+    }
+    return bounds;
+  }
+
+  /*
+   * sets a color of a table back to one side of an entry, which changes the
+   * whole canvas
+   */
+  private Rectangle restoreColor( Entry entry, int color ) {
+    entry.table.setColor( entry.colorIndex, color );
+    return new Rectangle( entry.canvas.getWidth(),
+                          entry.canvas.getHeight() );
+  }
+
+  /*
+   * a single edit: the canvas it was made on, the tiles it changed, and their
+   * contents before and after, either as pixels or as a single color. An
+   * edit to a color table has no tiles, just the color before and after
+   */
+  static class Entry {
+    TiledCanvas canvas;
+    int[] tiles;
+    int[][] beforeData;
+    int[] beforeFill;
+    int[][] afterData;
+    int[] afterFill;
+    int count;
+    long bytes;
+    ColorTable table;
+    int colorIndex;
+    int beforeColor;
+    int afterColor;
+
+    static Entry recolor( TiledCanvas canvas, ColorTable table, int index,
+                          int before, int after ) {
+      Entry entry = new Entry( canvas, 0 );
+      entry.table = table;
+      entry.colorIndex = index;
+      entry.beforeColor = before;
+      entry.afterColor = after;
+      entry.bytes = TILE_OVERHEAD;
+      return entry;
+    }
+
+    Entry( TiledCanvas canvas, int capacity ) {
+      this.canvas = canvas;
+      tiles = new int[capacity];
+      beforeData = new int[capacity][];
+      beforeFill = new int[capacity];
+      afterData = new int[capacity][];
+      afterFill = new int[capacity];
+    }
+
+    void add( int tile, int[] before, int beforeColor,
+              int[] after, int afterColor ) {
+      tiles[count] = tile;
+      beforeData[count] = before;
+      beforeFill[count] = beforeColor;
+      afterData[count] = after;
+      afterFill[count] = afterColor;
+      count++;
+
+      bytes += TILE_OVERHEAD;
+      if( before != null ) {
+        bytes += 4L * before.length;
+      }
+      if( after != null ) {
+        bytes += 4L * after.length;
+      }
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingWorker;
+
+/**
+ * Reads an image file onto a canvas in the background, scaling it to any
+ * size and reporting its progress from 0 to 100 as it goes.
+ *
+ * The whole image is never decoded at once. When it is shrunk, the reader
+ * skips the rows and columns that would be thrown away anyway, and when it
+ * is read at full size, it is read a band of rows at a time, so opening a
+ * huge image only needs about as much memory as the canvas it ends up on.
+ *
+ * @author nihil
+ */
+public class ImageLoader extends SwingWorker< TiledCanvas, Void > {
+
+  // about how many pixels are decoded at once when reading at full size
+  private static final int BAND_PIXELS = 1 << 22;
+
+  /*
+   * the most bands an untiled image is read in, since most readers, like
+   * PNG's, have to decode every row above a band again to reach it
+   */
+  private static final int MAX_BANDS = 4;
+
+  private final File file;
+  private final int width;
+  private final int height;
+  private final int imageWidth;
+  private final int imageHeight;
+  private final int background;
+
+  // how much of the image was read before the current read began, and how
+  // much the current read covers
+  private float progressBase;
+  private float progressSpan;
+
+  /**
+   * Constructor for a loader
+   *
+   * @param file the image file to read
+   * @param width the width of the canvas to read it onto
+   * @param height the height of the canvas to read it onto
+   * @param imageWidth how wide the image is drawn, from the left edge
+   * @param imageHeight how tall the image is drawn, from the top edge
+   * @param background the color of the canvas under the image
+   */
+  public ImageLoader( File file, int width, int height, int imageWidth,
+                      int imageHeight, int background ) {
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.imageWidth = Math.min( imageWidth, width );
+    this.imageHeight = Math.min( imageHeight, height );
+    this.background = background;
+  }
+
+  /**
+   * Reads the size of an image from the start of its file, without decoding
+   * any of its pixels
+   *
+   * @param file the image file
+   * @return the size of the image
+   * @throws IOException if the file can't be read or isn't an image
+   */
+  public static Dimension readSize( File file ) throws IOException {
+    try( ImageInputStream in = openStream( file ) ) {
+      ImageReader reader = openReader( in, file );
+      try {
+        return new Dimension( reader.getWidth( 0 ), reader.getHeight( 0 ) );
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  @Override
+  protected TiledCanvas doInBackground() throws IOException {
+    TiledCanvas canvas = new TiledCanvas( width, height, background );
+    try( ImageInputStream in = openStream( file ) ) {
+      ImageReader reader = openReader( in, file );
+      reader.addIIOReadProgressListener( new Progress() );
+      try {
+        int srcWidth = reader.getWidth( 0 );
+        int srcHeight = reader.getHeight( 0 );
+        if( srcWidth == imageWidth && srcHeight == imageHeight ) {
+          readBands( reader, canvas );
+        } else {
+          readScaled( reader, canvas, srcWidth, srcHeight );
+        }
+      } finally {
+        reader.dispose();
+      }
+    }
+    setProgress( 100 );
+    return canvas;
+  }
+
+  /*
+   * reads the image at full size, a band of rows at a time. Tiled images
+   * are read in whole rows of tiles, which the reader can decode on their
+   * own, and other images in a few large bands
+   */
+  private void readBands( ImageReader reader, TiledCanvas canvas )
+      throws IOException {
+    int bandHeight = Math.max( 1, BAND_PIXELS / imageWidth );
+    if( reader.isImageTiled( 0 ) ) {
+      int tileHeight = reader.getTileHeight( 0 );
+      bandHeight = Math.max( 1, bandHeight / tileHeight ) * tileHeight;
+    } else {
+      bandHeight = Math.max( bandHeight,
+                             ( imageHeight + MAX_BANDS - 1 ) / MAX_BANDS );
+    }
+    int[] row = new int[imageWidth];
+    ImageReadParam param = reader.getDefaultReadParam();
+    for( int top = 0; top < imageHeight && !isCancelled();
+         top += bandHeight ) {
+      int rows = Math.min( bandHeight, imageHeight - top );
+      param.setSourceRegion( new Rectangle( 0, top, imageWidth, rows ) );
+      progressBase = (float) top / imageHeight;
+      progressSpan = (float) rows / imageHeight;
+      BufferedImage band = reader.read( 0, param );
+      for( int y = 0; y < rows; y++ ) {
+        band.getRGB( 0, y, imageWidth, 1, row, 0, imageWidth );
+        canvas.paintRow( 0, top + y, row, 0, imageWidth );
+      }
+    }
+  }
+
+  /*
+   * reads the image skipping whole rows and columns, so it is decoded at no
+   * less than the size it is drawn but less than twice it, then picks the
+   * nearest pixels from that
+   */
+  private void readScaled( ImageReader reader, TiledCanvas canvas,
+                           int srcWidth, int srcHeight ) throws IOException {
+    int stepX = Math.max( 1, srcWidth / imageWidth );
+    int stepY = Math.max( 1, srcHeight / imageHeight );
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceSubsampling( stepX, stepY, 0, 0 );
+    progressBase = 0;
+    progressSpan = 1;
+    BufferedImage image = reader.read( 0, param );
+    if( isCancelled() ) {
+      return;
+    }
+
+    int[] src = new int[image.getWidth()];
+    int[] row = new int[imageWidth];
+    int[] columns = new int[imageWidth];
+    for( int x = 0; x < imageWidth; x++ ) {
+      columns[x] = (int) ( (long) x * srcWidth / imageWidth / stepX );
+    }
+    for( int y = 0; y < imageHeight; y++ ) {
+      int sy = (int) ( (long) y * srcHeight / imageHeight / stepY );
+      image.getRGB( 0, sy, src.length, 1, src, 0, src.length );
+      for( int x = 0; x < imageWidth; x++ ) {
+        row[x] = src[columns[x]];
+      }
+      canvas.paintRow( 0, y, row, 0, imageWidth );
+    }
+  }
+
+  /*
+   * opens a stream over the file
+   */
+  private static ImageInputStream openStream( File file )
+      throws IOException {
+    ImageInputStream in = ImageIO.createImageInputStream( file );
+    if( in == null ) {
+      throw new IOException( "Unable to read " + file.getName() + "." );
+    }
+    return in;
+  }
+
+  /*
+   * finds a reader that understands the stream
+   */
+  private static ImageReader openReader( ImageInputStream in, File file )
+      throws IOException {
+    Iterator< ImageReader > readers = ImageIO.getImageReaders( in );
+    if( !readers.hasNext() ) {
+      throw new IOException( file.getName() + " is not a supported image." );
+    }
+    ImageReader reader = readers.next();
+    reader.setInput( in, false, true );
+    return reader;
+  }
+
+  /*
+   * passes on the progress of the reader, as a part of the whole image
+   */
+  private class Progress implements IIOReadProgressListener {
+
+    @Override
+    public void imageProgress( ImageReader source, float percentageDone ) {
+      int done = (int) ( 100 * progressBase
+                         + progressSpan * percentageDone );
+      setProgress( Math.max( 0, Math.min( done, 100 ) ) );
+    }
+
+    @Override
+    public void sequenceStarted( ImageReader source, int minIndex ) {
+    }
+
+    @Override
+    public void sequenceComplete( ImageReader source ) {
+    }
+
+    @Override
+    public void imageStarted( ImageReader source, int imageIndex ) {
+    }
+
+    @Override
+    public void imageComplete( ImageReader source ) {
+    }
+
+    @Override
+    public void thumbnailStarted( ImageReader source, int imageIndex,
+                                  int thumbnailIndex ) {
+    }
+
+    @Override
+    public void thumbnailProgress( ImageReader source,
+                                   float percentageDone ) {
+    }
+
+    @Override
+    public void thumbnailComplete( ImageReader source ) {
+    }
+
+    @Override
+    public void readAborted( ImageReader source ) {
+    }
+  }
+}
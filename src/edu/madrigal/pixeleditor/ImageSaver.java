@@ -0,0 +1,179 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.SwingWorker;
+
+/**
+ * Writes an image to a file in the background, reporting its progress from
+ * 0 to 100 as it goes.
+ *
+ * The image is written to a temporary file next to the real one, which is
+ * synced to disk and then moved over the real one in a single step, so the
+ * file is never left half written. Once the worker is done without an error,
+ * the image is safely on disk.
+ *
+ * @author nihil
+ */
+public class ImageSaver extends SwingWorker< Void, Void > {
+
+  private final RenderedImage image;
+  private final File file;
+  private final String format;
+  private final PngEncoder encoder;
+
+  /**
+   * Constructor for a saver
+   *
+   * @param image the image to write, which must not change until it's done
+   * @param file the file to write to
+   * @param format the informal name of the format, like "PNG"
+   */
+  public ImageSaver( RenderedImage image, File file, String format ) {
+    this.image = image;
+    this.file = file;
+    this.format = format;
+    encoder = null;
+  }
+
+  /**
+   * Constructor for a saver that writes a PNG with an encoder of our own
+   *
+   * @param image the image to write, which must not change until it's done
+   * @param file the file to write to
+   * @param encoder the settings to write the PNG with
+   */
+  public ImageSaver( RenderedImage image, File file, PngEncoder encoder ) {
+    this.image = image;
+    this.file = file;
+    format = "PNG";
+    this.encoder = new PngEncoder( encoder ) {
+      @Override
+      protected void progress( int percent ) {
+        setProgress( percent );
+      }
+    };
+  }
+
+  /**
+   * Constructor for a saver that writes the file its own way, by
+   * overriding write
+   *
+   * @param file the file to write to
+   */
+  protected ImageSaver( File file ) {
+    this( null, file, (String) null );
+  }
+
+  /**
+   * The file being written to
+   *
+   * @return the file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  protected Void doInBackground() throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile( file.getName(), ".tmp", directory );
+    try {
+      try( FileOutputStream out = new FileOutputStream( temp ) ) {
+        write( out );
+        out.getFD().sync();
+      }
+      Files.move( temp.toPath(), file.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE );
+    } finally {
+      Files.deleteIfExists( temp.toPath() );
+    }
+
+    // the move itself only lasts once the directory is synced too, which
+    // some systems don't allow
+    try( FileChannel dir = FileChannel.open( directory.toPath(),
+                                             StandardOpenOption.READ ) ) {
+      dir.force( true );
+    } catch( IOException e ) {
+    }
+    return null;
+  }
+
+  /**
+   * Writes the file, from the thread writing it, with our own encoder for
+   * PNG or whichever ImageIO writer handles the format.
+   *
+   * @param out the temporary file, at its start
+   * @throws IOException if the file can't be written
+   */
+  protected void write( FileOutputStream out ) throws IOException {
+    if( encoder != null ) {
+      encoder.write( image, out );
+      return;
+    }
+    Iterator< ImageWriter > writers =
+        ImageIO.getImageWritersByFormatName( format );
+    if( !writers.hasNext() ) {
+      throw new IOException( "No writer for " + format + " images." );
+    }
+    ImageWriter writer = writers.next();
+    writer.addIIOWriteProgressListener( new Progress() );
+    try( ImageOutputStream stream = ImageIO.createImageOutputStream( out ) ) {
+      writer.setOutput( stream );
+      writer.write( image );
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  /*
+   * passes on the progress of the writer
+   */
+  private class Progress implements IIOWriteProgressListener {
+
+    @Override
+    public void imageStarted( ImageWriter source, int imageIndex ) {
+    }
+
+    @Override
+    public void imageProgress( ImageWriter source, float percentageDone ) {
+      setProgress( Math.max( 0, Math.min( (int) percentageDone, 100 ) ) );
+    }
+
+    @Override
+    public void imageComplete( ImageWriter source ) {
+      setProgress( 100 );
+    }
+
+    @Override
+    public void thumbnailStarted( ImageWriter source, int imageIndex,
+                                  int thumbnailIndex ) {
+    }
+
+    @Override
+    public void thumbnailProgress( ImageWriter source,
+                                   float percentageDone ) {
+    }
+
+    @Override
+    public void thumbnailComplete( ImageWriter source ) {
+    }
+
+    @Override
+    public void writeAborted( ImageWriter source ) {
+    }
+  }
+}
@@ -0,0 +1,700 @@
+package edu.madrigal.pixeleditor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the image being edited safe from a crash, without saving all of it
+ * after every edit.
+ *
+ * Now and then the whole image is saved to a checkpoint, which is a project
+ * file, and every edit after that is appended to a journal as the tiles it
+ * left behind. The tiles are compressed and written by a thread of their
+ * own, which syncs the journal to disk once for all the edits that piled up
+ * while it was busy with the last sync, so editing never waits on the disk.
+ * After a crash, the checkpoint is read and the journal replayed onto it, up
+ * to the last edit that made it to disk whole.
+ *
+ * The checkpoint and the journal both keep a generation number, and a
+ * journal is only replayed onto the checkpoint of its own generation. Each
+ * editor starts counting generations from a random number, so a journal
+ * left by an earlier one never matches a new checkpoint. A new
+ * checkpoint is taken when the frames or layers change, since the journal
+ * only knows about tiles, and when the journal grows long. The colors of an
+ * indexed image are journaled like tiles, so recoloring one doesn't take a
+ * checkpoint.
+ *
+ * A checkpoint is saved by the writer too, from a snapshot of the image
+ * that shares its tiles, so taking one costs the editor next to nothing. If
+ * it can't be saved, the listener is told, and another is tried a little
+ * later.
+ *
+ * @author nihil
+ */
+public class Journal {
+
+  // "PXEJ"
+  private static final int MAGIC = 0x5058454a;
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  // once the journal is this long, the next edit takes a checkpoint, 64 MB
+  private static final long CHECKPOINT_LENGTH = 64L << 20;
+
+  // how a tile is stored in a record
+  private static final byte TILE_UNIFORM = 0;
+  private static final byte TILE_DEFLATED = 1;
+
+  private static final int TILE_BYTES = TiledCanvas.TILE_AREA * 4;
+
+  // how long to wait after a checkpoint fails before trying another
+  private static final long RETRY_MILLIS = 10000;
+
+  // the layer a color of the color table is recorded as, with the index of
+  // the color as its tile
+  private static final int COLOR_LAYER = -1;
+
+  /**
+   * Told when journaling stops working
+   */
+  public interface Listener {
+
+    /**
+     * Called on the writer thread when a checkpoint can't be saved, once
+     * until one is saved again. Edits aren't recoverable until then.
+     *
+     * @param e why the checkpoint couldn't be saved
+     */
+    void checkpointFailed( IOException e );
+  }
+
+  private final File checkpointFile;
+  private final File journalFile;
+  private final FileChannel channel;
+  private final FileLock lock;
+  private final ProjectFile checkpoint;
+  private final Thread writer;
+
+  // the image being journaled, and its frames as of the last record
+  private Document document;
+  private LayerState[] states;
+  private int frameCount;
+  private int gridSize;
+  private int framesPerSecond;
+
+  // the color table of the image, if it is indexed, and its colors as of
+  // the last record
+  private ColorTable colors;
+  private int[] colorValues;
+
+  // told when a checkpoint fails, if anything is
+  private volatile Listener listener;
+
+  // the records waiting to be written, which also guards what follows
+  private final List< Record > pending;
+  private long generation;
+  private boolean closed;
+
+  // set by the writer when a write fails, until the next checkpoint
+  private volatile boolean broken;
+
+  // the generation the writer last started, and when to try another after
+  // a checkpoint failed
+  private volatile long started;
+  private volatile long retryAt;
+
+  // whether the writer has told the listener the last checkpoint failed
+  private boolean failing;
+
+  // how long the journal is, as far as the writer got
+  private volatile long length;
+
+  /**
+   * Constructor for a journal in a directory. Nothing already in it is
+   * changed until the first checkpoint, so it can still be recovered.
+   *
+   * @param directory the directory to keep the checkpoint and journal in
+   * @throws IOException if the directory can't be used, or another editor
+   *           is using it
+   */
+  public Journal( File directory ) throws IOException {
+    if( !directory.isDirectory() && !directory.mkdirs() ) {
+      throw new IOException( "Unable to create " + directory + "." );
+    }
+    checkpointFile = new File( directory,
+                               "autosave." + ProjectFile.EXTENSION );
+    journalFile = new File( directory, "autosave.journal" );
+    channel = FileChannel.open( journalFile.toPath(),
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE );
+    FileLock locked;
+    try {
+      locked = channel.tryLock();
+    } catch( IOException e ) {
+      channel.close();
+      throw e;
+    }
+    if( locked == null ) {
+      channel.close();
+      throw new IOException( "Another editor is using " + directory + "." );
+    }
+    lock = locked;
+    checkpoint = new ProjectFile( checkpointFile );
+    pending = new ArrayList< Record >();
+    generation = new Random().nextLong() >>> 1;
+
+    writer = new Thread( new Runnable() {
+      public void run() {
+        write();
+      }
+    }, "Journal Writer" );
+    writer.setDaemon( true );
+    writer.start();
+  }
+
+  /**
+   * Whether an editor that didn't exit cleanly left an image behind
+   *
+   * @return if there is an image to recover
+   */
+  public boolean canRecover() {
+    return document == null && checkpointFile.isFile();
+  }
+
+  /**
+   * Reads the image left behind by an editor that didn't exit cleanly: the
+   * last checkpoint, with every whole edit in the journal after it replayed.
+   * Its history is lost, since the edits replayed aren't in it.
+   *
+   * @return the image, which is unsaved
+   * @throws IOException if the checkpoint can't be read
+   */
+  public Document recover() throws IOException {
+    ProjectFile project = ProjectFile.open( checkpointFile );
+    List< LayerStack > frames = project.getFrames();
+    List< TiledCanvas > canvases = new ArrayList< TiledCanvas >();
+    for( LayerStack stack : frames ) {
+      for( int i = 0; i < stack.getLayerCount(); i++ ) {
+        canvases.add( stack.getLayer( i ).getCanvas() );
+      }
+    }
+
+    channel.position( 0 );
+    DataInputStream in = new DataInputStream( new BufferedInputStream(
+        Channels.newInputStream( channel ) ) );
+    try {
+      if( channel.size() >= HEADER_SIZE && in.readInt() == MAGIC
+          && in.readInt() == FORMAT_VERSION
+          && in.readLong() == project.getStamp() ) {
+        replay( in, channel.size() - HEADER_SIZE, canvases );
+      }
+    } catch( EOFException e ) {
+      // the header itself was cut short, so there is nothing to replay
+    }
+    for( LayerStack stack : frames ) {
+      stack.invalidate();
+    }
+
+    Document recovered = new Document( frames, project.getFrameIndex() );
+    recovered.setGridSize( project.getGridSize() );
+    recovered.setFramesPerSecond( project.getFramesPerSecond() );
+    recovered.markModified();
+    return recovered;
+  }
+
+  /*
+   * applies every record up to the first one that is cut short or damaged,
+   * which is where the editor stopped
+   */
+  private static void replay( DataInputStream in, long remaining,
+                              List< TiledCanvas > canvases )
+      throws IOException {
+    Inflater inflater = new Inflater();
+    CRC32 crc = new CRC32();
+    byte[] raw = new byte[TILE_BYTES];
+    ColorTable colors = canvases.get( 0 ).getColorTable();
+    try {
+      while( remaining >= 8 ) {
+        int size = in.readInt();
+        int sum = in.readInt();
+        remaining -= 8;
+        if( size < 4 || size > remaining ) {
+          return;
+        }
+        byte[] payload = new byte[size];
+        in.readFully( payload );
+        remaining -= size;
+        crc.reset();
+        crc.update( payload, 0, size );
+        if( (int) crc.getValue() != sum ) {
+          return;
+        }
+
+        // read the whole record before applying any of it
+        DataInputStream record =
+            new DataInputStream( new ByteArrayInputStream( payload ) );
+        int count = record.readInt();
+        List< Tile > tiles = new ArrayList< Tile >();
+        // colors may be added as the record goes, so the size is tracked
+        int colorCount = colors == null ? 0 : colors.size();
+        for( int i = 0; i < count; i++ ) {
+          int layer = record.readInt();
+          int index = record.readInt();
+          if( layer == COLOR_LAYER ) {
+            if( index < 1 || index > colorCount
+                || index == ColorTable.MAX_COLORS
+                || record.readByte() != TILE_UNIFORM ) {
+              return;
+            }
+            colorCount = Math.max( colorCount, index + 1 );
+            tiles.add( new Tile( layer, index, null, record.readInt() ) );
+            continue;
+          }
+          if( layer < 0 || layer >= canvases.size() || index < 0
+              || index >= canvases.get( layer ).getTileCount() ) {
+            return;
+          }
+          byte kind = record.readByte();
+          if( kind == TILE_UNIFORM ) {
+            tiles.add( new Tile( layer, index, null, record.readInt() ) );
+          } else if( kind == TILE_DEFLATED ) {
+            int length = canvases.get( layer ).getTileLength();
+            byte[] deflated = new byte[record.readInt()];
+            record.readFully( deflated );
+            inflater.reset();
+            inflater.setInput( deflated );
+            if( inflater.inflate( raw ) != 4 * length
+                || !inflater.finished() ) {
+              return;
+            }
+            int[] pixels = new int[length];
+            ByteBuffer.wrap( raw ).asIntBuffer().get( pixels );
+            tiles.add( new Tile( layer, index, pixels, 0 ) );
+          } else {
+            return;
+          }
+        }
+        for( Tile tile : tiles ) {
+          if( tile.layer == COLOR_LAYER ) {
+            colors.setColor( tile.index, tile.color );
+          } else {
+            canvases.get( tile.layer )
+                    .setTile( tile.index, tile.pixels, tile.color );
+          }
+        }
+      }
+    } catch( EOFException | DataFormatException
+             | NegativeArraySizeException e ) {
+      // the last record was cut short
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Sets what is told when journaling stops working
+   *
+   * @param listener the listener, or null
+   */
+  public void setListener( Listener listener ) {
+    this.listener = listener;
+  }
+
+  /**
+   * Saves a whole image as the checkpoint, and starts a new journal after
+   * it. Once this is done, the image is journaled instead of any before it.
+   * This returns right away; the image is saved in the background, from a
+   * snapshot of it as it is now.
+   *
+   * @param image the image being edited
+   */
+  public void checkpoint( Document image ) {
+    Record record = new Record();
+    record.frames = new ArrayList< LayerStack >();
+    record.originals = new ArrayList< TiledCanvas >();
+    for( LayerStack stack : image.getFrames() ) {
+      record.frames.add( stack.snapshot() );
+      for( int i = 0; i < stack.getLayerCount(); i++ ) {
+        record.originals.add( stack.getLayer( i ).getCanvas() );
+      }
+    }
+    record.frame = image.getFrameIndex();
+    record.gridSize = image.getGridSize();
+    record.framesPerSecond = image.getFramesPerSecond();
+    document = image;
+    remember( image );
+
+    synchronized( pending ) {
+      // whatever is waiting is in the checkpoint anyway
+      pending.clear();
+      record.generation = ++generation;
+      pending.add( record );
+      pending.notifyAll();
+    }
+  }
+
+  /**
+   * Appends the tiles changed since the last record to the journal, or takes
+   * a checkpoint instead if the layers themselves changed. This returns
+   * right away; the tiles are written in the background.
+   *
+   * @param image the image being edited
+   */
+  public void record( Document image ) {
+
+    // once the writer finds the journal broken it is started over with a
+    // checkpoint, though not until a while after one failed
+    boolean broke = broken && started == generation;
+    if( broke && System.currentTimeMillis() < retryAt ) {
+      return;
+    }
+    if( image != document || broke || length > CHECKPOINT_LENGTH
+        || !unchanged( image ) ) {
+      checkpoint( image );
+      return;
+    }
+
+    Record record = new Record();
+    for( int i = 0; i < states.length; i++ ) {
+      TiledCanvas canvas = states[i].canvas;
+      long version = states[i].version;
+      if( canvas.getVersion() <= version ) {
+        continue;
+      }
+      for( int tile = 0; tile < canvas.getTileCount(); tile++ ) {
+        if( canvas.getTileVersion( tile ) > version ) {
+          record.tiles.add( new Tile( i, tile, canvas.getSharedTile( tile ),
+                                      canvas.getUniformColor( tile ) ) );
+        }
+      }
+      states[i].version = canvas.getVersion();
+    }
+
+    // colors changed or added since, in order, so added ones replay as
+    // added
+    for( int i = 1; colors != null && i < colors.size(); i++ ) {
+      int color = colors.getColor( i );
+      if( i >= colorValues.length || colorValues[i] != color ) {
+        record.tiles.add( new Tile( COLOR_LAYER, i, null, color ) );
+      }
+    }
+    if( colors != null ) {
+      colorValues = colors.getColors();
+    }
+    if( !record.tiles.isEmpty() ) {
+      enqueue( record );
+    }
+  }
+
+  /*
+   * notes the layers of every frame of an image, as they are in a
+   * checkpoint. Records number the layers across every frame
+   */
+  private void remember( Document image ) {
+    List< LayerState > list = new ArrayList< LayerState >();
+    for( LayerStack stack : image.getFrames() ) {
+      for( int i = 0; i < stack.getLayerCount(); i++ ) {
+        list.add( new LayerState( stack.getLayer( i ) ) );
+      }
+    }
+    states = list.toArray( new LayerState[list.size()] );
+    frameCount = image.getFrameCount();
+    gridSize = image.getGridSize();
+    framesPerSecond = image.getFramesPerSecond();
+    colors = image.getCanvas().getColorTable();
+    colorValues = colors == null ? null : colors.getColors();
+  }
+
+  /*
+   * whether the image still has the frames and layers last noted, so only
+   * their tiles could have changed
+   */
+  private boolean unchanged( Document image ) {
+    if( image.getFrameCount() != frameCount
+        || image.getGridSize() != gridSize
+        || image.getFramesPerSecond() != framesPerSecond
+        || image.getCanvas().getColorTable() != colors ) {
+      return false;
+    }
+    int i = 0;
+    for( LayerStack stack : image.getFrames() ) {
+      for( int l = 0; l < stack.getLayerCount(); l++, i++ ) {
+        if( i >= states.length || !states[i].matches( stack.getLayer( l ) ) ) {
+          return false;
+        }
+      }
+    }
+    return i == states.length;
+  }
+
+  private void enqueue( Record record ) {
+    synchronized( pending ) {
+      pending.add( record );
+      pending.notifyAll();
+    }
+  }
+
+  /**
+   * Writes what is left of the journal and lets go of the directory.
+   *
+   * @param discard whether to delete the checkpoint and journal, when the
+   *          editor exits cleanly and there is nothing to recover
+   */
+  public void close( boolean discard ) {
+    synchronized( pending ) {
+      closed = true;
+      pending.notifyAll();
+    }
+    boolean interrupted = false;
+    while( writer.isAlive() ) {
+      try {
+        writer.join();
+      } catch( InterruptedException e ) {
+        interrupted = true;
+      }
+    }
+    try {
+      lock.release();
+      channel.close();
+      if( discard ) {
+        Files.deleteIfExists( journalFile.toPath() );
+        Files.deleteIfExists( checkpointFile.toPath() );
+      }
+    } catch( IOException e ) {
+      // nothing more can be done on the way out
+    }
+    if( interrupted ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /*
+   * the writer thread: takes every record waiting, writes them, and syncs
+   * once for all of them
+   */
+  private void write() {
+    Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CRC32 crc = new CRC32();
+    try {
+      while( true ) {
+        List< Record > batch;
+        synchronized( pending ) {
+          while( pending.isEmpty() && !closed ) {
+            try {
+              pending.wait();
+            } catch( InterruptedException e ) {
+              return;
+            }
+          }
+          if( pending.isEmpty() ) {
+            return;
+          }
+          batch = new ArrayList< Record >( pending );
+          pending.clear();
+        }
+
+        try {
+          for( Record record : batch ) {
+            if( record.generation != 0 ) {
+              start( record );
+            } else if( !broken ) {
+              append( encode( record, deflater, bytes ), crc );
+            }
+          }
+          channel.force( false );
+        } catch( IOException e ) {
+          // the journal can't be trusted until the next checkpoint
+          broken = true;
+        }
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /*
+   * saves the checkpoint of a new generation and empties the journal for
+   * it, telling the listener if the checkpoint can't be saved
+   */
+  private void start( Record record ) throws IOException {
+    long stamp = record.generation;
+    broken = true;
+    started = stamp;
+    LayerStack current = record.frames.get( record.frame );
+    checkpoint.setStamp( stamp );
+    try {
+      checkpoint.save( record.frames, record.originals, record.frame,
+                       new History( current.getActiveLayer().getCanvas(),
+                                    0 ),
+                       record.gridSize, record.framesPerSecond );
+    } catch( IOException e ) {
+      retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+      Listener told = listener;
+      if( !failing && told != null ) {
+        told.checkpointFailed( e );
+      }
+      failing = true;
+      return;
+    }
+    failing = false;
+    channel.truncate( 0 );
+    ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+    header.putInt( MAGIC );
+    header.putInt( FORMAT_VERSION );
+    header.putLong( stamp );
+    header.flip();
+    writeFully( header, 0 );
+    length = HEADER_SIZE;
+    broken = false;
+  }
+
+  /*
+   * the payload of a record: how many tiles it has, then each tile with its
+   * layer, index and contents
+   */
+  private static byte[] encode( Record record, Deflater deflater,
+                                ByteArrayOutputStream bytes )
+      throws IOException {
+    bytes.reset();
+    DataOutputStream out = new DataOutputStream( bytes );
+    byte[] raw = new byte[TILE_BYTES];
+    byte[] deflated = new byte[TILE_BYTES + 64];
+    out.writeInt( record.tiles.size() );
+    for( Tile tile : record.tiles ) {
+      out.writeInt( tile.layer );
+      out.writeInt( tile.index );
+      if( tile.pixels == null ) {
+        out.writeByte( TILE_UNIFORM );
+        out.writeInt( tile.color );
+        continue;
+      }
+      ByteBuffer.wrap( raw ).asIntBuffer().put( tile.pixels );
+      deflater.reset();
+      deflater.setInput( raw, 0, 4 * tile.pixels.length );
+      deflater.finish();
+      int size = 0;
+      while( !deflater.finished() ) {
+        if( size == deflated.length ) {
+          deflated = Arrays.copyOf( deflated, size * 2 );
+        }
+        size += deflater.deflate( deflated, size, deflated.length - size );
+      }
+      out.writeByte( TILE_DEFLATED );
+      out.writeInt( size );
+      out.write( deflated, 0, size );
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /*
+   * appends a payload with its length and checksum
+   */
+  private void append( byte[] payload, CRC32 crc ) throws IOException {
+    crc.reset();
+    crc.update( payload, 0, payload.length );
+    ByteBuffer buffer = ByteBuffer.allocate( 8 + payload.length );
+    buffer.putInt( payload.length );
+    buffer.putInt( (int) crc.getValue() );
+    buffer.put( payload );
+    buffer.flip();
+    writeFully( buffer, length );
+    length += 8 + payload.length;
+  }
+
+  private void writeFully( ByteBuffer buffer, long position )
+      throws IOException {
+    while( buffer.hasRemaining() ) {
+      position += channel.write( buffer, position );
+    }
+  }
+
+  /*
+   * the tiles changed by an edit, or the checkpoint of a new generation
+   */
+  private static class Record {
+
+    long generation;
+    final List< Tile > tiles;
+
+    // the snapshot of a checkpoint, and the layers it was taken of
+    List< LayerStack > frames;
+    List< TiledCanvas > originals;
+    int frame;
+    int gridSize;
+    int framesPerSecond;
+
+    Record() {
+      tiles = new ArrayList< Tile >();
+    }
+  }
+
+  /*
+   * a tile as an edit left it
+   */
+  private static class Tile {
+
+    final int layer;
+    final int index;
+    final int[] pixels;
+    final int color;
+
+    Tile( int layer, int index, int[] pixels, int color ) {
+      this.layer = layer;
+      this.index = index;
+      this.pixels = pixels;
+      this.color = color;
+    }
+  }
+
+  /*
+   * a layer as it was last checkpointed, and how much of it was journaled
+   */
+  private static class LayerState {
+
+    final TiledCanvas canvas;
+    final String name;
+    final boolean visible;
+    final int opacity;
+    final BlendMode mode;
+    long version;
+
+    LayerState( Layer layer ) {
+      canvas = layer.getCanvas();
+      name = layer.getName();
+      visible = layer.isVisible();
+      opacity = layer.getOpacity();
+      mode = layer.getBlendMode();
+      version = canvas.getVersion();
+    }
+
+    boolean matches( Layer layer ) {
+      return layer.getCanvas() == canvas && layer.getName().equals( name )
+          && layer.isVisible() == visible
+          && layer.getOpacity() == opacity
+          && layer.getBlendMode() == mode;
+    }
+  }
+}
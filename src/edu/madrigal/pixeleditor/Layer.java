@@ -0,0 +1,99 @@
+package edu.madrigal.pixeleditor;
+
+/**
+ * A single layer of an image: a canvas, and how it is blended over the
+ * layers under it.
+ *
+ * The settings can only be changed through the layer stack holding it, so the
+ * stack knows when to flatten its layers again.
+ *
+ * @author nihil
+ */
+public class Layer {
+
+  private final TiledCanvas canvas;
+  private String name;
+  private boolean visible;
+  private int opacity;
+  private BlendMode mode;
+
+  /**
+   * Constructor for a visible, fully opaque layer blended normally
+   *
+   * @param name the name shown for the layer
+   * @param canvas the pixels of the layer
+   */
+  public Layer( String name, TiledCanvas canvas ) {
+    this.name = name;
+    this.canvas = canvas;
+    visible = true;
+    opacity = 0xff;
+    mode = BlendMode.NORMAL;
+  }
+
+  /**
+   * The pixels of the layer, as non-premultiplied ARGB
+   *
+   * @return the canvas of the layer
+   */
+  public TiledCanvas getCanvas() {
+    return canvas;
+  }
+
+  /**
+   * The name shown for the layer
+   *
+   * @return the name of the layer
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Whether the layer is drawn at all
+   *
+   * @return if the layer is visible
+   */
+  public boolean isVisible() {
+    return visible;
+  }
+
+  /**
+   * How opaque the whole layer is drawn
+   *
+   * @return the opacity, from 0 to 255
+   */
+  public int getOpacity() {
+    return opacity;
+  }
+
+  /**
+   * How the layer is blended over the layers under it
+   *
+   * @return the blend mode
+   */
+  public BlendMode getBlendMode() {
+    return mode;
+  }
+
+  void setName( String name ) {
+    this.name = name;
+  }
+
+  void setVisible( boolean visible ) {
+    this.visible = visible;
+  }
+
+  void setOpacity( int opacity ) {
+    this.opacity = Math.max( 0, Math.min( opacity, 0xff ) );
+  }
+
+  void setBlendMode( BlendMode mode ) {
+    this.mode = mode;
+  }
+
+  @Override
+  public String toString() {
+    return visible ? name : name + " (hidden)";
+  }
+}
@@ -0,0 +1,175 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * Shows the flattened layers of an image as a RenderedImage, without ever
+ * flattening the whole image at once.
+ *
+ * The image is made of strips of rows, and each part is flattened only when
+ * it is asked for, so an image writer can stream a huge image out a few rows
+ * at a time.
+ *
+ * @author nihil
+ */
+public class LayerImage implements RenderedImage {
+
+  // how many rows each strip has
+  private static final int STRIP_HEIGHT = TiledCanvas.TILE_SIZE;
+
+  // where each channel sits in a packed ARGB pixel, red first
+  private static final int[] MASKS = { 0x00ff0000, 0x0000ff00, 0x000000ff,
+                                       0xff000000 };
+
+  private final LayerStack layers;
+  private final SampleModel sampleModel;
+
+  /**
+   * Constructor for an image of some layers, which must not change while the
+   * image is in use, like a snapshot
+   *
+   * @param layers the layers to flatten
+   */
+  public LayerImage( LayerStack layers ) {
+    this.layers = layers;
+    sampleModel = new SinglePixelPackedSampleModel( DataBufferInt.TYPE_INT,
+                                                    layers.getWidth(),
+                                                    STRIP_HEIGHT,
+                                                    MASKS );
+  }
+
+  @Override
+  public Vector< RenderedImage > getSources() {
+    return null;
+  }
+
+  @Override
+  public Object getProperty( String name ) {
+    return java.awt.Image.UndefinedProperty;
+  }
+
+  @Override
+  public String[] getPropertyNames() {
+    return null;
+  }
+
+  @Override
+  public ColorModel getColorModel() {
+    return ColorModel.getRGBdefault();
+  }
+
+  @Override
+  public SampleModel getSampleModel() {
+    return sampleModel;
+  }
+
+  @Override
+  public int getWidth() {
+    return layers.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return layers.getHeight();
+  }
+
+  @Override
+  public int getMinX() {
+    return 0;
+  }
+
+  @Override
+  public int getMinY() {
+    return 0;
+  }
+
+  @Override
+  public int getNumXTiles() {
+    return 1;
+  }
+
+  @Override
+  public int getNumYTiles() {
+    return ( getHeight() + STRIP_HEIGHT - 1 ) / STRIP_HEIGHT;
+  }
+
+  @Override
+  public int getMinTileX() {
+    return 0;
+  }
+
+  @Override
+  public int getMinTileY() {
+    return 0;
+  }
+
+  @Override
+  public int getTileWidth() {
+    return getWidth();
+  }
+
+  @Override
+  public int getTileHeight() {
+    return STRIP_HEIGHT;
+  }
+
+  @Override
+  public int getTileGridXOffset() {
+    return 0;
+  }
+
+  @Override
+  public int getTileGridYOffset() {
+    return 0;
+  }
+
+  @Override
+  public Raster getTile( int tileX, int tileY ) {
+    int top = tileY * STRIP_HEIGHT;
+    return getData( new Rectangle( 0, top, getWidth(),
+                                   Math.min( STRIP_HEIGHT,
+                                             getHeight() - top ) ) );
+  }
+
+  @Override
+  public Raster getData() {
+    return getData( new Rectangle( getWidth(), getHeight() ) );
+  }
+
+  @Override
+  public Raster getData( Rectangle rect ) {
+    Rectangle r = rect.intersection( new Rectangle( getWidth(),
+                                                    getHeight() ) );
+    int[] pixels = new int[Math.max( r.width * r.height, 1 )];
+    layers.flatten( r.x, r.y, r.width, r.height, pixels, 0, r.width );
+    return Raster.createPackedRaster( new DataBufferInt( pixels,
+                                                         pixels.length ),
+                                      r.width, r.height, r.width, MASKS,
+                                      new Point( r.x, r.y ) );
+  }
+
+  @Override
+  public WritableRaster copyData( WritableRaster raster ) {
+    if( raster == null ) {
+      raster = getColorModel().createCompatibleWritableRaster( getWidth(),
+                                                               getHeight() );
+    }
+    Rectangle bounds = raster.getBounds();
+    for( int top = bounds.y; top < bounds.y + bounds.height;
+         top += STRIP_HEIGHT ) {
+      raster.setRect( getData( new Rectangle(
+          bounds.x, top, bounds.width,
+          Math.min( STRIP_HEIGHT, bounds.y + bounds.height - top ) ) ) );
+    }
+    return raster;
+  }
+}
@@ -0,0 +1,525 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The layers of an image, from the bottom up, one of which is being edited.
+ *
+ * The layers under the active one are kept flattened into a single cached
+ * canvas, and so are the layers over it, so drawing on the active layer only
+ * blends three rows of pixels for each row shown, however many layers there
+ * are. Both caches are premultiplied, and are built tile by tile, so tiles of
+ * a single color in every layer stay a single color in the cache.
+ *
+ * The layers over the active one can only be flattened ahead of time if they
+ * are all blended normally, since the other modes depend on what is under
+ * them. Otherwise they are blended one by one as they are shown.
+ *
+ * @author nihil
+ */
+public class LayerStack {
+
+  private final int width;
+  private final int height;
+
+  // the layers, bottom first, and the one being edited
+  private final ArrayList< Layer > layers;
+  private int active;
+
+  // counts the changes to the layers themselves, rather than their pixels
+  private long structureVersion;
+
+  /*
+   * the layers under and over the active one, flattened, and whether each is
+   * up to date
+   */
+  private final TiledCanvas below;
+  private final TiledCanvas above;
+  private boolean belowValid;
+  private boolean aboveValid;
+  private boolean aboveNormal;
+  private boolean aboveEmpty;
+
+  // scratch space for a row, and for a tile
+  private int[] row;
+  private final int[] tileScratch;
+
+  /**
+   * Constructor for a stack with a single layer of one color
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param background the ARGB color of the bottom layer
+   */
+  public LayerStack( int width, int height, int background ) {
+    this( Collections.singletonList(
+              new Layer( "Background",
+                         new TiledCanvas( width, height, background ) ) ),
+          0 );
+  }
+
+  /**
+   * Constructor for a stack of existing layers, which must all be the same
+   * size
+   *
+   * @param layers the layers, bottom first
+   * @param active the index of the layer being edited
+   */
+  public LayerStack( List< Layer > layers, int active ) {
+    TiledCanvas first = layers.get( 0 ).getCanvas();
+    width = first.getWidth();
+    height = first.getHeight();
+    this.layers = new ArrayList< Layer >( layers );
+    this.active = active;
+    below = new TiledCanvas( width, height, 0 );
+    above = new TiledCanvas( width, height, 0 );
+    row = new int[TiledCanvas.TILE_SIZE];
+    tileScratch = new int[TiledCanvas.TILE_AREA];
+  }
+
+  /**
+   * The width of the image
+   *
+   * @return the width, in pixels
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * The height of the image
+   *
+   * @return the height, in pixels
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * How many layers there are
+   *
+   * @return the number of layers
+   */
+  public int getLayerCount() {
+    return layers.size();
+  }
+
+  /**
+   * A layer of the stack
+   *
+   * @param index the index of the layer, from the bottom
+   * @return the layer
+   */
+  public Layer getLayer( int index ) {
+    return layers.get( index );
+  }
+
+  /**
+   * The index of the layer being edited
+   *
+   * @return the index of the active layer, from the bottom
+   */
+  public int getActiveIndex() {
+    return active;
+  }
+
+  /**
+   * The layer being edited
+   *
+   * @return the active layer
+   */
+  public Layer getActiveLayer() {
+    return layers.get( active );
+  }
+
+  /**
+   * Chooses the layer to edit.
+   *
+   * @param index the index of the layer, from the bottom
+   */
+  public void setActive( int index ) {
+    if( index != active ) {
+      active = index;
+      invalidate();
+    }
+  }
+
+  /**
+   * Adds a transparent layer over the active one, and makes it active.
+   *
+   * @param name the name of the new layer
+   * @return the index of the new layer
+   */
+  public int addLayer( String name ) {
+    ColorTable table = layers.get( 0 ).getCanvas().getColorTable();
+    active++;
+    layers.add( active, new Layer( name, new TiledCanvas( width, height,
+                                                          table, 0 ) ) );
+    invalidate();
+    return active;
+  }
+
+  /**
+   * Removes a layer, as long as it isn't the last one. The layer under it
+   * becomes active if the active layer was removed.
+   *
+   * @param index the index of the layer, from the bottom
+   * @return if the layer was removed
+   */
+  public boolean removeLayer( int index ) {
+    if( layers.size() < 2 ) {
+      return false;
+    }
+    layers.remove( index );
+    if( active > index || ( active == index && active > 0 ) ) {
+      active--;
+    }
+    invalidate();
+    return true;
+  }
+
+  /**
+   * Moves a layer to another place in the stack. The active layer stays
+   * active wherever it moves to.
+   *
+   * @param from the index of the layer
+   * @param to the index it should have afterwards
+   */
+  public void moveLayer( int from, int to ) {
+    Layer activeLayer = layers.get( active );
+    layers.add( to, layers.remove( from ) );
+    active = layers.indexOf( activeLayer );
+    invalidate();
+  }
+
+  /**
+   * Renames a layer.
+   *
+   * @param index the index of the layer
+   * @param name the new name
+   */
+  public void setName( int index, String name ) {
+    layers.get( index ).setName( name );
+  }
+
+  /**
+   * Shows or hides a layer.
+   *
+   * @param index the index of the layer
+   * @param visible whether it should be drawn
+   */
+  public void setVisible( int index, boolean visible ) {
+    layers.get( index ).setVisible( visible );
+    invalidate();
+  }
+
+  /**
+   * Sets how opaque a whole layer is drawn.
+   *
+   * @param index the index of the layer
+   * @param opacity the opacity, from 0 to 255
+   */
+  public void setOpacity( int index, int opacity ) {
+    layers.get( index ).setOpacity( opacity );
+    invalidate();
+  }
+
+  /**
+   * Sets how a layer is blended over the layers under it.
+   *
+   * @param index the index of the layer
+   * @param mode the blend mode
+   */
+  public void setBlendMode( int index, BlendMode mode ) {
+    layers.get( index ).setBlendMode( mode );
+    invalidate();
+  }
+
+  /**
+   * A copy of the layers as they are now, which doesn't change when they do.
+   * The copy shares the tiles of every layer until they are changed, so it
+   * is cheap to take, and can be flattened on another thread. The layers of
+   * the copy share one copy of the color table.
+   *
+   * @return the snapshot
+   */
+  public LayerStack snapshot() {
+    return copy( true );
+  }
+
+  /**
+   * A copy of the layers like a snapshot, except that it keeps using the
+   * color table of the layers, so a recolor shows in it too. It is for a
+   * copy that stays part of the same image, like a new frame, and is only
+   * used on the thread editing the image.
+   *
+   * @return the copy
+   */
+  public LayerStack duplicate() {
+    return copy( false );
+  }
+
+  /*
+   * a copy of the layers sharing their tiles, with a copy of their color
+   * table or the table itself
+   */
+  private LayerStack copy( boolean freeze ) {
+    List< Layer > copies = new ArrayList< Layer >();
+    ColorTable live = null;
+    ColorTable frozen = null;
+    for( Layer layer : layers ) {
+      ColorTable table = layer.getCanvas().getColorTable();
+      if( freeze && table != null && table != live ) {
+        live = table;
+        frozen = new ColorTable( table.getColors() );
+      }
+      Layer copy = new Layer( layer.getName(), layer.getCanvas().snapshot(
+          freeze && table != null ? frozen : table ) );
+      copy.setVisible( layer.isVisible() );
+      copy.setOpacity( layer.getOpacity() );
+      copy.setBlendMode( layer.getBlendMode() );
+      copies.add( copy );
+    }
+    return new LayerStack( copies, active );
+  }
+
+  /**
+   * Throws away both flattened caches, to be built again when next needed.
+   */
+  public void invalidate() {
+    belowValid = false;
+    aboveValid = false;
+    structureVersion++;
+  }
+
+  /**
+   * Counts the changes to which layers there are and how they are drawn.
+   * Together with the versions of their canvases, it tells whether the
+   * image may look different.
+   *
+   * @return the structure version
+   */
+  public long getStructureVersion() {
+    return structureVersion;
+  }
+
+  /**
+   * Whether a canvas belongs to one of the layers
+   *
+   * @param canvas the canvas
+   * @return if a layer has that canvas
+   */
+  public boolean contains( TiledCanvas canvas ) {
+    for( Layer layer : layers ) {
+      if( layer.getCanvas() == canvas ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Flattens the caches again over a region, after a layer other than the
+   * active one changed there.
+   *
+   * @param area the region that changed
+   */
+  public void refresh( Rectangle area ) {
+    Rectangle r = area.intersection( new Rectangle( width, height ) );
+    if( r.isEmpty() ) {
+      return;
+    }
+    int tx1 = ( r.x + r.width - 1 ) >> TiledCanvas.TILE_SHIFT;
+    int ty1 = ( r.y + r.height - 1 ) >> TiledCanvas.TILE_SHIFT;
+    for( int ty = r.y >> TiledCanvas.TILE_SHIFT; ty <= ty1; ty++ ) {
+      for( int tx = r.x >> TiledCanvas.TILE_SHIFT; tx <= tx1; tx++ ) {
+        int tile = ty * below.getTilesX() + tx;
+        if( belowValid ) {
+          flattenTile( below, 0, active, tile );
+        }
+        if( aboveValid && aboveNormal && !aboveEmpty ) {
+          flattenTile( above, active + 1, layers.size(), tile );
+        }
+      }
+    }
+  }
+
+  /**
+   * Blends every visible layer over a region, into premultiplied ARGB.
+   *
+   * @param x the x-coord of the region
+   * @param y the y-coord of the region
+   * @param w the width of the region
+   * @param h the height of the region
+   * @param dst where to put the pixels
+   * @param offset where the first row starts in dst
+   * @param scan the distance between rows in dst
+   */
+  public void composite( int x, int y, int w, int h,
+                         int[] dst, int offset, int scan ) {
+    validate();
+    if( row.length < w ) {
+      row = new int[w];
+    }
+    Layer current = layers.get( active );
+
+    for( int r = 0; r < h; r++ ) {
+      int out = offset + r * scan;
+      below.getRegion( x, y + r, w, 1, dst, out, w );
+
+      if( current.isVisible() ) {
+        blendRow( current, x, y + r, w, dst, out );
+      }
+
+      if( aboveEmpty ) {
+        continue;
+      }
+      if( aboveNormal ) {
+        above.getRegion( x, y + r, w, 1, row, 0, w );
+        BlendMode.NORMAL.composite( row, 0, dst, out, w );
+      } else {
+        for( int i = active + 1; i < layers.size(); i++ ) {
+          Layer layer = layers.get( i );
+          if( layer.isVisible() ) {
+            blendRow( layer, x, y + r, w, dst, out );
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Blends every visible layer over a region, into non-premultiplied ARGB,
+   * the way it would be saved.
+   *
+   * @param x the x-coord of the region
+   * @param y the y-coord of the region
+   * @param w the width of the region
+   * @param h the height of the region
+   * @param dst where to put the pixels
+   * @param offset where the first row starts in dst
+   * @param scan the distance between rows in dst
+   */
+  public void flatten( int x, int y, int w, int h,
+                       int[] dst, int offset, int scan ) {
+    composite( x, y, w, h, dst, offset, scan );
+    for( int r = 0; r < h; r++ ) {
+      int start = offset + r * scan;
+      for( int i = start; i < start + w; i++ ) {
+        dst[i] = PixelMath.unpremultiply( dst[i] );
+      }
+    }
+  }
+
+  /*
+   * builds whichever cache is out of date
+   */
+  private void validate() {
+    if( !belowValid ) {
+      for( int tile = 0; tile < below.getTileCount(); tile++ ) {
+        flattenTile( below, 0, active, tile );
+      }
+      belowValid = true;
+    }
+    if( !aboveValid ) {
+      aboveNormal = true;
+      aboveEmpty = true;
+      for( int i = active + 1; i < layers.size(); i++ ) {
+        Layer layer = layers.get( i );
+        if( layer.isVisible() ) {
+          aboveEmpty = false;
+          aboveNormal &= layer.getBlendMode() == BlendMode.NORMAL;
+        }
+      }
+      if( aboveNormal && !aboveEmpty ) {
+        for( int tile = 0; tile < above.getTileCount(); tile++ ) {
+          flattenTile( above, active + 1, layers.size(), tile );
+        }
+      }
+      aboveValid = true;
+    }
+  }
+
+  /*
+   * blends a row of a layer over a row of premultiplied pixels
+   */
+  private void blendRow( Layer layer, int x, int y, int w,
+                         int[] dst, int offset ) {
+    layer.getCanvas().getRegion( x, y, w, 1, row, 0, w );
+    int opacity = layer.getOpacity();
+    for( int i = 0; i < w; i++ ) {
+      row[i] = PixelMath.premultiply( row[i], opacity );
+    }
+    layer.getBlendMode().composite( row, 0, dst, offset, w );
+  }
+
+  /*
+   * flattens a tile of the visible layers from first up to, but not
+   * including, last into a cache. If the tile is a single color in every one
+   * of them, it stays a single color in the cache.
+   */
+  private void flattenTile( TiledCanvas cache, int first, int last,
+                            int tile ) {
+    boolean uniform = true;
+    for( int i = first; i < last && uniform; i++ ) {
+      Layer layer = layers.get( i );
+      uniform = !layer.isVisible() || layer.getCanvas().isUniform( tile );
+    }
+
+    // where the tile starts, to read the color of a uniform one
+    int left = cache.tileLeft( tile );
+    int top = cache.tileTop( tile );
+
+    if( uniform ) {
+      int[] color = tileScratch;
+      color[0] = 0;
+      for( int i = first; i < last; i++ ) {
+        Layer layer = layers.get( i );
+        if( layer.isVisible() ) {
+          color[1] = PixelMath.premultiply(
+              layer.getCanvas().getRGB( left, top ), layer.getOpacity() );
+          layer.getBlendMode().composite( color, 1, color, 0, 1 );
+        }
+      }
+      cache.setUniformColor( tile, color[0] );
+      return;
+    }
+
+    int[] pixels = cache.getTileData( tile );
+    if( pixels == null ) {
+      pixels = new int[TiledCanvas.TILE_AREA];
+    } else {
+      Arrays.fill( pixels, 0 );
+    }
+    for( int i = first; i < last; i++ ) {
+      Layer layer = layers.get( i );
+      if( !layer.isVisible() ) {
+        continue;
+      }
+      TiledCanvas canvas = layer.getCanvas();
+      int[] data = canvas.getTileData( tile );
+      int opacity = layer.getOpacity();
+      if( data == null ) {
+        Arrays.fill( tileScratch,
+                     PixelMath.premultiply( canvas.getRGB( left, top ),
+                                            opacity ) );
+      } else {
+        if( canvas.isIndexed() ) {
+          // the colors are looked up first, then premultiplied in place
+          canvas.getTileRGB( tile, tileScratch );
+          data = tileScratch;
+        }
+        for( int p = 0; p < TiledCanvas.TILE_AREA; p++ ) {
+          tileScratch[p] = PixelMath.premultiply( data[p], opacity );
+        }
+      }
+      layer.getBlendMode().composite( tileScratch, 0, pixels, 0,
+                                      TiledCanvas.TILE_AREA );
+    }
+    cache.setTile( tile, pixels, 0 );
+  }
+}
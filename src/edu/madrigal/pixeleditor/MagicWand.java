@@ -0,0 +1,243 @@
+package edu.madrigal.pixeleditor;
+
+import java.util.Arrays;
+
+/**
+ * Selects the pixels of a canvas close in color to the one clicked, either
+ * just those joined to it or every one in the canvas.
+ *
+ * A pixel is close if none of its channels, alpha included, is further than
+ * the tolerance from the clicked color's. Joined pixels are found a whole
+ * run at a time, like a scanline flood fill, with a bit kept for each pixel
+ * already selected, and a tile that is all one color is stepped over in one
+ * go. The pixels still to visit are kept on a stack of ints that is reused
+ * between selections.
+ *
+ * @author nihil
+ */
+public class MagicWand {
+
+  // pairs of pixel coords that still need to be visited
+  private int[] stack;
+  private int size;
+
+  /*
+   * the selection in progress
+   */
+  private TiledCanvas canvas;
+  private int target;
+  private int tolerance;
+  private long[][] visited;
+  private RunList runs;
+
+  /**
+   * Constructor for the magic wand
+   */
+  public MagicWand() {
+    stack = new int[256];
+  }
+
+  /**
+   * Selects the pixels close to the color of one.
+   *
+   * @param canvas the canvas to select from
+   * @param x the x-coord of the pixel clicked
+   * @param y the y-coord of the pixel clicked
+   * @param tolerance how far each channel may be from the pixel's, from 0
+   *          for only the same color to 255 for every color
+   * @param contiguous whether only pixels joined to the one clicked by
+   *          other close ones are selected, rather than all of them
+   * @return the selected pixels, or null if the pixel isn't in the canvas
+   */
+  public SelectionMask select( TiledCanvas canvas, int x, int y,
+                               int tolerance, boolean contiguous ) {
+    int width = canvas.getWidth();
+    int height = canvas.getHeight();
+    if( x < 0 || y < 0 || x >= width || y >= height ) {
+      return null;
+    }
+
+    this.canvas = canvas;
+    this.tolerance = tolerance;
+    target = canvas.getRGB( x, y );
+    runs = new RunList();
+    if( contiguous ) {
+      selectJoined( x, y );
+    } else {
+      selectAll();
+    }
+    SelectionMask mask = SelectionMask.of( width, height, runs );
+    this.canvas = null;
+    visited = null;
+    runs = null;
+    return mask;
+  }
+
+  /*
+   * selects the runs of close pixels joined to one, a run at a time
+   */
+  private void selectJoined( int x, int y ) {
+    visited = new long[canvas.getHeight()][];
+    size = 0;
+    push( x, y );
+
+    while( size > 0 ) {
+      y = stack[--size];
+      x = stack[--size];
+      if( isVisited( x, y ) ) {
+        continue;
+      }
+
+      int left = closeLeft( x, y );
+      int right = closeRight( x, y, canvas.getWidth() );
+      visit( left, right, y );
+      runs.add( y, left, right );
+
+      // then look for runs just above and below it
+      scan( left, right, y - 1 );
+      scan( left, right, y + 1 );
+    }
+  }
+
+  /*
+   * selects every close pixel, a tile at a time
+   */
+  private void selectAll() {
+    int[] pixels = new int[TiledCanvas.TILE_AREA];
+    for( int tile = 0; tile < canvas.getTileCount(); tile++ ) {
+      int left = canvas.tileLeft( tile );
+      int top = canvas.tileTop( tile );
+      int w = canvas.tileWidth( tile );
+      int h = canvas.tileHeight( tile );
+      if( canvas.isUniform( tile ) ) {
+        if( isClose( canvas.getRGB( left, top ) ) ) {
+          for( int y = top; y < top + h; y++ ) {
+            runs.add( y, left, left + w );
+          }
+        }
+        continue;
+      }
+
+      canvas.getTileRGB( tile, pixels );
+      for( int row = 0; row < h; row++ ) {
+        int offset = row << TiledCanvas.TILE_SHIFT;
+        int start = -1;
+        for( int col = 0; col <= w; col++ ) {
+          boolean close = col < w && isClose( pixels[offset + col] );
+          if( close && start < 0 ) {
+            start = col;
+          } else if( !close && start >= 0 ) {
+            runs.add( top + row, left + start, left + col );
+            start = -1;
+          }
+        }
+      }
+    }
+  }
+
+  private boolean isClose( int argb ) {
+    return Math.abs( ( argb >>> 24 ) - ( target >>> 24 ) ) <= tolerance
+           && Math.abs( ( ( argb >> 16 ) & 0xff )
+                        - ( ( target >> 16 ) & 0xff ) ) <= tolerance
+           && Math.abs( ( ( argb >> 8 ) & 0xff )
+                        - ( ( target >> 8 ) & 0xff ) ) <= tolerance
+           && Math.abs( ( argb & 0xff ) - ( target & 0xff ) ) <= tolerance;
+  }
+
+  /*
+   * the first pixel of the run of close pixels that a close pixel is in
+   */
+  private int closeLeft( int x, int y ) {
+    while( x > 0 ) {
+      int tile = canvas.tileAt( x - 1, y );
+      if( !isClose( canvas.getRGB( x - 1, y ) ) ) {
+        return x;
+      }
+      x = canvas.isUniform( tile ) ? canvas.tileLeft( tile ) : x - 1;
+    }
+    return x;
+  }
+
+  /*
+   * the first pixel from one on that isn't close, or the limit
+   */
+  private int closeRight( int x, int y, int limit ) {
+    while( x < limit ) {
+      int tile = canvas.tileAt( x, y );
+      if( !isClose( canvas.getRGB( x, y ) ) ) {
+        return x;
+      }
+      x = canvas.isUniform( tile )
+          ? Math.min( canvas.tileLeft( tile ) + TiledCanvas.TILE_SIZE, limit )
+          : x + 1;
+    }
+    return x;
+  }
+
+  /*
+   * the first close pixel from one on, or the limit
+   */
+  private int farRight( int x, int y, int limit ) {
+    while( x < limit ) {
+      int tile = canvas.tileAt( x, y );
+      if( isClose( canvas.getRGB( x, y ) ) ) {
+        return x;
+      }
+      x = canvas.isUniform( tile )
+          ? Math.min( canvas.tileLeft( tile ) + TiledCanvas.TILE_SIZE, limit )
+          : x + 1;
+    }
+    return x;
+  }
+
+  /*
+   * pushes the first pixel of every close run in a row, between two columns,
+   * that isn't selected yet
+   */
+  private void scan( int left, int right, int y ) {
+    if( y < 0 || y >= canvas.getHeight() ) {
+      return;
+    }
+    int x = farRight( left, y, right );
+    while( x < right ) {
+      if( !isVisited( x, y ) ) {
+        push( x, y );
+      }
+      x = farRight( closeRight( x, y, right ), y, right );
+    }
+  }
+
+  private boolean isVisited( int x, int y ) {
+    long[] row = visited[y];
+    return row != null && ( row[x >> 6] & 1L << x ) != 0;
+  }
+
+  /*
+   * marks a run of a row as selected, a word of bits at a time
+   */
+  private void visit( int start, int end, int y ) {
+    long[] row = visited[y];
+    if( row == null ) {
+      row = visited[y] = new long[( canvas.getWidth() + 63 ) >> 6];
+    }
+    int first = start >> 6;
+    int last = ( end - 1 ) >> 6;
+    long head = -1L << start;
+    long tail = -1L >>> -end;
+    if( first == last ) {
+      row[first] |= head & tail;
+      return;
+    }
+    row[first] |= head;
+    Arrays.fill( row, first + 1, last, -1L );
+    row[last] |= tail;
+  }
+
+  private void push( int x, int y ) {
+    if( size + 2 > stack.length ) {
+      stack = Arrays.copyOf( stack, stack.length * 2 );
+    }
+    stack[size++] = x;
+    stack[size++] = y;
+  }
+}
@@ -0,0 +1,268 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+
+/**
+ * The colors of an indexed image, at most 256 of them, and the index of
+ * the color each pixel maps to.
+ *
+ * Colors that aren't fully opaque come first, so an indexed PNG only needs
+ * transparency for the start of its palette. Every fully transparent pixel
+ * counts as the same color, whatever its RGB, since none of it shows.
+ *
+ * @author nihil
+ */
+public class Palette {
+
+  /**
+   * The most colors a palette may have
+   */
+  public static final int MAX_COLORS = 256;
+
+  // size of the direct-mapped cache of colors not in the palette
+  private static final int CACHE_SIZE = 4096;
+
+  // marks an empty slot in the tables
+  private static final long EMPTY = -1L;
+
+  // the colors, translucent first, and how many aren't opaque
+  private final int[] colors;
+  private final int translucent;
+
+  // the palette's own colors, and the colors mapped to their nearest,
+  // each slot holding a color in the high half and its index in the low
+  private final long[] exact;
+  private final long[] nearest;
+
+  /**
+   * Constructor for a palette of some ARGB colors, which must differ from
+   * one another
+   *
+   * @param argb between 1 and MAX_COLORS colors, not premultiplied
+   */
+  public Palette( int[] argb ) {
+    if( argb.length < 1 || argb.length > MAX_COLORS ) {
+      throw new IllegalArgumentException( "A palette has 1 to " + MAX_COLORS
+                                          + " colors." );
+    }
+    colors = new int[argb.length];
+    int count = 0;
+    for( int color : argb ) {
+      if( color >>> 24 != 0xff ) {
+        colors[count++] = normalize( color );
+      }
+    }
+    translucent = count;
+    for( int color : argb ) {
+      if( color >>> 24 == 0xff ) {
+        colors[count++] = color;
+      }
+    }
+
+    exact = new long[MAX_COLORS * 4];
+    Arrays.fill( exact, EMPTY );
+    for( int i = 0; i < colors.length; i++ ) {
+      int slot = slot( colors[i], exact.length );
+      while( exact[slot] != EMPTY && (int) ( exact[slot] >>> 32 )
+                                     != colors[i] ) {
+        slot = ( slot + 1 ) & ( exact.length - 1 );
+      }
+      exact[slot] = entry( colors[i], i );
+    }
+    nearest = new long[CACHE_SIZE];
+    Arrays.fill( nearest, EMPTY );
+  }
+
+  /**
+   * The distinct colors of an image, if it has no more than a number of
+   * them. The image is read a strip at a time, and counting stops as soon
+   * as there are too many.
+   *
+   * @param image the image
+   * @param most the most colors to count, up to MAX_COLORS
+   * @return the palette of the image, or null if it has more colors
+   */
+  public static Palette count( RenderedImage image, int most ) {
+    Counter counter = new Counter( most );
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int strip = Math.max( 1, Math.min( image.getTileHeight(), height ) );
+    int[] pixels = new int[width * strip];
+    for( int y = 0; y < height; y += strip ) {
+      int rows = Math.min( strip, height - y );
+      PngEncoder.readRows( image, y, rows, pixels );
+      if( !counter.add( pixels, 0, width * rows ) ) {
+        return null;
+      }
+    }
+    return counter.palette();
+  }
+
+  /**
+   * The distinct colors of some pixels, if there are no more than a number
+   * of them
+   *
+   * @param pixels the ARGB pixels
+   * @param from the index of the first pixel
+   * @param to the index after the last pixel
+   * @param most the most colors to count, up to MAX_COLORS
+   * @return the palette of the pixels, or null if they have more colors
+   */
+  public static Palette count( int[] pixels, int from, int to, int most ) {
+    Counter counter = new Counter( most );
+    return counter.add( pixels, from, to ) ? counter.palette() : null;
+  }
+
+  /**
+   * How many colors the palette has
+   *
+   * @return the number of colors
+   */
+  public int size() {
+    return colors.length;
+  }
+
+  /**
+   * A color of the palette
+   *
+   * @param index the index of the color
+   * @return the ARGB color
+   */
+  public int getColor( int index ) {
+    return colors[index];
+  }
+
+  /**
+   * How many colors at the start of the palette aren't fully opaque
+   *
+   * @return the number of translucent colors
+   */
+  public int getTranslucentCount() {
+    return translucent;
+  }
+
+  /**
+   * The index of the palette color closest to a color, which is the color
+   * itself if the palette has it
+   *
+   * @param argb the ARGB color, not premultiplied
+   * @return the index of the closest color
+   */
+  public int indexOf( int argb ) {
+    int color = normalize( argb );
+    int slot = slot( color, exact.length );
+    long found;
+    while( ( found = exact[slot] ) != EMPTY ) {
+      if( (int) ( found >>> 32 ) == color ) {
+        return (int) found;
+      }
+      slot = ( slot + 1 ) & ( exact.length - 1 );
+    }
+
+    slot = slot( color, CACHE_SIZE );
+    found = nearest[slot];
+    if( found != EMPTY && (int) ( found >>> 32 ) == color ) {
+      return (int) found;
+    }
+    int index = closest( color );
+    nearest[slot] = entry( color, index );
+    return index;
+  }
+
+  /*
+   * searches the whole palette for the closest color, by squared distance
+   * with alpha counted like the other channels
+   */
+  private int closest( int color ) {
+    int a = color >>> 24;
+    int r = ( color >> 16 ) & 0xff;
+    int g = ( color >> 8 ) & 0xff;
+    int b = color & 0xff;
+    int best = 0;
+    int bestDistance = Integer.MAX_VALUE;
+    for( int i = 0; i < colors.length; i++ ) {
+      int c = colors[i];
+      int da = ( c >>> 24 ) - a;
+      int dr = ( ( c >> 16 ) & 0xff ) - r;
+      int dg = ( ( c >> 8 ) & 0xff ) - g;
+      int db = ( c & 0xff ) - b;
+      int distance = da * da + dr * dr + dg * dg + db * db;
+      if( distance < bestDistance ) {
+        bestDistance = distance;
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  /*
+   * gathers distinct colors until there are too many
+   */
+  private static class Counter {
+
+    private final long[] seen;
+    private final int[] found;
+    private int count;
+
+    Counter( int most ) {
+      seen = new long[MAX_COLORS * 4];
+      Arrays.fill( seen, EMPTY );
+      found = new int[most];
+    }
+
+    /*
+     * counts the colors of some pixels, telling whether there are still
+     * few enough
+     */
+    boolean add( int[] pixels, int from, int to ) {
+      if( from == to ) {
+        return true;
+      }
+      // runs of the same color are common, so the last one is skipped
+      int last = ~normalize( pixels[from] );
+      for( int i = from; i < to; i++ ) {
+        int color = normalize( pixels[i] );
+        if( color == last ) {
+          continue;
+        }
+        last = color;
+        int slot = slot( color, seen.length );
+        while( seen[slot] != EMPTY ) {
+          if( (int) ( seen[slot] >>> 32 ) == color ) {
+            break;
+          }
+          slot = ( slot + 1 ) & ( seen.length - 1 );
+        }
+        if( seen[slot] == EMPTY ) {
+          if( count == found.length ) {
+            return false;
+          }
+          seen[slot] = entry( color, count );
+          found[count++] = color;
+        }
+      }
+      return true;
+    }
+
+    Palette palette() {
+      return new Palette( Arrays.copyOf( found, Math.max( count, 1 ) ) );
+    }
+  }
+
+  /*
+   * a color, with every fully transparent one made the same
+   */
+  static int normalize( int argb ) {
+    return argb >>> 24 == 0 ? 0 : argb;
+  }
+
+  private static int slot( int color, int size ) {
+    int h = color * 0x9e3779b9;
+    return ( h ^ ( h >>> 16 ) ) & ( size - 1 );
+  }
+
+  private static long entry( int color, int index ) {
+    return ( (long) color << 32 ) | index;
+  }
+}
@@ -6,7 +6,7 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.EventQueue;
 import java.awt.Font;
-import java.awt.Robot;
+import java.awt.GridLayout;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -19,30 +19,46 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
+import javax.swing.ButtonGroup;
 import javax.swing.DefaultComboBoxModel;
+import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.border.LineBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
@@ -68,13 +84,6 @@ public class PixelEditorWindow implements WindowListener {
   private static final Color DEFAULT_COLOR_A = new Color( 40, 50, 80, 255 );
   private static final Color DEFAULT_COLOR_B = new Color( 200, 50, 100 );
 
-  // update codes
-  private static final int SRC_HSB = 0;
-  private static final int SRC_RGB = 1;
-  private static final int SRC_PICKER = 2;
-  private static final int SRC_HEX = 3;
-  private static final int SRC_OTHER = 4;
-
   // labels
   private static final String TITLE = "Pixel Editor";
   private static final String HUE_NAME = "Hue";
@@ -88,12 +97,35 @@ public class PixelEditorWindow implements WindowListener {
   private static final String GRID_NAME = "Show Grid";
   private static final String SIZE_NAME = "Grid Size";
   private static final String FILL_NAME = "Fill Mode";
+  private static final String PIXEL_PERFECT_NAME = "Pixel Perfect";
+  private static final String BRUSH_NAME = "Brush";
+  private static final String BRUSH_SIZE_NAME = "Brush Size";
+  private static final String SHAPE_NAME = "Shape";
+  private static final String FREEHAND_NAME = "Freehand";
   
   //menu items and key combos
+  private static final String NEW_NAME = "New...";
+  private static final KeyStroke NEW_COMBO = KeyStroke.getKeyStroke( 
+      KeyEvent.VK_N, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
   private static final String CLEAR_NAME = "Clear";
   private static final KeyStroke CLEAR_COMBO = KeyStroke.getKeyStroke( 
       KeyEvent.VK_C, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
   
+  private static final String COPY_NAME = "Copy";
+  private static final KeyStroke COPY_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_C, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()
+                     | KeyEvent.SHIFT_DOWN_MASK );
+  
+  private static final String PASTE_NAME = "Paste";
+  private static final KeyStroke PASTE_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_V, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String EYEDROPPER_SIZE_NAME = "Eyedropper Size...";
+  
+  private static final String INDEXED_NAME = "Indexed Colors";
+  private static final String RECOLOR_NAME = "Recolor Palette";
+  
   private static final String INVERT_NAME = "Invert";
   private static final KeyStroke INVERT_COMBO = KeyStroke.getKeyStroke( 
       KeyEvent.VK_I, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
@@ -102,10 +134,21 @@ public class PixelEditorWindow implements WindowListener {
   private static final KeyStroke SAVE_COMBO = KeyStroke.getKeyStroke( 
       KeyEvent.VK_S, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
   
+  private static final String PNG_OPTIONS_NAME = "PNG Options...";
+  
   private static final String OPEN_NAME = "Open...";
   private static final KeyStroke OPEN_COMBO = KeyStroke.getKeyStroke( 
       KeyEvent.VK_O, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
   
+  private static final String OPEN_PROJECT_NAME = "Open Project...";
+  
+  private static final String SAVE_PROJECT_NAME = "Save Project";
+  private static final KeyStroke SAVE_PROJECT_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_S, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()
+                     | KeyEvent.SHIFT_DOWN_MASK );
+  
+  private static final String SAVE_PROJECT_AS_NAME = "Save Project As...";
+  
   private static final String UNDO_NAME = "Undo";
   private static final KeyStroke UNDO_COMBO = KeyStroke.getKeyStroke( 
       KeyEvent.VK_Z, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
@@ -113,6 +156,79 @@ public class PixelEditorWindow implements WindowListener {
   private static final String REDO_NAME = "Redo";
   private static final KeyStroke REDO_COMBO = KeyStroke.getKeyStroke( 
       KeyEvent.VK_X, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String ZOOM_IN_NAME = "Zoom In";
+  private static final KeyStroke ZOOM_IN_COMBO = KeyStroke.getKeyStroke( 
+      KeyEvent.VK_EQUALS,
+      Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String ZOOM_OUT_NAME = "Zoom Out";
+  private static final KeyStroke ZOOM_OUT_COMBO = KeyStroke.getKeyStroke( 
+      KeyEvent.VK_MINUS, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String ACTUAL_SIZE_NAME = "Actual Size";
+  private static final KeyStroke ACTUAL_SIZE_COMBO = KeyStroke.getKeyStroke( 
+      KeyEvent.VK_0, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String NEW_LAYER_NAME = "New Layer";
+  private static final String DELETE_LAYER_NAME = "Delete Layer";
+  private static final String LAYER_UP_NAME = "Move Layer Up";
+  private static final String LAYER_DOWN_NAME = "Move Layer Down";
+  private static final String LAYER_OPTIONS_NAME = "Layer Options...";
+  
+  private static final String NEW_FRAME_NAME = "New Frame";
+  private static final String DELETE_FRAME_NAME = "Delete Frame";
+  private static final String FRAME_EARLIER_NAME = "Move Frame Earlier";
+  private static final String FRAME_LATER_NAME = "Move Frame Later";
+  private static final String FRAME_RATE_NAME = "Frame Rate...";
+  private static final String EXPORT_ANIMATION_NAME = "Export Animation...";
+  private static final String ONION_SKIN_NAME = "Onion Skin";
+  
+  private static final String PREVIOUS_FRAME_NAME = "Previous Frame";
+  private static final KeyStroke PREVIOUS_FRAME_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_COMMA,
+      Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String NEXT_FRAME_NAME = "Next Frame";
+  private static final KeyStroke NEXT_FRAME_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_PERIOD,
+      Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String PLAY_NAME = "Play";
+  private static final String STOP_NAME = "Stop";
+  private static final KeyStroke PLAY_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_ENTER,
+      Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String DRAW_NAME = "Draw";
+  
+  private static final String SELECT_ALL_NAME = "Select All";
+  private static final KeyStroke SELECT_ALL_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_A, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String DESELECT_NAME = "Deselect";
+  private static final KeyStroke DESELECT_COMBO = KeyStroke.getKeyStroke(
+      KeyEvent.VK_D, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() );
+  
+  private static final String INVERT_SELECTION_NAME = "Invert Selection";
+  private static final KeyStroke INVERT_SELECTION_COMBO =
+      KeyStroke.getKeyStroke( KeyEvent.VK_I,
+          Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()
+          | KeyEvent.SHIFT_DOWN_MASK );
+  
+  private static final String CONTIGUOUS_NAME = "Contiguous";
+  private static final String WAND_TOLERANCE_NAME = "Wand Tolerance...";
+  
+  private static final String GRAYSCALE_NAME = "Grayscale";
+  private static final String POSTERIZE_NAME = "Posterize...";
+  private static final String HUE_SATURATION_NAME = "Hue/Saturation...";
+  private static final String BRIGHTNESS_CONTRAST_NAME = 
+      "Brightness/Contrast...";
+
+  // where edits are journaled, so they survive a crash
+  private static final File AUTOSAVE_DIRECTORY = new File(
+      System.getProperty( "user.home" ),
+      ".pixeleditor" + File.separator + "autosave" );
 
   // this is the actual window
   private JFrame pixelEditorFrame;
@@ -123,9 +239,21 @@ public class PixelEditorWindow implements WindowListener {
   // these are the little boxes that show the current color selection
   private JPanel selectedColorDisplay;
 
+  // the color being painted with, which every color control shows
+  private ColorChoice colorChoice;
+
   // this is the panel that shows the color picker
   private ColorPickerPanel colorPickerPanel;
 
+  // picks up colors for the eyedropper
+  private ColorSampler colorSampler;
+
+  // the color of the color table being recolored, while recoloring
+  private int recolorIndex;
+
+  // set while the color is switched to the other color display
+  private boolean switchingColor;
+
   // these are the number fields that let us fine tune values for the HSB and
   // RGB-A values
   private JSpinner hueSpinner, saturationSpinner, brightnessSpinner,
@@ -134,9 +262,24 @@ public class PixelEditorWindow implements WindowListener {
   // this is the text field that displays or allows us to enter Web colors (HEX)
   private JTextField hexCodeField;
 
+  // the list of layers, top first, and the layers it shows
+  private JList< Layer > layerList;
+  private DefaultListModel< Layer > layerListModel;
+
+  // shows which frame is being drawn on
+  private JLabel frameLabel;
+
+  // shows how far along a save or an import is, hidden when nothing is
+  // running, and how many are running
+  private JProgressBar progressBar;
+  private int tasksInProgress;
+
   // prevents loops when updating several components
   private boolean updateInProgress;
 
+  // writes every edit down as it is made, or null if it couldn't be opened
+  private Journal journal;
+
   /**
    * Launch the application.
    */
@@ -147,6 +290,7 @@ public class PixelEditorWindow implements WindowListener {
         try {
           PixelEditorWindow window = new PixelEditorWindow();
           window.pixelEditorFrame.setVisible( true );
+          window.startJournal();
         } catch( Exception e ) {
           e.printStackTrace();
         }
@@ -162,6 +306,56 @@ public class PixelEditorWindow implements WindowListener {
     initialize();
   }
 
+  /**
+   * Starts journaling edits, first offering to recover the image of an
+   * editor that didn't exit cleanly.
+   */
+  private void startJournal() {
+    try {
+      journal = new Journal( AUTOSAVE_DIRECTORY );
+    } catch( Exception e ) {
+      JOptionPane.showMessageDialog( pixelEditorFrame,
+          "Your edits won't be recovered if the editor crashes.\n\n"
+              + "Details:\n" + e.getMessage(),
+          "Autosave Error", JOptionPane.WARNING_MESSAGE );
+      return;
+    }
+
+    // checkpoints are saved in the background, so a failed one is told later
+    journal.setListener( new Journal.Listener() {
+      public void checkpointFailed( final IOException e ) {
+        EventQueue.invokeLater( new Runnable() {
+          public void run() {
+            JOptionPane.showMessageDialog( pixelEditorFrame,
+                "Your edits won't be recovered if the editor crashes.\n\n"
+                    + "Details:\n" + e.getMessage(),
+                "Autosave Error", JOptionPane.WARNING_MESSAGE );
+          }
+        } );
+      }
+    } );
+
+    if( journal.canRecover() ) {
+      int selected = JOptionPane.showConfirmDialog(
+          pixelEditorFrame,
+          "The editor didn't exit cleanly last time. Do you want to recover "
+              + "your image?\nIf not, it will be lost.",
+          "Recover Image",
+          JOptionPane.YES_NO_OPTION );
+      if( selected == JOptionPane.YES_OPTION ) {
+        try {
+          editorPanel.openDocument( journal.recover() );
+        } catch( Exception e ) {
+          JOptionPane.showMessageDialog( pixelEditorFrame,
+              "Unable to recover the image.\n\nDetails:\n"
+                  + e.getMessage(),
+              "Error", JOptionPane.ERROR_MESSAGE );
+        }
+      }
+    }
+    editorPanel.setJournal( journal );
+  }
+
   /**
    * Initialize the contents of the frame.
    */
@@ -195,13 +389,10 @@ public class PixelEditorWindow implements WindowListener {
           return;
         }
 
-        Color updatedColor = new Color(
-            (Integer) redSpinner.getValue(),
-            (Integer) greenSpinner.getValue(),
-            (Integer) blueSpinner.getValue(),
-            (Integer) alphaSpinner.getValue() );
-
-        updateColor( updatedColor, SRC_RGB );
+        colorChoice.setRGB( (Integer) alphaSpinner.getValue() << 24
+                            | (Integer) redSpinner.getValue() << 16
+                            | (Integer) greenSpinner.getValue() << 8
+                            | (Integer) blueSpinner.getValue() );
       }
     };
 
@@ -211,19 +402,11 @@ public class PixelEditorWindow implements WindowListener {
         if( updateInProgress ) {
           return;
         }
-        updateInProgress = true;
 
-        Color updatedColor = Color.getHSBColor(
+        colorChoice.setHSB(
             (Integer) hueSpinner.getValue() / (float) HUE_MAX,
             (Integer) saturationSpinner.getValue() / (float) SATUR_MAX,
             (Integer) brightnessSpinner.getValue() / (float) BRIGHT_MAX );
-
-        updatedColor = new Color( updatedColor.getRed(),
-                                  updatedColor.getGreen(),
-                                  updatedColor.getBlue(),
-                                  (Integer) alphaSpinner.getValue() );
-
-        updateColor( updatedColor, SRC_HSB );
       }
     };
     
@@ -245,14 +428,18 @@ public class PixelEditorWindow implements WindowListener {
     content.setBackground( pixelEditorFrame.getBackground() );
     pixelEditorFrame.getContentPane().add( content, BorderLayout.CENTER );
 
-    // editor
+    // editor, which scrolls when the image is larger than the window
     editorPanel = new EditorPanel();
-    editorPanel.setBounds( 6, 6, 300, 300 );
-    content.add( editorPanel );
+    JScrollPane editorScrollPane = new JScrollPane( editorPanel );
+    editorScrollPane.setBounds( 6, 6, 300, 300 );
+    editorScrollPane.setBorder( null );
+    content.add( editorScrollPane );
     content.revalidate();
 
     // color picker
-    colorPickerPanel = new ColorPickerPanel();
+    colorChoice = new ColorChoice( DEFAULT_COLOR_A.getRGB() );
+    colorPickerPanel = new ColorPickerPanel( colorChoice );
+    colorSampler = new ColorSampler( editorPanel, colorChoice );
     colorPickerPanel.setBounds( 312, 6, 490, 100 );
 
     colorPickerPanel.setBackground( Color.BLACK );
@@ -312,6 +499,42 @@ public class PixelEditorWindow implements WindowListener {
     chckbxFill.setBounds( 312, 283, 89, 23 );
     content.add( chckbxFill );
 
+    // chkbox pixel perfect
+    JCheckBox chckbxPixelPerfect = new JCheckBox( PIXEL_PERFECT_NAME );
+    chckbxPixelPerfect.setBounds( 508, 283, 110, 23 );
+    content.add( chckbxPixelPerfect );
+
+    // brush shape and size, under the hex code
+    JLabel lblBrush = new JLabel( BRUSH_NAME );
+    lblBrush.setBounds( 312, 172, 68, 26 );
+    content.add( lblBrush );
+
+    JComboBox< Brush.Shape > brushShapeBox = new JComboBox< Brush.Shape >(
+        Brush.Shape.values() );
+    brushShapeBox.setBounds( 386, 172, 126, 26 );
+    content.add( brushShapeBox );
+
+    JSpinner brushSizeSpinner = new JSpinner( new SpinnerNumberModel(
+        editorPanel.getBrush().getSize(), 1, Brush.MAX_SIZE, 1 ) );
+    brushSizeSpinner.setBounds( 386, 198, 68, 26 );
+    content.add( brushSizeSpinner );
+
+    JLabel lblBrushSize = new JLabel( BRUSH_SIZE_NAME );
+    lblBrushSize.setBounds( 312, 198, 68, 26 );
+    content.add( lblBrushSize );
+
+    // shape dragged out instead of drawing freehand, under the brush
+    JLabel lblShape = new JLabel( SHAPE_NAME );
+    lblShape.setBounds( 312, 224, 68, 26 );
+    content.add( lblShape );
+
+    Object[] shapes = new Object[ShapeTool.values().length + 1];
+    shapes[0] = FREEHAND_NAME;
+    System.arraycopy( ShapeTool.values(), 0, shapes, 1, shapes.length - 1 );
+    JComboBox< Object > shapeBox = new JComboBox< Object >( shapes );
+    shapeBox.setBounds( 386, 224, 126, 26 );
+    content.add( shapeBox );
+
     // red spinner
     redSpinner = new JSpinner();
     redSpinner.setBounds( 566, 112, 68, 26 );
@@ -415,6 +638,21 @@ public class PixelEditorWindow implements WindowListener {
     lblAlpha.setBounds( 518, 190, 48, 26 );
     content.add( lblAlpha );
 
+    // layers, with the top one first
+    layerListModel = new DefaultListModel< Layer >();
+    layerList = new JList< Layer >( layerListModel );
+    layerList.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
+    JScrollPane layerScrollPane = new JScrollPane( layerList );
+    layerScrollPane.setBounds( 640, 196, 162, 110 );
+    content.add( layerScrollPane );
+    updateLayerList();
+
+    // the frame being drawn on, over the checkboxes
+    frameLabel = new JLabel();
+    frameLabel.setBounds( 312, 257, 190, 23 );
+    content.add( frameLabel );
+    updateFrameLabel();
+
     // grid size selector
     JComboBox< Integer > comboBox = new JComboBox< Integer >();
     comboBox.setBounds( 230, 312, 76, 26 );
@@ -429,12 +667,30 @@ public class PixelEditorWindow implements WindowListener {
     lblGridSize.setBounds( 167, 312, 63, 26 );
     content.add( lblGridSize );
 
+    // progress of a save or import, next to the grid size
+    progressBar = new JProgressBar( 0, 100 );
+    progressBar.setBounds( 6, 318, 155, 14 );
+    progressBar.setVisible( false );
+    content.add( progressBar );
+
     // makes the grid size change
     comboBox.addItemListener( new ItemListener() {
       public void itemStateChanged( ItemEvent e ) {
-        editorPanel.changeGridSize( (Integer) e.getItem() );
+        if( e.getStateChange() == ItemEvent.SELECTED ) {
+          editorPanel.changeGridSize( (Integer) e.getItem() );
+        }
       }
     } );
+    
+    // and shows the grid size of a project that was opened
+    editorPanel.addPropertyChangeListener( EditorPanel.GRID_SIZE_PROPERTY,
+        new PropertyChangeListener() {
+          public void propertyChange( PropertyChangeEvent e ) {
+            if( !e.getNewValue().equals( comboBox.getSelectedItem() ) ) {
+              comboBox.setSelectedItem( e.getNewValue() );
+            }
+          }
+        } );
 
     // this tells the hex code field to update the color stuff if a valid hex
     // string is entered
@@ -464,7 +720,7 @@ public class PixelEditorWindow implements WindowListener {
           // object
           // is null. If it is not, then we an update colors.
           if( newColor != null ) {
-            updateColor( newColor, SRC_HEX );
+            colorChoice.setRGB( newColor.getRGB() );
           }
         }
       }
@@ -472,6 +728,12 @@ public class PixelEditorWindow implements WindowListener {
     } );
 
     // listeners
+    colorChoice.addListener( new ColorChoice.Listener() {
+      public void colorChanged( int changes ) {
+        showColor( changes );
+      }
+    } );
+
     redSpinner.addChangeListener( rbgChangeListener );
     greenSpinner.addChangeListener( rbgChangeListener );
     blueSpinner.addChangeListener( rbgChangeListener );
@@ -488,6 +750,40 @@ public class PixelEditorWindow implements WindowListener {
       }
     } );
 
+    // this tells the canvas to keep diagonal strokes thin if selected
+    chckbxPixelPerfect.addItemListener( new ItemListener() {
+      public void itemStateChanged( ItemEvent e ) {
+        editorPanel.setPixelPerfect( chckbxPixelPerfect.isSelected() );
+      }
+    } );
+
+    // this gives the canvas a new brush when its shape or size changes
+    ChangeListener brushListener = new ChangeListener() {
+      public void stateChanged( ChangeEvent e ) {
+        editorPanel.setBrush( new Brush(
+            (Brush.Shape) brushShapeBox.getSelectedItem(),
+            (Integer) brushSizeSpinner.getValue() ) );
+      }
+    };
+    brushSizeSpinner.addChangeListener( brushListener );
+    brushShapeBox.addItemListener( new ItemListener() {
+      public void itemStateChanged( ItemEvent e ) {
+        if( e.getStateChange() == ItemEvent.SELECTED ) {
+          brushListener.stateChanged( null );
+        }
+      }
+    } );
+
+    // this tells the canvas which shape to drag out, if any
+    shapeBox.addItemListener( new ItemListener() {
+      public void itemStateChanged( ItemEvent e ) {
+        if( e.getStateChange() == ItemEvent.SELECTED ) {
+          editorPanel.setShapeTool( e.getItem() instanceof ShapeTool
+                                        ? (ShapeTool) e.getItem() : null );
+        }
+      }
+    } );
+
     // this tells the canvas to show the grid if the checkbox is selected
     chckbxGrid.addItemListener( new ItemListener() {
       public void itemStateChanged( ItemEvent e ) {
@@ -495,42 +791,20 @@ public class PixelEditorWindow implements WindowListener {
       }
     } );
 
-    // sets the current color to the color clicked on, same for both actions
+    // sets the current color to the color under the mouse, anywhere on the
+    // screen, as it's dragged from the button and when it's let go
     mEyedropperButton.addMouseListener( new MouseAdapter() {
       @Override
       public void mouseReleased( MouseEvent e ) {
-        try {
-          // a really nice class that lets us look at the entire screen
-          Robot getter = new Robot();
-          // use getXOnScreen to get absolute position where the mouse is, so we
-          // can grab the color anywhere
-          Color selectedColor = getter.getPixelColor( e.getXOnScreen(),
-              e.getYOnScreen() );
-          // same update stuff
-          updateColor( selectedColor, SRC_OTHER );
-        } catch( AWTException awte ) {
-          JOptionPane.showMessageDialog( pixelEditorFrame,
-              "Your application may look strange.\n\n" + "Details:\n"
-                  + awte.getMessage(),
-              "System Error", JOptionPane.ERROR_MESSAGE );
-        }
+        sampleColor( e );
+        colorSampler.flush();
       }
     } );
 
     mEyedropperButton.addMouseMotionListener( new MouseMotionAdapter() {
       @Override
       public void mouseDragged( MouseEvent e ) {
-        try {
-          Robot getter = new Robot();
-          Color selectedColor = getter.getPixelColor( e.getXOnScreen(),
-              e.getYOnScreen() );
-          updateColor( selectedColor, SRC_OTHER );
-        } catch( AWTException awte ) {
-          JOptionPane.showMessageDialog( pixelEditorFrame,
-              "Your application may look strange.\n\n" + "Details:\n"
-                  + awte.getMessage(),
-              "System Error", JOptionPane.ERROR_MESSAGE );
-        }
+        sampleColor( e );
       }
     } );
 
@@ -540,12 +814,6 @@ public class PixelEditorWindow implements WindowListener {
       
       public void mousePressed( MouseEvent e ) {
         colorPickerPanel.updateColor( e );
-        Color toUpdate = colorPickerPanel.getColor();
-        toUpdate = new Color( toUpdate.getRed(),
-                              toUpdate.getGreen(),
-                              toUpdate.getBlue(),
-                              ( Integer ) alphaSpinner.getValue() );
-        updateColor( toUpdate, SRC_PICKER );
       }
       
       public void mouseDragged( MouseEvent e ) {
@@ -559,12 +827,24 @@ public class PixelEditorWindow implements WindowListener {
     // menu setup
     JMenu fileMenu = new JMenu("File");
     
+    JMenuItem newMenuItem = new JMenuItem( NEW_NAME );
+    newMenuItem.setAccelerator( NEW_COMBO );
+    
     JMenuItem openMenuItem = new JMenuItem( OPEN_NAME );
     openMenuItem.setAccelerator( OPEN_COMBO );
     
     JMenuItem saveMenuItem = new JMenuItem( SAVE_NAME );
     saveMenuItem.setAccelerator( SAVE_COMBO );
     
+    JMenuItem pngOptionsMenuItem = new JMenuItem( PNG_OPTIONS_NAME );
+    
+    JMenuItem openProjectMenuItem = new JMenuItem( OPEN_PROJECT_NAME );
+    
+    JMenuItem saveProjectMenuItem = new JMenuItem( SAVE_PROJECT_NAME );
+    saveProjectMenuItem.setAccelerator( SAVE_PROJECT_COMBO );
+    
+    JMenuItem saveProjectAsMenuItem = new JMenuItem( SAVE_PROJECT_AS_NAME );
+    
     JMenu editMenu = new JMenu("Edit");
     
     JMenuItem invertMenuItem = new JMenuItem( INVERT_NAME );
@@ -573,15 +853,96 @@ public class PixelEditorWindow implements WindowListener {
     JMenuItem clearMenuItem = new JMenuItem( CLEAR_NAME );
     clearMenuItem.setAccelerator( CLEAR_COMBO );
     
+    JMenuItem copyMenuItem = new JMenuItem( COPY_NAME );
+    copyMenuItem.setAccelerator( COPY_COMBO );
+    
+    JMenuItem pasteMenuItem = new JMenuItem( PASTE_NAME );
+    pasteMenuItem.setAccelerator( PASTE_COMBO );
+    
+    JMenuItem eyedropperSizeMenuItem = new JMenuItem( EYEDROPPER_SIZE_NAME );
+    
+    JCheckBoxMenuItem indexedMenuItem = new JCheckBoxMenuItem( INDEXED_NAME );
+    JCheckBoxMenuItem recolorMenuItem = new JCheckBoxMenuItem( RECOLOR_NAME );
+    recolorMenuItem.setEnabled( false );
+    
     JMenuItem undoMenuItem = new JMenuItem( UNDO_NAME );
     undoMenuItem.setAccelerator( UNDO_COMBO );
     
     JMenuItem redoMenuItem = new JMenuItem( REDO_NAME );
     redoMenuItem.setAccelerator( REDO_COMBO );
     
+    JMenu viewMenu = new JMenu("View");
+    
+    JMenuItem zoomInMenuItem = new JMenuItem( ZOOM_IN_NAME );
+    zoomInMenuItem.setAccelerator( ZOOM_IN_COMBO );
+    
+    JMenuItem zoomOutMenuItem = new JMenuItem( ZOOM_OUT_NAME );
+    zoomOutMenuItem.setAccelerator( ZOOM_OUT_COMBO );
+    
+    JMenuItem actualSizeMenuItem = new JMenuItem( ACTUAL_SIZE_NAME );
+    actualSizeMenuItem.setAccelerator( ACTUAL_SIZE_COMBO );
+    
+    JMenu layerMenu = new JMenu("Layer");
+    
+    JMenuItem newLayerMenuItem = new JMenuItem( NEW_LAYER_NAME );
+    JMenuItem deleteLayerMenuItem = new JMenuItem( DELETE_LAYER_NAME );
+    JMenuItem layerUpMenuItem = new JMenuItem( LAYER_UP_NAME );
+    JMenuItem layerDownMenuItem = new JMenuItem( LAYER_DOWN_NAME );
+    JMenuItem layerOptionsMenuItem = new JMenuItem( LAYER_OPTIONS_NAME );
+    
+    JMenu frameMenu = new JMenu("Frame");
+    
+    JMenuItem newFrameMenuItem = new JMenuItem( NEW_FRAME_NAME );
+    JMenuItem deleteFrameMenuItem = new JMenuItem( DELETE_FRAME_NAME );
+    JMenuItem previousFrameMenuItem = new JMenuItem( PREVIOUS_FRAME_NAME );
+    previousFrameMenuItem.setAccelerator( PREVIOUS_FRAME_COMBO );
+    JMenuItem nextFrameMenuItem = new JMenuItem( NEXT_FRAME_NAME );
+    nextFrameMenuItem.setAccelerator( NEXT_FRAME_COMBO );
+    JMenuItem frameEarlierMenuItem = new JMenuItem( FRAME_EARLIER_NAME );
+    JMenuItem frameLaterMenuItem = new JMenuItem( FRAME_LATER_NAME );
+    JMenuItem playMenuItem = new JMenuItem( PLAY_NAME );
+    playMenuItem.setAccelerator( PLAY_COMBO );
+    JCheckBoxMenuItem onionSkinMenuItem =
+        new JCheckBoxMenuItem( ONION_SKIN_NAME );
+    JMenuItem frameRateMenuItem = new JMenuItem( FRAME_RATE_NAME );
+    JMenuItem exportAnimationMenuItem =
+        new JMenuItem( EXPORT_ANIMATION_NAME );
+    
+    JMenu selectMenu = new JMenu("Select");
+    
+    JRadioButtonMenuItem drawMenuItem = new JRadioButtonMenuItem( DRAW_NAME );
+    drawMenuItem.setSelected( true );
+    ButtonGroup selectionTools = new ButtonGroup();
+    selectionTools.add( drawMenuItem );
+    JMenuItem selectAllMenuItem = new JMenuItem( SELECT_ALL_NAME );
+    selectAllMenuItem.setAccelerator( SELECT_ALL_COMBO );
+    JMenuItem deselectMenuItem = new JMenuItem( DESELECT_NAME );
+    deselectMenuItem.setAccelerator( DESELECT_COMBO );
+    JMenuItem invertSelectionMenuItem =
+        new JMenuItem( INVERT_SELECTION_NAME );
+    invertSelectionMenuItem.setAccelerator( INVERT_SELECTION_COMBO );
+    JCheckBoxMenuItem contiguousMenuItem =
+        new JCheckBoxMenuItem( CONTIGUOUS_NAME );
+    contiguousMenuItem.setSelected( true );
+    JMenuItem wandToleranceMenuItem = new JMenuItem( WAND_TOLERANCE_NAME );
+    
+    JMenu filterMenu = new JMenu("Filter");
+    
+    JMenuItem grayscaleMenuItem = new JMenuItem( GRAYSCALE_NAME );
+    JMenuItem posterizeMenuItem = new JMenuItem( POSTERIZE_NAME );
+    JMenuItem hueSaturationMenuItem = new JMenuItem( HUE_SATURATION_NAME );
+    JMenuItem brightnessContrastMenuItem = 
+        new JMenuItem( BRIGHTNESS_CONTRAST_NAME );
+    
     menuBar.add( fileMenu );
+    fileMenu.add( newMenuItem );
     fileMenu.add( openMenuItem );
     fileMenu.add( saveMenuItem );
+    fileMenu.add( pngOptionsMenuItem );
+    fileMenu.addSeparator();
+    fileMenu.add( openProjectMenuItem );
+    fileMenu.add( saveProjectMenuItem );
+    fileMenu.add( saveProjectAsMenuItem );
     
     menuBar.add( editMenu );
     editMenu.add( undoMenuItem );
@@ -589,6 +950,164 @@ public class PixelEditorWindow implements WindowListener {
     editMenu.addSeparator();
     editMenu.add( invertMenuItem );
     editMenu.add( clearMenuItem );
+    editMenu.addSeparator();
+    editMenu.add( copyMenuItem );
+    editMenu.add( pasteMenuItem );
+    editMenu.addSeparator();
+    editMenu.add( eyedropperSizeMenuItem );
+    editMenu.addSeparator();
+    editMenu.add( indexedMenuItem );
+    editMenu.add( recolorMenuItem );
+    
+    menuBar.add( viewMenu );
+    viewMenu.add( zoomInMenuItem );
+    viewMenu.add( zoomOutMenuItem );
+    viewMenu.add( actualSizeMenuItem );
+    
+    menuBar.add( layerMenu );
+    layerMenu.add( newLayerMenuItem );
+    layerMenu.add( deleteLayerMenuItem );
+    layerMenu.addSeparator();
+    layerMenu.add( layerUpMenuItem );
+    layerMenu.add( layerDownMenuItem );
+    layerMenu.addSeparator();
+    layerMenu.add( layerOptionsMenuItem );
+    
+    menuBar.add( frameMenu );
+    frameMenu.add( newFrameMenuItem );
+    frameMenu.add( deleteFrameMenuItem );
+    frameMenu.addSeparator();
+    frameMenu.add( previousFrameMenuItem );
+    frameMenu.add( nextFrameMenuItem );
+    frameMenu.add( frameEarlierMenuItem );
+    frameMenu.add( frameLaterMenuItem );
+    frameMenu.addSeparator();
+    frameMenu.add( playMenuItem );
+    frameMenu.add( onionSkinMenuItem );
+    frameMenu.add( frameRateMenuItem );
+    frameMenu.addSeparator();
+    frameMenu.add( exportAnimationMenuItem );
+    
+    menuBar.add( selectMenu );
+    selectMenu.add( drawMenuItem );
+    for( final SelectionTool tool : SelectionTool.values() ) {
+      JRadioButtonMenuItem toolMenuItem =
+          new JRadioButtonMenuItem( tool.toString() );
+      selectionTools.add( toolMenuItem );
+      selectMenu.add( toolMenuItem );
+      toolMenuItem.addActionListener( new ActionListener() {
+        public void actionPerformed( ActionEvent ae ) {
+          editorPanel.setSelectionTool( tool );
+        }
+      } );
+    }
+    selectMenu.addSeparator();
+    selectMenu.add( selectAllMenuItem );
+    selectMenu.add( deselectMenuItem );
+    selectMenu.add( invertSelectionMenuItem );
+    selectMenu.addSeparator();
+    selectMenu.add( contiguousMenuItem );
+    selectMenu.add( wandToleranceMenuItem );
+    
+    menuBar.add( filterMenu );
+    filterMenu.add( grayscaleMenuItem );
+    filterMenu.add( posterizeMenuItem );
+    filterMenu.add( hueSaturationMenuItem );
+    filterMenu.add( brightnessContrastMenuItem );
+    
+    // zooming, which keeps the middle of the view in place
+    zoomInMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.zoomIn();
+      }
+    } );
+    
+    zoomOutMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.zoomOut();
+      }
+    } );
+    
+    actualSizeMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.resetZoom();
+      }
+    } );
+    
+    // logic to start over with a blank image of any size
+    newMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        if( !editorPanel.isSaved() ) {
+          int selected = JOptionPane.showConfirmDialog(
+              pixelEditorFrame,
+              "Your image is unsaved. Are you sure you want to start over?",
+              "Unsaved Edits",
+              JOptionPane.YES_NO_OPTION );
+          if( selected != JOptionPane.YES_OPTION ) {
+            return;
+          }
+        }
+        
+        int[] values = askForValues(
+            "New Image",
+            new String[]{ "Width", "Height" },
+            new int[]{ 1, 1 },
+            new int[]{ TiledCanvas.MAX_SIZE, TiledCanvas.MAX_SIZE },
+            new int[]{ editorPanel.getImageWidth(),
+                       editorPanel.getImageHeight() } );
+        if( values != null ) {
+          editorPanel.newCanvas( values[0], values[1] );
+        }
+      }
+    } );
+
+    // logic to open and save projects, which keep the layers and history
+    openProjectMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        if( !editorPanel.isSaved() ) {
+          int selected = JOptionPane.showConfirmDialog(
+              pixelEditorFrame,
+              "Your image is unsaved. Are you sure you want to open another?",
+              "Unsaved Edits",
+              JOptionPane.YES_NO_OPTION );
+          if( selected != JOptionPane.YES_OPTION ) {
+            return;
+          }
+        }
+        
+        File toOpen = chooseProjectFile( false );
+        if( toOpen != null ) {
+          try {
+            editorPanel.loadProject( toOpen );
+          } catch( Exception e ) {
+            JOptionPane.showMessageDialog( pixelEditorFrame,
+                "Unable to open project.\n\n" + "Details:\n" + e.getMessage(),
+                "File Error", JOptionPane.ERROR_MESSAGE );
+          }
+        }
+      }
+    } );
+    
+    // saving again to the same project doesn't ask where
+    ActionListener saveProjectListener = new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        File toSave = editorPanel.getProjectFile();
+        if( toSave == null || ae.getSource() == saveProjectAsMenuItem ) {
+          toSave = chooseProjectFile( true );
+        }
+        if( toSave != null ) {
+          try {
+            editorPanel.saveProject( toSave );
+          } catch( Exception e ) {
+            JOptionPane.showMessageDialog( pixelEditorFrame,
+                "Unable to save project.\n\n" + "Details:\n" + e.getMessage(),
+                "File Error", JOptionPane.ERROR_MESSAGE );
+          }
+        }
+      }
+    };
+    saveProjectMenuItem.addActionListener( saveProjectListener );
+    saveProjectAsMenuItem.addActionListener( saveProjectListener );
     
     // logic to open an image
     openMenuItem.addActionListener( new ActionListener() {
@@ -616,7 +1135,14 @@ public class PixelEditorWindow implements WindowListener {
           if( userSelection == JFileChooser.APPROVE_OPTION ) {
 
             toOpen = fileChooser.getSelectedFile();
-            editorPanel.loadImage( toOpen, pixelEditorFrame );
+
+            // the pixels are read in the background, so a huge image
+            // doesn't freeze the editor
+            ImageLoader loader =
+                editorPanel.loadImage( toOpen, pixelEditorFrame );
+            if( loader != null ) {
+              showProgress( loader, "Unable to open file." );
+            }
           }
 
         } catch( Exception e ) {
@@ -672,7 +1198,10 @@ public class PixelEditorWindow implements WindowListener {
 
           } while( userSelection != JOptionPane.YES_OPTION );
 
-          editorPanel.saveImage( toSave );
+          // the image is written in the background, so the editor can be
+          // used while it saves
+          showProgress( editorPanel.saveImageInBackground( toSave ),
+                        "Unable to save file." );
 
         } catch( Exception e ) {
           // upon any error, tell the user we are unable to save. you can catch
@@ -687,6 +1216,39 @@ public class PixelEditorWindow implements WindowListener {
       }
     } );
 
+    // how images are saved: the deflate level, the row filters, and
+    // whether images of too many colors for a palette are reduced to 256
+    pngOptionsMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        PngEncoder encoder = editorPanel.getPngEncoder();
+        JSpinner level = new JSpinner( new SpinnerNumberModel(
+            encoder.getLevel(), 0, 9, 1 ) );
+        JComboBox< PngEncoder.Filter > filter =
+            new JComboBox< PngEncoder.Filter >( PngEncoder.Filter.values() );
+        filter.setSelectedItem( encoder.getFilter() );
+        JCheckBox quantize = new JCheckBox(
+            "Reduce to 256 colors", encoder.getQuantizer() != null );
+
+        JPanel panel = new JPanel( new GridLayout( 3, 2, 6, 6 ) );
+        panel.add( new JLabel( "Compression level" ) );
+        panel.add( level );
+        panel.add( new JLabel( "Row filter" ) );
+        panel.add( filter );
+        panel.add( new JLabel( "Over 256 colors" ) );
+        panel.add( quantize );
+
+        int selected = JOptionPane.showConfirmDialog( pixelEditorFrame,
+            panel, "PNG Options", JOptionPane.OK_CANCEL_OPTION,
+            JOptionPane.PLAIN_MESSAGE );
+        if( selected == JOptionPane.OK_OPTION ) {
+          encoder.setLevel( (Integer) level.getValue() );
+          encoder.setFilter( (PngEncoder.Filter) filter.getSelectedItem() );
+          encoder.setQuantizer( quantize.isSelected() ? Quantizer.medianCut()
+                                                      : null );
+        }
+      }
+    } );
+
     // tells the canvas to invert the colors in the image
     invertMenuItem.addActionListener( new ActionListener() {
       public void actionPerformed( ActionEvent ae ) {
@@ -694,6 +1256,394 @@ public class PixelEditorWindow implements WindowListener {
       }
     } );
 
+    // picking a layer in the list draws on it, and double-clicking it shows
+    // its options
+    layerList.addListSelectionListener( new ListSelectionListener() {
+      public void valueChanged( ListSelectionEvent e ) {
+        int selected = layerList.getSelectedIndex();
+        if( !updateInProgress && selected >= 0 ) {
+          editorPanel.selectLayer( layerListModel.size() - 1 - selected );
+        }
+      }
+    } );
+    
+    layerList.addMouseListener( new MouseAdapter() {
+      public void mouseClicked( MouseEvent e ) {
+        if( e.getClickCount() == 2 ) {
+          showLayerOptions();
+        }
+      }
+    } );
+    
+    // keeps the list up to date however the layers change
+    editorPanel.addPropertyChangeListener( EditorPanel.LAYERS_PROPERTY,
+        new PropertyChangeListener() {
+          public void propertyChange( PropertyChangeEvent e ) {
+            updateLayerList();
+          }
+        } );
+    
+    newLayerMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.addLayer();
+      }
+    } );
+    
+    deleteLayerMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        if( editorPanel.getLayers().getLayerCount() < 2 ) {
+          JOptionPane.showMessageDialog( pixelEditorFrame,
+              "An image needs at least one layer.",
+              "Whoops!",
+              JOptionPane.OK_OPTION );
+          return;
+        }
+        int selected = JOptionPane.showConfirmDialog( pixelEditorFrame,
+            "Deleting a layer can't be undone, and forgets the undo history."
+            + "\nAre you sure?",
+            "Confirm",
+            JOptionPane.YES_NO_OPTION );
+        if( selected == JOptionPane.YES_OPTION ) {
+          editorPanel.removeLayer();
+        }
+      }
+    } );
+    
+    layerUpMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.moveLayer( 1 );
+      }
+    } );
+    
+    layerDownMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.moveLayer( -1 );
+      }
+    } );
+    
+    layerOptionsMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        showLayerOptions();
+      }
+    } );
+
+    // frames, which are copied from the one being drawn on
+    newFrameMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.addFrame();
+      }
+    } );
+    
+    deleteFrameMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        if( editorPanel.getDocument().getFrameCount() < 2 ) {
+          JOptionPane.showMessageDialog( pixelEditorFrame,
+              "An image needs at least one frame.",
+              "Whoops!",
+              JOptionPane.OK_OPTION );
+          return;
+        }
+        int selected = JOptionPane.showConfirmDialog( pixelEditorFrame,
+            "Deleting a frame can't be undone, and forgets the undo history."
+            + "\nAre you sure?",
+            "Confirm",
+            JOptionPane.YES_NO_OPTION );
+        if( selected == JOptionPane.YES_OPTION ) {
+          editorPanel.removeFrame();
+        }
+      }
+    } );
+    
+    previousFrameMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        Document document = editorPanel.getDocument();
+        if( document.getFrameIndex() > 0 ) {
+          editorPanel.selectFrame( document.getFrameIndex() - 1 );
+        }
+      }
+    } );
+    
+    nextFrameMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        Document document = editorPanel.getDocument();
+        if( document.getFrameIndex() < document.getFrameCount() - 1 ) {
+          editorPanel.selectFrame( document.getFrameIndex() + 1 );
+        }
+      }
+    } );
+    
+    frameEarlierMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.moveFrame( -1 );
+      }
+    } );
+    
+    frameLaterMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.moveFrame( 1 );
+      }
+    } );
+    
+    playMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        if( editorPanel.isPlaying() ) {
+          editorPanel.stop();
+        } else {
+          editorPanel.play();
+        }
+      }
+    } );
+    
+    onionSkinMenuItem.addItemListener( new ItemListener() {
+      public void itemStateChanged( ItemEvent e ) {
+        editorPanel.showOnionSkin( onionSkinMenuItem.isSelected() );
+      }
+    } );
+    
+    frameRateMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        int[] values = askForValues(
+            "Frame Rate",
+            new String[]{ "Frames per second" },
+            new int[]{ 1 },
+            new int[]{ Document.MAX_FRAMES_PER_SECOND },
+            new int[]{ editorPanel.getDocument().getFramesPerSecond() } );
+        if( values != null ) {
+          editorPanel.setFramesPerSecond( values[0] );
+        }
+      }
+    } );
+    
+    // every frame is written in the background, as a GIF or animated PNG
+    exportAnimationMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        File toSave = chooseAnimationFile();
+        if( toSave != null ) {
+          showProgress( editorPanel.exportAnimationInBackground( toSave ),
+                        "Unable to export animation." );
+        }
+      }
+    } );
+    
+    // keeps the frame shown and the play item up to date
+    editorPanel.addPropertyChangeListener( EditorPanel.FRAMES_PROPERTY,
+        new PropertyChangeListener() {
+          public void propertyChange( PropertyChangeEvent e ) {
+            updateFrameLabel();
+          }
+        } );
+    
+    editorPanel.addPropertyChangeListener( EditorPanel.PLAYING_PROPERTY,
+        new PropertyChangeListener() {
+          public void propertyChange( PropertyChangeEvent e ) {
+            playMenuItem.setText( editorPanel.isPlaying() ? STOP_NAME
+                                                          : PLAY_NAME );
+          }
+        } );
+
+    // the filters ask for their settings, then apply themselves to the canvas
+    grayscaleMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.applyFilter( PixelFilter.grayscale() );
+      }
+    } );
+    
+    posterizeMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        int[] values = askForValues( "Posterize",
+                                     new String[]{ "Levels" },
+                                     new int[]{ 2 },
+                                     new int[]{ 256 },
+                                     new int[]{ 4 } );
+        if( values != null ) {
+          editorPanel.applyFilter( PixelFilter.posterize( values[0] ) );
+        }
+      }
+    } );
+    
+    hueSaturationMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        int[] values = askForValues( "Hue/Saturation",
+                                     new String[]{ HUE_NAME, SATURATION_NAME },
+                                     new int[]{ -180, -100 },
+                                     new int[]{ 180, 100 },
+                                     new int[]{ 0, 0 } );
+        if( values != null ) {
+          editorPanel.applyFilter(
+              PixelFilter.hueSaturation( values[0], values[1] ) );
+        }
+      }
+    } );
+    
+    brightnessContrastMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        int[] values = askForValues( "Brightness/Contrast",
+                                     new String[]{ BRIGHTNESS_NAME,
+                                                   "Contrast" },
+                                     new int[]{ -100, -100 },
+                                     new int[]{ 100, 100 },
+                                     new int[]{ 0, 0 } );
+        if( values != null ) {
+          editorPanel.applyFilter(
+              PixelFilter.brightnessContrast( values[0], values[1] ) );
+        }
+      }
+    } );
+
+    // the selection keeps every edit to the pixels in it
+    drawMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.setSelectionTool( null );
+      }
+    } );
+    
+    selectAllMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.selectAll();
+      }
+    } );
+    
+    deselectMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.deselect();
+      }
+    } );
+    
+    invertSelectionMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.invertSelection();
+      }
+    } );
+    
+    contiguousMenuItem.addItemListener( new ItemListener() {
+      public void itemStateChanged( ItemEvent e ) {
+        editorPanel.setWandContiguous( contiguousMenuItem.isSelected() );
+      }
+    } );
+    
+    wandToleranceMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        int[] values = askForValues(
+            "Wand Tolerance",
+            new String[]{ "Tolerance" },
+            new int[]{ 0 },
+            new int[]{ RGBA_MAX },
+            new int[]{ editorPanel.getWandTolerance() } );
+        if( values != null ) {
+          editorPanel.setWandTolerance( values[0] );
+        }
+      }
+    } );
+    
+    copyMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.copy();
+      }
+    } );
+    
+    pasteMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        editorPanel.paste();
+      }
+    } );
+    
+    // how wide a square of pixels the eyedropper averages
+    eyedropperSizeMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        int[] values = askForValues(
+            "Eyedropper Size",
+            new String[]{ "Pixels across" },
+            new int[]{ 1 },
+            new int[]{ ColorSampler.MAX_SIZE },
+            new int[]{ colorSampler.getSize() } );
+        if( values != null ) {
+          colorSampler.setSize( values[0] );
+        }
+      }
+    } );
+
+    // an indexed image holds a byte per pixel, into a table of colors
+    indexedMenuItem.addActionListener( new ActionListener() {
+      public void actionPerformed( ActionEvent ae ) {
+        boolean indexed = indexedMenuItem.isSelected();
+
+        // converting can't be undone and drops the undo history
+        History history = editorPanel.getDocument().getHistory();
+        if( history.canUndo() || history.canRedo() ) {
+          int selected = JOptionPane.showConfirmDialog(
+              pixelEditorFrame,
+              "Converting can't be undone and clears the undo history. "
+                  + "Are you sure?",
+              "Confirm",
+              JOptionPane.YES_NO_OPTION );
+          if( selected != JOptionPane.YES_OPTION ) {
+            indexedMenuItem.setSelected( !indexed );
+            return;
+          }
+        }
+        if( !indexed ) {
+          editorPanel.convertToRGB();
+          return;
+        }
+        int[] values = askForValues(
+            "Indexed Colors",
+            new String[]{ "Colors" },
+            new int[]{ 2 },
+            new int[]{ ColorTable.MAX_COLORS },
+            new int[]{ ColorTable.MAX_COLORS } );
+        if( values != null ) {
+          editorPanel.convertToIndexed( values[0] );
+        } else {
+          indexedMenuItem.setSelected( false );
+        }
+      }
+    } );
+    
+    // while recoloring, the color controls edit the color of the table
+    // closest to the color when it started, and every pixel using it
+    recolorMenuItem.addItemListener( new ItemListener() {
+      public void itemStateChanged( ItemEvent e ) {
+        ColorTable table = editorPanel.getDocument().getColorTable();
+        if( recolorMenuItem.isSelected() && table != null ) {
+          recolorIndex = table.indexOf( colorChoice.getRGB() );
+        }
+      }
+    } );
+    
+    colorChoice.addListener( new ColorChoice.Listener() {
+      public void colorChanged( int changes ) {
+        if( !recolorMenuItem.isSelected()
+            || ( changes & ( ColorChoice.RGB | ColorChoice.ALPHA ) ) == 0 ) {
+          return;
+        }
+
+        // a color picked up or switched to picks the color to recolor next,
+        // and only edits of the color change the table
+        ColorTable table = editorPanel.getDocument().getColorTable();
+        if( colorSampler.isSampling() || switchingColor ) {
+          if( table != null ) {
+            recolorIndex = table.indexOf( colorChoice.getRGB() );
+          }
+        } else {
+          editorPanel.setPaletteColor( recolorIndex, colorChoice.getRGB() );
+        }
+      }
+    } );
+    
+    // the image may have been opened or converted to another kind
+    editorPanel.addPropertyChangeListener( EditorPanel.LAYERS_PROPERTY,
+        new PropertyChangeListener() {
+          public void propertyChange( PropertyChangeEvent e ) {
+            boolean indexed =
+                editorPanel.getDocument().getColorTable() != null;
+            indexedMenuItem.setSelected( indexed );
+            recolorMenuItem.setEnabled( indexed );
+            if( !indexed ) {
+              recolorMenuItem.setSelected( false );
+            }
+          }
+        } );
+
     // this tells the canvas to clear if the button is hit and the user confirms
     clearMenuItem.addActionListener( new ActionListener() {
       @Override
@@ -733,20 +1683,12 @@ public class PixelEditorWindow implements WindowListener {
       }
     });
     
-    // ok, with the mess out of the way, we now select the first box...
-    setColorDisplay( firstColorDisplay );
+    // ok, with the mess out of the way, we give the second box its color...
+    secondColorDisplay.setBackground( DEFAULT_COLOR_B );
     
-    // ...and give it that color...
-    updateColor( DEFAULT_COLOR_A, SRC_OTHER );
-    
-    // ...then select the second box...
-    setColorDisplay( secondColorDisplay );
-
-    // and give it this color...
-    updateColor( DEFAULT_COLOR_B, SRC_OTHER );
-    
-    // ...then reselect the first box...
-    setColorDisplay( firstColorDisplay );
+    // ...then select the first box, and show the color it starts with...
+    selectedColorDisplay = firstColorDisplay;
+    showColor( ColorChoice.ALL );
     
     // ...and give it the border!
     firstColorDisplay.setBorder( selectedBorder );
@@ -758,56 +1700,283 @@ public class PixelEditorWindow implements WindowListener {
     pixelEditorFrame.pack();
   }
 
-  private void updateColor( Color color, int src ) {
+  /*
+   * shows the progress of a background task until it is done, and tells the
+   * user if it failed
+   */
+  private void showProgress( final SwingWorker< ?, ? > task,
+                             final String failure ) {
+    tasksInProgress++;
+    progressBar.setValue( 0 );
+    progressBar.setVisible( true );
+    task.addPropertyChangeListener( new PropertyChangeListener() {
+      public void propertyChange( PropertyChangeEvent pce ) {
+        if( "progress".equals( pce.getPropertyName() ) ) {
+          progressBar.setValue( task.getProgress() );
+        } else if( "state".equals( pce.getPropertyName() )
+                   && pce.getNewValue() == SwingWorker.StateValue.DONE ) {
+          taskFinished( task, failure );
+        }
+      }
+    } );
+  }
+
+  /*
+   * hides the progress bar once nothing is running, and shows why a task
+   * failed
+   */
+  private void taskFinished( SwingWorker< ?, ? > task, String failure ) {
+    if( --tasksInProgress == 0 ) {
+      progressBar.setVisible( false );
+    }
+    try {
+      task.get();
+    } catch( ExecutionException e ) {
+      JOptionPane.showMessageDialog( pixelEditorFrame,
+          failure + "\n\n" + "Details:\n" + e.getCause().getMessage(),
+          "File Error",
+          JOptionPane.ERROR_MESSAGE );
+    } catch( InterruptedException | CancellationException e ) {
+    }
+  }
+
+  /*
+   * asks the sampler for the color under the mouse, telling the user if the
+   * screen can't be read
+   */
+  private void sampleColor( MouseEvent e ) {
+    try {
+      colorSampler.request( e.getXOnScreen(), e.getYOnScreen() );
+    } catch( AWTException awte ) {
+      JOptionPane.showMessageDialog( pixelEditorFrame,
+          "Your application may look strange.\n\n" + "Details:\n"
+              + awte.getMessage(),
+          "System Error", JOptionPane.ERROR_MESSAGE );
+    }
+  }
+
+  /*
+   * shows the parts of the color that changed in the controls that show
+   * them, and gives it to the canvas
+   */
+  private void showColor( int changes ) {
     updateInProgress = true;
 
-    if( src != SRC_PICKER && src != SRC_HSB ) {
-      colorPickerPanel.setColor( color );
+    if( ( changes & ColorChoice.HUE ) != 0 ) {
+      hueSpinner.setValue( Math.round( colorChoice.getHue() * HUE_MAX ) );
+    }
+    if( ( changes & ColorChoice.SATURATION ) != 0 ) {
+      saturationSpinner
+      .setValue( Math.round( colorChoice.getSaturation() * SATUR_MAX ) );
+    }
+    if( ( changes & ColorChoice.BRIGHTNESS ) != 0 ) {
+      brightnessSpinner
+      .setValue( Math.round( colorChoice.getBrightness() * BRIGHT_MAX ) );
     }
-    else if( src != SRC_PICKER && src == SRC_HSB ) {
-      colorPickerPanel
-          .setHue( (Integer) hueSpinner.getValue() / (float) HUE_MAX );
 
-      colorPickerPanel.setSaturation(
-          (Integer) saturationSpinner.getValue() / (float) SATUR_MAX );
+    if( ( changes & ColorChoice.RGB ) != 0 ) {
+      redSpinner.setValue( colorChoice.getRed() );
+      greenSpinner.setValue( colorChoice.getGreen() );
+      blueSpinner.setValue( colorChoice.getBlue() );
+      hexCodeField.setText( String.format( "#%06x",
+                            colorChoice.getRGB() & 0xffffff ) );
+    }
+    if( ( changes & ColorChoice.ALPHA ) != 0 ) {
+      alphaSpinner.setValue( colorChoice.getAlpha() );
+    }
 
-      colorPickerPanel.setBrightness(
-          (Integer) brightnessSpinner.getValue() / (float) BRIGHT_MAX );
+    // the swatch, the hex code and the canvas all use the whole color
+    if( ( changes & ( ColorChoice.RGB | ColorChoice.ALPHA ) ) != 0 ) {
+      Color color = colorChoice.getColor();
+      selectedColorDisplay.setBackground( color );
+      hexCodeField.setForeground( color );
+      editorPanel.setColor( color );
     }
 
-    if( src != SRC_HSB ) {
-      hueSpinner
-      .setValue( (int) ( colorPickerPanel.getHue() * HUE_MAX ) );
+    updateInProgress = false;
+  }
 
-      saturationSpinner
-      .setValue( (int) ( colorPickerPanel.getSaturation() * SATUR_MAX ) );
+  /*
+   * shows a dialog with a spinner for each value, and returns the values
+   * entered, or null if the user cancelled
+   */
+  private int[] askForValues( String title, String[] names,
+                              int[] min, int[] max, int[] initial ) {
+    JPanel panel = new JPanel( new GridLayout( names.length, 2, 6, 6 ) );
+    JSpinner[] spinners = new JSpinner[names.length];
+
+    for( int i = 0; i < names.length; i++ ) {
+      spinners[i] = new JSpinner(
+          new SpinnerNumberModel( initial[i], min[i], max[i], 1 ) );
+      panel.add( new JLabel( names[i] ) );
+      panel.add( spinners[i] );
+    }
 
-      brightnessSpinner
-      .setValue( (int) ( colorPickerPanel.getBrightness() * BRIGHT_MAX ) );
+    int selected = JOptionPane.showConfirmDialog( pixelEditorFrame,
+                                                  panel,
+                                                  title,
+                                                  JOptionPane.OK_CANCEL_OPTION,
+                                                  JOptionPane.PLAIN_MESSAGE );
+    if( selected != JOptionPane.OK_OPTION ) {
+      return null;
     }
 
-    if( src != SRC_RGB ) {
-      redSpinner.setValue( color.getRed() );
-      greenSpinner.setValue( color.getGreen() );
-      blueSpinner.setValue( color.getBlue() );
+    int[] values = new int[names.length];
+    for( int i = 0; i < names.length; i++ ) {
+      values[i] = (Integer) spinners[i].getValue();
     }
-    
-    alphaSpinner.setValue( color.getAlpha() );
-    selectedColorDisplay.setBackground( color );
-    hexCodeField.setText( String.format( "#%02x%02x%02x",
-                          color.getRed(),
-                          color.getGreen(),
-                          color.getBlue() ) );
-    hexCodeField.setForeground( color );
-    editorPanel.setColor( color );
+    return values;
+  }
 
+  /*
+   * asks for a project file to open or save, making sure a saved one has the
+   * right extension and that overwriting it is fine
+   */
+  private File chooseProjectFile( boolean save ) {
+    JFileChooser fileChooser = new JFileChooser();
+    fileChooser.setDialogTitle( save ? "Specify a project to save"
+                                     : "Specify a project to open" );
+    fileChooser.setFileFilter( new FileNameExtensionFilter(
+        "Pixel Editor Projects", ProjectFile.EXTENSION ) );
+    fileChooser.setFileSelectionMode( JFileChooser.FILES_ONLY );
+    
+    while( true ) {
+      int userSelection = save ? fileChooser.showSaveDialog( pixelEditorFrame )
+                               : fileChooser.showOpenDialog( pixelEditorFrame );
+      if( userSelection != JFileChooser.APPROVE_OPTION ) {
+        return null;
+      }
+      
+      File chosen = fileChooser.getSelectedFile();
+      if( !save ) {
+        return chosen;
+      }
+      if( !chosen.getName().endsWith( "." + ProjectFile.EXTENSION ) ) {
+        chosen = new File( chosen.getPath() + "." + ProjectFile.EXTENSION );
+      }
+      if( !chosen.exists()
+          || JOptionPane.showConfirmDialog( pixelEditorFrame,
+                 "Are you sure you want to overwrite the existing file?",
+                 "Confirm", JOptionPane.YES_NO_OPTION )
+             == JOptionPane.YES_OPTION ) {
+        return chosen;
+      }
+    }
+  }
+  
+  /*
+   * asks for a file to export the animation to, as a GIF or an animated
+   * PNG, adding the extension of the kind chosen if it has none
+   */
+  private File chooseAnimationFile() {
+    FileNameExtensionFilter gif =
+        new FileNameExtensionFilter( "GIF Files", "gif" );
+    FileNameExtensionFilter png =
+        new FileNameExtensionFilter( "Animated PNG Files", "png" );
+    JFileChooser fileChooser = new JFileChooser();
+    fileChooser.setDialogTitle( "Specify a file to export to" );
+    fileChooser.addChoosableFileFilter( gif );
+    fileChooser.addChoosableFileFilter( png );
+    fileChooser.setAcceptAllFileFilterUsed( false );
+    fileChooser.setFileFilter( gif );
+    fileChooser.setFileSelectionMode( JFileChooser.FILES_ONLY );
+    
+    while( true ) {
+      if( fileChooser.showSaveDialog( pixelEditorFrame )
+          != JFileChooser.APPROVE_OPTION ) {
+        return null;
+      }
+      
+      File chosen = fileChooser.getSelectedFile();
+      String name = chosen.getName().toLowerCase();
+      if( !name.endsWith( ".gif" ) && !name.endsWith( ".png" ) ) {
+        String extension = fileChooser.getFileFilter() == png ? "png" : "gif";
+        chosen = new File( chosen.getPath() + "." + extension );
+      }
+      if( !chosen.exists()
+          || JOptionPane.showConfirmDialog( pixelEditorFrame,
+                 "Are you sure you want to overwrite the existing file?",
+                 "Confirm", JOptionPane.YES_NO_OPTION )
+             == JOptionPane.YES_OPTION ) {
+        return chosen;
+      }
+    }
+  }
+  
+  /*
+   * fills the list with the layers of the editor, top first, and selects the
+   * one being drawn on
+   */
+  private void updateLayerList() {
+    LayerStack layers = editorPanel.getLayers();
+    int count = layers.getLayerCount();
+    
+    updateInProgress = true;
+    layerListModel.clear();
+    for( int i = count - 1; i >= 0; i-- ) {
+      layerListModel.addElement( layers.getLayer( i ) );
+    }
+    layerList.setSelectedIndex( count - 1 - layers.getActiveIndex() );
     updateInProgress = false;
   }
+  
+  /*
+   * shows which frame is being drawn on, out of how many
+   */
+  private void updateFrameLabel() {
+    Document document = editorPanel.getDocument();
+    frameLabel.setText( "Frame " + ( document.getFrameIndex() + 1 ) + " of "
+                        + document.getFrameCount() );
+  }
+  
+  /*
+   * asks for new settings for the layer being drawn on
+   */
+  private void showLayerOptions() {
+    LayerStack layers = editorPanel.getLayers();
+    int index = layers.getActiveIndex();
+    Layer layer = layers.getLayer( index );
+    
+    JTextField nameField = new JTextField( layer.getName() );
+    JCheckBox visibleBox = new JCheckBox( "", layer.isVisible() );
+    JSpinner opacitySpinner = new JSpinner(
+        new SpinnerNumberModel( layer.getOpacity(), 0, RGBA_MAX, 1 ) );
+    JComboBox< BlendMode > modeBox =
+        new JComboBox< BlendMode >( BlendMode.values() );
+    modeBox.setSelectedItem( layer.getBlendMode() );
+    
+    JPanel panel = new JPanel( new GridLayout( 4, 2, 6, 6 ) );
+    panel.add( new JLabel( "Name" ) );
+    panel.add( nameField );
+    panel.add( new JLabel( "Visible" ) );
+    panel.add( visibleBox );
+    panel.add( new JLabel( ALPHA_NAME ) );
+    panel.add( opacitySpinner );
+    panel.add( new JLabel( "Blend Mode" ) );
+    panel.add( modeBox );
+    
+    int selected = JOptionPane.showConfirmDialog( pixelEditorFrame,
+                                                  panel,
+                                                  "Layer Options",
+                                                  JOptionPane.OK_CANCEL_OPTION,
+                                                  JOptionPane.PLAIN_MESSAGE );
+    if( selected == JOptionPane.OK_OPTION ) {
+      editorPanel.setLayerOptions( index,
+                                   nameField.getText(),
+                                   visibleBox.isSelected(),
+                                   (Integer) opacitySpinner.getValue(),
+                                   (BlendMode) modeBox.getSelectedItem() );
+    }
+  }
 
   private void setColorDisplay( JPanel selection ) {
     selectedColorDisplay = selection;
-    Color currColor = selection.getBackground();
-    updateColor( currColor, SRC_OTHER );
+    switchingColor = true;
+    try {
+      colorChoice.setRGB( selection.getBackground().getRGB() );
+    } finally {
+      switchingColor = false;
+    }
   }
 
   @Override
@@ -816,7 +1985,16 @@ public class PixelEditorWindow implements WindowListener {
 
   @Override
   public void windowClosing( WindowEvent e ) {
-    if( !editorPanel.isSaved() ) {
+    if( editorPanel.isSaving() ) {
+      int selected = JOptionPane.showConfirmDialog(
+          pixelEditorFrame,
+          "Your image is still being saved. Are you sure you want to exit?",
+          "Saving",
+          JOptionPane.YES_NO_OPTION );
+      if( selected != JOptionPane.YES_OPTION ) {
+        return;
+      }
+    } else if( !editorPanel.isSaved() ) {
       int selected = JOptionPane.showConfirmDialog(
           pixelEditorFrame,
           "Your image is unsaved. Are you sure you want to exit?",
@@ -826,6 +2004,10 @@ public class PixelEditorWindow implements WindowListener {
         return;
       }
     }
+    if( journal != null ) {
+      // exiting cleanly, so there is nothing to recover next time
+      journal.close( true );
+    }
     e.getWindow().dispose();
     System.exit( 0 );
   }
@@ -0,0 +1,262 @@
+package edu.madrigal.pixeleditor;
+
+/**
+ * An operation that changes every pixel of an ARGB raster on its own, without
+ * looking at its neighbors. Filters never allocate while they run, and may be
+ * applied to several ranges of the same raster at the same time.
+ *
+ * @author nihil
+ */
+public abstract class PixelFilter {
+
+  /**
+   * Applies the filter to a range of the raster, in place.
+   *
+   * @param pixels the ARGB pixels to filter
+   * @param from the index of the first pixel to filter
+   * @param to the index after the last pixel to filter
+   */
+  public abstract void apply( int[] pixels, int from, int to );
+
+  /**
+   * A filter that inverts the color of each pixel, keeping its opacity
+   *
+   * @return the invert filter
+   */
+  public static PixelFilter invert() {
+    return new PixelFilter() {
+      @Override
+      public void apply( int[] pixels, int from, int to ) {
+        for( int i = from; i < to; i++ ) {
+          pixels[i] ^= 0x00ffffff;
+        }
+      }
+    };
+  }
+
+  /**
+   * A filter that turns each pixel into a gray of the same luminance
+   *
+   * @return the grayscale filter
+   */
+  public static PixelFilter grayscale() {
+    return new PixelFilter() {
+      @Override
+      public void apply( int[] pixels, int from, int to ) {
+        for( int i = from; i < to; i++ ) {
+          int p = pixels[i];
+          // Rec. 601 weights, scaled by 256
+          int l = ( ( ( p >> 16 ) & 0xff ) * 77
+                    + ( ( p >> 8 ) & 0xff ) * 150
+                    + ( p & 0xff ) * 29 + 128 ) >> 8;
+          pixels[i] = ( p & 0xff000000 ) | ( l << 16 ) | ( l << 8 ) | l;
+        }
+      }
+    };
+  }
+
+  /**
+   * A filter that limits each color channel to a number of evenly spaced
+   * levels
+   *
+   * @param levels how many levels each channel keeps, from 2 to 256
+   * @return the posterize filter
+   */
+  public static PixelFilter posterize( int levels ) {
+    levels = Math.max( 2, Math.min( levels, 256 ) );
+    int[] table = new int[256];
+    for( int v = 0; v < 256; v++ ) {
+      int level = v * levels / 256;
+      table[v] = level * 255 / ( levels - 1 );
+    }
+    return new LookupFilter( table );
+  }
+
+  /**
+   * A filter that changes the brightness and contrast of each pixel
+   *
+   * @param brightness how much to brighten, from -100 to 100
+   * @param contrast how much to raise the contrast, from -100 to 100
+   * @return the brightness/contrast filter
+   */
+  public static PixelFilter brightnessContrast( int brightness,
+                                                int contrast ) {
+    int offset = brightness * 255 / 100;
+    int factor = contrast + 100;
+    int[] table = new int[256];
+    for( int v = 0; v < 256; v++ ) {
+      table[v] = clamp( ( v - 128 ) * factor / 100 + 128 + offset );
+    }
+    return new LookupFilter( table );
+  }
+
+  /**
+   * A filter that rotates the hue and scales the saturation of each pixel
+   *
+   * @param hueShift how far to rotate the hue, in degrees
+   * @param saturation how much to scale the saturation, from -100 (gray) to
+   *          100 (double)
+   * @return the hue/saturation filter
+   */
+  public static PixelFilter hueSaturation( int hueShift, int saturation ) {
+    // the hue is kept in sixths of the color wheel, scaled by 256
+    int shift = Math.floorMod( hueShift, 360 ) * 6 * 256 / 360;
+    int scale = saturation + 100;
+    return new PixelFilter() {
+      @Override
+      public void apply( int[] pixels, int from, int to ) {
+        for( int i = from; i < to; i++ ) {
+          pixels[i] = shiftHue( pixels[i], shift, scale );
+        }
+      }
+    };
+  }
+
+  /**
+   * A filter that replaces every pixel of one exact color with another
+   *
+   * @param target the ARGB color to replace
+   * @param replacement the ARGB color to replace it with
+   * @return the recolor filter
+   */
+  public static PixelFilter recolor( int target, int replacement ) {
+    return new PixelFilter() {
+      @Override
+      public void apply( int[] pixels, int from, int to ) {
+        for( int i = from; i < to; i++ ) {
+          if( pixels[i] == target ) {
+            pixels[i] = replacement;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * A filter that moves the color of each pixel to the nearest color of a
+   * palette, keeping its opacity
+   *
+   * @param palette the RGB colors to choose from, at least one
+   * @return the palette filter
+   */
+  public static PixelFilter paletteMap( int[] palette ) {
+    int[] colors = palette.clone();
+    return new PixelFilter() {
+      @Override
+      public void apply( int[] pixels, int from, int to ) {
+        // runs of the same color are common, so the last match is kept
+        int last = 0;
+        int match = nearest( colors, 0 );
+        for( int i = from; i < to; i++ ) {
+          int rgb = pixels[i] & 0x00ffffff;
+          if( rgb != last ) {
+            last = rgb;
+            match = nearest( colors, rgb );
+          }
+          pixels[i] = ( pixels[i] & 0xff000000 ) | match;
+        }
+      }
+    };
+  }
+
+  /*
+   * the palette color closest to an RGB color, by squared distance
+   */
+  private static int nearest( int[] palette, int rgb ) {
+    int r = ( rgb >> 16 ) & 0xff;
+    int g = ( rgb >> 8 ) & 0xff;
+    int b = rgb & 0xff;
+    int best = 0;
+    int bestDistance = Integer.MAX_VALUE;
+    for( int color : palette ) {
+      int dr = ( ( color >> 16 ) & 0xff ) - r;
+      int dg = ( ( color >> 8 ) & 0xff ) - g;
+      int db = ( color & 0xff ) - b;
+      int distance = dr * dr + dg * dg + db * db;
+      if( distance < bestDistance ) {
+        bestDistance = distance;
+        best = color & 0x00ffffff;
+      }
+    }
+    return best;
+  }
+
+  /*
+   * rotates the hue and scales the saturation of one pixel using integer HSV
+   */
+  private static int shiftHue( int p, int shift, int scale ) {
+    int r = ( p >> 16 ) & 0xff;
+    int g = ( p >> 8 ) & 0xff;
+    int b = p & 0xff;
+
+    int max = Math.max( r, Math.max( g, b ) );
+    int min = Math.min( r, Math.min( g, b ) );
+    int chroma = max - min;
+
+    // grays have no hue to shift, or saturation to scale
+    if( chroma == 0 ) {
+      return p;
+    }
+
+    // the hue, from 0 to 6 * 256
+    int h;
+    if( max == r ) {
+      h = ( ( g - b ) << 8 ) / chroma;
+      if( h < 0 ) {
+        h += 6 << 8;
+      }
+    } else if( max == g ) {
+      h = ( ( b - r ) << 8 ) / chroma + ( 2 << 8 );
+    } else {
+      h = ( ( r - g ) << 8 ) / chroma + ( 4 << 8 );
+    }
+    h = ( h + shift ) % ( 6 << 8 );
+
+    // the new chroma, capped so the color keeps its value
+    chroma = Math.min( chroma * scale / 100, max );
+    min = max - chroma;
+
+    // the middle channel, from how far the hue is into its sixth
+    int sector = h >> 8;
+    int fraction = h & 0xff;
+    int rising = min + ( ( chroma * fraction + 0x80 ) >> 8 );
+    int falling = max - ( ( chroma * fraction + 0x80 ) >> 8 );
+
+    switch( sector ) {
+      case 0:  r = max;     g = rising;  b = min;     break;
+      case 1:  r = falling; g = max;     b = min;     break;
+      case 2:  r = min;     g = max;     b = rising;  break;
+      case 3:  r = min;     g = falling; b = max;     break;
+      case 4:  r = rising;  g = min;     b = max;     break;
+      default: r = max;     g = min;     b = falling; break;
+    }
+    return ( p & 0xff000000 ) | ( r << 16 ) | ( g << 8 ) | b;
+  }
+
+  private static int clamp( int v ) {
+    return v < 0 ? 0 : ( v > 255 ? 255 : v );
+  }
+
+  /*
+   * maps every color channel through the same table, keeping the alpha
+   */
+  private static class LookupFilter extends PixelFilter {
+    private final int[] table;
+
+    LookupFilter( int[] table ) {
+      this.table = table;
+    }
+
+    @Override
+    public void apply( int[] pixels, int from, int to ) {
+      int[] t = table;
+      for( int i = from; i < to; i++ ) {
+        int p = pixels[i];
+        pixels[i] = ( p & 0xff000000 )
+                    | ( t[( p >> 16 ) & 0xff] << 16 )
+                    | ( t[( p >> 8 ) & 0xff] << 8 )
+                    | t[p & 0xff];
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package edu.madrigal.pixeleditor;
+
+/**
+ * Integer arithmetic on packed ARGB pixels.
+ *
+ * @author nihil
+ */
+public final class PixelMath {
+
+  private PixelMath() {
+  }
+
+  /**
+   * Paints one non-premultiplied ARGB color over another, the same way
+   * Graphics.fillRect does with the default composite.
+   *
+   * @param src the color being painted
+   * @param dst the color underneath
+   * @return the resulting color
+   */
+  public static int srcOver( int src, int dst ) {
+    int sa = src >>> 24;
+    if( sa == 0xff ) {
+      return src;
+    }
+    if( sa == 0 ) {
+      return dst;
+    }
+
+    // weights of each color, both scaled by 255
+    int ws = sa * 0xff;
+    int wd = ( dst >>> 24 ) * ( 0xff - sa );
+    int total = ws + wd;
+
+    int a = ( total + 0x7f ) / 0xff;
+    int r = ( ( ( src >> 16 ) & 0xff ) * ws + ( ( dst >> 16 ) & 0xff ) * wd
+              + ( total >> 1 ) ) / total;
+    int g = ( ( ( src >> 8 ) & 0xff ) * ws + ( ( dst >> 8 ) & 0xff ) * wd
+              + ( total >> 1 ) ) / total;
+    int b = ( ( src & 0xff ) * ws + ( dst & 0xff ) * wd
+              + ( total >> 1 ) ) / total;
+
+    return ( a << 24 ) | ( r << 16 ) | ( g << 8 ) | b;
+  }
+
+  /**
+   * Multiplies two values as fractions of 255, rounding to the nearest.
+   *
+   * @param a a value from 0 to 255
+   * @param b a value from 0 to 255
+   * @return a * b / 255, rounded
+   */
+  public static int mul255( int a, int b ) {
+    int t = a * b + 0x80;
+    return ( t + ( t >> 8 ) ) >> 8;
+  }
+
+  /**
+   * Multiplies all four channels of a pixel by the same fraction of 255, two
+   * channels at a time.
+   *
+   * @param pixel the packed pixel
+   * @param factor a value from 0 to 255
+   * @return the scaled pixel
+   */
+  public static int scale( int pixel, int factor ) {
+    int rb = ( pixel & 0xff00ff ) * factor + 0x800080;
+    rb = ( ( rb + ( ( rb >>> 8 ) & 0xff00ff ) ) >>> 8 ) & 0xff00ff;
+    int ag = ( ( pixel >>> 8 ) & 0xff00ff ) * factor + 0x800080;
+    ag = ( ag + ( ( ag >>> 8 ) & 0xff00ff ) ) & 0xff00ff00;
+    return ag | rb;
+  }
+
+  /**
+   * Converts a non-premultiplied ARGB color to premultiplied, fading it by an
+   * opacity on the way.
+   *
+   * @param color the non-premultiplied color
+   * @param opacity how opaque to make it, from 0 to 255
+   * @return the premultiplied color
+   */
+  public static int premultiply( int color, int opacity ) {
+    int a = mul255( color >>> 24, opacity );
+    if( a == 0xff ) {
+      return color;
+    }
+    if( a == 0 ) {
+      return 0;
+    }
+    return ( a << 24 ) | ( scale( color, a ) & 0xffffff );
+  }
+
+  /**
+   * Converts a premultiplied ARGB color back to non-premultiplied.
+   *
+   * @param color the premultiplied color
+   * @return the non-premultiplied color
+   */
+  public static int unpremultiply( int color ) {
+    int a = color >>> 24;
+    if( a == 0xff ) {
+      return color;
+    }
+    if( a == 0 ) {
+      return 0;
+    }
+    int half = a >> 1;
+    int r = Math.min( ( ( ( color >> 16 ) & 0xff ) * 0xff + half ) / a, 0xff );
+    int g = Math.min( ( ( ( color >> 8 ) & 0xff ) * 0xff + half ) / a, 0xff );
+    int b = Math.min( ( ( color & 0xff ) * 0xff + half ) / a, 0xff );
+    return ( a << 24 ) | ( r << 16 ) | ( g << 8 ) | b;
+  }
+}
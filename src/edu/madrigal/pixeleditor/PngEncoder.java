@@ -0,0 +1,551 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes images as PNG, indexed whenever it can be.
+ *
+ * The colors of the image are counted first. An image of 256 colors or
+ * fewer is written with a palette, packed to 1, 2, 4 or 8 bits a pixel,
+ * with any transparency in a tRNS chunk. That is several times smaller
+ * than 32-bit ARGB for pixel art, and faster to write and to read. An
+ * image with more colors is reduced to 256 by the quantizer, if there is
+ * one, or written in full color otherwise.
+ *
+ * The image is read a strip at a time, so a huge image never has to be
+ * flattened whole. The deflate level and the row filters trade the time
+ * spent writing against the size of the file.
+ *
+ * @author nihil
+ */
+public class PngEncoder {
+
+  /**
+   * How the rows are filtered before they are deflated
+   */
+  public enum Filter {
+
+    /** none for indexed images, minimum sum for full color, like libpng */
+    AUTOMATIC,
+
+    /** the rows as they are, the fastest */
+    NONE,
+
+    /** each byte less the one to its left */
+    SUB,
+
+    /** each byte less the one above */
+    UP,
+
+    /** each byte less the average of those to its left and above */
+    AVERAGE,
+
+    /** each byte less whichever neighbor best predicts it */
+    PAETH,
+
+    /** every filter tried on each row, keeping the smallest, the slowest */
+    MINIMUM_SUM;
+
+    /**
+     * The filter with a name, ignoring case and taking dashes for
+     * underscores
+     *
+     * @param name the name, like "paeth" or "minimum-sum"
+     * @return the filter
+     * @throws IllegalArgumentException if there is no such filter
+     */
+    public static Filter named( String name ) {
+      try {
+        return valueOf( name.trim().toUpperCase().replace( '-', '_' ) );
+      } catch( IllegalArgumentException e ) {
+        throw new IllegalArgumentException( "Unknown filter " + name );
+      }
+    }
+  }
+
+  /**
+   * The deflate level used unless another is set
+   */
+  public static final int DEFAULT_LEVEL = 6;
+
+  private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G',
+                                            '\r', '\n', 0x1a, '\n' };
+
+  // PNG color types
+  private static final int COLOR_INDEXED = 3;
+  private static final int COLOR_RGBA = 6;
+
+  // how much deflated data goes into each IDAT chunk
+  static final int CHUNK_SIZE = 1 << 16;
+
+  private int level;
+  private Filter filter;
+  private Quantizer quantizer;
+
+  /**
+   * Constructor for an encoder with the default level, automatic filters,
+   * and no quantizer, so images of many colors stay in full color
+   */
+  public PngEncoder() {
+    level = DEFAULT_LEVEL;
+    filter = Filter.AUTOMATIC;
+  }
+
+  /**
+   * Constructor for an encoder with the same settings as another
+   *
+   * @param other the encoder to copy
+   */
+  public PngEncoder( PngEncoder other ) {
+    level = other.level;
+    filter = other.filter;
+    quantizer = other.quantizer;
+  }
+
+  /**
+   * The deflate level
+   *
+   * @return the level, from 0 to 9
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Sets the deflate level, from 0 for no compression to 9 for the
+   * smallest files
+   *
+   * @param level the level
+   */
+  public void setLevel( int level ) {
+    if( level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION ) {
+      throw new IllegalArgumentException( "Bad deflate level " + level );
+    }
+    this.level = level;
+  }
+
+  /**
+   * How the rows are filtered
+   *
+   * @return the filter
+   */
+  public Filter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Sets how the rows are filtered
+   *
+   * @param filter the filter
+   */
+  public void setFilter( Filter filter ) {
+    this.filter = filter;
+  }
+
+  /**
+   * The quantizer for images of more than 256 colors
+   *
+   * @return the quantizer, or null if they are written in full color
+   */
+  public Quantizer getQuantizer() {
+    return quantizer;
+  }
+
+  /**
+   * Sets the quantizer for images of more than 256 colors
+   *
+   * @param quantizer the quantizer, or null to write them in full color
+   */
+  public void setQuantizer( Quantizer quantizer ) {
+    this.quantizer = quantizer;
+  }
+
+  /**
+   * Writes an image to a file.
+   *
+   * @param image the image, which must not change until it's written
+   * @param file the file
+   * @throws IOException if the file can't be written
+   */
+  public void write( RenderedImage image, File file ) throws IOException {
+    try( OutputStream out = new FileOutputStream( file ) ) {
+      write( image, out );
+    }
+  }
+
+  /**
+   * Writes an image to a stream, which is left open.
+   *
+   * @param image the image, which must not change until it's written
+   * @param out the stream
+   * @throws IOException if the stream can't be written
+   */
+  public void write( RenderedImage image, OutputStream out )
+      throws IOException {
+    Palette palette = Palette.count( image, Palette.MAX_COLORS );
+    if( palette == null && quantizer != null ) {
+      palette = quantizer.palette( image, Palette.MAX_COLORS );
+    }
+
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int depth = palette == null ? 8 : depth( palette.size() );
+    int bitsPerPixel = palette == null ? 32 : depth;
+
+    OutputStream buffered = new BufferedOutputStream( out, CHUNK_SIZE );
+    buffered.write( SIGNATURE );
+
+    byte[] header = new byte[13];
+    putInt( header, 0, width );
+    putInt( header, 4, height );
+    header[8] = (byte) depth;
+    header[9] = (byte) ( palette == null ? COLOR_RGBA : COLOR_INDEXED );
+    chunk( buffered, "IHDR", header, header.length );
+
+    if( palette != null ) {
+      byte[] colors = new byte[palette.size() * 3];
+      byte[] alphas = new byte[palette.getTranslucentCount()];
+      for( int i = 0; i < palette.size(); i++ ) {
+        int color = palette.getColor( i );
+        colors[i * 3] = (byte) ( color >> 16 );
+        colors[i * 3 + 1] = (byte) ( color >> 8 );
+        colors[i * 3 + 2] = (byte) color;
+        if( i < alphas.length ) {
+          alphas[i] = (byte) ( color >>> 24 );
+        }
+      }
+      chunk( buffered, "PLTE", colors, colors.length );
+      if( alphas.length > 0 ) {
+        chunk( buffered, "tRNS", alphas, alphas.length );
+      }
+    }
+
+    Filter chosen = filter;
+    if( chosen == Filter.AUTOMATIC ) {
+      chosen = palette == null ? Filter.MINIMUM_SUM : Filter.NONE;
+    }
+    Deflater deflater = new Deflater( level );
+    try {
+      IdatStream idat = new IdatStream( buffered );
+      DeflaterOutputStream deflated =
+          new DeflaterOutputStream( idat, deflater, CHUNK_SIZE );
+      writeRows( image, palette, bitsPerPixel, chosen, deflated );
+      deflated.finish();
+      idat.flush();
+    } finally {
+      deflater.end();
+    }
+
+    chunk( buffered, "IEND", new byte[0], 0 );
+    buffered.flush();
+  }
+
+  /**
+   * Called as each strip of rows is written, from the thread writing.
+   *
+   * @param percent how much of the image is written, from 0 to 100
+   */
+  protected void progress( int percent ) {
+  }
+
+  /*
+   * filters and deflates every row, reading the image a strip at a time
+   */
+  private void writeRows( RenderedImage image, Palette palette,
+                          int bitsPerPixel, Filter chosen, OutputStream out )
+      throws IOException {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int stride = (int) ( ( (long) width * bitsPerPixel + 7 ) / 8 );
+    int bpp = Math.max( 1, bitsPerPixel / 8 );
+
+    byte[] row = new byte[stride];
+    byte[] previous = new byte[stride];
+    byte[][] filtered = new byte[Filter.values().length][stride + 1];
+
+    int strip = Math.max( 1, Math.min( image.getTileHeight(), height ) );
+    int[] pixels = new int[width * strip];
+    for( int y = 0; y < height; y += strip ) {
+      int rows = Math.min( strip, height - y );
+      readRows( image, y, rows, pixels );
+      for( int r = 0; r < rows; r++ ) {
+        if( palette == null ) {
+          packArgb( pixels, r * width, width, row );
+        } else {
+          packIndices( pixels, r * width, width, palette, bitsPerPixel,
+                       row );
+        }
+        byte[] line = filter( chosen, row, previous, bpp, filtered );
+        out.write( line, 0, stride + 1 );
+        byte[] swap = previous;
+        previous = row;
+        row = swap;
+      }
+      progress( (int) ( ( y + rows ) * 100L / height ) );
+    }
+  }
+
+  /*
+   * the bits a pixel needs for a palette of some size
+   */
+  private static int depth( int colors ) {
+    if( colors <= 2 ) {
+      return 1;
+    } else if( colors <= 4 ) {
+      return 2;
+    } else if( colors <= 16 ) {
+      return 4;
+    }
+    return 8;
+  }
+
+  static void packArgb( int[] pixels, int from, int width,
+                        byte[] row ) {
+    for( int x = 0, i = 0; x < width; x++ ) {
+      int p = pixels[from + x];
+      row[i++] = (byte) ( p >> 16 );
+      row[i++] = (byte) ( p >> 8 );
+      row[i++] = (byte) p;
+      row[i++] = (byte) ( p >>> 24 );
+    }
+  }
+
+  /*
+   * the palette indices of a row, packed from the high bits of each byte
+   * down, as PNG wants them
+   */
+  private static void packIndices( int[] pixels, int from, int width,
+                                   Palette palette, int bits, byte[] row ) {
+    if( bits == 8 ) {
+      // runs of the same color are common, so the last index is kept
+      int last = ~pixels[from];
+      int index = 0;
+      for( int x = 0; x < width; x++ ) {
+        int p = pixels[from + x];
+        if( p != last ) {
+          last = p;
+          index = palette.indexOf( p );
+        }
+        row[x] = (byte) index;
+      }
+      return;
+    }
+    int perByte = 8 / bits;
+    int acc = 0;
+    int i = 0;
+    for( int x = 0; x < width; x++ ) {
+      acc = acc << bits | palette.indexOf( pixels[from + x] );
+      if( x % perByte == perByte - 1 ) {
+        row[i++] = (byte) acc;
+        acc = 0;
+      }
+    }
+    if( width % perByte != 0 ) {
+      row[i] = (byte) ( acc << ( bits * ( perByte - width % perByte ) ) );
+    }
+  }
+
+  /*
+   * a row with its filter type in front, filtered against the row above.
+   * The minimum sum heuristic tries every filter and keeps the one whose
+   * bytes, taken as signed, add up to the least
+   */
+  static byte[] filter( Filter chosen, byte[] row, byte[] previous,
+                        int bpp, byte[][] filtered ) {
+    if( chosen != Filter.MINIMUM_SUM ) {
+      byte[] line = filtered[0];
+      apply( chosen, row, previous, bpp, line );
+      return line;
+    }
+    byte[] best = null;
+    long bestSum = Long.MAX_VALUE;
+    Filter[] all = { Filter.NONE, Filter.SUB, Filter.UP, Filter.AVERAGE,
+                     Filter.PAETH };
+    for( int f = 0; f < all.length; f++ ) {
+      byte[] line = filtered[f];
+      apply( all[f], row, previous, bpp, line );
+      long sum = 0;
+      for( int i = 1; i < line.length && sum < bestSum; i++ ) {
+        sum += Math.abs( line[i] );
+      }
+      if( sum < bestSum ) {
+        bestSum = sum;
+        best = line;
+      }
+    }
+    return best;
+  }
+
+  private static void apply( Filter filter, byte[] row, byte[] previous,
+                             int bpp, byte[] line ) {
+    int n = row.length;
+    switch( filter ) {
+      case SUB:
+        line[0] = 1;
+        for( int i = 0; i < n; i++ ) {
+          int left = i < bpp ? 0 : row[i - bpp] & 0xff;
+          line[i + 1] = (byte) ( row[i] - left );
+        }
+        break;
+      case UP:
+        line[0] = 2;
+        for( int i = 0; i < n; i++ ) {
+          line[i + 1] = (byte) ( row[i] - previous[i] );
+        }
+        break;
+      case AVERAGE:
+        line[0] = 3;
+        for( int i = 0; i < n; i++ ) {
+          int left = i < bpp ? 0 : row[i - bpp] & 0xff;
+          line[i + 1] = (byte) ( row[i]
+                                 - ( ( left + ( previous[i] & 0xff ) ) >> 1 ) );
+        }
+        break;
+      case PAETH:
+        line[0] = 4;
+        for( int i = 0; i < n; i++ ) {
+          int left = i < bpp ? 0 : row[i - bpp] & 0xff;
+          int up = previous[i] & 0xff;
+          int corner = i < bpp ? 0 : previous[i - bpp] & 0xff;
+          line[i + 1] = (byte) ( row[i] - paeth( left, up, corner ) );
+        }
+        break;
+      default:
+        line[0] = 0;
+        System.arraycopy( row, 0, line, 1, n );
+    }
+  }
+
+  private static int paeth( int a, int b, int c ) {
+    int p = a + b - c;
+    int pa = Math.abs( p - a );
+    int pb = Math.abs( p - b );
+    int pc = Math.abs( p - c );
+    if( pa <= pb && pa <= pc ) {
+      return a;
+    }
+    return pb <= pc ? b : c;
+  }
+
+  /*
+   * reads rows of an image as non-premultiplied ARGB, straight from the
+   * raster when it already holds packed ARGB ints
+   */
+  static void readRows( RenderedImage image, int y, int rows,
+                        int[] pixels ) {
+    int width = image.getWidth();
+    Raster strip = image.getData( new Rectangle( image.getMinX(),
+                                                 image.getMinY() + y,
+                                                 width, rows ) );
+    ColorModel model = image.getColorModel();
+    if( model.equals( ColorModel.getRGBdefault() )
+        && strip.getSampleModel() instanceof SinglePixelPackedSampleModel
+        && strip.getTransferType() == DataBuffer.TYPE_INT ) {
+      strip.getDataElements( image.getMinX(), image.getMinY() + y, width,
+                             rows, pixels );
+      return;
+    }
+    Object element = null;
+    for( int r = 0; r < rows; r++ ) {
+      for( int x = 0; x < width; x++ ) {
+        element = strip.getDataElements( image.getMinX() + x,
+                                         image.getMinY() + y + r, element );
+        pixels[r * width + x] = model.getRGB( element );
+      }
+    }
+  }
+
+  static void putInt( byte[] bytes, int at, int value ) {
+    bytes[at] = (byte) ( value >>> 24 );
+    bytes[at + 1] = (byte) ( value >>> 16 );
+    bytes[at + 2] = (byte) ( value >>> 8 );
+    bytes[at + 3] = (byte) value;
+  }
+
+  /*
+   * writes a chunk with its length, type and checksum
+   */
+  static void chunk( OutputStream out, String type, byte[] data,
+                     int length ) throws IOException {
+    byte[] bytes = new byte[8];
+    putInt( bytes, 0, length );
+    byte[] name = type.getBytes( StandardCharsets.US_ASCII );
+    System.arraycopy( name, 0, bytes, 4, 4 );
+    CRC32 crc = new CRC32();
+    crc.update( name );
+    crc.update( data, 0, length );
+    out.write( bytes );
+    out.write( data, 0, length );
+    putInt( bytes, 0, (int) crc.getValue() );
+    out.write( bytes, 0, 4 );
+  }
+
+  /*
+   * gathers deflated data into IDAT chunks of CHUNK_SIZE bytes
+   */
+  static class IdatStream extends OutputStream {
+
+    final OutputStream out;
+    private final byte[] buffer;
+    private int count;
+
+    IdatStream( OutputStream out ) {
+      this.out = out;
+      buffer = new byte[CHUNK_SIZE];
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+      if( count == buffer.length ) {
+        flush();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+      while( len > 0 ) {
+        if( count == buffer.length ) {
+          flush();
+        }
+        int n = Math.min( len, buffer.length - count );
+        System.arraycopy( b, off, buffer, count, n );
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /*
+     * writes what is gathered so far as a chunk of its own
+     */
+    @Override
+    public void flush() throws IOException {
+      if( count > 0 ) {
+        chunk( buffer, count );
+        count = 0;
+      }
+    }
+
+    /*
+     * writes one chunk of image data
+     */
+    void chunk( byte[] data, int length ) throws IOException {
+      PngEncoder.chunk( out, "IDAT", data, length );
+    }
+  }
+}
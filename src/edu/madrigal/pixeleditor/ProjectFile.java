@@ -0,0 +1,909 @@
+package edu.madrigal.pixeleditor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The editor's own file format, which keeps everything about an image: its
+ * frames and their layers, its grid size and its undo history.
+ *
+ * The file is cut into blocks the size of a tile. The first block holds a
+ * header, and the rest hold tiles, history entries, and a table saying where
+ * everything is. Tiles are stored raw, so they are copied in and out of
+ * memory-mapped blocks without any decoding, and a tile of a single color is
+ * only stored as that color in the table. A tile shared by several layers or
+ * frames is stored once. An indexed image keeps its colors in the table too,
+ * and its tiles only fill a quarter of their blocks.
+ *
+ * Saving to the same file again only writes the tiles changed since the last
+ * save, and the history entries not written yet. Changed tiles go into free
+ * blocks instead of over their old ones, and the header is only pointed at the
+ * new table once everything else is on disk, so a save cut short leaves the
+ * last one intact. Blocks freed by a save are reused by the next one, and once
+ * more than half the file is free it is written again from scratch.
+ *
+ * @author nihil
+ */
+public class ProjectFile {
+
+  // the extension of project files
+  public static final String EXTENSION = "pxe";
+
+  // "PXED"
+  private static final int MAGIC = 0x50584544;
+  private static final int FORMAT_VERSION = 3;
+  private static final int HEADER_SIZE = 32;
+
+  // a block holds exactly one tile
+  private static final int BLOCK_SIZE = TiledCanvas.TILE_AREA * 4;
+
+  // the most bytes a history entry can take, so its blocks can be counted
+  private static final int MAX_ENTRY_SIZE = Integer.MAX_VALUE - BLOCK_SIZE;
+
+  // how much of the file is mapped at once, 64 MB
+  private static final int WINDOW_BLOCKS = 4096;
+
+  // free blocks are only worth compacting away once there are this many
+  private static final int COMPACT_THRESHOLD = 1024;
+
+  /*
+   * how a tile is stored: as a single color in the table, or raw in a block.
+   * LZ4 is reserved for compressed tiles, which aren't written yet.
+   */
+  private static final byte TILE_UNIFORM = 0;
+  private static final byte TILE_RAW = 1;
+  private static final byte TILE_LZ4 = 2;
+
+  // an entry that changed a color of the color table has this in place of
+  // its count of tiles
+  private static final int ENTRY_RECOLOR = -1;
+
+  private final File file;
+
+  // whether the file holds a save we made or read
+  private boolean committed;
+
+  // a number kept with the save, which older files have as 0
+  private long stamp;
+
+  /*
+   * how many blocks the file has, which of them are free, and where the table
+   * of the last save is
+   */
+  private int blockCount;
+  private IntList free;
+  private int tableBlock;
+  private int tableBlocks;
+
+  // where the tiles of each layer and each history entry were last saved
+  private IdentityHashMap< TiledCanvas, SavedCanvas > savedCanvases;
+  private IdentityHashMap< History.Entry, SavedEntry > savedEntries;
+
+  // what was read from the file, until it is taken
+  private List< LayerStack > frames;
+  private int frame;
+  private int framesPerSecond;
+  private int gridSize;
+  private List< History.Entry > entries;
+  private int position;
+
+  /**
+   * Constructor for a project that hasn't been saved to the file yet. The
+   * first save writes the whole file.
+   *
+   * @param file the file to save to
+   */
+  public ProjectFile( File file ) {
+    this.file = file;
+    reset();
+  }
+
+  /**
+   * Reads a project from a file.
+   *
+   * @param file the file to read
+   * @return the project, whose contents can then be taken
+   * @throws IOException if the file can't be read, or isn't a project
+   */
+  public static ProjectFile open( File file ) throws IOException {
+    ProjectFile project = new ProjectFile( file );
+    project.read();
+    return project;
+  }
+
+  /**
+   * The file the project is saved to
+   *
+   * @return the project file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * The layers of the frame being edited, read from the file
+   *
+   * @return the layer stack, or null if nothing was read
+   */
+  public LayerStack getLayers() {
+    return frames == null ? null : frames.get( frame );
+  }
+
+  /**
+   * The frames read from the file, each with its own layers
+   *
+   * @return the frames, or null if nothing was read
+   */
+  public List< LayerStack > getFrames() {
+    return frames;
+  }
+
+  /**
+   * The index of the frame being edited, read from the file
+   *
+   * @return the frame index
+   */
+  public int getFrameIndex() {
+    return frame;
+  }
+
+  /**
+   * The playback speed read from the file
+   *
+   * @return the frames per second
+   */
+  public int getFramesPerSecond() {
+    return framesPerSecond;
+  }
+
+  /**
+   * The grid size read from the file
+   *
+   * @return the grid size
+   */
+  public int getGridSize() {
+    return gridSize;
+  }
+
+  /**
+   * The number kept with the last save made or read
+   *
+   * @return the stamp
+   */
+  public long getStamp() {
+    return stamp;
+  }
+
+  /**
+   * Sets a number to keep with the next save, written in the same step as
+   * the rest of the save, so it tells which save the file holds.
+   *
+   * @param stamp the stamp
+   */
+  public void setStamp( long stamp ) {
+    this.stamp = stamp;
+  }
+
+  /**
+   * Gives the history read from the file to the history of the layers read
+   * from it.
+   *
+   * @param history the history of the layers
+   */
+  public void restoreHistory( History history ) {
+    if( entries != null ) {
+      history.setEntries( entries, position );
+      entries = null;
+    }
+  }
+
+  /**
+   * Saves a project, writing only what changed since it was last saved to or
+   * read from this file.
+   *
+   * @param stacks the frames of the image, each with its own layers
+   * @param current the index of the frame being edited
+   * @param history the history of the layers
+   * @param grid the grid size
+   * @param fps the playback speed, in frames per second
+   * @throws IOException if the file can't be written
+   */
+  public void save( List< LayerStack > stacks, int current, History history,
+                    int grid, int fps ) throws IOException {
+    save( stacks, null, current, history, grid, fps );
+  }
+
+  /**
+   * Saves a snapshot of a project, writing only what changed since the
+   * layers it was taken of were last saved to this file. The snapshot can be
+   * saved on another thread while the layers themselves are edited.
+   *
+   * @param stacks the frames of the snapshot, each with its own layers
+   * @param originals the layers the snapshot was taken of, in order across
+   *          every frame, which what was saved is remembered by, or null to
+   *          remember the snapshot itself
+   * @param current the index of the frame being edited
+   * @param history the history of the layers
+   * @param grid the grid size
+   * @param fps the playback speed, in frames per second
+   * @throws IOException if the file can't be written
+   */
+  public void save( List< LayerStack > stacks, List< TiledCanvas > originals,
+                    int current, History history, int grid, int fps )
+      throws IOException {
+    frames = null;
+    entries = null;
+
+    if( committed
+        && !( free.size > COMPACT_THRESHOLD && free.size > blockCount / 2 ) ) {
+      try {
+        write( stacks, originals, current, history, grid, fps );
+      } catch( IOException e ) {
+        // we no longer know what's in the file, so write it all next time
+        reset();
+        throw e;
+      }
+      return;
+    }
+
+    // otherwise write a whole new file, and move it over the old one
+    File temp = new File( file.getPath() + ".tmp" );
+    ProjectFile fresh = new ProjectFile( temp );
+    fresh.stamp = stamp;
+    Files.deleteIfExists( temp.toPath() );
+    try {
+      fresh.write( stacks, originals, current, history, grid, fps );
+      Files.move( temp.toPath(), file.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE );
+    } finally {
+      Files.deleteIfExists( temp.toPath() );
+    }
+
+    committed = true;
+    blockCount = fresh.blockCount;
+    free = fresh.free;
+    tableBlock = fresh.tableBlock;
+    tableBlocks = fresh.tableBlocks;
+    savedCanvases = fresh.savedCanvases;
+    savedEntries = fresh.savedEntries;
+  }
+
+  /*
+   * forgets everything about the file, as if it were empty
+   */
+  private void reset() {
+    committed = false;
+    blockCount = 1;
+    free = new IntList();
+    tableBlock = 0;
+    tableBlocks = 0;
+    savedCanvases = new IdentityHashMap< TiledCanvas, SavedCanvas >();
+    savedEntries = new IdentityHashMap< History.Entry, SavedEntry >();
+  }
+
+  /*
+   * writes what changed into free blocks, then the table, then the header
+   */
+  private void write( List< LayerStack > stacks,
+                      List< TiledCanvas > originals, int current,
+                      History history, int grid, int fps )
+      throws IOException {
+
+    // blocks that can only be reused once this save is on disk
+    IntList released = new IntList();
+
+    /*
+     * find the tiles that changed, and give each one a new block. Tiles
+     * shared between layers share a block, and blocks of the last save are
+     * only released once no tile is left in them
+     */
+    IdentityHashMap< TiledCanvas, SavedCanvas > canvases =
+        new IdentityHashMap< TiledCanvas, SavedCanvas >();
+    IdentityHashMap< TiledCanvas, SavedCanvas > remembered =
+        new IdentityHashMap< TiledCanvas, SavedCanvas >();
+    IdentityHashMap< int[], Integer > written =
+        new IdentityHashMap< int[], Integer >();
+    IntList writes = new IntList();
+    List< TiledCanvas > writeCanvases = new ArrayList< TiledCanvas >();
+    BitSet kept = new BitSet();
+
+    int layer = 0;
+    for( LayerStack stack : stacks ) {
+      for( int i = 0; i < stack.getLayerCount(); i++, layer++ ) {
+        TiledCanvas canvas = stack.getLayer( i ).getCanvas();
+        TiledCanvas key = originals == null ? canvas
+                                            : originals.get( layer );
+        SavedCanvas old = savedCanvases.get( key );
+        SavedCanvas saved = new SavedCanvas( canvas );
+
+        for( int tile = 0; tile < canvas.getTileCount(); tile++ ) {
+          if( old != null && canvas.getTileVersion( tile ) <= old.version ) {
+            saved.blocks[tile] = old.blocks[tile];
+          } else if( !canvas.isUniform( tile ) ) {
+            int[] pixels = canvas.getTileData( tile );
+            Integer block = written.get( pixels );
+            if( block == null ) {
+              block = allocate();
+              written.put( pixels, block );
+              writes.add( tile );
+              writeCanvases.add( canvas );
+            }
+            saved.blocks[tile] = block;
+          }
+          kept.set( saved.blocks[tile] );
+        }
+        canvases.put( canvas, saved );
+        remembered.put( key, saved );
+      }
+    }
+    kept.set( 0 );
+    for( SavedCanvas old : savedCanvases.values() ) {
+      for( int block : old.blocks ) {
+        if( !kept.get( block ) ) {
+          kept.set( block );
+          released.add( block );
+        }
+      }
+    }
+
+    // history entries never change, so each is only written once
+    IdentityHashMap< History.Entry, SavedEntry > saved =
+        new IdentityHashMap< History.Entry, SavedEntry >();
+    List< History.Entry > newEntries = new ArrayList< History.Entry >();
+    for( History.Entry entry : history.getEntries() ) {
+      SavedEntry old = savedEntries.get( entry );
+      if( old == null ) {
+        int length = entrySize( entry );
+        int blocks = blocksFor( length );
+        old = new SavedEntry( allocateRun( blocks ), blocks, length );
+        newEntries.add( entry );
+      }
+      saved.put( entry, old );
+    }
+    for( History.Entry entry : savedEntries.keySet() ) {
+      if( !saved.containsKey( entry ) ) {
+        SavedEntry gone = savedEntries.get( entry );
+        for( int b = 0; b < gone.blocks; b++ ) {
+          released.add( gone.block + b );
+        }
+      }
+    }
+
+    // the table, which the header will point to
+    byte[] table = writeTable( stacks, current, grid, fps, canvases,
+                               history, saved );
+    int newTableBlocks = blocksFor( table.length );
+    int newTableBlock = allocateRun( newTableBlocks );
+    if( committed ) {
+      for( int b = 0; b < tableBlocks; b++ ) {
+        released.add( tableBlock + b );
+      }
+    }
+
+    try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+      long length = (long) blockCount * BLOCK_SIZE;
+      if( raf.length() < length ) {
+        raf.setLength( length );
+      }
+      Mapper mapper = new Mapper( raf.getChannel(), length,
+                                  FileChannel.MapMode.READ_WRITE );
+
+      for( int i = 0; i < writes.size; i++ ) {
+        TiledCanvas canvas = writeCanvases.get( i );
+        int tile = writes.values[i];
+        mapper.block( canvases.get( canvas ).blocks[tile] )
+              .asIntBuffer()
+              .put( canvas.getTileData( tile ) );
+      }
+
+      for( History.Entry entry : newEntries ) {
+        SavedEntry location = saved.get( entry );
+        writeEntry( mapper.slice( (long) location.block * BLOCK_SIZE,
+                                  location.length ),
+                    entry );
+      }
+
+      mapper.slice( (long) newTableBlock * BLOCK_SIZE, table.length )
+            .put( table );
+      mapper.force();
+
+      // only now is the save pointed to
+      ByteBuffer header = mapper.slice( 0, HEADER_SIZE );
+      header.putInt( MAGIC );
+      header.putInt( FORMAT_VERSION );
+      header.putInt( BLOCK_SIZE );
+      header.putInt( blockCount );
+      header.putInt( newTableBlock );
+      header.putInt( table.length );
+      header.putLong( stamp );
+      mapper.force();
+    }
+
+    for( int i = 0; i < released.size; i++ ) {
+      free.add( released.values[i] );
+    }
+    committed = true;
+    tableBlock = newTableBlock;
+    tableBlocks = newTableBlocks;
+    savedCanvases = remembered;
+    savedEntries = saved;
+  }
+
+  /*
+   * the table: the size of the image, the settings and tiles of each layer
+   * of each frame, and where each history entry is
+   */
+  private byte[] writeTable(
+      List< LayerStack > stacks, int current, int grid, int fps,
+      IdentityHashMap< TiledCanvas, SavedCanvas > canvases,
+      History history,
+      IdentityHashMap< History.Entry, SavedEntry > saved )
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bytes );
+
+    out.writeInt( stacks.get( 0 ).getWidth() );
+    out.writeInt( stacks.get( 0 ).getHeight() );
+    out.writeInt( grid );
+    out.writeInt( fps );
+    out.writeInt( stacks.size() );
+    out.writeInt( current );
+
+    // the colors of an indexed image, or none
+    ColorTable colors = stacks.get( 0 ).getLayer( 0 ).getCanvas()
+                              .getColorTable();
+    out.writeInt( colors == null ? 0 : colors.size() );
+    for( int i = 0; colors != null && i < colors.size(); i++ ) {
+      out.writeInt( colors.getColor( i ) );
+    }
+
+    // layers are numbered across every frame, for the history entries
+    IdentityHashMap< TiledCanvas, Integer > indices =
+        new IdentityHashMap< TiledCanvas, Integer >();
+    for( LayerStack stack : stacks ) {
+      out.writeInt( stack.getLayerCount() );
+      out.writeInt( stack.getActiveIndex() );
+
+      for( int i = 0; i < stack.getLayerCount(); i++ ) {
+        Layer layer = stack.getLayer( i );
+        TiledCanvas canvas = layer.getCanvas();
+        indices.put( canvas, indices.size() );
+
+        out.writeUTF( layer.getName() );
+        out.writeBoolean( layer.isVisible() );
+        out.writeByte( layer.getOpacity() );
+        out.writeByte( layer.getBlendMode().ordinal() );
+
+        int[] blocks = canvases.get( canvas ).blocks;
+        for( int tile = 0; tile < blocks.length; tile++ ) {
+          if( blocks[tile] == 0 ) {
+            out.writeByte( TILE_UNIFORM );
+            out.writeInt( canvas.getUniformColor( tile ) );
+          } else {
+            out.writeByte( TILE_RAW );
+            out.writeInt( blocks[tile] );
+          }
+        }
+      }
+    }
+
+    List< History.Entry > list = history.getEntries();
+    out.writeInt( history.getPosition() );
+    out.writeInt( list.size() );
+    for( History.Entry entry : list ) {
+      SavedEntry location = saved.get( entry );
+      out.writeInt( indices.get( entry.canvas ) );
+      out.writeInt( location.block );
+      out.writeInt( location.length );
+    }
+
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /*
+   * reads the header and the table, then every tile and entry
+   */
+  private void read() throws IOException {
+    try( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+      long length = raf.length();
+      if( length < HEADER_SIZE ) {
+        throw new IOException( "Not a project file." );
+      }
+      Mapper mapper = new Mapper( raf.getChannel(), length,
+                                  FileChannel.MapMode.READ_ONLY );
+
+      ByteBuffer header = mapper.slice( 0, HEADER_SIZE );
+      if( header.getInt() != MAGIC ) {
+        throw new IOException( "Not a project file." );
+      }
+      int version = header.getInt();
+      if( version < 1 || version > FORMAT_VERSION
+          || header.getInt() != BLOCK_SIZE ) {
+        throw new IOException( "The project was saved by another version." );
+      }
+      blockCount = header.getInt();
+      tableBlock = header.getInt();
+      int tableLength = header.getInt();
+      stamp = header.getLong();
+      tableBlocks = blocksFor( tableLength );
+      if( (long) blockCount * BLOCK_SIZE > length
+          || tableBlock < 1 || tableBlock + tableBlocks > blockCount ) {
+        throw new IOException( "The project file is damaged." );
+      }
+
+      byte[] table = new byte[tableLength];
+      mapper.slice( (long) tableBlock * BLOCK_SIZE, tableLength ).get( table );
+      DataInputStream in =
+          new DataInputStream( new ByteArrayInputStream( table ) );
+
+      BitSet used = new BitSet( blockCount );
+      used.set( 0 );
+      used.set( tableBlock, tableBlock + tableBlocks );
+
+      int width = in.readInt();
+      int height = in.readInt();
+      gridSize = in.readInt();
+      int frameCount = 1;
+      frame = 0;
+      framesPerSecond = Document.DEFAULT_FRAMES_PER_SECOND;
+      if( version > 1 ) {
+        framesPerSecond = in.readInt();
+        frameCount = in.readInt();
+        frame = in.readInt();
+      }
+      if( frameCount < 1 || frame < 0 || frame >= frameCount ) {
+        throw new IOException( "The project file is damaged." );
+      }
+      ColorTable colors = null;
+      if( version > 2 ) {
+        int colorCount = in.readInt();
+        if( colorCount > 0 ) {
+          int[] argb = new int[colorCount];
+          for( int i = 0; i < colorCount; i++ ) {
+            argb[i] = in.readInt();
+          }
+          colors = new ColorTable( argb );
+        }
+      }
+
+      // tiles saved in the same block are read once, and shared
+      HashMap< Integer, int[] > tiles = new HashMap< Integer, int[] >();
+      List< TiledCanvas > canvases = new ArrayList< TiledCanvas >();
+      frames = new ArrayList< LayerStack >();
+      for( int f = 0; f < frameCount; f++ ) {
+        int layerCount = in.readInt();
+        int active = in.readInt();
+
+        List< Layer > list = new ArrayList< Layer >();
+        for( int i = 0; i < layerCount; i++ ) {
+          Layer layer = new Layer( in.readUTF(),
+                                   new TiledCanvas( width, height, colors,
+                                                    0 ) );
+          layer.setVisible( in.readBoolean() );
+          layer.setOpacity( in.readUnsignedByte() );
+          int mode = in.readUnsignedByte();
+          if( mode >= BlendMode.values().length ) {
+            throw new IOException( "Unknown blend mode " + mode + "." );
+          }
+          layer.setBlendMode( BlendMode.values()[mode] );
+
+          TiledCanvas canvas = layer.getCanvas();
+          SavedCanvas saved = new SavedCanvas( canvas );
+          for( int tile = 0; tile < canvas.getTileCount(); tile++ ) {
+            byte kind = in.readByte();
+            int value = in.readInt();
+            if( kind == TILE_UNIFORM ) {
+              if( colors != null && ( value < 0 || value >= colors.size() ) ) {
+                throw new IOException( "The project file is damaged." );
+              }
+              canvas.setUniformColor( tile, value );
+            } else if( kind == TILE_RAW ) {
+              checkBlock( value );
+              int[] pixels = tiles.get( value );
+              if( pixels == null ) {
+                pixels = new int[canvas.getTileLength()];
+                mapper.block( value ).asIntBuffer().get( pixels );
+                tiles.put( value, pixels );
+              }
+              canvas.setTile( tile, pixels, 0 );
+              canvas.getSharedTile( tile );
+              saved.blocks[tile] = value;
+              used.set( value );
+            } else if( kind == TILE_LZ4 ) {
+              throw new IOException( "Compressed tiles aren't supported." );
+            } else {
+              throw new IOException( "The project file is damaged." );
+            }
+          }
+          saved.version = canvas.getVersion();
+          savedCanvases.put( canvas, saved );
+          canvases.add( canvas );
+          list.add( layer );
+        }
+        if( layerCount < 1 || active < 0 || active >= layerCount ) {
+          throw new IOException( "The project file is damaged." );
+        }
+        frames.add( new LayerStack( list, active ) );
+      }
+
+      position = in.readInt();
+      int entryCount = in.readInt();
+      entries = new ArrayList< History.Entry >();
+      for( int i = 0; i < entryCount; i++ ) {
+        TiledCanvas canvas = canvases.get( in.readInt() );
+        int block = in.readInt();
+        int entryLength = in.readInt();
+        int blocks = blocksFor( entryLength );
+        checkBlock( block );
+        checkBlock( block + blocks - 1 );
+
+        History.Entry entry = readEntry(
+            mapper.slice( (long) block * BLOCK_SIZE, entryLength ), canvas );
+        entries.add( entry );
+        savedEntries.put( entry,
+                          new SavedEntry( block, blocks, entryLength ) );
+        used.set( block, block + blocks );
+      }
+
+      for( int b = used.nextClearBit( 1 ); b < blockCount;
+           b = used.nextClearBit( b + 1 ) ) {
+        free.add( b );
+      }
+      committed = true;
+    } catch( IndexOutOfBoundsException | BufferUnderflowException
+             | IllegalArgumentException e ) {
+      throw new IOException( "The project file is damaged.", e );
+    }
+  }
+
+  private void checkBlock( int block ) throws IOException {
+    if( block < 1 || block >= blockCount ) {
+      throw new IOException( "The project file is damaged." );
+    }
+  }
+
+  /*
+   * the bytes taken by an entry: how many tiles it has, then each tile with
+   * its contents before and after. An entry of a color has the index of the
+   * color and its value before and after instead
+   */
+  private static int entrySize( History.Entry entry ) throws IOException {
+    if( entry.table != null ) {
+      return 4 + 12;
+    }
+    long size = 4;
+    for( int i = 0; i < entry.count; i++ ) {
+      size += 4 + 10;
+      if( entry.beforeData[i] != null ) {
+        size += 4 * entry.beforeData[i].length;
+      }
+      if( entry.afterData[i] != null ) {
+        size += 4 * entry.afterData[i].length;
+      }
+    }
+    if( size > MAX_ENTRY_SIZE ) {
+      throw new IOException( "An edit in the history is too large to save "
+                             + "in a project." );
+    }
+    return (int) size;
+  }
+
+  private static void writeEntry( ByteBuffer out, History.Entry entry ) {
+    if( entry.table != null ) {
+      out.putInt( ENTRY_RECOLOR );
+      out.putInt( entry.colorIndex );
+      out.putInt( entry.beforeColor );
+      out.putInt( entry.afterColor );
+      return;
+    }
+    out.putInt( entry.count );
+    for( int i = 0; i < entry.count; i++ ) {
+      out.putInt( entry.tiles[i] );
+      writeSide( out, entry.beforeData[i], entry.beforeFill[i] );
+      writeSide( out, entry.afterData[i], entry.afterFill[i] );
+    }
+  }
+
+  private static void writeSide( ByteBuffer out, int[] data, int color ) {
+    out.put( data == null ? TILE_UNIFORM : TILE_RAW );
+    out.putInt( color );
+    if( data != null ) {
+      out.asIntBuffer().put( data );
+      out.position( out.position() + 4 * data.length );
+    }
+  }
+
+  private static History.Entry readEntry( ByteBuffer in, TiledCanvas canvas )
+      throws IOException {
+    int count = in.getInt();
+    if( count == ENTRY_RECOLOR ) {
+      ColorTable table = canvas.getColorTable();
+      int index = in.getInt();
+      if( table == null || index < 1 || index >= table.size() ) {
+        throw new IOException( "The project file is damaged." );
+      }
+      return History.Entry.recolor( canvas, table, index, in.getInt(),
+                                    in.getInt() );
+    }
+    History.Entry entry = new History.Entry( canvas, count );
+    for( int i = 0; i < count; i++ ) {
+      int tile = in.getInt();
+      if( tile < 0 || tile >= canvas.getTileCount() ) {
+        throw new IOException( "The project file is damaged." );
+      }
+      byte beforeKind = in.get();
+      int beforeColor = in.getInt();
+      int[] before = readSide( in, beforeKind, canvas.getTileLength() );
+      byte afterKind = in.get();
+      int afterColor = in.getInt();
+      int[] after = readSide( in, afterKind, canvas.getTileLength() );
+      entry.add( tile, before, beforeColor, after, afterColor );
+    }
+    return entry;
+  }
+
+  private static int[] readSide( ByteBuffer in, byte kind, int length ) {
+    if( kind == TILE_UNIFORM ) {
+      return null;
+    }
+    int[] data = new int[length];
+    in.asIntBuffer().get( data );
+    in.position( in.position() + 4 * length );
+    return data;
+  }
+
+  /*
+   * a block for a single tile, reusing a free one if there is one
+   */
+  private int allocate() {
+    if( free.size > 0 ) {
+      return free.values[--free.size];
+    }
+    return blockCount++;
+  }
+
+  /*
+   * a run of blocks in a row, at the end of the file
+   */
+  private int allocateRun( int blocks ) {
+    int first = blockCount;
+    blockCount += blocks;
+    return first;
+  }
+
+  private static int blocksFor( int length ) {
+    return Math.max( 1, ( length + BLOCK_SIZE - 1 ) / BLOCK_SIZE );
+  }
+
+  /*
+   * the blocks a layer's tiles were saved in, 0 for tiles of a single color,
+   * and the version of the layer at the time
+   */
+  private static class SavedCanvas {
+    final int[] blocks;
+    long version;
+
+    SavedCanvas( TiledCanvas canvas ) {
+      blocks = new int[canvas.getTileCount()];
+      version = canvas.getVersion();
+    }
+  }
+
+  /*
+   * the blocks an entry was saved in, and its length in bytes
+   */
+  private static class SavedEntry {
+    final int block;
+    final int blocks;
+    final int length;
+
+    SavedEntry( int block, int blocks, int length ) {
+      this.block = block;
+      this.blocks = blocks;
+      this.length = length;
+    }
+  }
+
+  /*
+   * maps the file a window at a time, so a save only maps what it touches
+   */
+  private static class Mapper {
+    private final FileChannel channel;
+    private final long length;
+    private final FileChannel.MapMode mode;
+    private final MappedByteBuffer[] windows;
+    private final List< MappedByteBuffer > others;
+
+    Mapper( FileChannel channel, long length, FileChannel.MapMode mode ) {
+      this.channel = channel;
+      this.length = length;
+      this.mode = mode;
+      long window = (long) WINDOW_BLOCKS * BLOCK_SIZE;
+      windows = new MappedByteBuffer[(int) ( ( length + window - 1 )
+                                             / window )];
+      others = new ArrayList< MappedByteBuffer >();
+    }
+
+    /*
+     * the bytes of a single block
+     */
+    ByteBuffer block( int block ) throws IOException {
+      return slice( (long) block * BLOCK_SIZE, BLOCK_SIZE );
+    }
+
+    /*
+     * the bytes of any range of the file, which is mapped by itself if it
+     * doesn't fit in a window
+     */
+    ByteBuffer slice( long start, int size ) throws IOException {
+      long window = (long) WINDOW_BLOCKS * BLOCK_SIZE;
+      int index = (int) ( start / window );
+      long windowStart = index * window;
+
+      if( start + size > windowStart + window ) {
+        MappedByteBuffer mapped = channel.map( mode, start, size );
+        others.add( mapped );
+        return mapped;
+      }
+
+      if( windows[index] == null ) {
+        windows[index] = channel.map( mode, windowStart,
+                                      Math.min( window,
+                                                length - windowStart ) );
+      }
+      ByteBuffer buffer = windows[index].duplicate();
+      int offset = (int) ( start - windowStart );
+      buffer.position( offset );
+      buffer.limit( offset + size );
+      return buffer.slice();
+    }
+
+    /*
+     * makes sure everything written is on disk
+     */
+    void force() {
+      for( MappedByteBuffer window : windows ) {
+        if( window != null ) {
+          window.force();
+        }
+      }
+      for( MappedByteBuffer mapped : others ) {
+        mapped.force();
+      }
+    }
+  }
+
+  /*
+   * a growable list of ints
+   */
+  private static class IntList {
+    int[] values = new int[64];
+    int size;
+
+    void add( int value ) {
+      if( size == values.length ) {
+        values = Arrays.copyOf( values, size * 2 );
+      }
+      values[size++] = value;
+    }
+  }
+}
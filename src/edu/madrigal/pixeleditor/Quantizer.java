@@ -0,0 +1,232 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks a small palette for an image with too many colors to be indexed as
+ * it is. Pixels are mapped to the closest color of the palette afterwards.
+ *
+ * @author nihil
+ */
+public abstract class Quantizer {
+
+  /**
+   * Picks a palette for an image.
+   *
+   * @param image the image, which may be read more than once
+   * @param colors the most colors the palette may have
+   * @return the palette
+   */
+  public abstract Palette palette( RenderedImage image, int colors );
+
+  /**
+   * A quantizer that counts the colors of the image into a coarse
+   * histogram, then splits the colors into boxes, always splitting the box
+   * that is widest along any channel at the median of its pixels, until
+   * there are enough boxes. Each box gives the average of its pixels. Fully
+   * transparent pixels always get a color of their own.
+   *
+   * @return the median cut quantizer
+   */
+  public static Quantizer medianCut() {
+    return new MedianCut();
+  }
+
+  /*
+   * median cut over a histogram of 5 bits each of red, green and blue and
+   * 3 bits of alpha
+   */
+  private static class MedianCut extends Quantizer {
+
+    // the shifts of each channel in a histogram bin, and their bits
+    private static final int[] SHIFTS = { 15, 10, 5, 0 };
+    private static final int[] BITS = { 3, 5, 5, 5 };
+    private static final int BINS = 1 << 18;
+
+    @Override
+    public Palette palette( RenderedImage image, int colors ) {
+      int[] counts = new int[BINS];
+      long[][] sums = new long[4][BINS];
+      boolean transparent = histogram( image, counts, sums );
+
+      int[] bins = new int[BINS];
+      int used = 0;
+      for( int bin = 0; bin < BINS; bin++ ) {
+        if( counts[bin] != 0 ) {
+          bins[used++] = bin;
+        }
+      }
+
+      int wanted = Math.max( 1, colors - ( transparent ? 1 : 0 ) );
+      List< int[] > boxes = new ArrayList< int[] >();
+      if( used > 0 ) {
+        boxes.add( new int[]{ 0, used } );
+      }
+      while( boxes.size() < wanted ) {
+        int widest = -1;
+        int widestChannel = 0;
+        int widestRange = 0;
+        for( int i = 0; i < boxes.size(); i++ ) {
+          int[] box = boxes.get( i );
+          for( int channel = 0; channel < 4; channel++ ) {
+            int range = range( bins, box[0], box[1], channel );
+            if( range > widestRange ) {
+              widest = i;
+              widestChannel = channel;
+              widestRange = range;
+            }
+          }
+        }
+        if( widest < 0 ) {
+          break;
+        }
+        int[] box = boxes.get( widest );
+        int median = split( bins, box[0], box[1], widestChannel, counts );
+        boxes.add( new int[]{ median, box[1] } );
+        box[1] = median;
+      }
+
+      int[] palette = new int[boxes.size() + ( transparent ? 1 : 0 )];
+      int count = 0;
+      if( transparent ) {
+        palette[count++] = 0;
+      }
+      for( int[] box : boxes ) {
+        palette[count++] = average( bins, box[0], box[1], counts, sums );
+      }
+      return new Palette( distinct( palette ) );
+    }
+
+    /*
+     * counts the pixels into the histogram, keeping the sums of their
+     * channels, and tells whether any were fully transparent
+     */
+    private static boolean histogram( RenderedImage image, int[] counts,
+                                      long[][] sums ) {
+      boolean transparent = false;
+      int width = image.getWidth();
+      int height = image.getHeight();
+      int strip = Math.max( 1, Math.min( image.getTileHeight(), height ) );
+      int[] pixels = new int[width * strip];
+      for( int y = 0; y < height; y += strip ) {
+        int rows = Math.min( strip, height - y );
+        PngEncoder.readRows( image, y, rows, pixels );
+        for( int i = 0; i < width * rows; i++ ) {
+          int p = pixels[i];
+          int a = p >>> 24;
+          if( a == 0 ) {
+            transparent = true;
+            continue;
+          }
+          int r = ( p >> 16 ) & 0xff;
+          int g = ( p >> 8 ) & 0xff;
+          int b = p & 0xff;
+          int bin = ( a >> 5 ) << 15 | ( r >> 3 ) << 10 | ( g >> 3 ) << 5
+                    | b >> 3;
+          counts[bin]++;
+          sums[0][bin] += a;
+          sums[1][bin] += r;
+          sums[2][bin] += g;
+          sums[3][bin] += b;
+        }
+      }
+      return transparent;
+    }
+
+    private static int channel( int bin, int channel ) {
+      return ( bin >> SHIFTS[channel] ) & ( ( 1 << BITS[channel] ) - 1 );
+    }
+
+    /*
+     * how far a box spreads along a channel, scaled to 8 bits so the
+     * channels can be compared
+     */
+    private static int range( int[] bins, int from, int to, int channel ) {
+      if( to - from < 2 ) {
+        return 0;
+      }
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for( int i = from; i < to; i++ ) {
+        int value = channel( bins[i], channel );
+        min = Math.min( min, value );
+        max = Math.max( max, value );
+      }
+      return ( max - min ) << ( 8 - BITS[channel] );
+    }
+
+    /*
+     * sorts a box along a channel and finds where half of its pixels lie
+     * on either side, never leaving either half empty
+     */
+    private static int split( int[] bins, int from, int to, int channel,
+                              int[] counts ) {
+      // a counting sort, since a channel only has a few values
+      int values = 1 << BITS[channel];
+      int[] starts = new int[values + 1];
+      for( int i = from; i < to; i++ ) {
+        starts[channel( bins[i], channel ) + 1]++;
+      }
+      for( int v = 0; v < values; v++ ) {
+        starts[v + 1] += starts[v];
+      }
+      int[] sorted = new int[to - from];
+      for( int i = from; i < to; i++ ) {
+        sorted[starts[channel( bins[i], channel )]++] = bins[i];
+      }
+      System.arraycopy( sorted, 0, bins, from, sorted.length );
+
+      long total = 0;
+      for( int i = from; i < to; i++ ) {
+        total += counts[bins[i]];
+      }
+      long half = 0;
+      int median = from;
+      while( median < to - 1 && ( half += counts[bins[median]] ) * 2
+                                < total ) {
+        median++;
+      }
+      return Math.max( from + 1, Math.min( median + 1, to - 1 ) );
+    }
+
+    /*
+     * the average color of the pixels in a box
+     */
+    private static int average( int[] bins, int from, int to, int[] counts,
+                                long[][] sums ) {
+      long total = 0;
+      long[] channels = new long[4];
+      for( int i = from; i < to; i++ ) {
+        int bin = bins[i];
+        total += counts[bin];
+        for( int channel = 0; channel < 4; channel++ ) {
+          channels[channel] += sums[channel][bin];
+        }
+      }
+      int color = 0;
+      for( int channel = 0; channel < 4; channel++ ) {
+        color = color << 8 | (int) ( ( channels[channel] + total / 2 )
+                                     / total );
+      }
+      return color;
+    }
+
+    /*
+     * the colors without repeats, since two boxes can average to the same
+     */
+    private static int[] distinct( int[] colors ) {
+      int[] sorted = colors.clone();
+      Arrays.sort( sorted );
+      int count = 0;
+      for( int i = 0; i < sorted.length; i++ ) {
+        if( i == 0 || sorted[i] != sorted[i - 1] ) {
+          sorted[count++] = sorted[i];
+        }
+      }
+      return Arrays.copyOf( sorted, Math.max( count, 1 ) );
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Horizontal runs of cells, each a row and the columns it covers, in the
+ * order they were added, along with the rectangle around them.
+ *
+ * A run that carries on from the last one added, on the same row, joins it
+ * instead of starting another, so a shape traced cell by cell ends up as
+ * few runs as it can.
+ *
+ * @author nihil
+ */
+public class RunList {
+
+  // triples of the row, first column and column after the last
+  private int[] runs;
+  private int count;
+
+  // the rectangle around the runs
+  private int minX, minY, maxX, maxY;
+
+  /**
+   * Constructor for an empty list
+   */
+  public RunList() {
+    runs = new int[48];
+    clear();
+  }
+
+  /**
+   * Forgets every run.
+   */
+  public void clear() {
+    count = 0;
+    minX = minY = Integer.MAX_VALUE;
+    maxX = maxY = Integer.MIN_VALUE;
+  }
+
+  /**
+   * Adds a run, or joins it to the last run if it carries on from it.
+   *
+   * @param y the row of the run
+   * @param start the first column of the run
+   * @param end the column after the last, which is after start
+   */
+  public void add( int y, int start, int end ) {
+    int last = ( count - 1 ) * 3;
+    if( count > 0 && runs[last] == y && runs[last + 2] == start ) {
+      runs[last + 2] = end;
+    } else {
+      if( ( count + 1 ) * 3 > runs.length ) {
+        runs = Arrays.copyOf( runs, runs.length * 2 );
+      }
+      runs[count * 3] = y;
+      runs[count * 3 + 1] = start;
+      runs[count * 3 + 2] = end;
+      count++;
+    }
+    minX = Math.min( minX, start );
+    minY = Math.min( minY, y );
+    maxX = Math.max( maxX, end );
+    maxY = Math.max( maxY, y + 1 );
+  }
+
+  /**
+   * How many runs there are
+   *
+   * @return the number of runs
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * The row of a run
+   *
+   * @param run the index of the run, in the order they were added
+   * @return the y-coord of the run
+   */
+  public int getY( int run ) {
+    return runs[run * 3];
+  }
+
+  /**
+   * The first column of a run
+   *
+   * @param run the index of the run, in the order they were added
+   * @return the x-coord of the first pixel of the run
+   */
+  public int getStart( int run ) {
+    return runs[run * 3 + 1];
+  }
+
+  /**
+   * The column after the last of a run
+   *
+   * @param run the index of the run, in the order they were added
+   * @return the x-coord after the last pixel of the run
+   */
+  public int getEnd( int run ) {
+    return runs[run * 3 + 2];
+  }
+
+  /**
+   * The rectangle around every run
+   *
+   * @return the bounds, or null if there are no runs
+   */
+  public Rectangle getBounds() {
+    if( count == 0 ) {
+      return null;
+    }
+    return new Rectangle( minX, minY, maxX - minX, maxY - minY );
+  }
+}
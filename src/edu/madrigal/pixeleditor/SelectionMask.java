@@ -0,0 +1,448 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * The pixels of an image that edits are kept to, held as the runs of
+ * selected pixels along each row.
+ *
+ * Only the rows between the top and bottom of the selection are kept, and
+ * a row of a simple shape takes a run or two, so a mask takes memory in
+ * proportion to the height of what is selected and the detail of its
+ * edges, not to the size of the image. Edits go through the runs rather
+ * than testing pixels, so an edit inside a small selection costs the same
+ * on any image.
+ *
+ * A mask never changes once it is made.
+ *
+ * @author nihil
+ */
+public class SelectionMask {
+
+  // the runs of a row with nothing selected
+  private static final int[] NO_RUNS = new int[0];
+
+  private final int width;
+  private final int height;
+
+  /*
+   * the runs of each row from the top of the bounds to the bottom, as pairs
+   * of the first column and the column after the last, in order and not
+   * touching each other
+   */
+  private final int[][] rows;
+
+  // the rectangle around every run
+  private final Rectangle bounds;
+
+  /*
+   * a mask of some runs, from a row down, working out the rectangle around
+   * them and dropping the empty rows above and below it
+   */
+  private SelectionMask( int width, int height, int top, int[][] rows ) {
+    this.width = width;
+    this.height = height;
+    int first = 0;
+    int last = rows.length;
+    while( first < last && rows[first].length == 0 ) {
+      first++;
+    }
+    while( last > first && rows[last - 1].length == 0 ) {
+      last--;
+    }
+    int minX = width, maxX = 0;
+    for( int y = first; y < last; y++ ) {
+      int[] runs = rows[y];
+      if( runs.length > 0 ) {
+        minX = Math.min( minX, runs[0] );
+        maxX = Math.max( maxX, runs[runs.length - 1] );
+      }
+    }
+    this.rows = first == 0 && last == rows.length
+        ? rows : Arrays.copyOfRange( rows, first, last );
+    bounds = first < last ? new Rectangle( minX, top + first, maxX - minX,
+                                           last - first )
+                          : new Rectangle();
+  }
+
+  /**
+   * A mask of a rectangle, or of as much of it as is inside the image
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param area the rectangle to select
+   * @return the mask
+   */
+  public static SelectionMask rectangle( int width, int height,
+                                         Rectangle area ) {
+    Rectangle clipped = area.intersection( new Rectangle( width, height ) );
+    if( clipped.isEmpty() ) {
+      return new SelectionMask( width, height, 0, new int[0][] );
+    }
+    int[][] rows = new int[clipped.height][];
+    Arrays.fill( rows, new int[]{ clipped.x, clipped.x + clipped.width } );
+    return new SelectionMask( width, height, clipped.y, rows );
+  }
+
+  /**
+   * A mask of the pixels whose centers are inside a polygon, like an
+   * outline drawn around them, where the inside of a part that crosses
+   * over another part is outside again
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param outline the polygon, in pixels
+   * @return the mask
+   */
+  public static SelectionMask polygon( int width, int height,
+                                       Polygon outline ) {
+    Rectangle area = outline.getBounds().intersection(
+        new Rectangle( width, height ) );
+    int n = outline.npoints;
+    double[] crossings = new double[n];
+    RunList runs = new RunList();
+
+    for( int y = area.y; y < area.y + area.height; y++ ) {
+
+      // where the edges cross the middle of the row, in order
+      double middle = y + 0.5;
+      int count = 0;
+      for( int i = 0, j = n - 1; i < n; j = i++ ) {
+        int y0 = outline.ypoints[j];
+        int y1 = outline.ypoints[i];
+        if( ( y0 <= middle ) != ( y1 <= middle ) ) {
+          int x0 = outline.xpoints[j];
+          int x1 = outline.xpoints[i];
+          crossings[count++] = x0 + ( middle - y0 ) * ( x1 - x0 )
+                                    / ( y1 - y0 );
+        }
+      }
+      Arrays.sort( crossings, 0, count );
+
+      // the pixels whose middles are between each pair of crossings
+      for( int i = 0; i + 1 < count; i += 2 ) {
+        int start = Math.max( (int) Math.ceil( crossings[i] - 0.5 ), 0 );
+        int end = Math.min( (int) Math.ceil( crossings[i + 1] - 0.5 ),
+                            width );
+        if( start < end ) {
+          runs.add( y, start, end );
+        }
+      }
+    }
+    return of( width, height, runs );
+  }
+
+  /**
+   * A mask of every pixel in some runs, which can be in any order and
+   * overlap each other. Any part outside the image is left out.
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param runs the runs of pixels to select
+   * @return the mask
+   */
+  public static SelectionMask of( int width, int height, RunList runs ) {
+
+    // find the rows the runs are on
+    int top = height, bottom = 0;
+    for( int i = 0; i < runs.size(); i++ ) {
+      int y = runs.getY( i );
+      if( y >= 0 && y < height ) {
+        top = Math.min( top, y );
+        bottom = Math.max( bottom, y + 1 );
+      }
+    }
+    if( top >= bottom ) {
+      return new SelectionMask( width, height, 0, new int[0][] );
+    }
+
+    // count the runs of each row, then sort them within it
+    int[] counts = new int[bottom - top];
+    for( int i = 0; i < runs.size(); i++ ) {
+      int y = runs.getY( i );
+      if( y >= top && y < bottom ) {
+        counts[y - top]++;
+      }
+    }
+    long[][] sorted = new long[counts.length][];
+    for( int y = 0; y < counts.length; y++ ) {
+      sorted[y] = new long[counts[y]];
+      counts[y] = 0;
+    }
+    for( int i = 0; i < runs.size(); i++ ) {
+      int y = runs.getY( i ) - top;
+      int start = Math.max( runs.getStart( i ), 0 );
+      int end = Math.min( runs.getEnd( i ), width );
+      if( y >= 0 && y < counts.length ) {
+        sorted[y][counts[y]++] = start < end ? (long) start << 32 | end : -1L;
+      }
+    }
+
+    // and join the ones that overlap or touch
+    int[][] rows = new int[counts.length][];
+    int[] merged = new int[16];
+    for( int y = 0; y < rows.length; y++ ) {
+      long[] row = sorted[y];
+      Arrays.sort( row );
+      int count = 0;
+      for( long run : row ) {
+        if( run < 0 ) {
+          continue;
+        }
+        int start = (int) ( run >>> 32 );
+        int end = (int) run;
+        if( count > 0 && start <= merged[count - 1] ) {
+          merged[count - 1] = Math.max( merged[count - 1], end );
+        } else {
+          if( count + 2 > merged.length ) {
+            merged = Arrays.copyOf( merged, merged.length * 2 );
+          }
+          merged[count++] = start;
+          merged[count++] = end;
+        }
+      }
+      rows[y] = count == 0 ? NO_RUNS : Arrays.copyOf( merged, count );
+    }
+    return new SelectionMask( width, height, top, rows );
+  }
+
+  /**
+   * A mask of every pixel this one leaves out
+   *
+   * @return the inverted mask
+   */
+  public SelectionMask inverted() {
+    int[][] inverted = new int[height][];
+    for( int y = 0; y < height; y++ ) {
+      int[] runs = runs( y );
+      int[] gaps = new int[runs.length + 2];
+      int count = 0;
+      int x = 0;
+      for( int i = 0; i < runs.length; i += 2 ) {
+        if( runs[i] > x ) {
+          gaps[count++] = x;
+          gaps[count++] = runs[i];
+        }
+        x = runs[i + 1];
+      }
+      if( x < width ) {
+        gaps[count++] = x;
+        gaps[count++] = width;
+      }
+      inverted[y] = count == 0 ? NO_RUNS : Arrays.copyOf( gaps, count );
+    }
+    return new SelectionMask( width, height, 0, inverted );
+  }
+
+  /**
+   * The width of the image the mask is of
+   *
+   * @return the width in pixels
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * The height of the image the mask is of
+   *
+   * @return the height in pixels
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Whether no pixel is selected
+   *
+   * @return if the mask is empty
+   */
+  public boolean isEmpty() {
+    return bounds.isEmpty();
+  }
+
+  /**
+   * The rectangle around every selected pixel
+   *
+   * @return a copy of the bounds, empty if nothing is selected
+   */
+  public Rectangle getBounds() {
+    return new Rectangle( bounds );
+  }
+
+  /**
+   * Whether a pixel is selected
+   *
+   * @param x the x-coord of the pixel
+   * @param y the y-coord of the pixel
+   * @return if the pixel is in the mask
+   */
+  public boolean contains( int x, int y ) {
+    int[] runs = runs( y );
+    int run = find( runs, x );
+    return run >= 0 && x < runs[run + 1];
+  }
+
+  /**
+   * Whether every pixel of a rectangle is selected
+   *
+   * @param x the x-coord of the rectangle
+   * @param y the y-coord of the rectangle
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @return if the rectangle is all in the mask
+   */
+  public boolean covers( int x, int y, int w, int h ) {
+    if( y < 0 || y + h > height ) {
+      return false;
+    }
+    for( int row = y; row < y + h; row++ ) {
+      int[] runs = runs( row );
+      int run = find( runs, x );
+      if( run < 0 || x + w > runs[run + 1] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * How many runs of selected pixels a row has
+   *
+   * @param y the row
+   * @return the number of runs
+   */
+  public int getRunCount( int y ) {
+    return runs( y ).length / 2;
+  }
+
+  /**
+   * The first column of a run of selected pixels
+   *
+   * @param y the row of the run
+   * @param run the index of the run in its row, from the left
+   * @return the x-coord of the first pixel of the run
+   */
+  public int getRunStart( int y, int run ) {
+    return runs( y )[2 * run];
+  }
+
+  /**
+   * The column after the last of a run of selected pixels
+   *
+   * @param y the row of the run
+   * @param run the index of the run in its row, from the left
+   * @return the x-coord after the last pixel of the run
+   */
+  public int getRunEnd( int y, int run ) {
+    return runs( y )[2 * run + 1];
+  }
+
+  /**
+   * Fills the selected pixels of a rectangle of a canvas with a color, run
+   * by run, touching the history for each run first.
+   *
+   * @param canvas the canvas to fill
+   * @param history the history to touch, or null
+   * @param x the x-coord of the rectangle
+   * @param y the y-coord of the rectangle
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @param color the ARGB color to fill with
+   */
+  public void fillRect( TiledCanvas canvas, History history,
+                        int x, int y, int w, int h, int color ) {
+    paint( canvas, history, x, y, w, h, color, false );
+  }
+
+  /**
+   * Paints a color over the selected pixels of a rectangle of a canvas,
+   * blending it with them, run by run, touching the history for each run
+   * first.
+   *
+   * @param canvas the canvas to paint on
+   * @param history the history to touch, or null
+   * @param x the x-coord of the rectangle
+   * @param y the y-coord of the rectangle
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @param color the ARGB color to paint with
+   */
+  public void paintRect( TiledCanvas canvas, History history,
+                         int x, int y, int w, int h, int color ) {
+    paint( canvas, history, x, y, w, h, color, true );
+  }
+
+  private void paint( TiledCanvas canvas, History history,
+                      int x, int y, int w, int h, int color,
+                      boolean blend ) {
+    int y0 = Math.max( y, bounds.y );
+    int y1 = Math.min( y + h, bounds.y + bounds.height );
+    for( int row = y0; row < y1; row++ ) {
+      int[] runs = rows[row - bounds.y];
+      for( int i = first( runs, x ); i < runs.length; i += 2 ) {
+        int start = Math.max( runs[i], x );
+        int end = Math.min( runs[i + 1], x + w );
+        if( start >= x + w ) {
+          break;
+        }
+        if( history != null ) {
+          history.touch( start, row, end - start, 1 );
+        }
+        if( blend ) {
+          canvas.paintRect( start, row, end - start, 1, color );
+        } else {
+          canvas.fillRect( start, row, end - start, 1, color );
+        }
+      }
+    }
+  }
+
+  /**
+   * The index of the first run of a row that ends after a column
+   *
+   * @param y the row
+   * @param x the column
+   * @return the index of the run, or the number of runs if none do
+   */
+  public int firstRunAfter( int y, int x ) {
+    return first( runs( y ), x ) / 2;
+  }
+
+  /*
+   * the runs of a row, which has none outside the bounds
+   */
+  private int[] runs( int y ) {
+    int row = y - bounds.y;
+    return row >= 0 && row < rows.length ? rows[row] : NO_RUNS;
+  }
+
+  /*
+   * the offset of the start of the run holding a column, or -1 if it's in
+   * none
+   */
+  private static int find( int[] runs, int x ) {
+    int i = first( runs, x );
+    return i < runs.length && runs[i] <= x ? i : -1;
+  }
+
+  /*
+   * the offset of the start of the first run ending after a column, found
+   * by halving, since a row of a complex mask can have many runs
+   */
+  private static int first( int[] runs, int x ) {
+    int low = 0;
+    int high = runs.length / 2;
+    while( low < high ) {
+      int middle = ( low + high ) >>> 1;
+      if( runs[2 * middle + 1] <= x ) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return 2 * low;
+  }
+}
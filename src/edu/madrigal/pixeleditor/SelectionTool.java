@@ -0,0 +1,26 @@
+package edu.madrigal.pixeleditor;
+
+/**
+ * The ways pixels can be selected with the mouse, to keep edits to them: the
+ * grid cells inside a dragged rectangle, the pixels inside a drawn outline,
+ * or the pixels close in color to the one clicked.
+ *
+ * @author nihil
+ */
+public enum SelectionTool {
+
+  RECTANGLE( "Rectangle Select" ),
+  LASSO( "Lasso" ),
+  MAGIC_WAND( "Magic Wand" );
+
+  private final String name;
+
+  SelectionTool( String name ) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
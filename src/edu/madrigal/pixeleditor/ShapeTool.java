@@ -0,0 +1,166 @@
+package edu.madrigal.pixeleditor;
+
+/**
+ * The shapes that can be dragged out between two grid cells, instead of
+ * drawn freehand.
+ *
+ * Each shape is traced as runs of cells, one cell thick for outlines, so the
+ * same runs can be shown while the shape is dragged and then painted once
+ * it is let go, and both cost only as much as the shape's own rows.
+ *
+ * @author nihil
+ */
+public enum ShapeTool {
+
+  LINE( "Line" ) {
+    @Override
+    public void trace( int x0, int y0, int x1, int y1, RunList runs ) {
+      int dx = Math.abs( x1 - x0 );
+      int dy = -Math.abs( y1 - y0 );
+      int sx = x0 < x1 ? 1 : -1;
+      int sy = y0 < y1 ? 1 : -1;
+      int error = dx + dy;
+
+      runs.add( y0, x0, x0 + 1 );
+      while( x0 != x1 || y0 != y1 ) {
+        int e2 = 2 * error;
+        if( e2 >= dy ) {
+          error += dy;
+          x0 += sx;
+        }
+        if( e2 <= dx ) {
+          error += dx;
+          y0 += sy;
+        }
+        runs.add( y0, x0, x0 + 1 );
+      }
+    }
+  },
+
+  RECTANGLE( "Rectangle" ) {
+    @Override
+    public void trace( int x0, int y0, int x1, int y1, RunList runs ) {
+      int left = Math.min( x0, x1 );
+      int right = Math.max( x0, x1 ) + 1;
+      int top = Math.min( y0, y1 );
+      int bottom = Math.max( y0, y1 );
+      for( int y = top; y <= bottom; y++ ) {
+        if( y == top || y == bottom || right - left < 3 ) {
+          runs.add( y, left, right );
+        } else {
+          runs.add( y, left, left + 1 );
+          runs.add( y, right - 1, right );
+        }
+      }
+    }
+  },
+
+  FILLED_RECTANGLE( "Filled Rectangle" ) {
+    @Override
+    public void trace( int x0, int y0, int x1, int y1, RunList runs ) {
+      int left = Math.min( x0, x1 );
+      int right = Math.max( x0, x1 ) + 1;
+      for( int y = Math.min( y0, y1 ); y <= Math.max( y0, y1 ); y++ ) {
+        runs.add( y, left, right );
+      }
+    }
+  },
+
+  ELLIPSE( "Ellipse" ) {
+    @Override
+    public void trace( int x0, int y0, int x1, int y1, RunList runs ) {
+      int[] rows = rows( x0, y0, x1, y1 );
+      int top = Math.min( y0, y1 );
+      int height = rows.length / 2;
+      for( int j = 0; j < height; j++ ) {
+        int start = rows[2 * j];
+        int end = rows[2 * j + 1];
+
+        // a cell is on the outline if the row above or below doesn't reach
+        // it, or it is at the end of its own row
+        int inner = Integer.MAX_VALUE;
+        int outer = Integer.MIN_VALUE;
+        if( j > 0 && j < height - 1 ) {
+          inner = Math.max( rows[2 * j - 2], rows[2 * j + 2] );
+          outer = Math.min( rows[2 * j - 1], rows[2 * j + 3] );
+        }
+        int left = Math.min( Math.max( inner, start + 1 ), end );
+        int right = Math.max( Math.min( outer, end - 1 ), left );
+        runs.add( top + j, start, left );
+        if( right < end ) {
+          runs.add( top + j, right, end );
+        }
+      }
+    }
+  },
+
+  FILLED_ELLIPSE( "Filled Ellipse" ) {
+    @Override
+    public void trace( int x0, int y0, int x1, int y1, RunList runs ) {
+      int[] rows = rows( x0, y0, x1, y1 );
+      int top = Math.min( y0, y1 );
+      for( int j = 0; j < rows.length / 2; j++ ) {
+        runs.add( top + j, rows[2 * j], rows[2 * j + 1] );
+      }
+    }
+  };
+
+  private final String name;
+
+  ShapeTool( String name ) {
+    this.name = name;
+  }
+
+  /**
+   * Adds the runs of cells of the shape dragged from one cell to another
+   *
+   * @param x0 the x-coord of the cell the drag started at
+   * @param y0 the y-coord of the cell the drag started at
+   * @param x1 the x-coord of the cell the drag is at
+   * @param y1 the y-coord of the cell the drag is at
+   * @param runs the list to add the runs to
+   */
+  public abstract void trace( int x0, int y0, int x1, int y1, RunList runs );
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /*
+   * the first column and the column after the last of each row of the
+   * ellipse filling a rectangle of cells, taking the cells whose centers
+   * are inside it. Those are worked out in half cells so they stay in
+   * integers, and a row that would miss every center, at the ends of a
+   * tall, thin ellipse, keeps its middle cells so the ellipse still touches
+   * the rectangle
+   */
+  private static int[] rows( int x0, int y0, int x1, int y1 ) {
+    int left = Math.min( x0, x1 );
+    long w = Math.abs( x1 - x0 ) + 1;
+    long h = Math.abs( y1 - y0 ) + 1;
+    int[] rows = new int[2 * (int) h];
+    for( int j = 0; j < h; j++ ) {
+      long dy = 2 * j + 1 - h;
+      long room = w * w * ( h * h - dy * dy );
+
+      // the widest distance from the center, in half cells, that fits
+      long k = (long) Math.sqrt( (double) room / ( h * h ) );
+      while( ( k + 1 ) * ( k + 1 ) * h * h <= room ) {
+        k++;
+      }
+      while( k > 0 && k * k * h * h > room ) {
+        k--;
+      }
+      int start = (int) ( ( w - k ) / 2 );
+      int end = (int) ( w - start );
+      if( start >= end ) {
+        start = (int) ( ( w - 1 ) / 2 );
+        end = (int) ( w / 2 + 1 );
+      }
+      rows[2 * j] = left + start;
+      rows[2 * j + 1] = left + end;
+    }
+    return rows;
+  }
+}
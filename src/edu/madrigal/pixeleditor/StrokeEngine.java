@@ -0,0 +1,374 @@
+package edu.madrigal.pixeleditor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Turns the mouse positions of a stroke into continuous lines of grid cells.
+ *
+ * Positions are queued as they arrive, then painted together when the stroke
+ * is flushed, joining each one to the last with a Bresenham line so fast
+ * drags don't leave gaps. In pixel-perfect mode the corner cell of every L
+ * shape is left out, which keeps diagonal lines one cell thick. That cell is
+ * only known to be a corner once the next cell arrives, so the last cell of
+ * the stroke is held back until then.
+ *
+ * Each cell of the line is painted with the stamp of the brush centered on
+ * it. The stroke keeps a bit for every grid cell it has covered, so where
+ * stamps overlap, which for a wide brush is nearly all of each one, only
+ * the cells not covered yet are painted, in runs along each row. A
+ * translucent stroke is then as even as a single coat, and a wide brush
+ * costs about as much a step as the edge it moves forward.
+ *
+ * A stroke can be kept to a selection, which clips each run to it.
+ *
+ * @author nihil
+ */
+public class StrokeEngine {
+
+  // pairs of cell coords waiting to be painted
+  private int[] samples;
+  private int sampleCount;
+
+  /*
+   * the stroke in progress: where it paints, with what color, and how large
+   * its cells are
+   */
+  private TiledCanvas canvas;
+  private History history;
+  private int color;
+  private int cell;
+  private boolean active;
+  private boolean pixelPerfect;
+  private Brush brush;
+  private SelectionMask mask;
+
+  // the brush of new strokes
+  private Brush nextBrush;
+
+  /*
+   * the grid cells the stroke has covered, a bit for each, in rows only
+   * made once the stroke reaches them, and how many cells there are across
+   * and down
+   */
+  private long[][] covered;
+  private int cellsX, cellsY;
+
+  // the run of cells waiting to be painted, which the next may extend
+  private int runY, runStart, runEnd;
+
+  // the end of the line so far, if the stroke has one yet
+  private boolean started;
+  private int lastX, lastY;
+
+  /*
+   * in pixel-perfect mode, the last cell painted and the cell waiting to be
+   * painted
+   */
+  private boolean hasPainted, hasPending;
+  private int paintedX, paintedY, pendingX, pendingY;
+
+  // the cells painted since the last flush
+  private int minX, minY, maxX, maxY;
+
+  /**
+   * Constructor for the stroke engine
+   */
+  public StrokeEngine() {
+    samples = new int[64];
+    nextBrush = new Brush( Brush.Shape.ROUND, 1 );
+  }
+
+  /**
+   * The brush new strokes paint with
+   *
+   * @return the brush
+   */
+  public Brush getBrush() {
+    return nextBrush;
+  }
+
+  /**
+   * Sets the brush new strokes paint with
+   *
+   * @param brush the brush
+   */
+  public void setBrush( Brush brush ) {
+    nextBrush = brush;
+  }
+
+  /**
+   * Sets whether the corner cells of L shapes are left out of new strokes.
+   * Only a brush one cell wide has corners to leave out.
+   *
+   * @param selected whether pixel-perfect mode is on or off
+   */
+  public void setPixelPerfect( boolean selected ) {
+    pixelPerfect = selected;
+  }
+
+  /**
+   * Whether a stroke has begun and not ended yet
+   *
+   * @return if the stroke is in progress
+   */
+  public boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Begins a new stroke.
+   *
+   * @param canvas the canvas to paint on
+   * @param history the history to touch before each cell is painted
+   * @param color the ARGB color to paint with
+   * @param cell the size of the cells, in pixels
+   */
+  public void begin( TiledCanvas canvas, History history,
+                     int color, int cell ) {
+    begin( canvas, history, color, cell, null );
+  }
+
+  /**
+   * Begins a new stroke inside a selection.
+   *
+   * @param canvas the canvas to paint on
+   * @param history the history to touch before each cell is painted
+   * @param color the ARGB color to paint with
+   * @param cell the size of the cells, in pixels
+   * @param mask the pixels the stroke is kept to, or null for all of them
+   */
+  public void begin( TiledCanvas canvas, History history,
+                     int color, int cell, SelectionMask mask ) {
+    this.mask = mask;
+    this.canvas = canvas;
+    this.history = history;
+    this.color = color;
+    this.cell = cell;
+    brush = nextBrush;
+    cellsX = ( canvas.getWidth() + cell - 1 ) / cell;
+    cellsY = ( canvas.getHeight() + cell - 1 ) / cell;
+    covered = new long[cellsY][];
+    active = true;
+    started = false;
+    hasPainted = false;
+    hasPending = false;
+    sampleCount = 0;
+    resetBounds();
+  }
+
+  /**
+   * Queues the next position of the stroke, to be painted on the next flush.
+   *
+   * @param cx the x-coord of the cell
+   * @param cy the y-coord of the cell
+   */
+  public void addSample( int cx, int cy ) {
+    if( sampleCount + 2 > samples.length ) {
+      samples = Arrays.copyOf( samples, samples.length * 2 );
+    }
+    samples[sampleCount++] = cx;
+    samples[sampleCount++] = cy;
+  }
+
+  /**
+   * Paints every queued position, joined by lines.
+   *
+   * @return the region painted, or null if nothing was
+   */
+  public Rectangle flush() {
+    paintSamples();
+    return takeBounds();
+  }
+
+  /**
+   * Paints every queued position, and any cell still held back, then ends the
+   * stroke.
+   *
+   * @return the region painted, or null if nothing was
+   */
+  public Rectangle end() {
+    paintSamples();
+    if( hasPending ) {
+      paint( pendingX, pendingY );
+      hasPending = false;
+    }
+    active = false;
+    canvas = null;
+    history = null;
+    mask = null;
+    covered = null;
+    return takeBounds();
+  }
+
+  private void paintSamples() {
+    for( int i = 0; i < sampleCount; i += 2 ) {
+      int x = samples[i];
+      int y = samples[i + 1];
+      if( !started ) {
+        started = true;
+        plot( x, y );
+      } else if( x != lastX || y != lastY ) {
+        line( lastX, lastY, x, y );
+      }
+      lastX = x;
+      lastY = y;
+    }
+    sampleCount = 0;
+  }
+
+  /*
+   * plots every cell on the line between two cells, except the first one,
+   * which was plotted already
+   */
+  private void line( int x0, int y0, int x1, int y1 ) {
+    int dx = Math.abs( x1 - x0 );
+    int dy = -Math.abs( y1 - y0 );
+    int sx = x0 < x1 ? 1 : -1;
+    int sy = y0 < y1 ? 1 : -1;
+    int error = dx + dy;
+
+    while( x0 != x1 || y0 != y1 ) {
+      int e2 = 2 * error;
+      if( e2 >= dy ) {
+        error += dy;
+        x0 += sx;
+      }
+      if( e2 <= dx ) {
+        error += dx;
+        y0 += sy;
+      }
+      plot( x0, y0 );
+    }
+  }
+
+  /*
+   * plots a cell of the stroke, leaving out corners in pixel-perfect mode
+   */
+  private void plot( int x, int y ) {
+    if( !pixelPerfect || brush.getSize() > 1 ) {
+      paint( x, y );
+      return;
+    }
+
+    // the cell waiting is a corner if it sits between the last cell painted
+    // and this one, which touch diagonally
+    boolean corner = hasPending && hasPainted
+                     && Math.abs( paintedX - x ) == 1
+                     && Math.abs( paintedY - y ) == 1
+                     && ( pendingX == paintedX || pendingY == paintedY )
+                     && ( pendingX == x || pendingY == y );
+
+    if( hasPending && !corner ) {
+      paint( pendingX, pendingY );
+      paintedX = pendingX;
+      paintedY = pendingY;
+      hasPainted = true;
+    }
+    pendingX = x;
+    pendingY = y;
+    hasPending = true;
+  }
+
+  /*
+   * paints the cells of the stamp centered on a cell that the stroke
+   * hasn't covered yet
+   */
+  private void paint( int cx, int cy ) {
+    int size = brush.getSize();
+    int left = cx - brush.getOffset();
+    int top = cy - brush.getOffset();
+    int y0 = Math.max( top, 0 );
+    int y1 = Math.min( top + size, cellsY );
+    if( y0 >= y1 || left >= cellsX || left + size <= 0 ) {
+      return;
+    }
+    history.touch( left * cell, top * cell, size * cell, size * cell );
+
+    int word = Math.floorDiv( left, Long.SIZE );
+    int shift = Math.floorMod( left, Long.SIZE );
+    runY = -1;
+    for( int y = y0; y < y1; y++ ) {
+      long row = brush.getRow( left, top, y - top );
+      cover( y, word, row << shift );
+      if( shift != 0 ) {
+        cover( y, word + 1, row >>> ( Long.SIZE - shift ) );
+      }
+    }
+    paintRun();
+
+    minX = Math.min( minX, Math.max( left, 0 ) );
+    minY = Math.min( minY, y0 );
+    maxX = Math.max( maxX, Math.min( left + size, cellsX ) - 1 );
+    maxY = Math.max( maxY, y1 - 1 );
+  }
+
+  /*
+   * covers some cells of a row, where bit i of the cells is the cell
+   * i across from the start of a word of the row, and paints the runs of
+   * those that weren't covered already
+   */
+  private void cover( int y, int word, long cells ) {
+    if( cells == 0 || word < 0 || word * Long.SIZE >= cellsX ) {
+      return;
+    }
+    long[] row = covered[y];
+    if( row == null ) {
+      row = covered[y] = new long[( cellsX + Long.SIZE - 1 ) / Long.SIZE];
+    }
+    int end = cellsX - word * Long.SIZE;
+    if( end < Long.SIZE ) {
+      cells &= ( 1L << end ) - 1;
+    }
+    cells &= ~row[word];
+    row[word] |= cells;
+
+    while( cells != 0 ) {
+      int start = Long.numberOfTrailingZeros( cells );
+      int length = Long.numberOfTrailingZeros( ~( cells >>> start ) );
+      int x = word * Long.SIZE + start;
+      if( y == runY && x == runEnd ) {
+        runEnd += length;
+      } else {
+        paintRun();
+        runY = y;
+        runStart = x;
+        runEnd = x + length;
+      }
+      cells &= length == Long.SIZE ? 0 : ~( ( ( 1L << length ) - 1 ) << start );
+    }
+  }
+
+  /*
+   * paints the run of cells waiting, if there is one
+   */
+  private void paintRun() {
+    if( runY >= 0 && mask != null ) {
+      mask.paintRect( canvas, null, runStart * cell, runY * cell,
+                      ( runEnd - runStart ) * cell, cell, color );
+    } else if( runY >= 0 ) {
+      canvas.paintRect( runStart * cell, runY * cell,
+                        ( runEnd - runStart ) * cell, cell, color );
+    }
+    runY = -1;
+  }
+
+  /*
+   * the region of the cells painted since the bounds were last taken
+   */
+  private Rectangle takeBounds() {
+    if( minX > maxX ) {
+      return null;
+    }
+    Rectangle bounds = new Rectangle( minX * cell, minY * cell,
+                                      ( maxX + 1 - minX ) * cell,
+                                      ( maxY + 1 - minY ) * cell );
+    resetBounds();
+    return bounds;
+  }
+
+  private void resetBounds() {
+    minX = minY = Integer.MAX_VALUE;
+    maxX = maxY = Integer.MIN_VALUE;
+  }
+}
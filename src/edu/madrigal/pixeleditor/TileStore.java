@@ -0,0 +1,136 @@
+package edu.madrigal.pixeleditor;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps one copy of every distinct tile across many canvases, like the
+ * frames of an animation, where most tiles repeat from one frame to the
+ * next.
+ *
+ * Tiles are looked up by a hash of their pixels. When a canvas has a tile
+ * the store already holds, the canvas is given the stored pixels to share
+ * and its own copy is dropped, and a shared tile is copied again as soon as
+ * any canvas paints on it, so canvases never see each other's edits. The
+ * store only holds its tiles weakly, so a tile no canvas uses any more is
+ * forgotten.
+ *
+ * @author nihil
+ */
+public class TileStore {
+
+  // the tiles, by the hash of their pixels
+  private final HashMap< Integer, List< StoredTile > > tiles;
+  private final ReferenceQueue< int[] > forgotten;
+  private int size;
+
+  // the version each canvas was last stored at
+  private final WeakHashMap< TiledCanvas, Long > versions;
+
+  /**
+   * Constructor for an empty store
+   */
+  public TileStore() {
+    tiles = new HashMap< Integer, List< StoredTile > >();
+    forgotten = new ReferenceQueue< int[] >();
+    versions = new WeakHashMap< TiledCanvas, Long >();
+  }
+
+  /**
+   * How many distinct tiles the store holds
+   *
+   * @return the number of tiles
+   */
+  public int size() {
+    purge();
+    return size;
+  }
+
+  /**
+   * Stores the tiles of a canvas changed since it was last stored, sharing
+   * any the store already has. Tiles of a single color are made uniform
+   * instead, which costs nothing to store.
+   *
+   * @param canvas the canvas
+   */
+  public void store( TiledCanvas canvas ) {
+    purge();
+    Long stored = versions.get( canvas );
+    long since = stored == null ? -1 : stored;
+    if( canvas.getVersion() <= since ) {
+      return;
+    }
+    for( int tile = 0; tile < canvas.getTileCount(); tile++ ) {
+      if( canvas.getTileVersion( tile ) <= since
+          || canvas.compact( tile ) ) {
+        continue;
+      }
+      int[] pixels = canvas.getTileData( tile );
+      int[] same = intern( pixels );
+      if( same == pixels ) {
+        // the store keeps this one now, so the canvas mustn't change it
+        canvas.getSharedTile( tile );
+      } else {
+        canvas.shareTile( tile, same );
+      }
+    }
+    versions.put( canvas, canvas.getVersion() );
+  }
+
+  /*
+   * the stored tile with the same pixels, storing these if there is none
+   */
+  private int[] intern( int[] pixels ) {
+    int hash = Arrays.hashCode( pixels );
+    List< StoredTile > bucket = tiles.get( hash );
+    if( bucket == null ) {
+      bucket = new ArrayList< StoredTile >( 1 );
+      tiles.put( hash, bucket );
+    }
+    for( StoredTile stored : bucket ) {
+      int[] same = stored.get();
+      if( same == pixels
+          || ( same != null && Arrays.equals( same, pixels ) ) ) {
+        return same;
+      }
+    }
+    bucket.add( new StoredTile( pixels, hash, forgotten ) );
+    size++;
+    return pixels;
+  }
+
+  /*
+   * drops the tiles no canvas uses any more
+   */
+  private void purge() {
+    StoredTile gone;
+    while( ( gone = (StoredTile) forgotten.poll() ) != null ) {
+      List< StoredTile > bucket = tiles.get( gone.hash );
+      if( bucket != null && bucket.remove( gone ) ) {
+        size--;
+        if( bucket.isEmpty() ) {
+          tiles.remove( gone.hash );
+        }
+      }
+    }
+  }
+
+  /*
+   * a weak reference to a stored tile, which remembers its hash so it can
+   * be found again once the tile is gone
+   */
+  private static class StoredTile extends WeakReference< int[] > {
+
+    final int hash;
+
+    StoredTile( int[] pixels, int hash, ReferenceQueue< int[] > queue ) {
+      super( pixels, queue );
+      this.hash = hash;
+    }
+  }
+}
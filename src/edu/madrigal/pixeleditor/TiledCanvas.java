@@ -0,0 +1,873 @@
+package edu.madrigal.pixeleditor;
+
+import java.util.Arrays;
+
+/**
+ * An ARGB image cut into square tiles that are only allocated once they are
+ * painted on. A tile that is all one color is stored as that single color, so
+ * a canvas takes as much memory as the area that has been drawn on, instead of
+ * its width times its height.
+ *
+ * Every tile holds a full TILE_SIZE square of pixels, even along the right and
+ * bottom edges, so a pixel's offset in its tile only depends on its position.
+ *
+ * Each tile is stamped with a version whenever it may have changed, so
+ * whoever copies the canvas somewhere can later copy only the tiles changed
+ * since.
+ *
+ * A snapshot of the canvas shares its tiles with it, and a shared tile is only
+ * copied once either side is about to change it, so taking a snapshot costs
+ * next to nothing however large the canvas is.
+ *
+ * An indexed canvas holds a byte per pixel instead, indexing into a color
+ * table, packed four to an int so a tile takes a quarter of the memory and
+ * is still an int array to whatever copies tiles around. Its pixels are
+ * read and painted as ARGB like any other, mapped through the table.
+ *
+ * @author nihil
+ */
+public class TiledCanvas {
+
+  // tiles are square, and a power of two wide
+  public static final int TILE_SHIFT = 6;
+  public static final int TILE_SIZE = 1 << TILE_SHIFT;
+  public static final int TILE_MASK = TILE_SIZE - 1;
+  public static final int TILE_AREA = TILE_SIZE * TILE_SIZE;
+
+  // the ints a tile of an indexed canvas takes, four pixels to each
+  public static final int PACKED_AREA = TILE_AREA / 4;
+
+  // the largest canvas we allow, in either direction
+  public static final int MAX_SIZE = 16384;
+
+  private final int width;
+  private final int height;
+  private final int tilesX;
+  private final int tilesY;
+
+  // the colors the pixels index into, or null if they are ARGB
+  private final ColorTable table;
+
+  /*
+   * the pixels of each tile, or null if the tile is all one color, and that
+   * color, both as indices in an indexed canvas
+   */
+  private final int[][] data;
+  private final int[] fill;
+
+  // the version of each tile, and the latest version given out
+  private final long[] versions;
+  private long version;
+
+  // tiles whose pixels are shared with a snapshot
+  private final boolean[] shared;
+
+  /**
+   * Constructor for a canvas of a single color
+   *
+   * @param width the width of the canvas, from 1 to MAX_SIZE
+   * @param height the height of the canvas, from 1 to MAX_SIZE
+   * @param background the ARGB color of every pixel
+   */
+  public TiledCanvas( int width, int height, int background ) {
+    this( width, height, null, background );
+  }
+
+  /**
+   * Constructor for a canvas of a single color, which is indexed if it is
+   * given a color table
+   *
+   * @param width the width of the canvas, from 1 to MAX_SIZE
+   * @param height the height of the canvas, from 1 to MAX_SIZE
+   * @param table the colors the pixels index into, or null for ARGB pixels
+   * @param background the ARGB color of every pixel
+   */
+  public TiledCanvas( int width, int height, ColorTable table,
+                      int background ) {
+    if( width < 1 || height < 1 || width > MAX_SIZE || height > MAX_SIZE ) {
+      throw new IllegalArgumentException( "A canvas must be between 1x1 and "
+                                          + MAX_SIZE + "x" + MAX_SIZE
+                                          + " pixels." );
+    }
+    this.width = width;
+    this.height = height;
+    tilesX = ( width + TILE_MASK ) >> TILE_SHIFT;
+    tilesY = ( height + TILE_MASK ) >> TILE_SHIFT;
+    this.table = table;
+    data = new int[tilesX * tilesY][];
+    fill = new int[tilesX * tilesY];
+    Arrays.fill( fill, table == null ? background
+                                     : table.indexFor( background ) );
+    versions = new long[tilesX * tilesY];
+    shared = new boolean[tilesX * tilesY];
+  }
+
+  /*
+   * a copy of another canvas, sharing its tiles, with a table of the same
+   * colors
+   */
+  private TiledCanvas( TiledCanvas other, ColorTable table ) {
+    width = other.width;
+    height = other.height;
+    tilesX = other.tilesX;
+    tilesY = other.tilesY;
+    this.table = table;
+    data = other.data.clone();
+    fill = other.fill.clone();
+    versions = other.versions.clone();
+    version = other.version;
+    shared = new boolean[data.length];
+    for( int tile = 0; tile < data.length; tile++ ) {
+      shared[tile] = data[tile] != null;
+    }
+  }
+
+  /**
+   * A copy of the canvas as it is now, which doesn't change when the canvas
+   * does, so it can be read on another thread. Tiles are shared until one
+   * side changes them, and the color table is copied.
+   *
+   * @return the snapshot
+   */
+  public TiledCanvas snapshot() {
+    return snapshot( table == null ? null
+                                   : new ColorTable( table.getColors() ) );
+  }
+
+  /*
+   * a snapshot using another table, which has to hold the same colors, like
+   * the canvas's own table or a copy of it already made
+   */
+  TiledCanvas snapshot( ColorTable colors ) {
+    TiledCanvas copy = new TiledCanvas( this, colors );
+    System.arraycopy( copy.shared, 0, shared, 0, shared.length );
+    return copy;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getTilesX() {
+    return tilesX;
+  }
+
+  public int getTilesY() {
+    return tilesY;
+  }
+
+  public int getTileCount() {
+    return data.length;
+  }
+
+  /**
+   * Whether the pixels are indices into a color table
+   *
+   * @return if the canvas is indexed
+   */
+  public boolean isIndexed() {
+    return table != null;
+  }
+
+  /**
+   * The colors the pixels index into
+   *
+   * @return the color table, or null if the pixels are ARGB
+   */
+  public ColorTable getColorTable() {
+    return table;
+  }
+
+  /**
+   * How many ints the pixels of a tile take
+   *
+   * @return TILE_AREA, or PACKED_AREA if the canvas is indexed
+   */
+  public int getTileLength() {
+    return table == null ? TILE_AREA : PACKED_AREA;
+  }
+
+  /**
+   * The color a pixel painted with a color really gets, which in an indexed
+   * canvas is the color of the entry it maps to
+   *
+   * @param argb the ARGB color
+   * @return the ARGB color the pixel would have
+   */
+  public int closestColor( int argb ) {
+    return table == null ? argb : table.getColor( table.indexFor( argb ) );
+  }
+
+  /**
+   * The index of the tile under a pixel
+   *
+   * @param x the x-coord of the pixel
+   * @param y the y-coord of the pixel
+   * @return the tile index
+   */
+  public int tileAt( int x, int y ) {
+    return ( y >> TILE_SHIFT ) * tilesX + ( x >> TILE_SHIFT );
+  }
+
+  /**
+   * The x-coord of the left edge of a tile
+   *
+   * @param tile the tile index
+   * @return the x-coord of its first column
+   */
+  public int tileLeft( int tile ) {
+    return ( tile % tilesX ) << TILE_SHIFT;
+  }
+
+  /**
+   * The y-coord of the top edge of a tile
+   *
+   * @param tile the tile index
+   * @return the y-coord of its first row
+   */
+  public int tileTop( int tile ) {
+    return ( tile / tilesX ) << TILE_SHIFT;
+  }
+
+  /**
+   * How many columns of a tile lie inside the canvas
+   *
+   * @param tile the tile index
+   * @return the width of the tile, clipped to the canvas
+   */
+  public int tileWidth( int tile ) {
+    return Math.min( TILE_SIZE, width - tileLeft( tile ) );
+  }
+
+  /**
+   * How many rows of a tile lie inside the canvas
+   *
+   * @param tile the tile index
+   * @return the height of the tile, clipped to the canvas
+   */
+  public int tileHeight( int tile ) {
+    return Math.min( TILE_SIZE, height - tileTop( tile ) );
+  }
+
+  /**
+   * Whether a tile is stored as a single color
+   *
+   * @param tile the tile index
+   * @return if the tile has no pixel array
+   */
+  public boolean isUniform( int tile ) {
+    return data[tile] == null;
+  }
+
+  /**
+   * The color of a uniform tile, as it is stored
+   *
+   * @param tile the tile index
+   * @return the color of every pixel in the tile, if it is uniform, or its
+   *         index if the canvas is indexed
+   */
+  public int getUniformColor( int tile ) {
+    return fill[tile];
+  }
+
+  /**
+   * Sets the color of a uniform tile, without allocating its pixels
+   *
+   * @param tile the tile index
+   * @param color the ARGB color of every pixel in the tile, or its index if
+   *          the canvas is indexed
+   */
+  public void setUniformColor( int tile, int color ) {
+    versions[tile] = ++version;
+    shared[tile] = false;
+    data[tile] = null;
+    fill[tile] = color;
+  }
+
+  /**
+   * The pixels of a tile, which must not be changed
+   *
+   * @param tile the tile index
+   * @return the getTileLength() ints of the tile, or null if it is uniform
+   */
+  public int[] getTileData( int tile ) {
+    return data[tile];
+  }
+
+  /**
+   * The pixels of a tile, which the canvas won't change from now on. The
+   * canvas copies the tile the next time it is painted instead, so the
+   * pixels can be read from another thread.
+   *
+   * @param tile the tile index
+   * @return the getTileLength() ints of the tile, or null if it is uniform
+   */
+  public int[] getSharedTile( int tile ) {
+    if( data[tile] != null ) {
+      shared[tile] = true;
+    }
+    return data[tile];
+  }
+
+  /**
+   * Swaps the pixels of a tile for an identical array, like one kept by a
+   * tile store, which the canvas then shares instead of changing. The
+   * version of the tile stays the same, since its pixels do.
+   *
+   * @param tile the tile index
+   * @param pixels the pixels, the same as the tile's own
+   */
+  public void shareTile( int tile, int[] pixels ) {
+    data[tile] = pixels;
+    shared[tile] = true;
+  }
+
+  /**
+   * The pixels of a tile, allocating them first if the tile is uniform
+   *
+   * @param tile the tile index
+   * @return the getTileLength() ints of the tile, which may be changed
+   */
+  public int[] getWritableTile( int tile ) {
+    versions[tile] = ++version;
+    int[] pixels = data[tile];
+    if( pixels == null ) {
+      pixels = new int[getTileLength()];
+      Arrays.fill( pixels, table == null ? fill[tile] : pack( fill[tile] ) );
+      data[tile] = pixels;
+    } else if( shared[tile] ) {
+      pixels = pixels.clone();
+      data[tile] = pixels;
+      shared[tile] = false;
+    }
+    return pixels;
+  }
+
+  /**
+   * Replaces a whole tile
+   *
+   * @param tile the tile index
+   * @param pixels the getTileLength() ints of the tile, which the canvas
+   *          takes ownership of, or null to make it uniform
+   * @param color the color of the tile, if it is uniform, or its index if
+   *          the canvas is indexed
+   */
+  public void setTile( int tile, int[] pixels, int color ) {
+    versions[tile] = ++version;
+    shared[tile] = false;
+    data[tile] = pixels;
+    fill[tile] = color;
+  }
+
+  /**
+   * The latest version of any tile. Every tile changed after this is
+   * called gets a greater version.
+   *
+   * @return the version of the canvas
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * The version of a tile, which grows every time its pixels may change
+   *
+   * @param tile the tile index
+   * @return the version of the tile
+   */
+  public long getTileVersion( int tile ) {
+    return versions[tile];
+  }
+
+  /**
+   * Turns a tile back into a single color if all of its pixels inside the
+   * canvas have the same color.
+   *
+   * @param tile the tile index
+   * @return if the tile is now uniform
+   */
+  public boolean compact( int tile ) {
+    int[] pixels = data[tile];
+    if( pixels == null ) {
+      return true;
+    }
+    int w = tileWidth( tile );
+    int h = tileHeight( tile );
+    if( table != null ) {
+      int index = pixels[0] & 0xff;
+      for( int row = 0; row < h; row++ ) {
+        int offset = row << TILE_SHIFT;
+        for( int i = offset; i < offset + w; i++ ) {
+          if( indexAt( pixels, i ) != index ) {
+            return false;
+          }
+        }
+      }
+      setUniformColor( tile, index );
+      return true;
+    }
+    int color = pixels[0];
+    for( int row = 0; row < h; row++ ) {
+      int offset = row << TILE_SHIFT;
+      for( int i = offset; i < offset + w; i++ ) {
+        if( pixels[i] != color ) {
+          return false;
+        }
+      }
+    }
+    setUniformColor( tile, color );
+    return true;
+  }
+
+  /**
+   * The color of a pixel, which must be inside the canvas
+   *
+   * @param x the x-coord of the pixel
+   * @param y the y-coord of the pixel
+   * @return the ARGB color of the pixel
+   */
+  public int getRGB( int x, int y ) {
+    int tile = tileAt( x, y );
+    int[] pixels = data[tile];
+    int i = ( ( y & TILE_MASK ) << TILE_SHIFT ) | ( x & TILE_MASK );
+    if( table != null ) {
+      return table.getColor( pixels == null ? fill[tile]
+                                            : indexAt( pixels, i ) );
+    }
+    if( pixels == null ) {
+      return fill[tile];
+    }
+    return pixels[i];
+  }
+
+  /**
+   * Sets the color of a pixel, which must be inside the canvas
+   *
+   * @param x the x-coord of the pixel
+   * @param y the y-coord of the pixel
+   * @param color the new ARGB color of the pixel
+   */
+  public void setRGB( int x, int y, int color ) {
+    int tile = tileAt( x, y );
+    int value = table == null ? color : table.indexFor( color );
+    if( data[tile] == null && fill[tile] == value ) {
+      return;
+    }
+    int i = ( ( y & TILE_MASK ) << TILE_SHIFT ) | ( x & TILE_MASK );
+    if( table != null ) {
+      setIndex( getWritableTile( tile ), i, value );
+    } else {
+      getWritableTile( tile )[i] = color;
+    }
+  }
+
+  /**
+   * The colors of every pixel of a tile, as ARGB whatever the canvas holds
+   *
+   * @param tile the tile index
+   * @param dst where to put the TILE_AREA colors
+   */
+  public void getTileRGB( int tile, int[] dst ) {
+    int[] pixels = data[tile];
+    if( pixels == null ) {
+      Arrays.fill( dst, 0, TILE_AREA,
+                   table == null ? fill[tile] : table.getColor( fill[tile] ) );
+    } else if( table == null ) {
+      System.arraycopy( pixels, 0, dst, 0, TILE_AREA );
+    } else {
+      for( int i = 0; i < TILE_AREA; i++ ) {
+        dst[i] = table.getColor( indexAt( pixels, i ) );
+      }
+    }
+  }
+
+  /**
+   * Replaces the pixels in a rectangle with a color. Tiles that are covered
+   * completely become uniform.
+   *
+   * @param x the x-coord of the rectangle
+   * @param y the y-coord of the rectangle
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @param color the ARGB color to fill with
+   */
+  public void fillRect( int x, int y, int w, int h, int color ) {
+    fill( x, y, w, h, color, false );
+  }
+
+  /**
+   * Paints a color over the pixels in a rectangle, blending it with them the
+   * way Graphics.fillRect does.
+   *
+   * @param x the x-coord of the rectangle
+   * @param y the y-coord of the rectangle
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @param color the ARGB color to paint with
+   */
+  public void paintRect( int x, int y, int w, int h, int color ) {
+    int alpha = color >>> 24;
+    if( alpha != 0 ) {
+      fill( x, y, w, h, color, alpha != 0xff );
+    }
+  }
+
+  private void fill( int x, int y, int w, int h, int color, boolean blend ) {
+
+    // clip the rectangle to the canvas
+    int x0 = Math.max( x, 0 );
+    int y0 = Math.max( y, 0 );
+    int x1 = Math.min( x + w, width );
+    int y1 = Math.min( y + h, height );
+
+    if( x0 >= x1 || y0 >= y1 ) {
+      return;
+    }
+
+    // an indexed canvas blends each entry once rather than each pixel
+    int[] blended = null;
+    if( table != null ) {
+      if( blend ) {
+        blended = new int[ColorTable.MAX_COLORS];
+        Arrays.fill( blended, -1 );
+      } else {
+        color = table.indexFor( color );
+      }
+    }
+
+    for( int ty = y0 >> TILE_SHIFT; ty <= ( y1 - 1 ) >> TILE_SHIFT; ty++ ) {
+      int top = ty << TILE_SHIFT;
+      int rowStart = Math.max( y0, top ) - top;
+      int rowEnd = Math.min( y1, top + TILE_SIZE ) - top;
+
+      for( int tx = x0 >> TILE_SHIFT; tx <= ( x1 - 1 ) >> TILE_SHIFT; tx++ ) {
+        int left = tx << TILE_SHIFT;
+        int colStart = Math.max( x0, left ) - left;
+        int colEnd = Math.min( x1, left + TILE_SIZE ) - left;
+        int tile = ty * tilesX + tx;
+
+        // a tile covered completely only needs one color
+        boolean covered = colStart == 0 && rowStart == 0
+                          && colEnd == Math.min( TILE_SIZE, width - left )
+                          && rowEnd == Math.min( TILE_SIZE, height - top );
+
+        if( covered && ( !blend || data[tile] == null ) ) {
+          setUniformColor( tile, !blend ? color
+              : blended != null ? blend( blended, color, fill[tile] )
+              : PixelMath.srcOver( color, fill[tile] ) );
+          continue;
+        }
+
+        if( !blend && data[tile] == null && fill[tile] == color ) {
+          continue;
+        }
+
+        int[] pixels = getWritableTile( tile );
+        for( int row = rowStart; row < rowEnd; row++ ) {
+          int offset = row << TILE_SHIFT;
+          if( blended != null ) {
+            for( int i = offset + colStart; i < offset + colEnd; i++ ) {
+              setIndex( pixels, i,
+                        blend( blended, color, indexAt( pixels, i ) ) );
+            }
+          } else if( table != null ) {
+            fillIndices( pixels, offset + colStart, offset + colEnd, color );
+          } else if( blend ) {
+            for( int i = offset + colStart; i < offset + colEnd; i++ ) {
+              pixels[i] = PixelMath.srcOver( color, pixels[i] );
+            }
+          } else {
+            Arrays.fill( pixels, offset + colStart, offset + colEnd, color );
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   * the index of a color painted over an entry of the table, remembering
+   * each entry's once it is found
+   */
+  private int blend( int[] blended, int color, int index ) {
+    int result = blended[index];
+    if( result < 0 ) {
+      result = table.indexFor( PixelMath.srcOver( color,
+                                                  table.getColor( index ) ) );
+      blended[index] = result;
+    }
+    return result;
+  }
+
+  /**
+   * Copies a rectangle of the canvas into a raster. The rectangle must be
+   * inside the canvas.
+   *
+   * @param x the x-coord of the rectangle
+   * @param y the y-coord of the rectangle
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @param dst the raster to copy into
+   * @param offset the index in the raster of the rectangle's top-left pixel
+   * @param scan the distance between rows in the raster
+   */
+  public void getRegion( int x, int y, int w, int h,
+                         int[] dst, int offset, int scan ) {
+    for( int row = 0; row < h; row++ ) {
+      int py = y + row;
+      int base = ( py >> TILE_SHIFT ) * tilesX;
+      int tileRow = ( py & TILE_MASK ) << TILE_SHIFT;
+      int out = offset + row * scan;
+      int px = x;
+
+      while( px < x + w ) {
+        int tile = base + ( px >> TILE_SHIFT );
+        int run = Math.min( TILE_SIZE - ( px & TILE_MASK ), x + w - px );
+        int[] pixels = data[tile];
+        int start = tileRow | ( px & TILE_MASK );
+        if( table != null ) {
+          if( pixels == null ) {
+            Arrays.fill( dst, out, out + run, table.getColor( fill[tile] ) );
+          } else {
+            for( int i = 0; i < run; i++ ) {
+              dst[out + i] = table.getColor( indexAt( pixels, start + i ) );
+            }
+          }
+        } else if( pixels == null ) {
+          Arrays.fill( dst, out, out + run, fill[tile] );
+        } else {
+          System.arraycopy( pixels, start, dst, out, run );
+        }
+        out += run;
+        px += run;
+      }
+    }
+  }
+
+  /**
+   * Copies a raster into a rectangle of the canvas, replacing what was
+   * there. The rectangle must be inside the canvas.
+   *
+   * @param x the x-coord of the rectangle
+   * @param y the y-coord of the rectangle
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   * @param src the raster to copy from
+   * @param offset the index in the raster of the rectangle's top-left pixel
+   * @param scan the distance between rows in the raster
+   */
+  public void setRegion( int x, int y, int w, int h,
+                         int[] src, int offset, int scan ) {
+    // neighbouring pixels are usually the same color, so the last one
+    // looked up is kept
+    int lastColor = 0;
+    int lastIndex = table == null ? 0 : table.indexFor( 0 );
+    for( int row = 0; row < h; row++ ) {
+      int py = y + row;
+      int base = ( py >> TILE_SHIFT ) * tilesX;
+      int tileRow = ( py & TILE_MASK ) << TILE_SHIFT;
+      int in = offset + row * scan;
+      int px = x;
+
+      while( px < x + w ) {
+        int tile = base + ( px >> TILE_SHIFT );
+        int run = Math.min( TILE_SIZE - ( px & TILE_MASK ), x + w - px );
+        int start = tileRow | ( px & TILE_MASK );
+        if( table != null ) {
+          int[] pixels = getWritableTile( tile );
+          for( int i = 0; i < run; i++ ) {
+            int color = src[in + i];
+            if( color != lastColor ) {
+              lastColor = color;
+              lastIndex = table.indexFor( color );
+            }
+            setIndex( pixels, start + i, lastIndex );
+          }
+        } else {
+          System.arraycopy( src, in, getWritableTile( tile ), start, run );
+        }
+        in += run;
+        px += run;
+      }
+    }
+  }
+
+  /**
+   * A copy of the canvas stretched to a new size, picking the nearest pixel
+   * for each new one
+   *
+   * @param newWidth the width of the copy
+   * @param newHeight the height of the copy
+   * @return the resized copy
+   */
+  public TiledCanvas resized( int newWidth, int newHeight ) {
+    TiledCanvas copy = new TiledCanvas( newWidth, newHeight, table, 0 );
+    int[] columns = new int[newWidth];
+    for( int x = 0; x < newWidth; x++ ) {
+      columns[x] = (int) ( (long) x * width / newWidth );
+    }
+    int[] src = new int[width];
+    int[] row = new int[newWidth];
+    int last = -1;
+    for( int y = 0; y < newHeight; y++ ) {
+      int sy = (int) ( (long) y * height / newHeight );
+      if( sy != last ) {
+        getRegion( 0, sy, width, 1, src, 0, width );
+        for( int x = 0; x < newWidth; x++ ) {
+          row[x] = src[columns[x]];
+        }
+        last = sy;
+      }
+      copy.setRegion( 0, y, newWidth, 1, row, 0, newWidth );
+    }
+
+    // stretched single colors are still single colors
+    for( int tile = 0; tile < copy.data.length; tile++ ) {
+      copy.compact( tile );
+    }
+    return copy;
+  }
+
+  /**
+   * A copy of the canvas with its pixels held another way: as indices into
+   * a color table, mapping each color to its entry or the closest one, or
+   * as ARGB again
+   *
+   * @param colors the table of the copy, or null for ARGB pixels
+   * @return the converted copy
+   */
+  public TiledCanvas converted( ColorTable colors ) {
+    TiledCanvas copy = new TiledCanvas( width, height, colors, 0 );
+    int[] pixels = new int[TILE_AREA];
+    for( int tile = 0; tile < data.length; tile++ ) {
+      int left = tileLeft( tile );
+      int top = tileTop( tile );
+      if( data[tile] == null ) {
+        copy.fillRect( left, top, TILE_SIZE, TILE_SIZE,
+                       nearest( colors, getRGB( left, top ) ) );
+      } else {
+        getTileRGB( tile, pixels );
+        for( int i = 0; colors != null && i < TILE_AREA; i++ ) {
+          pixels[i] = nearest( colors, pixels[i] );
+        }
+        copy.setRegion( left, top, tileWidth( tile ), tileHeight( tile ),
+                        pixels, 0, TILE_SIZE );
+        copy.compact( tile );
+      }
+    }
+    return copy;
+  }
+
+  /*
+   * the color of the entry of a table closest to a color, so converting
+   * doesn't add any entries
+   */
+  private static int nearest( ColorTable colors, int argb ) {
+    return colors == null ? argb : colors.getColor( colors.indexOf( argb ) );
+  }
+
+  /**
+   * Paints a row of ARGB pixels onto the canvas, blending them with what is
+   * underneath. The row must be inside the canvas.
+   *
+   * @param x the x-coord of the first pixel
+   * @param y the y-coord of the row
+   * @param src the pixels to paint
+   * @param offset the index of the first pixel in src
+   * @param length how many pixels to paint
+   */
+  public void paintRow( int x, int y, int[] src, int offset, int length ) {
+    int base = ( y >> TILE_SHIFT ) * tilesX;
+    int tileRow = ( y & TILE_MASK ) << TILE_SHIFT;
+    for( int i = 0; i < length; i++ ) {
+      int color = src[offset + i];
+      int alpha = color >>> 24;
+      if( alpha == 0 ) {
+        continue;
+      }
+      int px = x + i;
+      int tile = base + ( px >> TILE_SHIFT );
+      int index = tileRow | ( px & TILE_MASK );
+      if( table != null ) {
+        paintIndex( tile, index, color );
+        continue;
+      }
+      if( data[tile] == null && fill[tile] == color ) {
+        continue;
+      }
+      int[] pixels = getWritableTile( tile );
+      pixels[index] = alpha == 0xff
+                      ? color : PixelMath.srcOver( color, pixels[index] );
+    }
+  }
+
+  /*
+   * paints a color over a pixel of an indexed tile
+   */
+  private void paintIndex( int tile, int i, int color ) {
+    int[] pixels = data[tile];
+    int under = pixels == null ? fill[tile] : indexAt( pixels, i );
+    int value = color >>> 24 == 0xff ? table.indexFor( color )
+        : table.indexFor( PixelMath.srcOver( color, table.getColor( under ) ) );
+    if( value != under ) {
+      setIndex( getWritableTile( tile ), i, value );
+    }
+  }
+
+  /**
+   * How many bytes the pixels of the canvas take up
+   *
+   * @return the memory used by the tiles
+   */
+  public long getMemoryUsage() {
+    long bytes = 4L * fill.length + 8L * data.length;
+    for( int[] pixels : data ) {
+      if( pixels != null ) {
+        bytes += 4L * pixels.length;
+      }
+    }
+    return bytes;
+  }
+
+  /*
+   * the index held by a pixel of an indexed tile
+   */
+  private static int indexAt( int[] pixels, int i ) {
+    return ( pixels[i >> 2] >>> ( ( i & 3 ) << 3 ) ) & 0xff;
+  }
+
+  private static void setIndex( int[] pixels, int i, int index ) {
+    int shift = ( i & 3 ) << 3;
+    pixels[i >> 2] = ( pixels[i >> 2] & ~( 0xff << shift ) )
+                     | index << shift;
+  }
+
+  /*
+   * sets a run of pixels of an indexed tile to one index, four at a time
+   * where they fill a whole int
+   */
+  private static void fillIndices( int[] pixels, int from, int to,
+                                   int index ) {
+    while( from < to && ( from & 3 ) != 0 ) {
+      setIndex( pixels, from++, index );
+    }
+    int whole = to & ~3;
+    if( from < whole ) {
+      Arrays.fill( pixels, from >> 2, whole >> 2, pack( index ) );
+      from = whole;
+    }
+    while( from < to ) {
+      setIndex( pixels, from++, index );
+    }
+  }
+
+  /*
+   * an index repeated in all four bytes of an int
+   */
+  private static int pack( int index ) {
+    return index * 0x01010101;
+  }
+}